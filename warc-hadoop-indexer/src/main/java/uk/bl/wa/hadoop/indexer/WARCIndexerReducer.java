@@ -1,10 +1,9 @@
 package uk.bl.wa.hadoop.indexer;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,9 +19,11 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.log4j.PropertyConfigurator;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.response.UpdateResponse;
-import org.apache.solr.common.SolrInputDocument;
 
 import uk.bl.wa.apache.solr.hadoop.Solate;
+import uk.bl.wa.solr.AdaptiveBatchSizer;
+import uk.bl.wa.solr.AsyncSolrSubmitter;
+import uk.bl.wa.solr.SolrBatch;
 import uk.bl.wa.solr.SolrFields;
 import uk.bl.wa.solr.SolrRecord;
 import uk.bl.wa.solr.SolrWebServer;
@@ -41,10 +42,17 @@ public class WARCIndexerReducer extends MapReduceBase implements
     private SolrServer solrServer;
     private int batchSize;
     private boolean dummyRun;
-    private ArrayList<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+    private SolrBatch docs = new SolrBatch();
+    private AdaptiveBatchSizer sizer;
     private int numberOfSequentialFails = 0;
     private static final int SUBMISSION_PAUSE_MINS = 5;
 
+    private Config conf;
+    private AsyncSolrSubmitter submitter;
+    private long reportedSubmitted = 0;
+    private long reportedDropped = 0;
+    private long reportedErrors = 0;
+
     private FileSystem fs;
     private Path solrHomeDir = null;
     private Path outputDir;
@@ -78,9 +86,11 @@ public class WARCIndexerReducer extends MapReduceBase implements
 	// Get config from job property:
 	Config conf = ConfigFactory.parseString(job
 		.get(WARCIndexerRunner.CONFIG_PROPERTIES));
+	this.conf = conf;
 
 	this.dummyRun = conf.getBoolean("warc.solr.dummy_run");
 	this.batchSize = conf.getInt("warc.solr.batch_size");
+	this.sizer = new AdaptiveBatchSizer(conf);
 	this.useEmbeddedServer = conf.getBoolean("warc.solr.hdfs");
 	if (job.get("mapred.output.oai-pmh") != null)
 	    this.exportXml = Boolean.parseBoolean(job
@@ -91,6 +101,7 @@ public class WARCIndexerReducer extends MapReduceBase implements
 	    initEmbeddedServerConfig(job, conf);
 	} else {
 	    solrServer = new SolrWebServer(conf).getSolrServer();
+	    initSubmitter();
 	}
 
 	log.info("Initialisation complete.");
@@ -122,7 +133,20 @@ public class WARCIndexerReducer extends MapReduceBase implements
 	// Fire up a server:
 	solrServer = Solate.createEmbeddedSolrServer(solrHomeDir, fs,
 		outputDir, outputShardDir);
+	initSubmitter();
+
+    }
 
+    /**
+     * Sets up background submission to the current SolrServer, if enabled.
+     */
+    private void initSubmitter() {
+	if (AsyncSolrSubmitter.isEnabled(conf)) {
+	    submitter = new AsyncSolrSubmitter(solrServer, conf, sizer);
+	    reportedSubmitted = 0;
+	    reportedDropped = 0;
+	    reportedErrors = 0;
+	}
     }
 
     @Override
@@ -193,8 +217,20 @@ public class WARCIndexerReducer extends MapReduceBase implements
 	     */
 	    checkSubmission(docs, 1, reporter);
 
+	    // Wait for any background submissions:
+	    if (submitter != null) {
+		while (!submitter.flush(1, TimeUnit.MINUTES)) {
+		    reporter.progress();
+		}
+		updateCounters(reporter);
+	    }
+
 	    // If we are indexing to HDFS, shut the shard down:
 	    if (useEmbeddedServer) {
+		if (submitter != null) {
+		    submitter.close();
+		    submitter = null;
+		}
 		// Commit, and block until the changes have been flushed.
 		solrServer.commit(true, false);
 		// And shut it down.
@@ -210,24 +246,70 @@ public class WARCIndexerReducer extends MapReduceBase implements
 
     @Override
     public void close() {
+	if (submitter != null) {
+	    try {
+		submitter.close();
+	    } catch (InterruptedException e) {
+		log.warn("Interrupted while sending the remaining docs!");
+	    }
+	}
+    }
+
+    /**
+     * Passes the outcome of background submissions on to the job counters.
+     * 
+     * @param reporter
+     */
+    private void updateCounters(Reporter reporter) {
+	long current = submitter.getSubmittedCount();
+	reporter.incrCounter(MyCounters.NUM_RECORDS, current - reportedSubmitted);
+	reportedSubmitted = current;
+	current = submitter.getDroppedCount();
+	reporter.incrCounter(MyCounters.NUM_DROPPED_RECORDS, current
+		- reportedDropped);
+	reportedDropped = current;
+	current = submitter.getErrorCount();
+	reporter.incrCounter(MyCounters.NUM_ERRORS, current - reportedErrors);
+	reportedErrors = current;
     }
 
     /**
-     * Checks whether a List of docs has exceeded a given limit and if so,
-     * submits them.
+     * Checks whether a batch of docs has exceeded a given limit (by number or
+     * by size) and if so, submits them, in the background if enabled.
      * 
      * @param docs
      * @param limit
      * @param reporter
      */
-    private void checkSubmission(List<SolrInputDocument> docs, int limit,
+    private void checkSubmission(SolrBatch docs, int limit,
 	    Reporter reporter) {
-	if (docs.size() > 0 && docs.size() >= limit) {
+	if (submitter != null) {
+	    if (docs.size() > 0 && sizer.isFull(docs, limit)) {
+		try {
+		    // Queue the documents, reporting progress while Solr
+		    // catches up:
+		    while (!submitter.submit(docs.getDocuments(), 1,
+			    TimeUnit.MINUTES)) {
+			reporter.progress();
+		    }
+		    docs.clear();
+		} catch (InterruptedException e) {
+		    log.warn("Interrupted while submitting " + docs.size()
+			    + " docs!");
+		}
+	    }
+	    updateCounters(reporter);
+	    return;
+	}
+	if (docs.size() > 0 && sizer.isFull(docs, limit)) {
 	    try {
 		// Inform that there is progress (still-alive):
 		reporter.progress();
 		// Add the documents:
-		UpdateResponse response = solrServer.add(docs);
+		final long start = System.nanoTime();
+		UpdateResponse response = solrServer.add(docs.getDocuments());
+		sizer.success(docs.size(), docs.getBytes(), System.nanoTime()
+			- start);
 		log.info("Submitted " + docs.size() + " docs ["
 			+ response.getStatus() + "]");
 		// Update document counter:
@@ -238,6 +320,7 @@ public class WARCIndexerReducer extends MapReduceBase implements
 	    } catch (Exception e) {
 		// Count up repeated fails:
 		numberOfSequentialFails++;
+		sizer.failure();
 
 		// If there have been a lot of fails, drop the records
 		// (we have seen some "Invalid UTF-8 character 0xfffe at char"
@@ -1,24 +1,35 @@
 package uk.bl.wa.hadoop.indexer;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
 
-import org.apache.commons.lang.SerializationUtils;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.JavaBinCodec;
 
 import uk.bl.wa.solr.SolrRecord;
 
 /**
  * Writable wrapper for SolrRecord.
+ * 
+ * The document is written in Solr's compact 'javabin' format (the same one
+ * SolrJ uses for updates, with field names written once per record), prefixed
+ * by its length as a VInt so a record can be skipped or compared as raw bytes.
  */
 public class WritableSolrRecord  implements Writable, Serializable {
 	private static final long serialVersionUID = -3409886058494054406L;
 	
 	private SolrRecord sr = new SolrRecord();
 
+	/** Re-used between records, as Hadoop re-uses the Writable itself */
+	private transient DataOutputBuffer outputBuffer;
+	private transient byte[] inputBuffer;
+
 	WritableSolrRecord() { }
 
 	public WritableSolrRecord( SolrRecord sr ) {
@@ -27,21 +38,28 @@ public class WritableSolrRecord  implements Writable, Serializable {
 
 	@Override
 	public void readFields( DataInput input ) throws IOException {
-		int length = input.readInt();
-		byte[] bytes = new byte[ length ];
-		input.readFully( bytes );
-		this.sr.setSolrDocument( ( SolrInputDocument ) SerializationUtils.deserialize( bytes ) );
+		int length = WritableUtils.readVInt( input );
+		if( inputBuffer == null || inputBuffer.length < length ) {
+			inputBuffer = new byte[ length ];
+		}
+		input.readFully( inputBuffer, 0, length );
+		this.sr.setSolrDocument( ( SolrInputDocument ) new JavaBinCodec()
+				.unmarshal( new ByteArrayInputStream( inputBuffer, 0, length ) ) );
 	}
 
 	@Override
 	public void write( DataOutput output ) throws IOException {
-		byte[] bytes = SerializationUtils.serialize( this.sr.getSolrDocument() );
-		output.writeInt( bytes.length );
-		output.write( bytes );
+		if( outputBuffer == null ) {
+			outputBuffer = new DataOutputBuffer();
+		}
+		outputBuffer.reset();
+		new JavaBinCodec().marshal( this.sr.getSolrDocument(), outputBuffer );
+		WritableUtils.writeVInt( output, outputBuffer.getLength() );
+		output.write( outputBuffer.getData(), 0, outputBuffer.getLength() );
 	}
 	
 	public SolrRecord getSolrRecord() {
 		return this.sr;
 	}
 
-}
\ No newline at end of file
+}
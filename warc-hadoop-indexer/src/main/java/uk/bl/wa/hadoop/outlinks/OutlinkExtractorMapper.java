@@ -4,21 +4,28 @@ import static org.archive.format.warc.WARCConstants.HEADER_KEY_TYPE;
 import static org.archive.format.warc.WARCConstants.WARCRecordType;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.MapReduceBase;
 import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AbstractParser;
 import org.archive.io.ArchiveRecordHeader;
 
 import uk.bl.wa.hadoop.WritableArchiveRecord;
 import uk.bl.wa.parsers.HtmlFeatureParser;
 
+import com.typesafe.config.ConfigFactory;
+
 @SuppressWarnings( "deprecation" )
 public class OutlinkExtractorMapper extends MapReduceBase implements Mapper<Text, WritableArchiveRecord, Text, Text> {
 	Pattern pattern = Pattern.compile( "^(https?://([^/:]+)(:[0-9]+)?/).*$" );
@@ -29,6 +36,21 @@ public class OutlinkExtractorMapper extends MapReduceBase implements Mapper<Text
 	String resourceUrl;
 	Iterator<String> links;
 	ArchiveRecordHeader header;
+	AbstractParser parser;
+
+	/**
+	 * Uses the JSoup parser by default, as the indexer does. As only the links
+	 * are needed, set warc.index.extract.content.html_parser=streaming in the
+	 * job configuration to avoid building a DOM for every page (the links
+	 * found can differ slightly).
+	 */
+	@Override
+	public void configure( JobConf job ) {
+		Map<String, Object> conf = new HashMap<String, Object>();
+		conf.put( HtmlFeatureParser.CONF_PARSER, job.get( HtmlFeatureParser.CONF_PARSER, HtmlFeatureParser.DEFAULT_PARSER ) );
+		conf.put( HtmlFeatureParser.CONF_FEATURES, Arrays.asList( HtmlFeatureParser.FEATURE_LINKS ) );
+		parser = HtmlFeatureParser.forConfig( ConfigFactory.parseMap( conf ) );
+	}
 
 	@Override
 	public void map( Text key, WritableArchiveRecord value, OutputCollector<Text, Text> output, Reporter reporter ) throws IOException {
@@ -50,7 +72,9 @@ public class OutlinkExtractorMapper extends MapReduceBase implements Mapper<Text
 				year = value.getRecord().getHeader().getDate().substring( 0, 4 );
 				outputKey = new Text( year + "\t" + resourceHost );
 
-				Metadata metadata = HtmlFeatureParser.extractMetadata( value.getRecord(), resourceUrl );
+				Metadata metadata = new Metadata();
+				metadata.set( Metadata.RESOURCE_NAME_KEY, resourceUrl );
+				parser.parse( value.getRecord(), null, metadata, null );
 				for( String link : metadata.getValues( HtmlFeatureParser.LINK_LIST ) ) {
 					matcher = pattern.matcher( link );
 					if( matcher.matches() ) {
@@ -0,0 +1,85 @@
+package uk.bl.wa.hadoop.indexer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.junit.Test;
+
+import uk.bl.wa.solr.SolrFields;
+import uk.bl.wa.solr.SolrRecord;
+
+/**
+ * Checks the compact encoding survives a round trip, and is smaller than the
+ * Java serialisation that was used before. The speed of the two is compared by
+ * WritableSolrRecordBenchmark in warc-indexer-benchmarks.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class WritableSolrRecordTest {
+	private static Log log = LogFactory.getLog(WritableSolrRecordTest.class);
+
+	private SolrRecord createRecord() {
+		SolrRecord solr = new SolrRecord();
+		solr.setField(SolrFields.ID, "sha1:ABCDEFGHIJKLMNOPQRSTUVWXYZ234567/http://www.example.com/");
+		solr.setField(SolrFields.SOLR_URL, "http://www.example.com/");
+		solr.setField(SolrFields.SOLR_HOST, "www.example.com");
+		solr.setField(SolrFields.CONTENT_LENGTH, "12345");
+		solr.addField(SolrFields.SOLR_LINKS_HOSTS, "www.bl.uk");
+		solr.addField(SolrFields.SOLR_LINKS_HOSTS, "www.webarchive.org.uk");
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			text.append("Some extracted text, number ").append(i).append(". ");
+		}
+		solr.setField(SolrFields.SOLR_EXTRACTED_TEXT, text.toString());
+		return solr;
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		SolrRecord solr = createRecord();
+		DataOutputBuffer out = new DataOutputBuffer();
+		// Write twice, to check the re-used buffers:
+		WritableSolrRecord wsr = new WritableSolrRecord(solr);
+		wsr.write(out);
+		wsr.write(out);
+
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(out.getData(), out.getLength());
+		WritableSolrRecord read = new WritableSolrRecord();
+		for (int i = 0; i < 2; i++) {
+			read.readFields(in);
+			SolrRecord copy = read.getSolrRecord();
+			assertEquals(solr.getSolrDocument().getFieldNames(), copy
+					.getSolrDocument().getFieldNames());
+			for (String name : solr.getSolrDocument().getFieldNames()) {
+				assertEquals(name, solr.getField(name).getValues(), copy
+						.getField(name).getValues());
+			}
+		}
+	}
+
+	@Test
+	public void testCompactness() throws IOException {
+		SolrRecord solr = createRecord();
+		WritableSolrRecord wsr = new WritableSolrRecord(solr);
+		DataOutputBuffer out = new DataOutputBuffer();
+
+		long serialisedLength = SerializationUtils.serialize(
+				solr.getSolrDocument()).length;
+		wsr.write(out);
+		log.info("Java serialisation: " + serialisedLength
+				+ " bytes/record, compact encoding: " + out.getLength()
+				+ " bytes/record");
+		assertTrue("Expected compact encoding to be smaller",
+				out.getLength() < serialisedLength);
+	}
+
+}
@@ -0,0 +1,142 @@
+package uk.bl.wa.benchmarks;
+
+/*
+ * #%L
+ * warc-indexer-benchmarks
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.archive.io.ArchiveReader;
+import org.archive.io.ArchiveReaderFactory;
+import org.archive.io.ArchiveRecord;
+
+import uk.bl.wa.solr.SolrFields;
+import uk.bl.wa.solr.SolrRecord;
+import uk.bl.wa.solr.TikaExtractor;
+
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Access to the fixed benchmark corpus, i.e. the test files from warc-indexer
+ * that are packaged into the benchmarks jar. Everything is loaded into memory
+ * up front so that the benchmarks do not measure disk access.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class Corpus {
+
+	public static final String BLACKBOOK_WARC = "IAH-20080430204825-00000-blackbook-truncated.warc.gz";
+
+	public static final String WGET_WARC = "IAH-urls-wget.warc.gz";
+
+	public static final String REVISITS_WARC = "gov.uk-revisit-warcs/BL-20140325121225068-00000-32090~opera~8443.warc.gz";
+
+	public static final String MONA_LISA_WARC = "wikipedia-mona-lisa/flashfrozen-jwat-recompressed.warc.gz";
+
+	public static final String MONA_LISA_HTML = "wikipedia-mona-lisa/Mona_Lisa.html";
+
+	public static final String LINKS_HTML = "links_extract.html";
+
+	private Corpus() {
+	}
+
+	/**
+	 * @param name
+	 *            path of the resource, relative to the root of the corpus.
+	 * @return the content of the resource.
+	 * @throws IOException
+	 */
+	public static byte[] load( String name ) throws IOException {
+		InputStream in = Corpus.class.getClassLoader().getResourceAsStream( name );
+		if( in == null ) {
+			throw new IOException( "Could not find " + name + " in the benchmark corpus." );
+		}
+		try {
+			return IOUtils.toByteArray( in );
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param name
+	 *            the file name, used to pick the ARC or WARC reader.
+	 * @param content
+	 * @return a reader over an in-memory archive file.
+	 * @throws IOException
+	 */
+	public static ArchiveReader open( String name, byte[] content ) throws IOException {
+		return ArchiveReaderFactory.get( name, new ByteArrayInputStream( content ), true );
+	}
+
+	/**
+	 * Reads the body of every record of an archive file into memory, e.g. to
+	 * pick out payloads to benchmark.
+	 * 
+	 * @param name
+	 * @return the record bodies, including any HTTP headers.
+	 * @throws IOException
+	 */
+	public static List<byte[]> records( String name ) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		ArchiveReader reader = open( name, load( name ) );
+		try {
+			Iterator<ArchiveRecord> ir = reader.iterator();
+			while( ir.hasNext() ) {
+				ArchiveRecord rec = ir.next();
+				records.add( IOUtils.toByteArray( rec ) );
+			}
+		} finally {
+			reader.close();
+		}
+		return records;
+	}
+
+	/**
+	 * @param name
+	 *            an HTML (or other) resource.
+	 * @return the text Tika extracts from the resource, as indexed.
+	 * @throws IOException
+	 */
+	public static String text( String name ) throws IOException {
+		TikaExtractor tika = new TikaExtractor( ConfigFactory.load() );
+		SolrRecord solr = tika.extract( new SolrRecord(), new ByteArrayInputStream( load( name ) ), url( name ) );
+		return ( String ) solr.getFieldValue( SolrFields.SOLR_EXTRACTED_TEXT );
+	}
+
+	/**
+	 * @param name
+	 * @return a URL for the resource, so extension hints work as they would
+	 *         for a crawled copy.
+	 */
+	public static String url( String name ) {
+		return "http://www.example.org/" + name;
+	}
+
+}
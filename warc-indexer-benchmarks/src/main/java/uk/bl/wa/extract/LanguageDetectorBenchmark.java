@@ -0,0 +1,78 @@
+package uk.bl.wa.extract;
+
+/*
+ * #%L
+ * warc-indexer-benchmarks
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.bl.wa.benchmarks.Corpus;
+
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Times {@link LanguageDetector#detectLanguage(String)} on the text extracted
+ * from the pages in the corpus.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LanguageDetectorBenchmark {
+
+	@Param({ Corpus.MONA_LISA_HTML, Corpus.LINKS_HTML })
+	public String file;
+
+	private String text;
+
+	private LanguageDetector detector;
+
+	@Setup
+	public void setup() throws IOException {
+		text = Corpus.text( file );
+		detector = new LanguageDetector( ConfigFactory.load() );
+	}
+
+	@Benchmark
+	public String detectLanguage() {
+		return detector.detectLanguage( text );
+	}
+
+}
@@ -0,0 +1,112 @@
+package uk.bl.wa.extract;
+
+/*
+ * #%L
+ * warc-indexer-benchmarks
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import uk.bl.wa.benchmarks.Corpus;
+import uk.bl.wa.parsers.HtmlFeatureParser;
+
+/**
+ * Times the host and suffix extraction that is done for every link of every
+ * page, using all the links found in the Mona Lisa page. Each operation
+ * handles the whole set of links. As the suffixes are cached by host, the
+ * suffix benchmarks mostly measure the cache.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkExtractorBenchmark {
+
+	private String[] links;
+
+	private String[] hosts;
+
+	@Setup
+	public void setup() throws IOException, SAXException, TikaException {
+		Metadata metadata = new Metadata();
+		metadata.set( Metadata.RESOURCE_NAME_KEY, Corpus.url( Corpus.MONA_LISA_HTML ) );
+		new HtmlFeatureParser().parse( new ByteArrayInputStream( Corpus.load( Corpus.MONA_LISA_HTML ) ),
+				new DefaultHandler(), metadata, new ParseContext() );
+		links = metadata.getValues( HtmlFeatureParser.LINK_LIST );
+		hosts = new String[ links.length ];
+		for( int i = 0; i < links.length; i++ ) {
+			hosts[ i ] = LinkExtractor.extractHost( links[ i ] );
+		}
+	}
+
+	@Benchmark
+	public void parseLink( Blackhole bh ) {
+		for( String link : links ) {
+			bh.consume( LinkExtractor.parseLink( link ) );
+		}
+	}
+
+	@Benchmark
+	public void extractHost( Blackhole bh ) {
+		for( String link : links ) {
+			bh.consume( LinkExtractor.extractHost( link ) );
+		}
+	}
+
+	@Benchmark
+	public void extractPublicSuffix( Blackhole bh ) {
+		for( String host : hosts ) {
+			bh.consume( LinkExtractor.extractPublicSuffixFromHost( host ) );
+		}
+	}
+
+	@Benchmark
+	public void extractPrivateSuffix( Blackhole bh ) {
+		for( String host : hosts ) {
+			bh.consume( LinkExtractor.extractPrivateSuffixFromHost( host ) );
+		}
+	}
+
+}
@@ -0,0 +1,109 @@
+package uk.bl.wa.hadoop.indexer;
+
+/*
+ * #%L
+ * warc-indexer-benchmarks
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.bl.wa.solr.SolrFields;
+import uk.bl.wa.solr.SolrRecord;
+
+/**
+ * Compares the compact {@link WritableSolrRecord} encoding with the Java
+ * serialisation that was used before, for a record with a few short fields
+ * and some extracted text.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WritableSolrRecordBenchmark {
+
+	private SolrRecord solr;
+	private WritableSolrRecord wsr;
+	private DataOutputBuffer out;
+	private DataInputBuffer in;
+	private WritableSolrRecord read;
+
+	@Setup
+	public void setup() throws IOException {
+		solr = new SolrRecord();
+		solr.setField(SolrFields.ID, "sha1:ABCDEFGHIJKLMNOPQRSTUVWXYZ234567/http://www.example.com/");
+		solr.setField(SolrFields.SOLR_URL, "http://www.example.com/");
+		solr.setField(SolrFields.SOLR_HOST, "www.example.com");
+		solr.setField(SolrFields.CONTENT_LENGTH, "12345");
+		solr.addField(SolrFields.SOLR_LINKS_HOSTS, "www.bl.uk");
+		solr.addField(SolrFields.SOLR_LINKS_HOSTS, "www.webarchive.org.uk");
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			text.append("Some extracted text, number ").append(i).append(". ");
+		}
+		solr.setField(SolrFields.SOLR_EXTRACTED_TEXT, text.toString());
+
+		wsr = new WritableSolrRecord(solr);
+		out = new DataOutputBuffer();
+		wsr.write(out);
+		in = new DataInputBuffer();
+		read = new WritableSolrRecord();
+	}
+
+	@Benchmark
+	public byte[] javaSerialisation() {
+		return SerializationUtils.serialize(solr.getSolrDocument());
+	}
+
+	@Benchmark
+	public int compactWrite() throws IOException {
+		out.reset();
+		wsr.write(out);
+		return out.getLength();
+	}
+
+	@Benchmark
+	public SolrRecord compactRead() throws IOException {
+		in.reset(out.getData(), out.getLength());
+		read.readFields(in);
+		return read.getSolrRecord();
+	}
+
+}
@@ -0,0 +1,98 @@
+package uk.bl.wa.indexer;
+
+/*
+ * #%L
+ * warc-indexer-benchmarks
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.archive.io.ArchiveReader;
+import org.archive.io.ArchiveRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import uk.bl.wa.benchmarks.Corpus;
+
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Times {@link WARCIndexer#extract(String, ArchiveRecord)} over every record
+ * of each of the test archive files, with the default configuration. The
+ * files are read from memory, so this is the cost of indexing alone.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WARCIndexerBenchmark {
+
+	@Param({ Corpus.BLACKBOOK_WARC, Corpus.WGET_WARC, Corpus.REVISITS_WARC, Corpus.MONA_LISA_WARC })
+	public String warc;
+
+	private String archiveName;
+
+	private byte[] content;
+
+	private WARCIndexer windex;
+
+	@Setup
+	public void setup() throws IOException, NoSuchAlgorithmException {
+		archiveName = warc.substring( warc.lastIndexOf( '/' ) + 1 );
+		content = Corpus.load( warc );
+		windex = new WARCIndexer( ConfigFactory.load() );
+	}
+
+	@Benchmark
+	public int extract( Blackhole bh ) throws IOException {
+		int records = 0;
+		ArchiveReader reader = Corpus.open( archiveName, content );
+		try {
+			Iterator<ArchiveRecord> ir = reader.iterator();
+			while( ir.hasNext() ) {
+				bh.consume( windex.extract( archiveName, ir.next() ) );
+				records++;
+			}
+		} finally {
+			reader.close();
+		}
+		return records;
+	}
+
+}
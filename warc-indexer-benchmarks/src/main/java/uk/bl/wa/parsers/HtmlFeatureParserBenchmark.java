@@ -0,0 +1,168 @@
+package uk.bl.wa.parsers;
+
+/*
+ * #%L
+ * warc-indexer-benchmarks
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import uk.bl.wa.benchmarks.Corpus;
+
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Times {@link HtmlFeatureParser#parse}, i.e. the JSoup parse plus the link,
+ * element and metadata extraction, for a large and a small page.
+ * 
+ * The feature extraction is also timed on its own, on an already parsed
+ * page, comparing the single traversal used by
+ * {@link HtmlFeatureParser#extractFeatures} with the separate selector passes
+ * (one per feature) that it replaced. The {@link StreamingHtmlFeatureParser}
+ * is timed from the raw bytes, like {@link #parse()}.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HtmlFeatureParserBenchmark {
+
+	@Param({ Corpus.MONA_LISA_HTML, Corpus.LINKS_HTML })
+	public String file;
+
+	private byte[] content;
+
+	private String url;
+
+	private HtmlFeatureParser parser;
+
+	private StreamingHtmlFeatureParser streamingParser;
+
+	private Document doc;
+
+	@Setup
+	public void setup() throws IOException {
+		content = Corpus.load( file );
+		url = Corpus.url( file );
+		parser = new HtmlFeatureParser( ConfigFactory.load() );
+		streamingParser = new StreamingHtmlFeatureParser( ConfigFactory.load() );
+		doc = Jsoup.parse( new ByteArrayInputStream( content ), null, url, Parser.xmlParser() );
+	}
+
+	@Benchmark
+	public Metadata parse() throws IOException, SAXException, TikaException {
+		Metadata metadata = new Metadata();
+		metadata.set( Metadata.RESOURCE_NAME_KEY, url );
+		parser.parse( new ByteArrayInputStream( content ), new DefaultHandler(), metadata, new ParseContext() );
+		return metadata;
+	}
+
+	@Benchmark
+	public Metadata streaming() throws IOException, SAXException, TikaException {
+		Metadata metadata = new Metadata();
+		metadata.set( Metadata.RESOURCE_NAME_KEY, url );
+		streamingParser.parse( new ByteArrayInputStream( content ), new DefaultHandler(), metadata, new ParseContext() );
+		return metadata;
+	}
+
+	@Benchmark
+	public Metadata traversal() {
+		Metadata metadata = new Metadata();
+		parser.extractFeatures( doc, metadata );
+		return metadata;
+	}
+
+	/**
+	 * The feature extraction as it was, with a selector pass per feature.
+	 */
+	@Benchmark
+	public Metadata selectors() {
+		Metadata metadata = new Metadata();
+		Set<String> links = new HashSet<String>();
+		for( Element link : doc.select( "a[href]" ) ) {
+			links.add( link.attr( "abs:href" ) );
+		}
+		if( links.size() > 0 ) {
+			metadata.set( HtmlFeatureParser.LINK_LIST, links.toArray( new String[ links.size() ] ) );
+		}
+		for( Element meta : doc.select( "meta[name=OriginalPublicationDate]" ) ) {
+			metadata.set( HtmlFeatureParser.ORIGINAL_PUB_DATE, meta.attr( "content" ) );
+		}
+		for( Element p : doc.select( "p" ) ) {
+			if( p.text().trim().length() > 0 ) {
+				metadata.set( HtmlFeatureParser.FIRST_PARAGRAPH, p.text() );
+				break;
+			}
+		}
+		Set<String> de = new HashSet<String>();
+		for( Element e : doc.select( "*" ) ) {
+			if( !"#root".equals( e.tag().getName() ) )
+				de.add( StringUtils.left( e.tag().getName(), 100 ) );
+		}
+		for( Element e : doc.select( "link" ) ) {
+			de.add( "link/@rel=" + e.attr( "rel" ) );
+		}
+		metadata.set( HtmlFeatureParser.DISTINCT_ELEMENTS, de.toArray( new String[] {} ) );
+		for( Element a : doc.select( "a[rel=license]" ) ) {
+			metadata.add( Metadata.LICENSE_URL, a.attr( "href" ) );
+		}
+		for( Element a : doc.select( "link[rel=license]" ) ) {
+			metadata.add( Metadata.LICENSE_URL, a.attr( "href" ) );
+		}
+		for( Element a : doc.select( "area[rel=license]" ) ) {
+			metadata.add( Metadata.LICENSE_URL, a.attr( "href" ) );
+		}
+		return metadata;
+	}
+
+}
@@ -0,0 +1,133 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer-benchmarks
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the field sanitisation in {@link SolrRecord} with the earlier
+ * encode/decode and regular expression approach, for a short field and for a
+ * full-size extracted text field, both with and without characters that need
+ * fixing.
+ * 
+ * Run with e.g. -prof gc to see the allocation rates as well as the timings.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SolrRecordBenchmark {
+
+	private static final Pattern SPACE_PATTERN = Pattern.compile("\\p{Space}");
+	private static final Pattern CNTRL_PATTERN = Pattern.compile("\\p{Cntrl}");
+
+	@Param({ "200", "524288" })
+	public int length;
+
+	@Param({ "clean", "dirty" })
+	public String kind;
+
+	private String value;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		StringBuilder sb = new StringBuilder(length);
+		while (sb.length() < length) {
+			// Words of plain and accented letters:
+			int word = 1 + random.nextInt(10);
+			for (int i = 0; i < word; i++) {
+				sb.append(random.nextInt(20) == 0 ? '\u00e9' : (char) ('a' + random.nextInt(26)));
+			}
+			if ("dirty".equals(kind) && random.nextInt(8) == 0) {
+				sb.append(random.nextBoolean() ? '\n' : '\u0000');
+			} else {
+				sb.append(' ');
+			}
+		}
+		sb.setLength(length - 1);
+		sb.append('.');
+		value = sb.toString();
+	}
+
+	@Benchmark
+	public String sanitise() {
+		return SolrRecord.sanitise(value);
+	}
+
+	@Benchmark
+	public CharSequence legacy() throws CharacterCodingException {
+		return CNTRL_PATTERN.matcher(
+				SPACE_PATTERN.matcher(legacySanitiseUTF8(value.trim())).replaceAll(" ")
+		).replaceAll("");
+	}
+
+	@Benchmark
+	public SolrRecord addField() {
+		SolrRecord doc = new SolrRecord();
+		doc.addField(SolrFields.SOLR_EXTRACTED_TEXT, value);
+		return doc;
+	}
+
+	/**
+	 * The UTF-8 round trip that SolrRecord used to do on every value.
+	 */
+	private static CharSequence legacySanitiseUTF8(String value) throws CharacterCodingException {
+		CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+		encoder.onMalformedInput(CodingErrorAction.REPLACE);
+		encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ByteBuffer bytes = encoder.encode(CharBuffer.wrap(value));
+		CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
+		decoder.onMalformedInput(CodingErrorAction.REPLACE);
+		decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		return decoder.decode(bytes);
+	}
+
+}
@@ -69,6 +69,7 @@ public class ARCNameAnalyser extends AbstractPayloadAnalyser {
 
      */
 	public ARCNameAnalyser(Config conf) {
+        super(conf);
         if (!conf.hasPath("warc.index.extract.content.arcname.rules")) {
             log.debug("No rules for ARCNameAnalyzer; no processing of ARC names");
             return;
@@ -26,6 +26,7 @@ package uk.bl.wa.analyser.payload;
  */
 
 import java.io.InputStream;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,6 +35,9 @@ import org.apache.tika.parser.AbstractParser;
 import org.archive.io.ArchiveRecordHeader;
 
 import uk.bl.wa.solr.SolrRecord;
+import uk.bl.wa.util.TimeoutService;
+
+import com.typesafe.config.Config;
 
 /**
  * @author anj
@@ -42,8 +46,46 @@ import uk.bl.wa.solr.SolrRecord;
 public abstract class AbstractPayloadAnalyser {
 	private static Log log = LogFactory.getLog( AbstractPayloadAnalyser.class );
 
+	/** Time allowed for each parse, in milliseconds */
+	public static final String CONF_PARSE_TIMEOUT = "warc.index.extract.parse_timeout";
+
+	public static final long DEFAULT_PARSE_TIMEOUT = 30000L;
+
+	/** Runs the parsers with a timeout */
+	private final TimeoutService timeouts;
+
+	private final long parseTimeout;
+
+	/**
+	 * @param conf
+	 */
+	public AbstractPayloadAnalyser( Config conf ) {
+		this.timeouts = TimeoutService.getInstance( conf );
+		this.parseTimeout = conf.hasPath( CONF_PARSE_TIMEOUT ) ? conf.getLong( CONF_PARSE_TIMEOUT ) : DEFAULT_PARSE_TIMEOUT;
+	}
+
 	public abstract void analyse(ArchiveRecordHeader header, InputStream tikainput, SolrRecord solr);
 
+	/**
+	 * Runs the parser on the shared pool of parser threads, and records a
+	 * parse error if it had to be abandoned or could not be started.
+	 * 
+	 * @param parser
+	 * @param hint
+	 *            describes the parse, for the error message.
+	 * @throws InterruptedException
+	 */
+	protected void runParser( ParseRunner parser, String hint ) throws InterruptedException {
+		TimeoutService.Outcome outcome = timeouts.run( parser, parseTimeout );
+		if( outcome == TimeoutService.Outcome.TIMED_OUT ) {
+			parser.solr.addParseException( hint, new TimeoutException(
+					parser.parser.getClass().getName() + " abandoned after " + parseTimeout + "ms" ) );
+		} else if( outcome == TimeoutService.Outcome.REJECTED ) {
+			parser.solr.addParseException( hint, new Exception(
+					parser.parser.getClass().getName() + " not run, no parser thread available" ) );
+		}
+	}
+
 	protected class ParseRunner implements Runnable {
 		AbstractParser parser;
 		Metadata metadata;
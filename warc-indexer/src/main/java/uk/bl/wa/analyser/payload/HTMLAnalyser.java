@@ -33,10 +33,13 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.metadata.Property;
+import org.apache.tika.parser.AbstractParser;
 import org.archive.io.ArchiveRecordHeader;
 
 import uk.bl.wa.extract.LinkExtractor;
+import uk.bl.wa.extract.LinkExtractor.HostInfo;
 import uk.bl.wa.parsers.HtmlFeatureParser;
+import uk.bl.wa.parsers.UnifiedHtmlParser;
 import uk.bl.wa.solr.SolrFields;
 import uk.bl.wa.solr.SolrRecord;
 
@@ -50,13 +53,14 @@ import uk.bl.wa.util.Instrument;
 public class HTMLAnalyser extends AbstractPayloadAnalyser {
 	private static Log log = LogFactory.getLog( HTMLAnalyser.class );
 
-	private HtmlFeatureParser hfp;
+	private AbstractParser hfp;
 	private boolean extractLinkDomains;
 	private boolean extractLinkHosts;
 	private boolean extractLinks;
 	private boolean extractElementsUsed;
 
 	public HTMLAnalyser( Config conf ) {
+		super( conf );
 		this.extractLinks = conf.getBoolean( "warc.index.extract.linked.resources" );
 		log.info("HTML - Extract resource links " + this.extractLinks);
 		this.extractLinkHosts = conf.getBoolean( "warc.index.extract.linked.hosts" );
@@ -65,7 +69,7 @@ public class HTMLAnalyser extends AbstractPayloadAnalyser {
 		log.info("HTML - Extract domain links " + this.extractLinkDomains);
 		this.extractElementsUsed = conf.getBoolean( "warc.index.extract.content.elements_used" );
 		log.info("HTML - Extract elements used " + this.extractElementsUsed);
-        hfp = new HtmlFeatureParser(conf);
+        hfp = HtmlFeatureParser.forConfig(conf);
 	}
 	/**
 	 *  JSoup link extractor for (x)html, deposit in 'links' field.
@@ -78,40 +82,54 @@ public class HTMLAnalyser extends AbstractPayloadAnalyser {
     public void analyse(ArchiveRecordHeader header, InputStream tikainput, SolrRecord solr) {
         final long start = System.nanoTime();
 		Metadata metadata = new Metadata();
-		Set<String> hosts = new HashSet<String>();
-		Set<String> suffixes = new HashSet<String>();
-		Set<String> domains = new HashSet<String>();
 		
 		// JSoup NEEDS the URL to function:
 		metadata.set( Metadata.RESOURCE_NAME_KEY, header.getUrl() );
 		ParseRunner parser = new ParseRunner( hfp, tikainput, metadata, solr );
-		Thread thread = new Thread( parser, Long.toString( System.currentTimeMillis() ) );
 		try {
-			thread.start();
-			thread.join( 30000L );
-			thread.interrupt();
+			runParser( parser, "when parsing as HTML" );
 		} catch( Exception e ) {
 			log.error( "WritableSolrRecord.extract(): " + e.getMessage() );
 			solr.addParseException("when parsing as HTML", e);
 		}
         Instrument.timeRel("HTMLAnalyzer.analyze#total", "HTMLAnalyzer.analyze#parser", start);
 
+		addFeatures(metadata, solr);
+        Instrument.timeRel("WARCPayloadAnalyzers.analyze#total", "HTMLAnalyzer.analyze#total", start);
+    }
+
+	/**
+	 * Records the features of a page that has already been parsed, e.g. by
+	 * the {@link UnifiedHtmlParser}.
+	 * 
+	 * @param metadata
+	 *            the features, as extracted by the {@link HtmlFeatureParser}.
+	 * @param solr
+	 */
+	public void analyse(Metadata metadata, SolrRecord solr) {
+        final long start = System.nanoTime();
+		addFeatures(metadata, solr);
+        Instrument.timeRel("WARCPayloadAnalyzers.analyze#total", "HTMLAnalyzer.analyze#total", start);
+	}
+
+	private void addFeatures(Metadata metadata, SolrRecord solr) {
+		Set<String> hosts = new HashSet<String>();
+		Set<String> suffixes = new HashSet<String>();
+		Set<String> domains = new HashSet<String>();
+
 		// Process links:
 		String[] links_list = metadata.getValues( HtmlFeatureParser.LINK_LIST );
 		if( links_list != null ) {
-			String lhost, ldomain, lsuffix;
 			for( String link : links_list ) {
-				lhost = LinkExtractor.extractHost( link );
-				if( !lhost.equals( LinkExtractor.MALFORMED_HOST ) ) {
-					hosts.add(lhost);
+				HostInfo linfo = LinkExtractor.parseLink( link );
+				if( !linfo.getHost().equals( LinkExtractor.MALFORMED_HOST ) ) {
+					hosts.add(linfo.getHost());
 				}
-				lsuffix = LinkExtractor.extractPublicSuffix( link );
-				if( lsuffix != null ) {
-					suffixes.add(lsuffix);
+				if( linfo.getPublicSuffix() != null ) {
+					suffixes.add(linfo.getPublicSuffix());
 				}
-				ldomain = LinkExtractor.extractPrivateSuffix( link );
-				if( ldomain != null ) {
-					domains.add(ldomain);
+				if( linfo.getDomain() != null ) {
+					domains.add(linfo.getDomain());
 				}
 				// Also store actual resource-level links:
 				if( this.extractLinks )
@@ -144,7 +162,6 @@ public class HTMLAnalyser extends AbstractPayloadAnalyser {
 		for( String lurl : metadata.getValues( Metadata.LICENSE_URL ) ) {
 			solr.addField( SolrFields.LICENSE_URL, lurl );
 		}
-        Instrument.timeRel("WARCPayloadAnalyzers.analyze#total", "HTMLAnalyzer.analyze#total", start);
-    }
+	}
 	
 }
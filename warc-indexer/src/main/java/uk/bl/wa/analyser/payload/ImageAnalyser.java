@@ -63,6 +63,7 @@ public class ImageAnalyser extends AbstractPayloadAnalyser {
 	FaceDetectionParser fdp;
 
 	public ImageAnalyser(Config conf) {
+		super(conf);
 		this.extractFaces = conf
 				.getBoolean("warc.index.extract.content.images.detectFaces");
 		this.extractDominantColours = conf
@@ -101,12 +102,8 @@ public class ImageAnalyser extends AbstractPayloadAnalyser {
                 final long deepStart = System.nanoTime();
 				ParseRunner parser = new ParseRunner(fdp, tikainput, metadata,
 						solr);
-				Thread thread = new Thread(parser, Long.toString(System
-						.currentTimeMillis()));
 				try {
-					thread.start();
-					thread.join(30000L);
-					thread.interrupt();
+					runParser(parser, "when scanning for faces");
 				} catch (Exception e) {
 					log.error("WritableSolrRecord.extract(): " + e.getMessage());
 					solr.addParseException("when scanning for faces", e);
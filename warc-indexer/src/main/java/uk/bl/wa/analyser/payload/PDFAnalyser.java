@@ -51,6 +51,7 @@ public class PDFAnalyser extends AbstractPayloadAnalyser {
 	private ApachePreflightParser app = new ApachePreflightParser();
 
 	public PDFAnalyser(Config conf) {
+		super(conf);
 	}
 
 	/* (non-Javadoc)
@@ -63,12 +64,8 @@ public class PDFAnalyser extends AbstractPayloadAnalyser {
 		Metadata metadata = new Metadata();
 		metadata.set(Metadata.RESOURCE_NAME_KEY, header.getUrl());
 		ParseRunner parser = new ParseRunner(app, tikainput, metadata, solr);
-		Thread thread = new Thread(parser, Long.toString(System
-				.currentTimeMillis()));
 		try {
-			thread.start();
-			thread.join(30000L);
-			thread.interrupt();
+			runParser(parser, "when parsing with Apache Preflight");
 		} catch (Exception e) {
 			log.error("WritableSolrRecord.extract(): " + e.getMessage());
 			solr.addParseException("when parsing with Apache Preflight", e);
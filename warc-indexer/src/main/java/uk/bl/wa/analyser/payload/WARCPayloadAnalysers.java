@@ -25,6 +25,7 @@ package uk.bl.wa.analyser.payload;
  * #L%
  */
 
+import java.io.IOException;
 import java.io.InputStream;
 
 import org.apache.commons.codec.binary.Hex;
@@ -37,9 +38,11 @@ import org.archive.url.UsableURI;
 import org.archive.url.UsableURIFactory;
 
 import uk.bl.wa.nanite.droid.DroidDetector;
+import uk.bl.wa.parsers.UnifiedHtmlParser;
 import uk.bl.wa.solr.SolrFields;
 import uk.bl.wa.solr.SolrRecord;
 import uk.bl.wa.solr.TikaExtractor;
+import uk.bl.wa.util.HeadTailInputStream;
 import uk.bl.wa.util.Instrument;
 import uk.gov.nationalarchives.droid.command.action.CommandExecutionException;
 
@@ -56,12 +59,25 @@ import com.typesafe.config.Config;
  */
 public class WARCPayloadAnalysers {
 	private static Log log = LogFactory.getLog( WARCPayloadAnalysers.class );
+
+	/** Bytes from the start and from the end of the payload passed to DROID */
+	public static final String CONF_DROID_WINDOW = "warc.index.id.droid.window_size";
+
+	/** DROID's own default scan limit */
+	public static final int DEFAULT_DROID_WINDOW = 64 * 1024;
+
+	/** Leading bytes of the ZIP and OLE2 containers, which DROID identifies by their entries */
+	private static final byte[][] CONTAINER_SIGNATURES = {
+		{ 0x50, 0x4B, 0x03, 0x04 },
+		{ ( byte ) 0xD0, ( byte ) 0xCF, 0x11, ( byte ) 0xE0, ( byte ) 0xA1, ( byte ) 0xB1, 0x1A, ( byte ) 0xE1 }
+	};
 	
 	private boolean passUriToFormatTools = false;
 	private TikaExtractor tika = null;
 	private DroidDetector dd = null;
 	private boolean runDroid = true;
 	private boolean droidUseBinarySignaturesOnly = false;
+	private int droidWindow = DEFAULT_DROID_WINDOW;
 
 	private boolean extractContentFirstBytes = true;
 	private int firstBytesLength = 32;
@@ -74,6 +90,7 @@ public class WARCPayloadAnalysers {
 
 	private boolean extractApachePreflightErrors;
 	private boolean extractImageFeatures;
+	private boolean htmlSingleParse;
 
 	public WARCPayloadAnalysers(Config conf) {
 		this.extractContentFirstBytes = conf.getBoolean( "warc.index.extract.content.first_bytes.enabled" );
@@ -81,10 +98,12 @@ public class WARCPayloadAnalysers {
 		this.runDroid = conf.getBoolean( "warc.index.id.droid.enabled" );
 		this.passUriToFormatTools = conf.getBoolean( "warc.index.id.useResourceURI" );
 		this.droidUseBinarySignaturesOnly = conf.getBoolean( "warc.index.id.droid.useBinarySignaturesOnly" );
+		this.droidWindow = conf.hasPath( CONF_DROID_WINDOW ) ? conf.getBytes( CONF_DROID_WINDOW ).intValue() : DEFAULT_DROID_WINDOW;
 
 		this.extractApachePreflightErrors = conf.getBoolean( "warc.index.extract.content.extractApachePreflightErrors" );
 		this.extractImageFeatures = conf.getBoolean("warc.index.extract.content.images.enabled");
 		log.info("Image feature extraction = " + this.extractImageFeatures);
+		this.htmlSingleParse = UnifiedHtmlParser.isEnabled(conf);
 		
 		// Attempt to set up Droid:
 		try {
@@ -110,16 +129,59 @@ public class WARCPayloadAnalysers {
         arcname = new ARCNameAnalyser(conf);
 	}
 	
+	/**
+	 * Runs all the analysers.
+	 * 
+	 * @param header
+	 * @param tikainput
+	 * @param solr
+	 */
 	public void analyse(ArchiveRecordHeader header, InputStream tikainput, SolrRecord solr) {
+		analysePayload(header, tikainput, solr);
+		analyseArchiveName(header, solr);
+	}
+
+	/**
+	 * Runs the analysers that depend on the archive file rather than the
+	 * payload.
+	 * 
+	 * @param header
+	 * @param solr
+	 */
+	public void analyseArchiveName(ArchiveRecordHeader header, SolrRecord solr) {
+        // Parse ARC name
+        if (!arcname.getRules().isEmpty()) {
+            final long nameStart = System.nanoTime();
+            arcname.analyse(header, null, solr);
+            Instrument.timeRel("WARCPayloadAnalyzers.analyze#total",
+                               "WARCPayloadAnalyzers.analyze#arcname", nameStart);
+        }
+	}
+
+	/**
+	 * Runs the analysers that look at the payload, i.e. format identification
+	 * and parsing.
+	 * 
+	 * @param header
+	 * @param tikainput
+	 * @param solr
+	 */
+	public void analysePayload(ArchiveRecordHeader header, InputStream tikainput, SolrRecord solr) {
 		log.debug("Analysing "+header.getUrl());
 
         final long start = System.nanoTime();
-		// Analyse with tika:
+		// Analyse with tika, picking up the HTML features at the same time if possible:
+		Metadata htmlFeatures = null;
+		if( htmlSingleParse ) {
+			htmlFeatures = new Metadata();
+			// JSoup NEEDS the URL to function:
+			htmlFeatures.set( Metadata.RESOURCE_NAME_KEY, header.getUrl() );
+		}
 		try {
 			if( passUriToFormatTools ) {
-				solr = tika.extract( solr, tikainput, header.getUrl() );
+				solr = tika.extract( solr, tikainput, header.getUrl(), htmlFeatures );
 			} else {
-				solr = tika.extract( solr, tikainput, null );
+				solr = tika.extract( solr, tikainput, null, htmlFeatures );
 			}
 		} catch( Exception i ) {
 			log.error( i + ": " + i.getMessage() + ";tika; " + header.getUrl() + "@" + header.getOffset() );
@@ -164,8 +226,9 @@ public class WARCPayloadAnalysers {
 					String cleanUrl = uuri.getName().replace( " ", "+" );
 					metadata.set( Metadata.RESOURCE_NAME_KEY, cleanUrl );
 				}
+				InputStream droidinput = getDroidInput( tikainput, tikainput.available(), droidWindow, droidUseBinarySignaturesOnly );
 				// Run Droid:
-				MediaType mt = dd.detect( tikainput, metadata );
+				MediaType mt = dd.detect( droidinput, metadata );
 				solr.addField( SolrFields.CONTENT_TYPE_DROID, mt.toString() );
 			} catch( Exception i ) {
 				// Note that DROID complains about some URLs with an IllegalArgumentException.
@@ -175,19 +238,15 @@ public class WARCPayloadAnalysers {
                                "WARCPayloadAnalyzers.analyze#droid", droidStart);
 		}
 
-        // Parse ARC name
-        if (!arcname.getRules().isEmpty()) {
-            final long nameStart = System.nanoTime();
-            arcname.analyse(header, tikainput, solr);
-            Instrument.timeRel("WARCPayloadAnalyzers.analyze#total",
-                               "WARCPayloadAnalyzers.analyze#arcname", nameStart);
-        }
-
 		try {
 			tikainput.reset();
 			String mime = ( String ) solr.getField( SolrFields.SOLR_CONTENT_TYPE ).getValue();
 			if( mime.startsWith( "text" ) || mime.startsWith("application/xhtml+xml") ) {
-				html.analyse(header, tikainput, solr);
+				if( htmlFeatures != null && htmlFeatures.get( UnifiedHtmlParser.FEATURES_EXTRACTED ) != null ) {
+					html.analyse(htmlFeatures, solr);
+				} else {
+					html.analyse(header, tikainput, solr);
+				}
 
 			} else if( mime.startsWith( "image" ) ) {
 				if( this.extractImageFeatures ) {
@@ -212,4 +271,60 @@ public class WARCPayloadAnalysers {
                            "WARCPayloadAnalyzers.analyze#total", start);
 
 	}
+
+	/**
+	 * Only passes the start and the end of large payloads to DROID, as that
+	 * is where it looks for binary signatures anyway. Containers are passed
+	 * whole unless only binary signatures are used, as their identification
+	 * needs the entries (and the ZIP directory at the end).
+	 * 
+	 * @param in the payload, positioned at its start, supporting mark/reset
+	 * @param length
+	 * @param window
+	 * @param binarySignaturesOnly
+	 * @return the stream to pass to DROID
+	 * @throws IOException
+	 */
+	static InputStream getDroidInput( InputStream in, long length, int window, boolean binarySignaturesOnly ) throws IOException {
+		if( length >= Integer.MAX_VALUE || !HeadTailInputStream.isWindowed( length, window ) ) {
+			return in;
+		}
+		if( !binarySignaturesOnly && isContainer( in ) ) {
+			return in;
+		}
+		return new HeadTailInputStream( in, length, window );
+	}
+
+	/**
+	 * Peeks at the start of the stream for a container signature, leaving it
+	 * where it was.
+	 */
+	static boolean isContainer( InputStream in ) throws IOException {
+		byte[] head = new byte[ 8 ];
+		int read = 0;
+		in.mark( head.length );
+		try {
+			int n;
+			while( read < head.length && ( n = in.read( head, read, head.length - read ) ) != -1 ) {
+				read += n;
+			}
+		} finally {
+			in.reset();
+		}
+		for( byte[] signature : CONTAINER_SIGNATURES ) {
+			if( read >= signature.length && startsWith( head, signature ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean startsWith( byte[] head, byte[] signature ) {
+		for( int i = 0; i < signature.length; i++ ) {
+			if( head[ i ] != signature[ i ] ) {
+				return false;
+			}
+		}
+		return true;
+	}
 }
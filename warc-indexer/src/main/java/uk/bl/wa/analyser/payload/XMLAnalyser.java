@@ -51,6 +51,7 @@ public class XMLAnalyser extends AbstractPayloadAnalyser {
 	private boolean extractXMLRootNamespace = true;
 
 	public XMLAnalyser(Config conf) {
+		super(conf);
 	}
 
 	/* (non-Javadoc)
@@ -64,11 +65,8 @@ public class XMLAnalyser extends AbstractPayloadAnalyser {
 		// Also attempt to grab the XML Root NS:
 		if( this.extractXMLRootNamespace ) {
 			ParseRunner parser = new ParseRunner( xrns, tikainput, metadata, solr );
-			Thread thread = new Thread( parser, Long.toString( System.currentTimeMillis() ) );
 			try {
-				thread.start();
-				thread.join( 30000L );
-				thread.interrupt();
+				runParser( parser, "when parsing for XML Root Namespace" );
 			} catch( Exception e ) {
 				log.error( "WritableSolrRecord.extract(): " + e.getMessage() );
 				solr.addParseException("when parsing for XML Root Namespace", e);
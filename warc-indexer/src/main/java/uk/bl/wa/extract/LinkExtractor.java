@@ -37,6 +37,9 @@ import org.apache.tika.metadata.Metadata;
 
 import uk.bl.wa.parsers.HtmlFeatureParser;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.net.InternetDomainName;
 
@@ -47,6 +50,89 @@ import com.google.common.net.InternetDomainName;
 public class LinkExtractor {
 	
 	public static final String MALFORMED_HOST = "malformed.host";
+
+	/** Maximum number of hosts to remember the domain and suffix of */
+	private static final int MAX_CACHED_HOSTS = 100000;
+
+	/**
+	 * Working out the domain and suffix is relatively costly, and there are
+	 * far fewer distinct hosts than links, so they are cached by host.
+	 */
+	private static final LoadingCache<String, HostInfo> hostInfo = CacheBuilder.newBuilder()
+			.maximumSize( MAX_CACHED_HOSTS ).build( new CacheLoader<String, HostInfo>() {
+				@Override
+				public HostInfo load( String host ) {
+					return new HostInfo( host, parsePrivateSuffix( host ), parsePublicSuffix( host ) );
+				}
+			} );
+
+	/**
+	 * The host of a link, along with its domain (the private suffix) and
+	 * public suffix.
+	 */
+	public static class HostInfo {
+		private final String host;
+		private final String domain;
+		private final String publicSuffix;
+
+		HostInfo( String host, String domain, String publicSuffix ) {
+			this.host = host;
+			this.domain = domain;
+			this.publicSuffix = publicSuffix;
+		}
+
+		/**
+		 * @return the host, or {@link LinkExtractor#MALFORMED_HOST}.
+		 */
+		public String getHost() {
+			return host;
+		}
+
+		/**
+		 * @return the domain, see {@link LinkExtractor#extractPrivateSuffix},
+		 *         or NULL.
+		 */
+		public String getDomain() {
+			return domain;
+		}
+
+		/**
+		 * @return the public suffix, see
+		 *         {@link LinkExtractor#extractPublicSuffix}, or NULL.
+		 */
+		public String getPublicSuffix() {
+			return publicSuffix;
+		}
+	}
+
+	/**
+	 * Parses a link once, for its host, domain and public suffix.
+	 * 
+	 * @param url
+	 * @return the host information, with a host of {@link #MALFORMED_HOST}
+	 *         and no domain or suffix if the link could not be parsed.
+	 */
+	public static HostInfo parseLink( String url ) {
+		String host = null;
+		try {
+			host = new URI(url).getHost();
+		} catch (URISyntaxException e) {
+			// Handled below.
+		}
+		if( host != null ) {
+			return getHostInfo( host );
+		}
+		// Fall back on the more lenient parser, for the host alone:
+		return new HostInfo( extractHost( url ), null, null );
+	}
+
+	/**
+	 * @param host
+	 * @return the (cached) domain and public suffix of the host.
+	 */
+	public static HostInfo getHostInfo( String host ) {
+		return hostInfo.getUnchecked( host );
+	}
 	
 	/**
 	 * 
@@ -99,17 +185,15 @@ public class LinkExtractor {
 	 * @return e.g. "com", or "co.uk".  NULL if there was a parsing error.
 	 */
 	public static String extractPublicSuffix( String url ) {
-		String host;
-		try {
-			host = new URI(url).getHost();
-		} catch (URISyntaxException e) {
-			return null;
-		}
-		return extractPublicSuffixFromHost(host);
+		return parseLink( url ).getPublicSuffix();
 	}
 	
     public static String extractPublicSuffixFromHost( String host ) {
 		if( host == null ) return null;
+		return getHostInfo( host ).getPublicSuffix();
+	}
+
+	private static String parsePublicSuffix( String host ) {
 		// Parse out the public suffix:
 		InternetDomainName domainName;
 		try {
@@ -133,17 +217,15 @@ public class LinkExtractor {
 	}
 	
 	public static String extractPrivateSuffix( String url ) {
-		String host;
-		try {
-			host = new URI(url).getHost();
-		} catch (URISyntaxException e) {
-			return null;
-		}
-		return extractPrivateSuffixFromHost(host);
+		return parseLink( url ).getDomain();
 	}
 	
     public static String extractPrivateSuffixFromHost( String host ) {
 		if( host == null ) return null;
+		return getHostInfo( host ).getDomain();
+	}
+
+	private static String parsePrivateSuffix( String host ) {
 		// Parse out the public suffix:
 		InternetDomainName domainName;
 		try {
@@ -0,0 +1,162 @@
+package uk.bl.wa.indexer;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.bl.wa.util.SurtPrefixTrie;
+
+import com.typesafe.config.Config;
+
+/**
+ * The URL exclusions from warc.index.exclusions.file, as a
+ * {@link SurtPrefixTrie}.
+ *
+ * The file is checked for changes every check_interval seconds, and if it
+ * has changed a new trie is built in the background and swapped in, so
+ * lookups never wait for a reload. If a reload fails, the previous exclusions
+ * are kept.
+ *
+ * Each file is only loaded once, and shared by all the indexers in the JVM.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class ExclusionList {
+	private static Log log = LogFactory.getLog( ExclusionList.class );
+
+	public static final String CONF_FILE = "warc.index.exclusions.file";
+
+	/** How often to check the file for changes, in seconds */
+	public static final String CONF_CHECK_INTERVAL = "warc.index.exclusions.check_interval";
+
+	private static final ConcurrentMap<String, ExclusionList> instances = new ConcurrentHashMap<String, ExclusionList>();
+
+	private static ScheduledExecutorService reloader;
+
+	private final File file;
+
+	private volatile SurtPrefixTrie trie;
+
+	private volatile long lastModified;
+
+	/**
+	 * Loads the exclusions, without checking for changes.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public ExclusionList( File file ) throws IOException {
+		this.file = file;
+		this.lastModified = file.lastModified();
+		this.trie = SurtPrefixTrie.load( file );
+		log.info( "Loaded " + trie.size() + " exclusions from " + file );
+	}
+
+	/**
+	 * @param conf
+	 * @return the shared exclusions from the configured file, which are
+	 *         reloaded when it changes.
+	 * @throws IOException
+	 *             if the file could not be loaded.
+	 */
+	public static synchronized ExclusionList getInstance( Config conf ) throws IOException {
+		File file = new File( conf.getString( CONF_FILE ) ).getAbsoluteFile();
+		ExclusionList exclusions = instances.get( file.getPath() );
+		if( exclusions == null ) {
+			exclusions = new ExclusionList( file );
+			int interval = conf.hasPath( CONF_CHECK_INTERVAL ) ? conf.getInt( CONF_CHECK_INTERVAL ) : 0;
+			if( interval > 0 ) {
+				final ExclusionList toCheck = exclusions;
+				getReloader().scheduleWithFixedDelay( new Runnable() {
+					@Override
+					public void run() {
+						toCheck.reloadIfChanged();
+					}
+				}, interval, interval, TimeUnit.SECONDS );
+			}
+			instances.put( file.getPath(), exclusions );
+		}
+		return exclusions;
+	}
+
+	private static ScheduledExecutorService getReloader() {
+		if( reloader == null ) {
+			reloader = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread t = new Thread( r, "exclusions-reloader" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+		}
+		return reloader;
+	}
+
+	/**
+	 * @param url
+	 * @return true if the URL is excluded.
+	 */
+	public boolean isExcluded( String url ) {
+		return trie.isExcluded( url );
+	}
+
+	/**
+	 * Swaps in the current contents of the file, if it has been modified.
+	 *
+	 * @return true if the exclusions were reloaded.
+	 */
+	public boolean reloadIfChanged() {
+		long modified = file.lastModified();
+		if( modified == lastModified ) {
+			return false;
+		}
+		if( modified == 0 ) {
+			log.error( "No exclusions file at " + file + ", keeping the previous exclusions." );
+			return false;
+		}
+		try {
+			SurtPrefixTrie reloaded = SurtPrefixTrie.load( file );
+			trie = reloaded;
+			lastModified = modified;
+			log.info( "Reloaded " + reloaded.size() + " exclusions from " + file );
+			return true;
+		} catch( IOException e ) {
+			log.error( "Reloading " + file + " failed, keeping the previous exclusions: " + e.getMessage() );
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,320 @@
+package uk.bl.wa.indexer;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import uk.bl.wa.solr.SolrFields;
+import uk.bl.wa.solr.SolrRecord;
+import uk.bl.wa.util.Instrument;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.typesafe.config.Config;
+
+/**
+ * Remembers the fields derived from analysing each payload (content type,
+ * text, language, fuzzy hash, links...), keyed by the payload hash, so that
+ * exact duplicates of a payload (e.g. a logo, or a PDF re-crawled every week)
+ * do not have to go through Tika, DROID and the other analysers again. On a
+ * hit, the cached fields are added to the record, which already holds its
+ * own per-capture fields (URL, host, dates...).
+ *
+ * The payload fields are found by comparing the values of the record before
+ * and after the analysis: values appended to a field are added on a hit, and
+ * fields the analysis set (or replaced) are set. As links in HTML are resolved
+ * against the URL of the page, HTML results are only re-used for the same URL.
+ * If the format tools are given the URL (warc.index.id.useResourceURI), the
+ * file extension is a hint for the content type, so results are also keyed by
+ * the extension, e.g. the same bytes as 'x.css' and 'x.txt' are kept apart.
+ * Analyses that reported a parse error are not cached, so a failure (e.g. a
+ * timeout on a busy machine) is not repeated for every copy of the payload.
+ *
+ * The cache is shared by all the indexers in the JVM, and is bounded by the
+ * (estimated) size of the fields it holds.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class PayloadCache {
+	private static Log log = LogFactory.getLog( PayloadCache.class );
+
+	/** Whether to cache analysis results at all */
+	public static final String CONF_ENABLED = "warc.index.payload_cache.enabled";
+
+	/** Upper bound on the (estimated) size of the cached fields */
+	public static final String CONF_MAX_BYTES = "warc.index.payload_cache.max_bytes";
+
+	private static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+	/** Whether the format tools use the URL as a hint */
+	private static final String CONF_USE_RESOURCE_URI = "warc.index.id.useResourceURI";
+
+	private static PayloadCache instance;
+
+	private final Cache<String, Entry> cache;
+
+	private final boolean keyByExtension;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxBytes
+	 *            upper bound on the size of the cached fields.
+	 */
+	public PayloadCache( long maxBytes ) {
+		this( maxBytes, true );
+	}
+
+	/**
+	 * @param maxBytes
+	 *            upper bound on the size of the cached fields.
+	 * @param keyByExtension
+	 *            whether the results also depend on the extension of the URL,
+	 *            as they do when the format tools are passed the URL.
+	 */
+	public PayloadCache( long maxBytes, boolean keyByExtension ) {
+		this.keyByExtension = keyByExtension;
+		cache = CacheBuilder.newBuilder().maximumWeight( maxBytes ).weigher( new Weigher<String, Entry>() {
+			@Override
+			public int weigh( String key, Entry entry ) {
+				return entry.bytes;
+			}
+		} ).build();
+	}
+
+	/**
+	 * @param conf
+	 *            used to set up the shared cache, if this is the first call.
+	 * @return the shared cache, or NULL if it is not enabled.
+	 */
+	public static synchronized PayloadCache getInstance( Config conf ) {
+		if( instance == null && conf.hasPath( CONF_ENABLED ) && conf.getBoolean( CONF_ENABLED ) ) {
+			long maxBytes = conf.hasPath( CONF_MAX_BYTES ) ? conf.getBytes( CONF_MAX_BYTES ) : DEFAULT_MAX_BYTES;
+			boolean keyByExtension = !conf.hasPath( CONF_USE_RESOURCE_URI ) || conf.getBoolean( CONF_USE_RESOURCE_URI );
+			log.info( "Caching payload analysis results, up to " + maxBytes + " bytes, keyed by extension too: " + keyByExtension );
+			instance = new PayloadCache( maxBytes, keyByExtension );
+		}
+		return instance;
+	}
+
+	/**
+	 * Records the state of a record before its payload is analysed, so that
+	 * the fields added by the analysis can be picked out afterwards.
+	 *
+	 * @param solr
+	 * @return a copy of the values of each field.
+	 */
+	public static Map<String, List<Object>> snapshot( SolrRecord solr ) {
+		Map<String, List<Object>> values = new HashMap<String, List<Object>>();
+		for( SolrInputField field : solr.getSolrDocument() ) {
+			Collection<Object> fieldValues = field.getValues();
+			values.put( field.getName(), fieldValues == null ? new ArrayList<Object>() : new ArrayList<Object>( fieldValues ) );
+		}
+		return values;
+	}
+
+	/**
+	 * Adds the cached analysis results for the payload to the record, if
+	 * there are any.
+	 *
+	 * @param hash
+	 *            the payload hash.
+	 * @param url
+	 * @param solr
+	 * @return true if the cached results were applied.
+	 */
+	public boolean apply( String hash, String url, SolrRecord solr ) {
+		final long start = System.nanoTime();
+		Entry entry = hash == null ? null : cache.getIfPresent( key( hash, url ) );
+		if( entry == null || ( entry.url != null && !entry.url.equals( url ) ) ) {
+			Instrument.setGauge( "PayloadCache.misses", misses.incrementAndGet() );
+			return false;
+		}
+		SolrInputDocument doc = solr.getSolrDocument();
+		for( String name : entry.removed ) {
+			doc.removeField( name );
+		}
+		for( SolrInputField field : entry.fields ) {
+			if( entry.replaced.contains( field.getName() ) ) {
+				doc.setField( field.getName(), new ArrayList<Object>( field.getValues() ) );
+			} else if( doc.containsKey( field.getName() ) ) {
+				// A field that was already there, with values added by the analysis:
+				for( Object value : field ) {
+					doc.addField( field.getName(), value );
+				}
+			} else {
+				doc.setField( field.getName(), new ArrayList<Object>( field.getValues() ) );
+			}
+		}
+		Instrument.setGauge( "PayloadCache.hits", hits.incrementAndGet() );
+		Instrument.timeRel( "WARCIndexer.extract#total", "PayloadCache.apply#hit", start );
+		return true;
+	}
+
+	/**
+	 * Caches the fields added to the record by the analysis of its payload,
+	 * unless the analysis added a parse error.
+	 *
+	 * @param hash
+	 *            the payload hash.
+	 * @param url
+	 * @param before
+	 *            the {@link #snapshot(SolrRecord)} from before the analysis.
+	 * @param solr
+	 *            the analysed record.
+	 */
+	public void put( String hash, String url, Map<String, List<Object>> before, SolrRecord solr ) {
+		if( hash == null ) {
+			return;
+		}
+		List<SolrInputField> fields = new ArrayList<SolrInputField>();
+		Set<String> replaced = new HashSet<String>();
+		int bytes = 64 + hash.length() * 2;
+		for( SolrInputField field : solr.getSolrDocument() ) {
+			List<Object> previous = before.get( field.getName() );
+			Collection<Object> values = field.getValues();
+			List<Object> added = values == null ? new ArrayList<Object>() : new ArrayList<Object>( values );
+			if( previous != null ) {
+				if( added.equals( previous ) ) {
+					continue;
+				}
+				if( added.size() > previous.size() && added.subList( 0, previous.size() ).equals( previous ) ) {
+					added = added.subList( previous.size(), added.size() );
+				} else {
+					// Overwritten, so set the whole field on a hit:
+					replaced.add( field.getName() );
+				}
+			}
+			if( SolrFields.PARSE_ERROR.equals( field.getName() ) && !added.isEmpty() ) {
+				log.debug( "Not caching the analysis of " + url + ", as it reported a parse error." );
+				return;
+			}
+			SolrInputField copy = new SolrInputField( field.getName() );
+			copy.setValue( new ArrayList<Object>( added ), 1.0f );
+			fields.add( copy );
+			bytes += 32 + field.getName().length() * 2;
+			for( Object value : added ) {
+				bytes += 16 + ( value instanceof String ? ( ( String ) value ).length() * 2 : 16 );
+			}
+		}
+		List<String> removed = new ArrayList<String>();
+		for( String name : before.keySet() ) {
+			if( !solr.getSolrDocument().containsKey( name ) ) {
+				removed.add( name );
+			}
+		}
+		Object contentType = solr.getFieldValue( SolrFields.SOLR_CONTENT_TYPE );
+		boolean urlDependent = contentType != null && contentType.toString().contains( "html" );
+		cache.put( key( hash, url ), new Entry( urlDependent ? url : null, fields, replaced, removed, bytes ) );
+	}
+
+	private String key( String hash, String url ) {
+		if( !keyByExtension ) {
+			return hash;
+		}
+		return hash + " " + getExtension( url );
+	}
+
+	/**
+	 * @param url
+	 * @return the lower-cased extension of the last part of the path, or an
+	 *         empty string if there is none.
+	 */
+	static String getExtension( String url ) {
+		if( url == null ) {
+			return "";
+		}
+		int end = url.length();
+		int query = url.indexOf( '?' );
+		if( query != -1 ) {
+			end = query;
+		}
+		int fragment = url.indexOf( '#' );
+		if( fragment != -1 && fragment < end ) {
+			end = fragment;
+		}
+		// Skip the host, which is not a file name:
+		int scheme = url.indexOf( "://" );
+		int path = url.indexOf( '/', scheme == -1 ? 0 : scheme + 3 );
+		if( path == -1 || path >= end ) {
+			return "";
+		}
+		String name = url.substring( url.lastIndexOf( '/', end - 1 ) + 1, end );
+		int dot = name.lastIndexOf( '.' );
+		return dot == -1 ? "" : name.substring( dot + 1 ).toLowerCase();
+	}
+
+	/**
+	 * @return the number of records that re-used cached results.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of records that had to be analysed.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * The payload-derived fields of a record.
+	 */
+	private static class Entry {
+		/** If the fields depend on the URL as well as the payload, the URL */
+		final String url;
+		final List<SolrInputField> fields;
+		/** Names of the fields to set rather than add to */
+		final Set<String> replaced;
+		/** Names of the fields the analysis removed */
+		final List<String> removed;
+		final int bytes;
+
+		Entry( String url, List<SolrInputField> fields, Set<String> replaced, List<String> removed, int bytes ) {
+			this.url = url;
+			this.fields = fields;
+			this.replaced = replaced;
+			this.removed = removed;
+			this.bytes = bytes;
+		}
+	}
+
+}
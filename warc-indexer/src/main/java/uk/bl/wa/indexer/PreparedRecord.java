@@ -0,0 +1,230 @@
+package uk.bl.wa.indexer;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2014 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+
+import org.archive.io.ArchiveRecordHeader;
+
+import uk.bl.wa.solr.SolrRecord;
+import uk.bl.wa.util.HashedCachedInputStream;
+
+/**
+ * A record that has been through {@link WARCIndexer#prepare}, i.e. whose
+ * headers have been processed and whose payload has been hashed and cached.
+ *
+ * It no longer depends on the underlying ArchiveRecord, so it can be handed
+ * over to another thread for {@link WARCIndexer#analyse}.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class PreparedRecord {
+
+	private final String archiveName;
+	private final ArchiveRecordHeader header;
+	private final SolrRecord solr;
+	private final HashedCachedInputStream hcis;
+	private final InputStream payload;
+	private final long contentLength;
+	private final boolean complete;
+	private boolean revisit = false;
+	private boolean crawlDatesPending = false;
+	private long prepareTime = 0;
+	private Map<String, Long> timings = Collections.emptyMap();
+
+	/**
+	 * A record that still needs to be analysed.
+	 *
+	 * @param archiveName
+	 * @param header
+	 * @param solr
+	 * @param hcis
+	 * @param payload
+	 * @param contentLength
+	 */
+	public PreparedRecord( String archiveName, ArchiveRecordHeader header,
+			SolrRecord solr, HashedCachedInputStream hcis, InputStream payload,
+			long contentLength ) {
+		this( archiveName, header, solr, hcis, payload, contentLength, false );
+	}
+
+	private PreparedRecord( String archiveName, ArchiveRecordHeader header,
+			SolrRecord solr, HashedCachedInputStream hcis, InputStream payload,
+			long contentLength, boolean complete ) {
+		this.archiveName = archiveName;
+		this.header = header;
+		this.solr = solr;
+		this.hcis = hcis;
+		this.payload = payload;
+		this.contentLength = contentLength;
+		this.complete = complete;
+	}
+
+	/**
+	 * A record for which no further analysis is required, e.g. because it was
+	 * filtered out (in which case the result is NULL) or is a revisit.
+	 *
+	 * @param archiveName
+	 * @param header
+	 * @param result
+	 * @return
+	 */
+	public static PreparedRecord complete( String archiveName,
+			ArchiveRecordHeader header, SolrRecord result ) {
+		return new PreparedRecord( archiveName, header, result, null, null, 0,
+				true );
+	}
+
+	/**
+	 * A revisit record, which only needs its crawl dates looking up before it
+	 * is complete.
+	 *
+	 * @param archiveName
+	 * @param header
+	 * @param solr
+	 * @return
+	 */
+	public static PreparedRecord revisit( String archiveName,
+			ArchiveRecordHeader header, SolrRecord solr ) {
+		PreparedRecord prepared = new PreparedRecord( archiveName, header,
+				solr, null, null, 0, false );
+		prepared.revisit = true;
+		prepared.crawlDatesPending = true;
+		return prepared;
+	}
+
+	/**
+	 * Marks the crawl dates as still to be merged with those already known,
+	 * which is left until the record is analysed so the look-ups can be
+	 * batched.
+	 */
+	public void setCrawlDatesPending() {
+		this.crawlDatesPending = true;
+	}
+
+	/**
+	 * @return true if the crawl dates still need to be merged.
+	 */
+	public boolean isCrawlDatesPending() {
+		return crawlDatesPending;
+	}
+
+	/**
+	 * @return true if this is a revisit record.
+	 */
+	public boolean isRevisit() {
+		return revisit;
+	}
+
+	/**
+	 * @return true if the record needs no further analysis.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * @return the name of the archive file the record came from.
+	 */
+	public String getArchiveName() {
+		return archiveName;
+	}
+
+	/**
+	 * @return the archive record header.
+	 */
+	public ArchiveRecordHeader getHeader() {
+		return header;
+	}
+
+	/**
+	 * @return the (partially populated) Solr record, or the final result if
+	 *         this record is complete.
+	 */
+	public SolrRecord getSolrRecord() {
+		return solr;
+	}
+
+	/**
+	 * @return the cached payload.
+	 */
+	public InputStream getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return the length of the payload.
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * Records how long the preparation took, for the slow record log.
+	 *
+	 * @param nanos
+	 * @param timings
+	 *            the time spent in each stage, in nanoseconds.
+	 */
+	public void setTimings( long nanos, Map<String, Long> timings ) {
+		this.prepareTime = nanos;
+		this.timings = timings;
+	}
+
+	/**
+	 * @return the time taken to prepare the record, in nanoseconds (if
+	 *         recorded).
+	 */
+	public long getPrepareTime() {
+		return prepareTime;
+	}
+
+	/**
+	 * @return the time spent in each stage of the preparation, in
+	 *         nanoseconds (if recorded).
+	 */
+	public Map<String, Long> getTimings() {
+		return timings;
+	}
+
+	/**
+	 * Releases the cached payload.
+	 */
+	public void cleanup() {
+		if( hcis != null )
+			hcis.cleanup();
+	}
+
+	/**
+	 * Drops the cached payload without re-using it, as an abandoned parser may
+	 * still be reading it.
+	 */
+	public void discard() {
+		if( hcis != null )
+			hcis.discard();
+	}
+
+}
@@ -0,0 +1,291 @@
+package uk.bl.wa.indexer;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.bl.wa.util.Instrument;
+
+import com.typesafe.config.Config;
+
+/**
+ * The record type, protocol, URL and response code rules from
+ * warc.index.extract, compiled once so that the per-record checks are cheap.
+ *
+ * URL excludes that are plain strings are matched with a substring search,
+ * the others are compiled once as regular expressions (with the same meaning
+ * as before, i.e. matching <code>".*" + exclude + ".*"</code>). Response code
+ * prefixes are expanded into a table of the accepted three-digit codes.
+ *
+ * The number of records rejected by each rule is counted, across all the
+ * filters in the JVM, and reported as Instrument gauges.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class RecordFilter {
+	private static Log log = LogFactory.getLog( RecordFilter.class );
+
+	public static final String CONF_URL_EXCLUDE = "warc.index.extract.url_exclude";
+
+	public static final String CONF_PROTOCOL_INCLUDE = "warc.index.extract.protocol_include";
+
+	public static final String CONF_RESPONSE_INCLUDE = "warc.index.extract.response_include";
+
+	public static final String CONF_RECORD_TYPE_INCLUDE = "warc.index.extract.record_type_include";
+
+	private static final String GAUGE_PREFIX = "RecordFilter.rejected.";
+
+	/** Rejections per rule, shared by all the filters */
+	private static final ConcurrentMap<String, AtomicLong> rejections = new ConcurrentHashMap<String, AtomicLong>();
+
+	private final Set<String> recordTypes;
+	private final Counter recordTypeRejections;
+
+	/** Accepted URL prefixes, or NULL if any is accepted */
+	private final String[] protocols;
+	private final Counter protocolRejections;
+
+	/** Accepted response code prefixes, or NULL if any is accepted */
+	private final String[] responseCodes;
+	/** Whether each three-digit response code is accepted */
+	private final boolean[] acceptedCodes = new boolean[ 1000 ];
+	private final Counter responseCodeRejections;
+
+	private final UrlExclude[] urlExcludes;
+
+	/**
+	 * @param conf
+	 */
+	public RecordFilter( Config conf ) {
+		this( conf.getStringList( CONF_RECORD_TYPE_INCLUDE ), conf.getStringList( CONF_PROTOCOL_INCLUDE ),
+				conf.getStringList( CONF_URL_EXCLUDE ), conf.getStringList( CONF_RESPONSE_INCLUDE ) );
+	}
+
+	/**
+	 * @param recordTypes
+	 *            WARC record types to include.
+	 * @param protocols
+	 *            URL prefixes to include, where "" includes anything.
+	 * @param urlExcludes
+	 *            regular expressions for URLs to exclude.
+	 * @param responseCodes
+	 *            response code prefixes to include, where "" includes
+	 *            anything.
+	 */
+	public RecordFilter( List<String> recordTypes, List<String> protocols, List<String> urlExcludes,
+			List<String> responseCodes ) {
+		this.recordTypes = new HashSet<String>( recordTypes );
+		this.recordTypeRejections = new Counter( "record_type" );
+
+		this.protocols = prefixes( protocols );
+		this.protocolRejections = new Counter( "protocol" );
+
+		this.responseCodes = prefixes( responseCodes );
+		for( int code = 0; code < acceptedCodes.length; code++ ) {
+			acceptedCodes[ code ] = startsWithAny( String.format( "%03d", code ), this.responseCodes );
+		}
+		this.responseCodeRejections = new Counter( "response_code" );
+
+		List<UrlExclude> excludes = new ArrayList<UrlExclude>();
+		for( String exclude : urlExcludes ) {
+			if( !"".equals( exclude ) ) {
+				excludes.add( new UrlExclude( exclude ) );
+			}
+		}
+		this.urlExcludes = excludes.toArray( new UrlExclude[ excludes.size() ] );
+		log.debug( "Compiled " + this.urlExcludes.length + " URL excludes." );
+	}
+
+	/**
+	 * @param type
+	 * @return true if records of this WARC type should be indexed.
+	 */
+	public boolean acceptRecordType( String type ) {
+		if( recordTypes.contains( type ) ) {
+			return true;
+		}
+		recordTypeRejections.increment();
+		return false;
+	}
+
+	/**
+	 * @param url
+	 * @return true if the protocol of the URL should be indexed.
+	 */
+	public boolean acceptProtocol( String url ) {
+		if( startsWithAny( url, protocols ) ) {
+			return true;
+		}
+		protocolRejections.increment();
+		return false;
+	}
+
+	/**
+	 * @param url
+	 * @return false if any of the URL excludes match the URL.
+	 */
+	public boolean acceptUrl( String url ) {
+		for( UrlExclude exclude : urlExcludes ) {
+			if( exclude.matches( url ) ) {
+				exclude.rejections.increment();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param statusCode
+	 * @return true if responses with this status code should be indexed.
+	 */
+	public boolean acceptResponseCode( String statusCode ) {
+		if( statusCode != null ) {
+			if( isThreeDigits( statusCode ) ) {
+				if( acceptedCodes[ Integer.parseInt( statusCode ) ] ) {
+					return true;
+				}
+			} else if( startsWithAny( statusCode, responseCodes ) ) {
+				return true;
+			}
+		}
+		responseCodeRejections.increment();
+		return false;
+	}
+
+	/**
+	 * @return the number of records rejected by each rule so far, across all
+	 *         the filters.
+	 */
+	public static SortedMap<String, Long> getRejections() {
+		SortedMap<String, Long> counts = new TreeMap<String, Long>();
+		for( Map.Entry<String, AtomicLong> rule : rejections.entrySet() ) {
+			counts.put( rule.getKey(), rule.getValue().get() );
+		}
+		return counts;
+	}
+
+	/**
+	 * @return the prefixes, or NULL if the empty prefix (i.e. anything) is
+	 *         included.
+	 */
+	private static String[] prefixes( List<String> includes ) {
+		if( includes.contains( "" ) ) {
+			return null;
+		}
+		return includes.toArray( new String[ includes.size() ] );
+	}
+
+	private static boolean startsWithAny( String value, String[] prefixes ) {
+		if( prefixes == null ) {
+			return true;
+		}
+		for( String prefix : prefixes ) {
+			if( value.startsWith( prefix ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isThreeDigits( String value ) {
+		if( value.length() != 3 ) {
+			return false;
+		}
+		for( int i = 0; i < 3; i++ ) {
+			char c = value.charAt( i );
+			if( c < '0' || c > '9' ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A URL exclude, compiled.
+	 */
+	private static class UrlExclude {
+		private static final String REGEX_CHARS = "\\^$.|?*+()[]{}";
+
+		/** The exclude, if it contains no regular expression syntax */
+		private final String literal;
+		private final Pattern pattern;
+		private final Counter rejections;
+
+		UrlExclude( String exclude ) {
+			boolean isLiteral = true;
+			for( int i = 0; i < exclude.length() && isLiteral; i++ ) {
+				isLiteral = REGEX_CHARS.indexOf( exclude.charAt( i ) ) == -1;
+			}
+			this.literal = isLiteral ? exclude : null;
+			this.pattern = isLiteral ? null : Pattern.compile( ".*" + exclude + ".*" );
+			this.rejections = new Counter( "url_exclude[" + exclude + "]" );
+		}
+
+		boolean matches( String url ) {
+			if( literal != null ) {
+				return url.contains( literal );
+			}
+			return pattern.matcher( url ).matches();
+		}
+	}
+
+	/**
+	 * Counts the rejections by a rule, in the shared totals.
+	 */
+	private static class Counter {
+		private final String gauge;
+		private final AtomicLong count;
+
+		Counter( String rule ) {
+			AtomicLong shared = rejections.get( rule );
+			if( shared == null ) {
+				AtomicLong existing = rejections.putIfAbsent( rule, shared = new AtomicLong() );
+				if( existing != null ) {
+					shared = existing;
+				}
+			}
+			this.gauge = GAUGE_PREFIX + rule;
+			this.count = shared;
+		}
+
+		void increment() {
+			Instrument.setGauge( gauge, count.incrementAndGet() );
+		}
+	}
+
+}
@@ -0,0 +1,410 @@
+package uk.bl.wa.indexer;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2014 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.archive.io.ArchiveReader;
+import org.archive.io.ArchiveReaderFactory;
+import org.archive.io.ArchiveRecord;
+
+import uk.bl.wa.annotation.Annotations;
+import uk.bl.wa.solr.SolrRecord;
+import uk.bl.wa.util.Instrument;
+
+import com.typesafe.config.Config;
+
+/**
+ * Multi-threaded version of the record loop in {@link WARCIndexerCommand}.
+ * Several archive files can be processed at the same time, in which case
+ * they share the extractor threads.
+ *
+ * A reader thread walks through the archive file, and runs
+ * {@link WARCIndexer#prepare} on each record so the payload is cached and the
+ * reader can move straight on to the next record. The readers only need the
+ * filters and hashing, so their indexers are set up without any analysers.
+ * The prepared records are analysed by a pool of extractor threads, each of
+ * which owns its own {@link WARCIndexer} (and so its own payload and text
+ * analysers). The results are handed back to the calling thread, either in
+ * archive order or as soon as they are ready, which therefore acts as the
+ * single (batching) submitter.
+ *
+ * The number of records in flight is bounded across all the archive files
+ * being processed, which also bounds the memory and disk used by cached
+ * payloads.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class RecordPipeline {
+	private static Log log = LogFactory.getLog( RecordPipeline.class );
+
+	/** Number of extractor threads (1 means the sequential, single-threaded loop) */
+	public static final String CONF_THREADS = "warc.index.threads";
+
+	/** Whether to deliver records in the order they appear in the archive */
+	public static final String CONF_PRESERVE_ORDER = "warc.index.preserve_order";
+
+	/** Records allowed in flight for each extractor thread */
+	static final int RECORDS_PER_THREAD = 2;
+
+	/** Marks the end of the results for an archive file */
+	private static final Future<SolrRecord> END_OF_ARCHIVE = new FutureTask<SolrRecord>(
+			new Callable<SolrRecord>() {
+				@Override
+				public SolrRecord call() {
+					return null;
+				}
+			} );
+
+	/**
+	 * Callback for the records coming out of the pipeline.
+	 */
+	public interface RecordHandler {
+		/**
+		 * @param doc
+		 *            an extracted record (never NULL).
+		 * @throws IOException
+		 */
+		public void handle( SolrRecord doc ) throws IOException;
+	}
+
+	private final Config conf;
+	private final Annotations annotations;
+	private final boolean isTextRequired;
+	private final boolean preserveOrder;
+	private final int maxInFlight;
+
+	/** Shared by all the archive files, so the bound does not grow with them */
+	private final Semaphore inFlight;
+
+	private final ExecutorService readers;
+	private final ExecutorService extractors;
+
+	/** Each thread gets its own indexer, as they are not thread-safe */
+	private final ThreadLocal<WARCIndexer> indexers = new ThreadLocal<WARCIndexer>() {
+		@Override
+		protected WARCIndexer initialValue() {
+			return newIndexer( true );
+		}
+	};
+
+	/** The reader threads only prepare records, so need no analysers */
+	private final ThreadLocal<WARCIndexer> preparers = new ThreadLocal<WARCIndexer>() {
+		@Override
+		protected WARCIndexer initialValue() {
+			return newIndexer( false );
+		}
+	};
+
+	/**
+	 * Sets up a pipeline for processing one archive file at a time.
+	 *
+	 * @param conf
+	 * @param annotations
+	 *            annotations to apply, may be NULL.
+	 * @param threads
+	 *            the number of extractor threads.
+	 * @param preserveOrder
+	 *            whether records should be handled in archive order.
+	 * @param isTextRequired
+	 */
+	public RecordPipeline( Config conf, Annotations annotations, int threads,
+			boolean preserveOrder, boolean isTextRequired ) {
+		this( conf, annotations, threads, 1, preserveOrder, isTextRequired );
+	}
+
+	/**
+	 *
+	 * @param conf
+	 * @param annotations
+	 *            annotations to apply, may be NULL.
+	 * @param threads
+	 *            the number of extractor threads.
+	 * @param files
+	 *            the number of archive files processed at the same time,
+	 *            i.e. the number of reader threads.
+	 * @param preserveOrder
+	 *            whether records should be handled in archive order.
+	 * @param isTextRequired
+	 */
+	public RecordPipeline( Config conf, Annotations annotations, int threads, int files,
+			boolean preserveOrder, boolean isTextRequired ) {
+		this.conf = conf;
+		this.annotations = annotations;
+		this.preserveOrder = preserveOrder;
+		this.isTextRequired = isTextRequired;
+		this.maxInFlight = RECORDS_PER_THREAD * threads;
+		this.inFlight = new Semaphore( maxInFlight );
+		// One reader per archive file being processed, kept (with its indexer) between files:
+		this.readers = Executors.newFixedThreadPool( Math.max( 1, files ), namedThreads( "warc-reader" ) );
+		this.extractors = Executors.newFixedThreadPool( threads, namedThreads( "warc-extractor" ) );
+		log.info( "Set up pipeline with " + threads + " extractor threads, preserveOrder = " + preserveOrder );
+	}
+
+	/**
+	 * Indexes all the records of an archive file, passing the results to the
+	 * handler on the calling thread.
+	 *
+	 * @param inputFile
+	 * @param handler
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void process( final String inputFile, RecordHandler handler )
+			throws IOException, InterruptedException {
+		final String archiveName = new File( inputFile ).getName();
+		final BlockingQueue<Future<SolrRecord>> results = new LinkedBlockingQueue<Future<SolrRecord>>();
+		final Progress progress = new Progress();
+
+		Future<?> reading = readers.submit( new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					read( inputFile, archiveName, results, progress );
+				} finally {
+					progress.readerDone.countDown();
+				}
+				return null;
+			}
+		} );
+
+		boolean finished = false;
+		try {
+			Future<SolrRecord> result;
+			while( ( result = results.take() ) != END_OF_ARCHIVE ) {
+				final long start = System.nanoTime();
+				try {
+					SolrRecord doc = result.get();
+					if( doc != null ) {
+						handler.handle( doc );
+					}
+				} catch( ExecutionException e ) {
+					log.warn( "Extraction failed for a record from " + archiveName, e.getCause() );
+				} finally {
+					progress.held.decrementAndGet();
+					inFlight.release();
+					progress.handled.release();
+				}
+				Instrument.timeRel( "RecordPipeline.process#total", "RecordPipeline.process#handle", start );
+			}
+			finished = true;
+		} finally {
+			if( !finished ) {
+				// Stop the reader, rather than leave it blocked on a full pipeline:
+				reading.cancel( true );
+				// And give back the slots of the records that will now never
+				// be handled, so other files can carry on:
+				progress.readerDone.await();
+				inFlight.release( progress.held.getAndSet( 0 ) );
+			}
+		}
+
+		// Report any failure of the reader itself:
+		try {
+			reading.get();
+		} catch( ExecutionException e ) {
+			throw new IOException( "Reading failed for " + inputFile, e.getCause() );
+		}
+	}
+
+	/**
+	 * Runs on the reader thread.
+	 */
+	private void read( String inputFile, String archiveName,
+			BlockingQueue<Future<SolrRecord>> results, Progress progress )
+			throws IOException, InterruptedException {
+		final long start = System.nanoTime();
+		WARCIndexer windex = preparers.get();
+		ArchiveReader reader = null;
+		int queued = 0;
+		try {
+			reader = ArchiveReaderFactory.get( inputFile );
+			Iterator<ArchiveRecord> ir = reader.iterator();
+			while( ir.hasNext() ) {
+				ArchiveRecord rec = ir.next();
+				inFlight.acquire();
+				progress.held.incrementAndGet();
+				final long prepareStart = System.nanoTime();
+				PreparedRecord prepared;
+				try {
+					prepared = windex.prepare( archiveName, rec );
+				} catch( Exception e ) {
+					log.warn( "Exception on record " + rec.getHeader().getUrl() + " from " + archiveName, e );
+					progress.held.decrementAndGet();
+					inFlight.release();
+					continue;
+				} catch( OutOfMemoryError e ) {
+					log.warn( "OutOfMemoryError on record " + rec.getHeader().getUrl() + " from " + archiveName, e );
+					SolrRecord doc = new SolrRecord( archiveName, rec.getHeader() );
+					doc.addParseException( e );
+					prepared = PreparedRecord.complete( archiveName, rec.getHeader(), doc );
+				}
+				Instrument.timeRel( "RecordPipeline.process#total", "RecordPipeline.read#prepare", prepareStart );
+
+				Extraction extraction = new Extraction( prepared, results );
+				if( preserveOrder ) {
+					results.add( extraction );
+				}
+				queued++;
+				extractors.execute( extraction );
+			}
+			// Wait until everything from this file has been handled:
+			progress.handled.acquire( queued );
+		} finally {
+			if( reader != null ) {
+				reader.close();
+			}
+			results.add( END_OF_ARCHIVE );
+			Instrument.timeRel( "RecordPipeline.process#total", "RecordPipeline.read#total", start );
+		}
+	}
+
+	/**
+	 * Keeps track of the records of a single archive file.
+	 */
+	private static class Progress {
+		/** Slots of the shared bound held by records of this file */
+		final AtomicInteger held = new AtomicInteger();
+
+		/** Released as each record of this file is handled */
+		final Semaphore handled = new Semaphore( 0 );
+
+		/** Counted down once the reader has stopped */
+		final CountDownLatch readerDone = new CountDownLatch( 1 );
+	}
+
+	/**
+	 * The analysis of a single record, run by one of the extractor threads.
+	 */
+	private class Extraction extends FutureTask<SolrRecord> {
+		private final BlockingQueue<Future<SolrRecord>> results;
+
+		Extraction( PreparedRecord prepared, BlockingQueue<Future<SolrRecord>> results ) {
+			super( new Analysis( prepared ) );
+			this.results = results;
+		}
+
+		@Override
+		protected void done() {
+			// If order does not matter, deliver as soon as possible:
+			if( !preserveOrder ) {
+				results.add( this );
+			}
+		}
+	}
+
+	private class Analysis implements Callable<SolrRecord> {
+		private final PreparedRecord prepared;
+
+		Analysis( PreparedRecord prepared ) {
+			this.prepared = prepared;
+		}
+
+		@Override
+		public SolrRecord call() {
+			final long start = System.nanoTime();
+			try {
+				return indexers.get().analyse( prepared, isTextRequired );
+			} catch( Exception e ) {
+				log.warn( "Exception on record " + prepared.getHeader().getUrl() + " from " + prepared.getArchiveName(), e );
+				return null;
+			} catch( OutOfMemoryError e ) {
+				log.warn( "OutOfMemoryError on record " + prepared.getHeader().getUrl() + " from " + prepared.getArchiveName(), e );
+				SolrRecord doc = new SolrRecord( prepared.getArchiveName(), prepared.getHeader() );
+				doc.addParseException( e );
+				return doc;
+			} finally {
+				prepared.cleanup();
+				Instrument.timeRel( "RecordPipeline.process#total", "RecordPipeline.extract#analyse", start );
+			}
+		}
+	}
+
+	/**
+	 * @return the number of records currently in flight, over all the archive
+	 *         files being processed.
+	 */
+	public int getRecordsInFlight() {
+		return maxInFlight - inFlight.availablePermits();
+	}
+
+	/**
+	 * @return the maximum number of records in flight.
+	 */
+	public int getMaxRecordsInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Shuts down the reader and extractor threads.
+	 */
+	public void shutdown() {
+		readers.shutdownNow();
+		extractors.shutdownNow();
+	}
+
+	private WARCIndexer newIndexer( boolean withAnalysers ) {
+		log.info( "Setting up WARCIndexer for " + Thread.currentThread().getName() );
+		try {
+			WARCIndexer windex = new WARCIndexer( conf, withAnalysers );
+			if( annotations != null ) {
+				windex.setAnnotations( annotations );
+			}
+			return windex;
+		} catch( NoSuchAlgorithmException e ) {
+			throw new RuntimeException( "Could not set up WARCIndexer for " + Thread.currentThread().getName(), e );
+		}
+	}
+
+	private static ThreadFactory namedThreads( final String prefix ) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread t = new Thread( r, prefix + "-" + count.incrementAndGet() );
+				t.setDaemon( true );
+				return t;
+			}
+		};
+	}
+
+}
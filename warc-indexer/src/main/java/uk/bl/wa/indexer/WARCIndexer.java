@@ -24,6 +24,7 @@ package uk.bl.wa.indexer;
  * #L%
  */
 
+import static org.archive.format.warc.WARCConstants.HEADER_KEY_PAYLOAD_DIGEST;
 import static org.archive.format.warc.WARCConstants.HEADER_KEY_TYPE;
 
 import java.io.IOException;
@@ -39,9 +40,11 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.TimeZone;
 
 import org.apache.commons.codec.binary.Base64;
@@ -53,10 +56,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.HttpHeaders;
 import org.apache.log4j.PropertyConfigurator;
-import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.client.solrj.response.QueryResponse;
-import org.apache.solr.common.SolrDocument;
 import org.apache.tika.mime.MediaType;
 import org.archive.format.warc.WARCConstants;
 import org.archive.io.ArchiveRecord;
@@ -64,9 +63,6 @@ import org.archive.io.ArchiveRecordHeader;
 import org.archive.io.arc.ARCRecord;
 import org.archive.io.warc.WARCRecord;
 import org.archive.util.ArchiveUtils;
-import org.archive.wayback.accesscontrol.staticmap.StaticMapExclusionFilterFactory;
-import org.archive.wayback.core.CaptureSearchResult;
-import org.archive.wayback.resourceindex.filters.ExclusionFilter;
 import org.archive.wayback.util.url.AggressiveUrlCanonicalizer;
 
 import uk.bl.wa.analyser.payload.WARCPayloadAnalysers;
@@ -77,9 +73,12 @@ import uk.bl.wa.extract.LinkExtractor;
 import uk.bl.wa.parsers.HtmlFeatureParser;
 import uk.bl.wa.solr.SolrFields;
 import uk.bl.wa.solr.SolrRecord;
-import uk.bl.wa.solr.SolrWebServer;
+import uk.bl.wa.solr.DuplicateLookup;
 import uk.bl.wa.util.HashedCachedInputStream;
 import uk.bl.wa.util.Instrument;
+import uk.bl.wa.util.MetricsExporter;
+import uk.bl.wa.util.SlowRecordLog;
+import uk.bl.wa.util.TimeoutService;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
@@ -97,10 +96,8 @@ import com.typesafe.config.ConfigRenderOptions;
 public class WARCIndexer {
 	private static Log log = LogFactory.getLog( WARCIndexer.class );
 
-	private List<String> url_excludes;
-	private List<String> protocol_includes;
-	private List<String> response_includes;
-	private List<String> record_type_includes;
+	/** Record type, protocol, URL and response code rules: */
+	private RecordFilter filter;
 
 	private MessageDigest md5 = null;
 	private AggressiveUrlCanonicalizer canon = new AggressiveUrlCanonicalizer();
@@ -111,11 +108,11 @@ public class WARCIndexer {
 	private boolean hashUrlId;
 
 	/** Wayback-style URI filtering: */
-	private StaticMapExclusionFilterFactory smef = null;
+	private ExclusionList exclusions = null;
 
 	/** Hook to the solr server: */
 	private boolean checkSolrForDuplicates = false;
-	private SolrWebServer solrServer = null;
+	private DuplicateLookup duplicates = null;
 	
 	/** Payload Analysers */
 	private long inMemoryThreshold;
@@ -128,6 +125,15 @@ public class WARCIndexer {
 	/** Annotations */
 	private Annotator ant = null;
 
+	/** Shared log of the slowest records */
+	private SlowRecordLog slowRecords;
+
+	/** Shared cache of payload analysis results, if enabled */
+	private PayloadCache payloadCache;
+
+	/** The shared pool the parsers run on, to spot abandoned parses */
+	private TimeoutService timeouts;
+
     // Paired with HtmlFeatureParsers links-extractor
     private final boolean addNormalisedURL;
     private final AggressiveUrlCanonicalizer urlNormaliser = new AggressiveUrlCanonicalizer();
@@ -145,6 +151,18 @@ public class WARCIndexer {
 	 * Preferred constructor, allows passing in configuration from execution environment.
 	 */
 	public WARCIndexer( Config conf ) throws NoSuchAlgorithmException {
+		this( conf, true );
+	}
+
+	/**
+	 * @param conf
+	 * @param withAnalysers
+	 *            false for an indexer that is only used to {@link #prepare}
+	 *            records, e.g. on the reader threads of a
+	 *            {@link RecordPipeline}, which skips setting up DROID, Tika
+	 *            and the other analysers.
+	 */
+	WARCIndexer( Config conf, boolean withAnalysers ) throws NoSuchAlgorithmException {
 		log.info("Initialising WARCIndexer...");
 		try {
 			Properties props = new Properties();
@@ -170,25 +188,16 @@ public class WARCIndexer {
 			log.warn("Checking Solr for duplicates may not work as expected when using the timestamp+md5(URL) key.");
 			log.warn("You need to use the payload-hash+md5(URL) key option to resolve revisit records.");
 		}
-		// URLs to exclude:
-		this.url_excludes = conf.getStringList( "warc.index.extract.url_exclude" );
-		// Protocols to include:
-		this.protocol_includes = conf.getStringList( "warc.index.extract.protocol_include" );
-		// Response codes to include:
-		this.response_includes = conf.getStringList( "warc.index.extract.response_include" );
-		// Record types to include:
-		this.record_type_includes = conf.getStringList( "warc.index.extract.record_type_include" );
+		// Record types, protocols, URLs and response codes to include:
+		this.filter = new RecordFilter( conf );
 
 		// URL Filtering options:
 		if( conf.getBoolean( "warc.index.exclusions.enabled" ) ) {
-			smef = new StaticMapExclusionFilterFactory();
-			smef.setFile( conf.getString( "warc.index.exclusions.file" ) );
-			smef.setCheckInterval( conf.getInt( "warc.index.exclusions.check_interval" ) );
 			try {
-				smef.init();
+				exclusions = ExclusionList.getInstance( conf );
 			} catch( IOException e ) {
 				log.error( "Failed to load exclusions file." );
-				throw new RuntimeException( "StaticMapExclusionFilterFactory failed with IOException when loading " + smef.getFile() );
+				throw new RuntimeException( "ExclusionList failed with IOException when loading " + conf.getString( ExclusionList.CONF_FILE ) );
 			}
 		}
 
@@ -198,7 +207,7 @@ public class WARCIndexer {
 		// Also hook up to Solr server for queries:
 		if( this.checkSolrForDuplicates ) {
 			log.info("Initialisating connection to Solr...");
-			solrServer = new SolrWebServer(conf);
+			duplicates = DuplicateLookup.getInstance(conf);
 		}
 		
 		// Set up hash-cache properties:
@@ -206,10 +215,18 @@ public class WARCIndexer {
 		this.onDiskThreshold = conf.getBytes( "warc.index.extract.onDiskThreshold" );
 		log.info("Hashing & Caching thresholds are: < "+this.inMemoryThreshold+" in memory, < "+this.onDiskThreshold+" on disk.");
 		
+		// Set up monitoring:
+		this.slowRecords = SlowRecordLog.getInstance( conf );
+		MetricsExporter.start( conf );
+
 		// Set up analysers
-		log.info("Setting up analysers...");
-		this.wpa = new WARCPayloadAnalysers(conf);
-		this.txa = new TextAnalysers(conf);
+		if( withAnalysers ) {
+			log.info("Setting up analysers...");
+			this.payloadCache = PayloadCache.getInstance( conf );
+			this.timeouts = TimeoutService.getInstance( conf );
+			this.wpa = new WARCPayloadAnalysers(conf);
+			this.txa = new TextAnalysers(conf);
+		}
 		
 		// Log so it's clear this completed ok:
 		log.info("Initialisation of WARCIndexer complete.");
@@ -260,270 +277,457 @@ public class WARCIndexer {
 	 * @throws IOException
 	 */
 	public SolrRecord extract( String archiveName, ArchiveRecord record, boolean isTextIncluded ) throws IOException {
+        final long start = System.nanoTime();
+		SolrRecord solr = this.analyse( this.prepare( archiveName, record ), isTextIncluded );
+        Instrument.timeRel("WARCIndexerCommand.parseWarcFiles#solrdocCreation",
+                           "WARCIndexer.extract#total", start);
+        return solr;
+	}
+
+	/**
+	 * First stage of {@link #extract(String, ArchiveRecord, boolean)}: applies
+	 * the record filters, processes the archive and HTTP headers, and hashes
+	 * and caches the payload.
+	 * 
+	 * Once this returns, the record has been fully consumed and the reader can
+	 * move on to the next one, so the (expensive) analysis stage can be run
+	 * later, and on another thread.
+	 * 
+	 * @param archiveName
+	 * @param record
+	 * @return the prepared record, which may already be complete if no further analysis is required.
+	 * @throws IOException
+	 */
+	public PreparedRecord prepare( String archiveName, ArchiveRecord record ) throws IOException {
+		if( !slowRecords.isEnabled() ) {
+			return prepareRecord( archiveName, record );
+		}
+		// Collect the timings of each stage, in case this is a slow record:
+		final long start = System.nanoTime();
+		PreparedRecord prepared = null;
+		Instrument.startRecordTimings();
+		try {
+			prepared = prepareRecord( archiveName, record );
+		} finally {
+			Map<String, Long> timings = Instrument.stopRecordTimings();
+			if( prepared != null ) {
+				prepared.setTimings( System.nanoTime() - start, timings );
+			}
+		}
+		return prepared;
+	}
+
+	private PreparedRecord prepareRecord( String archiveName, ArchiveRecord record ) throws IOException {
         final long start = System.nanoTime();
 		ArchiveRecordHeader header = record.getHeader();
-		SolrRecord solr = new SolrRecord(archiveName, header);
 		
-		if( !header.getHeaderFields().isEmpty() ) {
-			if( header.getHeaderFieldKeys().contains( HEADER_KEY_TYPE ) ) {
-				if( !checkRecordType( ( String ) header.getHeaderValue( HEADER_KEY_TYPE ) ) ) {
-					return null;
-				}
-			} // else we're processing ARCs
+		if( header.getHeaderFields().isEmpty() ) {
+			return PreparedRecord.complete( archiveName, header, new SolrRecord( archiveName, header ) );
+		}
 
-			if( header.getUrl() == null )
-				return null;
-			String fullUrl = header.getUrl();
+		// Check the filters, before doing anything else:
+		if( header.getHeaderFieldKeys().contains( HEADER_KEY_TYPE ) ) {
+			if( !filter.acceptRecordType( ( String ) header.getHeaderValue( HEADER_KEY_TYPE ) ) ) {
+				return PreparedRecord.complete( archiveName, header, null );
+			}
+		} // else we're processing ARCs
+
+		if( header.getUrl() == null )
+			return PreparedRecord.complete( archiveName, header, null );
+		String fullUrl = header.getUrl();
+		if( filter.acceptProtocol( fullUrl ) == false )
+			return PreparedRecord.complete( archiveName, header, null );
+		if( filter.acceptUrl( fullUrl ) == false )
+			return PreparedRecord.complete( archiveName, header, null );
+		if( this.checkExclusionFilter( fullUrl ) == false )
+			return PreparedRecord.complete( archiveName, header, null );
+		if( log.isDebugEnabled() ) {
 			log.debug("Current heap usage: "
 					+ FileUtils.byteCountToDisplaySize(Runtime.getRuntime()
 							.totalMemory()));
 			log.debug("Processing " + fullUrl + " from " + archiveName);
+		}
 
-			// Check the filters:
-			if( this.checkProtocol( fullUrl ) == false )
-				return null;
-			if( this.checkUrl( fullUrl ) == false )
-				return null;
-			if( this.checkExclusionFilter( fullUrl ) == false )
-				return null;
+		// Revisits of a known payload only update its crawl dates, so skip the rest:
+		if( WARCConstants.WARCRecordType.revisit.name().equals( header.getHeaderValue( HEADER_KEY_TYPE ) )
+				&& header.getHeaderFieldKeys().contains( HEADER_KEY_PAYLOAD_DIGEST ) ) {
+			return prepareRevisit( archiveName, record, fullUrl );
+		}
 
-			// --- Basic headers ---
-
-			// Basic metadata:
-			solr.setField(SolrFields.SOURCE_FILE,
-					archiveName + "@" + header.getOffset());
-			// solr.setField(SolrFields.SOURCE_FILE_OFFSET,
-			// "" + header.getOffset());
-			byte[] md5digest = md5.digest( fullUrl.getBytes( "UTF-8" ) );
-			String md5hex = new String( Base64.encodeBase64( md5digest ) );
-			solr.setField( SolrFields.SOLR_URL, fullUrl );
-            if (addNormalisedURL) {
-                solr.setField( SolrFields.SOLR_URL_NORMALISED, urlNormaliser.canonicalize(fullUrl) );
-            }
-			// Get the length, but beware, this value also includes the HTTP headers (i.e. it is the payload_length):
-			long content_length = header.getLength();
-
-			// Also pull out the file extension, if any:
-			solr.addField( SolrFields.CONTENT_TYPE_EXT, parseExtension( fullUrl ) );
-			// Strip down very long URLs to avoid "org.apache.commons.httpclient.URIException: Created (escaped) uuri > 2083"
-			// Trac #2271: replace string-splitting with URI-based methods.
-			URL url = null;
-			if( fullUrl.length() > 2000 )
-				fullUrl = fullUrl.substring( 0, 2000 );
+		// --- Basic headers ---
+		SolrRecord solr = new SolrRecord(archiveName, header);
+
+		// Basic metadata:
+		solr.setField(SolrFields.SOURCE_FILE,
+				archiveName + "@" + header.getOffset());
+		// solr.setField(SolrFields.SOURCE_FILE_OFFSET,
+		// "" + header.getOffset());
+		byte[] md5digest = md5.digest( fullUrl.getBytes( "UTF-8" ) );
+		String md5hex = new String( Base64.encodeBase64( md5digest ) );
+		solr.setField( SolrFields.SOLR_URL, fullUrl );
+        if (addNormalisedURL) {
+            solr.setField( SolrFields.SOLR_URL_NORMALISED, urlNormaliser.canonicalize(fullUrl) );
+        }
+		// Get the length, but beware, this value also includes the HTTP headers (i.e. it is the payload_length):
+		long content_length = header.getLength();
+
+		// Also pull out the file extension, if any:
+		solr.addField( SolrFields.CONTENT_TYPE_EXT, parseExtension( fullUrl ) );
+		// Strip down very long URLs to avoid "org.apache.commons.httpclient.URIException: Created (escaped) uuri > 2083"
+		// Trac #2271: replace string-splitting with URI-based methods.
+		URL url = null;
+		if( fullUrl.length() > 2000 )
+			fullUrl = fullUrl.substring( 0, 2000 );
+		try {
+			url = new URL(fullUrl);
+		} catch (MalformedURLException e) {
+			// Some URIs causing problem, so try the canonicalizer; in which
+			// case try with the full URL.
+			log.error(e.getMessage());
 			try {
-				url = new URL(fullUrl);
-			} catch (MalformedURLException e) {
-				// Some URIs causing problem, so try the canonicalizer; in which
-				// case try with the full URL.
-				log.error(e.getMessage());
-				try {
-					url = new URL("http://" + canon.urlStringToKey(fullUrl));
-				} catch (Exception e2) {
-					// If this fails, abandon all hope.
-					log.error(e2.getMessage());
-					return null;
-				}
-			}
-			// Spot 'slash pages':
-			if (url.getPath().equals("/") || url.getPath().equals("")
-					|| url.getPath().matches("/index\\.[a-z]+$")) {
-				solr.setField( SolrFields.SOLR_URL_TYPE, SolrFields.SOLR_URL_TYPE_SLASHPAGE );
-			// Spot 'robots.txt':
-			} else if (url.getPath().equals("/robots.txt")) {
-				solr.setField( SolrFields.SOLR_URL_TYPE, SolrFields.SOLR_URL_TYPE_ROBOTS_TXT );
-			} else {
-				solr.setField(SolrFields.SOLR_URL_TYPE,
-						SolrFields.SOLR_URL_TYPE_NORMAL);
+				url = new URL("http://" + canon.urlStringToKey(fullUrl));
+			} catch (Exception e2) {
+				// If this fails, abandon all hope.
+				log.error(e2.getMessage());
+				return PreparedRecord.complete( archiveName, header, null );
 			}
-			// Record the domain (strictly, the host):
-			String host = url.getHost();
-			solr.setField( SolrFields.SOLR_HOST, host );
-			solr.setField( SolrFields.DOMAIN, LinkExtractor.extractPrivateSuffixFromHost( host ) );
-			solr.setField( SolrFields.PUBLIC_SUFFIX, LinkExtractor.extractPublicSuffixFromHost( host ) );
-
-            Instrument.timeRel("WARCIndexer.extract#total",
-                               "WARCIndexer.extract#archeaders", start);
-
-			InputStream tikainput = null;
-
-			// Only parse HTTP headers for HTTP URIs
-			if( fullUrl.startsWith( "http" ) ) {
-				// Parse HTTP headers:
-				String statusCode = null;
-				if( record instanceof WARCRecord ) {
-					// There are not always headers! The code should check first.
-					String statusLine = HttpParser.readLine( record, "UTF-8" );
-					if( statusLine != null && statusLine.startsWith( "HTTP" ) ) {
-						String firstLine[] = statusLine.split( " " );
-						if( firstLine.length > 1 ) {
-							statusCode = firstLine[ 1 ].trim();
-							try {
-								this.processHeaders( solr, statusCode, HttpParser.parseHeaders( record, "UTF-8" ) );
-							} catch( ProtocolException p ) {
-								log.error( "ProtocolException [" + statusCode + "]: " + header.getHeaderValue( WARCConstants.HEADER_KEY_FILENAME ) + "@" + header.getHeaderValue( WARCConstants.ABSOLUTE_OFFSET_KEY ), p );
-							}
-						} else {
-							log.warn( "Could not parse status line: " + statusLine );
+		}
+		// Spot 'slash pages':
+		if (url.getPath().equals("/") || url.getPath().equals("")
+				|| url.getPath().matches("/index\\.[a-z]+$")) {
+			solr.setField( SolrFields.SOLR_URL_TYPE, SolrFields.SOLR_URL_TYPE_SLASHPAGE );
+		// Spot 'robots.txt':
+		} else if (url.getPath().equals("/robots.txt")) {
+			solr.setField( SolrFields.SOLR_URL_TYPE, SolrFields.SOLR_URL_TYPE_ROBOTS_TXT );
+		} else {
+			solr.setField(SolrFields.SOLR_URL_TYPE,
+					SolrFields.SOLR_URL_TYPE_NORMAL);
+		}
+		// Record the domain (strictly, the host):
+		String host = url.getHost();
+		solr.setField( SolrFields.SOLR_HOST, host );
+		solr.setField( SolrFields.DOMAIN, LinkExtractor.extractPrivateSuffixFromHost( host ) );
+		solr.setField( SolrFields.PUBLIC_SUFFIX, LinkExtractor.extractPublicSuffixFromHost( host ) );
+
+        Instrument.timeRel("WARCIndexer.extract#total",
+                           "WARCIndexer.extract#archeaders", start);
+
+		InputStream tikainput = null;
+
+		// Only parse HTTP headers for HTTP URIs
+		if( fullUrl.startsWith( "http" ) ) {
+			// Parse HTTP headers:
+			String statusCode = null;
+			if( record instanceof WARCRecord ) {
+				// There are not always headers! The code should check first.
+				String statusLine = HttpParser.readLine( record, "UTF-8" );
+				if( statusLine != null && statusLine.startsWith( "HTTP" ) ) {
+					String firstLine[] = statusLine.split( " " );
+					if( firstLine.length > 1 ) {
+						statusCode = firstLine[ 1 ].trim();
+						try {
+							this.processHeaders( solr, statusCode, HttpParser.parseHeaders( record, "UTF-8" ) );
+						} catch( ProtocolException p ) {
+							log.error( "ProtocolException [" + statusCode + "]: " + header.getHeaderValue( WARCConstants.HEADER_KEY_FILENAME ) + "@" + header.getHeaderValue( WARCConstants.ABSOLUTE_OFFSET_KEY ), p );
 						}
 					} else {
-						log.warn( "Invalid status line: " + header.getHeaderValue( WARCConstants.HEADER_KEY_FILENAME ) + "@" + header.getHeaderValue( WARCConstants.ABSOLUTE_OFFSET_KEY ) );
+						log.warn( "Could not parse status line: " + statusLine );
 					}
-					// No need for this, as the headers have already been read from the InputStream (above):
-					// WARCRecordUtils.getPayload(record);
-					tikainput = record;
-				} else if( record instanceof ARCRecord ) {
-					ARCRecord arcr = ( ARCRecord ) record;
-					statusCode = "" + arcr.getStatusCode();
-					this.processHeaders( solr, statusCode, arcr.getHttpHeaders() );
-					arcr.skipHttpHeader();
-					tikainput = arcr;
 				} else {
-					log.error( "FAIL! Unsupported archive record type." );
-					return solr;
+					log.warn( "Invalid status line: " + header.getHeaderValue( WARCConstants.HEADER_KEY_FILENAME ) + "@" + header.getHeaderValue( WARCConstants.ABSOLUTE_OFFSET_KEY ) );
 				}
+				// No need for this, as the headers have already been read from the InputStream (above):
+				// WARCRecordUtils.getPayload(record);
+				tikainput = record;
+			} else if( record instanceof ARCRecord ) {
+				ARCRecord arcr = ( ARCRecord ) record;
+				statusCode = "" + arcr.getStatusCode();
+				this.processHeaders( solr, statusCode, arcr.getHttpHeaders() );
+				arcr.skipHttpHeader();
+				tikainput = arcr;
+			} else {
+				log.error( "FAIL! Unsupported archive record type." );
+				return PreparedRecord.complete( archiveName, header, solr );
+			}
 
-				// Skip recording non-content URLs (i.e. 2xx responses only please):
-				if( this.checkResponseCode( statusCode ) == false ) {
-					log.debug( "Skipping this record based on status code " + statusCode + ": " + header.getUrl() );
-					return null;
-				}
+			// Skip recording non-content URLs (i.e. 2xx responses only please):
+			if( filter.acceptResponseCode( statusCode ) == false ) {
+				log.debug( "Skipping this record based on status code " + statusCode + ": " + header.getUrl() );
+				return PreparedRecord.complete( archiveName, header, null );
 			}
-			
-			// Update the content_length based on what's available:
-			content_length = tikainput.available();
-			// Record the length:
-			solr.setField(SolrFields.CONTENT_LENGTH, ""+content_length);
-			
-			// -----------------------------------------------------
-			// Headers have been processed, payload ready to cache:
-			// -----------------------------------------------------
-			
-			// Create an appropriately cached version of the payload, to allow analysis.
-            final long hashStreamStart = System.nanoTime();
-			HashedCachedInputStream hcis = new HashedCachedInputStream(header, tikainput, content_length );
-			tikainput = hcis.getInputStream();
-			String hash = hcis.getHash();
-            Instrument.timeRel("WARCIndexer.extract#total",
-                               "WARCIndexer.extract#hashstreamwrap", hashStreamStart);
-
-			// Prepare crawl date information:
-			String waybackDate = ( header.getDate().replaceAll( "[^0-9]", "" ) );
-			Date crawlDate =  getWaybackDate( waybackDate );
-			String crawlDateString = parseCrawlDate( waybackDate );
-			
-			// Optionally use a hash-based ID to store only one version of a URL:
-			String id = null;
-			if( hashUrlId ) {
-				id = hash + "/" + md5hex;
-			} else {
-				id = waybackDate + "/" + md5hex;
+		}
+		
+		// Update the content_length based on what's available:
+		content_length = tikainput.available();
+		// Record the length:
+		solr.setField(SolrFields.CONTENT_LENGTH, ""+content_length);
+		
+		// -----------------------------------------------------
+		// Headers have been processed, payload ready to cache:
+		// -----------------------------------------------------
+		
+		// Create an appropriately cached version of the payload, to allow analysis.
+        final long hashStreamStart = System.nanoTime();
+		HashedCachedInputStream hcis = new HashedCachedInputStream(header, tikainput, content_length, inMemoryThreshold, onDiskThreshold );
+		tikainput = hcis.getInputStream();
+		String hash = hcis.getHash();
+        Instrument.timeRel("WARCIndexer.extract#total",
+                           "WARCIndexer.extract#hashstreamwrap", hashStreamStart);
+
+		// Prepare crawl date information:
+		String waybackDate = ( header.getDate().replaceAll( "[^0-9]", "" ) );
+		
+		// Optionally use a hash-based ID to store only one version of a URL:
+		String id = null;
+		if( hashUrlId ) {
+			id = hash + "/" + md5hex;
+		} else {
+			id = waybackDate + "/" + md5hex;
+		}
+		// Set these last:
+		solr.setField( SolrFields.ID, id );
+		solr.setField( SolrFields.HASH, hash );
+
+		// -----------------------------------------------------
+		// Payload has been cached, ready to check crawl dates:
+		// -----------------------------------------------------
+		
+		// Use the current value as the waybackDate:
+		solr.setField( SolrFields.WAYBACK_DATE, waybackDate );
+
+		// Look up the currently known crawl dates along with those of other
+		// records, when this record is analysed:
+		boolean revisit = WARCConstants.WARCRecordType.revisit.name().equals( header.getHeaderValue( HEADER_KEY_TYPE ) );
+		if( this.checkSolrForDuplicates && duplicates != null ) {
+			duplicates.request( id );
+		} else {
+			SolrRecord result = mergeCrawlDates( solr, header, Collections.<Date> emptySet(), revisit );
+			if( revisit ) {
+				hcis.cleanup();
+				return PreparedRecord.complete( archiveName, header, result );
 			}
-			// Set these last:
-			solr.setField( SolrFields.ID, id );
-			solr.setField( SolrFields.HASH, hash );
-
-			// -----------------------------------------------------
-			// Payload has been cached, ready to check crawl dates:
-			// -----------------------------------------------------
-			
-			// Query for currently known crawl dates:
-			HashSet<Date> currentCrawlDates = new HashSet<Date>();
-			if( this.checkSolrForDuplicates && solrServer != null ) {
-				SolrQuery q = new SolrQuery("id:\""+id+"\"");
-				q.addField(SolrFields.CRAWL_DATES);
-				try {
-					QueryResponse results = solrServer.query(q);
-					if( results.getResults().size() > 0 ) {
-						SolrDocument fr = results.getResults().get(0);
-						if( fr.containsKey(SolrFields.CRAWL_DATES)) {
-							for( Object cds : fr.getFieldValues(SolrFields.CRAWL_DATES) ) {
-								currentCrawlDates.add((Date) cds);
-							}
-						}
-					} else {
-						log.debug("No matching entries found.");
-					}
-				} catch (SolrServerException e) {
-					e.printStackTrace();
-					// FIXME retry?
-				}
+		}
+
+		// If this is a revisit record, we should just return an update to the crawl_dates:
+		if( revisit ) {
+			// No analysis will be done, so the cached payload can go:
+			hcis.cleanup();
+			return PreparedRecord.revisit( archiveName, header, solr );
+		}
+		
+		// -----------------------------------------------------
+		// Apply any annotations:
+		// -----------------------------------------------------
+		if (ant != null) {
+			try {
+				ant.applyAnnotations(url.toURI(), solr.getSolrDocument());
+			} catch (URISyntaxException e) {
+				e.printStackTrace();
+				log.error("Failed to annotate " + url + " : " + e);
 			}
-			
-			// Is the current date unknown? (inc. no-solr-check case):
-			if( ! currentCrawlDates.contains(crawlDate) ) {
-				//  Dates to be merged under the CRAWL_DATES field:
-				solr.mergeField( SolrFields.CRAWL_DATES, crawlDateString );
-				solr.mergeField(SolrFields.CRAWL_YEARS,
-						extractYear(header.getDate()));
-			} else {
-				// Otherwise, ensure the all the known dates (i.e. including this one) are copied over:
-				for( Date ccd : currentCrawlDates ) {
-					solr.addField( SolrFields.CRAWL_DATES, formatter.format(ccd) );
-					solr.addField(SolrFields.CRAWL_YEARS, getYearFromDate(ccd));
+		}
+
+		PreparedRecord prepared = new PreparedRecord( archiveName, header, solr, hcis, tikainput, content_length );
+		if( this.checkSolrForDuplicates && duplicates != null ) {
+			prepared.setCrawlDatesPending();
+		}
+		return prepared;
+	}
+
+	/**
+	 * Fast path for revisit records that carry the digest of the revisited
+	 * payload, which is all that is needed to build the ID. Only the HTTP
+	 * status line is read (for the response code filter), the payload is
+	 * neither cached nor analysed.
+	 * 
+	 * @param archiveName
+	 * @param record
+	 * @param fullUrl
+	 * @return
+	 * @throws IOException
+	 */
+	private PreparedRecord prepareRevisit( String archiveName, ArchiveRecord record, String fullUrl ) throws IOException {
+		final long start = System.nanoTime();
+		ArchiveRecordHeader header = record.getHeader();
+
+		// Skip recording non-content URLs, as for any other record:
+		if( fullUrl.startsWith( "http" ) ) {
+			String statusCode = null;
+			String statusLine = HttpParser.readLine( record, "UTF-8" );
+			if( statusLine != null && statusLine.startsWith( "HTTP" ) ) {
+				String firstLine[] = statusLine.split( " " );
+				if( firstLine.length > 1 ) {
+					statusCode = firstLine[ 1 ].trim();
 				}
-				// TODO This could optionally skip re-submission instead?
 			}
-			
-			// Sort the dates and find the earliest:
-			List<Date> dateList = new ArrayList<Date>(currentCrawlDates);
-			dateList.add(crawlDate);
-			Collections.sort(dateList);
-			Date firstDate = dateList.get(0);
-			solr.getSolrDocument().setField(SolrFields.CRAWL_DATE, firstDate);
-			solr.setField( SolrFields.CRAWL_YEAR, getYearFromDate(firstDate) );
-			
-			// Use the current value as the waybackDate:
-			solr.setField( SolrFields.WAYBACK_DATE, waybackDate );
-			
-			// If this is a revisit record, we should just return an update to the crawl_dates:
-			if(  WARCConstants.WARCRecordType.revisit.name().equals( header.getHeaderValue( HEADER_KEY_TYPE ) ) ) {
-				if( currentCrawlDates.contains(crawlDate) ) {
-					return null;
-				}
-				SolrRecord revisited = new SolrRecord();
-				revisited.setField( SolrFields.ID, id );
-				revisited.mergeField( SolrFields.CRAWL_DATES, crawlDateString );
-				revisited.mergeField(SolrFields.CRAWL_YEARS,
-						extractYear(header.getDate()));
-				return revisited;
+			if( filter.acceptResponseCode( statusCode ) == false ) {
+				log.debug( "Skipping this revisit based on status code " + statusCode + ": " + header.getUrl() );
+				return PreparedRecord.complete( archiveName, header, null );
 			}
-			
-			// -----------------------------------------------------
-			// Apply any annotations:
-			// -----------------------------------------------------
-			if (ant != null) {
-				try {
-					ant.applyAnnotations(url.toURI(), solr.getSolrDocument());
-				} catch (URISyntaxException e) {
-					e.printStackTrace();
-					log.error("Failed to annotate " + url + " : " + e);
+		}
+
+		// Build the ID as for the revisited record:
+		String md5hex = new String( Base64.encodeBase64( md5.digest( fullUrl.getBytes( "UTF-8" ) ) ) );
+		String id = null;
+		if( hashUrlId ) {
+			id = ( String ) header.getHeaderValue( HEADER_KEY_PAYLOAD_DIGEST ) + "/" + md5hex;
+		} else {
+			id = header.getDate().replaceAll( "[^0-9]", "" ) + "/" + md5hex;
+		}
+		SolrRecord solr = new SolrRecord();
+		solr.setField( SolrFields.ID, id );
+		Instrument.timeRel( "WARCIndexer.extract#total", "WARCIndexer.extract#revisit", start );
+
+		if( this.checkSolrForDuplicates && duplicates != null ) {
+			duplicates.request( id );
+			return PreparedRecord.revisit( archiveName, header, solr );
+		}
+		return PreparedRecord.complete( archiveName, header,
+				mergeCrawlDates( solr, header, Collections.<Date> emptySet(), true ) );
+	}
+
+	/**
+	 * Adds the crawl date of the record to those already known.
+	 * 
+	 * @param solr
+	 * @param header
+	 * @param currentCrawlDates
+	 *            the crawl dates already known for the ID of the record.
+	 * @param revisit
+	 * @return the record, or for a revisit record the update to the crawl
+	 *         dates (or NULL if there is nothing to update).
+	 */
+	private SolrRecord mergeCrawlDates( SolrRecord solr, ArchiveRecordHeader header, Set<Date> currentCrawlDates,
+			boolean revisit ) {
+		String waybackDate = ( header.getDate().replaceAll( "[^0-9]", "" ) );
+		Date crawlDate =  getWaybackDate( waybackDate );
+		String crawlDateString = parseCrawlDate( waybackDate );
+
+		// Is the current date unknown? (inc. no-solr-check case):
+		if( ! currentCrawlDates.contains(crawlDate) ) {
+			//  Dates to be merged under the CRAWL_DATES field:
+			solr.mergeField( SolrFields.CRAWL_DATES, crawlDateString );
+			solr.mergeField(SolrFields.CRAWL_YEARS,
+					extractYear(header.getDate()));
+		} else {
+			// Otherwise, ensure the all the known dates (i.e. including this one) are copied over:
+			for( Date ccd : currentCrawlDates ) {
+				solr.addField( SolrFields.CRAWL_DATES, formatCrawlDate(ccd) );
+				solr.addField(SolrFields.CRAWL_YEARS, getYearFromDate(ccd));
+			}
+			// TODO This could optionally skip re-submission instead?
+		}
+		
+		// Sort the dates and find the earliest:
+		List<Date> dateList = new ArrayList<Date>(currentCrawlDates);
+		dateList.add(crawlDate);
+		Collections.sort(dateList);
+		Date firstDate = dateList.get(0);
+		solr.getSolrDocument().setField(SolrFields.CRAWL_DATE, firstDate);
+		solr.setField( SolrFields.CRAWL_YEAR, getYearFromDate(firstDate) );
+
+		// A revisit record is just an update to the crawl_dates:
+		if( revisit ) {
+			if( currentCrawlDates.contains(crawlDate) ) {
+				return null;
+			}
+			SolrRecord revisited = new SolrRecord();
+			revisited.setField( SolrFields.ID, ( String ) solr.getFieldValue( SolrFields.ID ) );
+			revisited.mergeField( SolrFields.CRAWL_DATES, crawlDateString );
+			revisited.mergeField(SolrFields.CRAWL_YEARS,
+					extractYear(header.getDate()));
+			return revisited;
+		}
+		return solr;
+	}
+
+	/**
+	 * Second stage of {@link #extract(String, ArchiveRecord, boolean)}: runs
+	 * the payload and text analysers over a prepared record, and then cleans up
+	 * the cached payload.
+	 * 
+	 * @param prepared
+	 * @param isTextIncluded
+	 * @return
+	 */
+	public SolrRecord analyse( PreparedRecord prepared, boolean isTextIncluded ) {
+		if( wpa == null ) {
+			throw new IllegalStateException( "This WARCIndexer was set up to prepare records only." );
+		}
+		if( !slowRecords.isEnabled() ) {
+			return analyseRecord( prepared, isTextIncluded );
+		}
+		final long start = System.nanoTime();
+		SolrRecord solr = null;
+		Instrument.startRecordTimings();
+		try {
+			solr = analyseRecord( prepared, isTextIncluded );
+		} finally {
+			Map<String, Long> timings = Instrument.stopRecordTimings();
+			long nanos = prepared.getPrepareTime() + System.nanoTime() - start;
+			if( solr != null && slowRecords.isSlow( nanos ) ) {
+				Map<String, Long> stages = new LinkedHashMap<String, Long>( prepared.getTimings() );
+				for( Map.Entry<String, Long> timing : timings.entrySet() ) {
+					Long previous = stages.get( timing.getKey() );
+					stages.put( timing.getKey(), previous == null ? timing.getValue() : previous + timing.getValue() );
 				}
+				Object mimeType = solr.getFieldValue( SolrFields.SOLR_CONTENT_TYPE );
+				slowRecords.offer( prepared.getArchiveName(), prepared.getHeader().getOffset(),
+						prepared.getHeader().getUrl(), mimeType == null ? null : mimeType.toString(), nanos, stages );
 			}
+		}
+		return solr;
+	}
 
-			// -----------------------------------------------------
-			// Payload duplication has been checked, ready to parse:
-			// -----------------------------------------------------
+	private SolrRecord analyseRecord( PreparedRecord prepared, boolean isTextIncluded ) {
+		if( prepared.isCrawlDatesPending() ) {
+			SolrRecord solr = prepared.getSolrRecord();
+			Set<Date> currentCrawlDates = duplicates.getCrawlDates( ( String ) solr.getFieldValue( SolrFields.ID ) );
+			SolrRecord result = mergeCrawlDates( solr, prepared.getHeader(), currentCrawlDates, prepared.isRevisit() );
+			if( prepared.isRevisit() ) {
+				return result;
+			}
+		}
+		if( prepared.isComplete() ) {
+			return prepared.getSolrRecord();
+		}
+		ArchiveRecordHeader header = prepared.getHeader();
+		SolrRecord solr = prepared.getSolrRecord();
+		InputStream tikainput = prepared.getPayload();
+		long content_length = prepared.getContentLength();
+		long abandoned = timeouts.getAbandonedCountForThread();
 
-            final long analyzeStart = System.nanoTime();
-			// Mark the start of the payload.
-			tikainput.mark( ( int ) content_length );
-			
-			// Pass on to other extractors as required, resetting the stream before each:
-			this.wpa.analyse(header, tikainput, solr);
-            Instrument.timeRel("WARCIndexer.extract#total", "WARCIndexer.extract#analyzetikainput", analyzeStart);
+		try {
+			// Re-use the results for an identical payload, if possible:
+			String hash = ( String ) solr.getFieldValue( SolrFields.HASH );
+			if( payloadCache == null || !payloadCache.apply( hash, header.getUrl(), solr ) ) {
+				Map<String, List<Object>> before = payloadCache == null ? null : PayloadCache.snapshot( solr );
 
+				final long analyzeStart = System.nanoTime();
+				// Mark the start of the payload.
+				tikainput.mark( ( int ) content_length );
 
-			// Clear up the caching of the payload:
-			hcis.cleanup();
+				// Pass on to other extractors as required, resetting the stream before each:
+				this.wpa.analysePayload(header, tikainput, solr);
+				Instrument.timeRel("WARCIndexer.extract#total", "WARCIndexer.extract#analyzetikainput", analyzeStart);
+
+				// Derive normalised/simplified content type:
+				processContentType(solr, header, content_length);
 
-			// Derive normalised/simplified content type:
-			processContentType(solr, header, content_length);
+				// -----------------------------------------------------
+				// Payload analysis complete, now performing text analysis:
+				// -----------------------------------------------------
 
-			// -----------------------------------------------------
-			// Payload analysis complete, now performing text analysis:
-			// -----------------------------------------------------
-			
-			this.txa.analyse(solr);
+				this.txa.analyse(solr);
+
+				// Only cache complete analyses, not those cut short by a timeout:
+				if( payloadCache != null && timeouts.getAbandonedCountForThread() == abandoned ) {
+					payloadCache.put( hash, header.getUrl(), before, solr );
+				}
+			}
+
+			// Fields that depend on the archive file rather than the payload:
+			this.wpa.analyseArchiveName(header, solr);
 
 			// Remove the Text Field if required
 			if( !isTextIncluded ) {
@@ -542,9 +746,15 @@ public class WARCIndexer {
 					solr.removeField(SolrFields.SOLR_EXTRACTED_TEXT);
 				}
 			}
+		} finally {
+			// Clear up the caching of the payload, but do not re-use it if an
+			// abandoned parser may still be reading it:
+			if( timeouts.getAbandonedCountForThread() != abandoned ) {
+				prepared.discard();
+			} else {
+				prepared.cleanup();
+			}
 		}
-        Instrument.timeRel("WARCIndexerCommand.parseWarcFiles#solrdocCreation",
-                           "WARCIndexer.extract#total", start);
         return solr;
 	}
 
@@ -619,13 +829,25 @@ public class WARCIndexer {
 	}
 
 	/**
-	 * Timestamp parsing, for the Crawl Date.
+	 * Timestamp formatting, for the Crawl Date. One per thread, as
+	 * SimpleDateFormat is not thread-safe and records are indexed on several
+	 * threads at once.
 	 */
+	private static final ThreadLocal<SimpleDateFormat> formatter = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss'Z'" );
+			format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+			return format;
+		}
+	};
 
-	public static SimpleDateFormat formatter = new SimpleDateFormat(
-			"yyyy-MM-dd'T'HH:mm:ss'Z'");
-	static {
-		formatter.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+	/**
+	 * @param date
+	 * @return the date formatted as a Crawl Date.
+	 */
+	public static String formatCrawlDate( Date date ) {
+		return formatter.get().format( date );
 	}
 
 	/**
@@ -659,7 +881,7 @@ public class WARCIndexer {
 	 * @return
 	 */
 	protected static String parseCrawlDate( String waybackDate ) {
-		return formatter.format( getWaybackDate( waybackDate ) );
+		return formatCrawlDate( getWaybackDate( waybackDate ) );
 	}
 
 	/**
@@ -762,62 +984,17 @@ public class WARCIndexer {
 		}
 	}
 
-	private boolean checkUrl( String url ) {
-		for( String exclude : url_excludes ) {
-			if( !"".equals( exclude ) && url.matches( ".*" + exclude + ".*" ) ) {
-				return false;
-			}
-		}
-		return true;
-	}
-
-	private boolean checkProtocol( String url ) {
-		for( String include : protocol_includes ) {
-			if( "".equals( include ) || url.startsWith( include ) ) {
-				return true;
-			}
-		}
-		return false;
-	}
-
-	private boolean checkResponseCode( String statusCode ) {
-		if( statusCode == null )
-			return false;
-		// Check for match:
-		for( String include : response_includes ) {
-			if( "".equals( include ) || statusCode.startsWith( include ) ) {
-				return true;
-			}
-		}
-		// Exclude
-		return false;
-	}
-
-	private boolean checkRecordType( String type ) {
-		for( String include : record_type_includes ) {
-			if( type.equals( include ) ) {
-				return true;
-			}
-		}
-		return false;
-	}
-
 	private boolean checkExclusionFilter( String uri ) {
 		// Default to no exclusions:
-		if( smef == null )
+		if( exclusions == null )
 			return true;
 		// Otherwise:
-		ExclusionFilter ef = smef.get();
-		CaptureSearchResult r = new CaptureSearchResult();
-		// r.setOriginalUrl(uri);
-		r.setUrlKey( uri );
 		try {
-			if( ef.filterObject( r ) == ExclusionFilter.FILTER_INCLUDE ) {
+			if( !exclusions.isExcluded( uri ) ) {
 				return true;
 			}
 		} catch( Exception e ) {
 			log.error( "Exclusion filtering failed with exception: " + e );
-			e.printStackTrace();
 		}
 		log.debug( "EXCLUDING this URL due to filter: " + uri );
 		// Exclude:
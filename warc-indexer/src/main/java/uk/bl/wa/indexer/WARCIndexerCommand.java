@@ -35,6 +35,12 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Result;
@@ -55,12 +61,12 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.solr.client.solrj.SolrServerException;
-import org.apache.solr.common.SolrInputDocument;
 import org.archive.io.ArchiveReader;
 import org.archive.io.ArchiveReaderFactory;
 import org.archive.io.ArchiveRecord;
 
 import uk.bl.wa.annotation.Annotations;
+import uk.bl.wa.solr.SolrBatch;
 import uk.bl.wa.solr.SolrFields;
 import uk.bl.wa.solr.SolrRecord;
 import uk.bl.wa.solr.SolrWebServer;
@@ -77,9 +83,11 @@ import uk.bl.wa.util.Instrument;
 public class WARCIndexerCommand {
 	
 	private static Log log = LogFactory.getLog(WARCIndexerCommand.class);
-	
 
-	private static final String CLI_USAGE = "[-o <output dir>] [-s <Solr instance>] [-t] <include text> [-r] <root/slash pages only> [-b <batch-submissions size>] [WARC File List]";
+	/** Number of archive files to process at the same time */
+	public static final String CONF_PARALLEL_FILES = "warc.index.parallel_files";
+
+	private static final String CLI_USAGE = "[-o <output dir>] [-s <Solr instance>] [-t] <include text> [-r] <root/slash pages only> [-b <batch-submissions size>] [-j <extractor threads>] [-p <parallel files>] [WARC File List]";
 	private static final String CLI_HEADER = "WARCIndexer - Extracts metadata and text from Archive Records";
 	private static final String CLI_FOOTER = "";
 	
@@ -103,6 +111,9 @@ public class WARCIndexerCommand {
 		int batchSize = -1; // No explicit batch size (defaults to 1 if not stated in the conf-file)
 		String annotationsFile = null;
         boolean disableCommit;
+		int threads = -1; // No explicit thread count (defaults to 1 if not stated in the conf-file)
+		boolean unordered;
+		int parallelFiles = -1; // No explicit file parallelism (defaults to 1 if not stated in the conf-file)
 		
 		Options options = new Options();
 		options.addOption("o", "output", true,
@@ -119,6 +130,12 @@ public class WARCIndexerCommand {
 		options.addOption("c", "config", true, "Configuration to use.");
 		options.addOption("d", "disable_commit", false,
                           "Disable client side commits (speeds up indexing at the cost of flush guarantee).");
+		options.addOption("j", "threads", true,
+				"Number of threads to use for extracting records.");
+		options.addOption("p", "parallel_files", true,
+				"Number of WARC files to process at the same time.");
+		options.addOption("u", "unordered", false,
+				"Do not preserve the archive order of the records when using multiple threads.");
 
 		try {
 		    // parse the command line arguments
@@ -167,6 +184,14 @@ public class WARCIndexerCommand {
 		   	if( line.hasOption( "b" ) ) {
 		   		batchSize = Integer.parseInt( line.getOptionValue( "b" ) );
 		   	}
+
+		   	if( line.hasOption( "j" ) ) {
+		   		threads = Integer.parseInt( line.getOptionValue( "j" ) );
+		   	}
+
+		   	if( line.hasOption( "p" ) ) {
+		   		parallelFiles = Integer.parseInt( line.getOptionValue( "p" ) );
+		   	}
 		   	
 			if (line.hasOption("c")) {
 				configFile = line.getOptionValue("c");
@@ -194,8 +219,11 @@ public class WARCIndexerCommand {
             // Check for commit disabling
             disableCommit = line.hasOption("d");
 
+            unordered = line.hasOption("u");
+
 			parseWarcFiles(configFile, outputDir, solrUrl, cli_args,
-                           isTextRequired, slashPages, batchSize, annotationsFile, disableCommit);
+                           isTextRequired, slashPages, batchSize, annotationsFile, disableCommit,
+                           threads, unordered, parallelFiles);
 		
 		} catch (org.apache.commons.cli.ParseException e) {
 			log.error("Parse exception when processing command line arguments: "+e);
@@ -220,6 +248,36 @@ public class WARCIndexerCommand {
 			throws NoSuchAlgorithmException,
 			TransformerFactoryConfigurationError, TransformerException,
 			IOException {
+		parseWarcFiles(configFile, outputDir, solrUrl, args, isTextRequired,
+				slashPages, batchSize, annotationsFile, disableCommit, -1,
+				false, -1);
+	}
+
+	/**
+	 * @param outputDir
+	 * @param args
+	 * @param threads
+	 *            number of extractor threads, or -1 to use the configured
+	 *            value.
+	 * @param unordered
+	 *            if true, records from multi-threaded extraction are delivered
+	 *            as soon as they are ready rather than in archive order.
+	 * @param parallelFiles
+	 *            number of archive files to process at the same time, or -1
+	 *            to use the configured value.
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 * @throws TransformerFactoryConfigurationError
+	 * @throws TransformerException
+	 */
+	public static void parseWarcFiles(String configFile, String outputDir,
+			String solrUrl, String[] args, boolean isTextRequired,
+			boolean slashPages, int batchSize, String annotationsFile,
+			boolean disableCommit, int threads, boolean unordered,
+			int parallelFiles)
+			throws NoSuchAlgorithmException,
+			TransformerFactoryConfigurationError, TransformerException,
+			IOException {
 		long startTime = System.currentTimeMillis();
         final long start = System.nanoTime();
 
@@ -245,35 +303,190 @@ public class WARCIndexerCommand {
             batchSize = conf.hasPath("warc.solr.batch_size") ? conf.getInt("warc.solr.batch_size") : 1;
         }
 
+        if (threads == -1) { // Thread count not set on command line, so resolve it from conf with default 1
+            threads = conf.hasPath(RecordPipeline.CONF_THREADS) ? conf.getInt(RecordPipeline.CONF_THREADS) : 1;
+        }
+        if (parallelFiles == -1) { // File parallelism not set on command line, so resolve it from conf with default 1
+            parallelFiles = conf.hasPath(CONF_PARALLEL_FILES) ? conf.getInt(CONF_PARALLEL_FILES) : 1;
+        }
+        boolean preserveOrder = !unordered && (!conf.hasPath(RecordPipeline.CONF_PRESERVE_ORDER)
+                || conf.getBoolean(RecordPipeline.CONF_PRESERVE_ORDER));
+
 		// Set up the server config:
 		SolrWebServer solrWeb = new SolrWebServer(conf);
-		
 
-		// Also pass config down:
-		WARCIndexer windex = new WARCIndexer(conf);
-
-		// Add in annotations, if set:
+		// Pick up annotations, if set:
+		Annotations ann = null;
 		if (annotationsFile != null) {
-			Annotations ann = Annotations.fromJsonFile(annotationsFile);
-			windex.setAnnotations(ann);
+			ann = Annotations.fromJsonFile(annotationsFile);
 		}
-		
+
+		// Either extract on the file threads, or set up the multi-threaded pipeline:
+		RecordPipeline pipeline = null;
+		if (threads > 1) {
+			pipeline = new RecordPipeline(conf, ann, threads, Math.min(parallelFiles, args.length), preserveOrder, isTextRequired);
+		}
+		final FileIndexer fileIndexer = new FileIndexer(conf, ann, pipeline,
+				outputDir, solrUrl, isTextRequired, slashPages, batchSize,
+				disableCommit, solrWeb, args.length);
+
 		// To be indexed:
-		ArrayList<SolrInputDocument> docs = new ArrayList<SolrInputDocument>(); 
-		int totInputFile = args.length;
-		int curInputFile = 1;
+		SolrBatch docs = new SolrBatch();
 					
         Instrument.timeRel("WARCIndexerCommand.main#total",
                            "WARCIndexerCommand.parseWarcFiles#startup", start);
-		// Loop through each Warc files
-        for (int arcsIndex = 0; arcsIndex < args.length; arcsIndex++) {
-            String inputFile = args[arcsIndex];
+        if (parallelFiles > 1 && args.length > 1) {
+            // Each file gets its own batch, which is flushed when the file is done:
+            log.info("Processing up to " + parallelFiles + " archive files at the same time.");
+            ExecutorService files = Executors.newFixedThreadPool(Math.min(parallelFiles, args.length));
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final String inputFile : args) {
+                results.add(files.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        SolrBatch fileDocs = new SolrBatch();
+                        fileIndexer.index(inputFile, fileDocs);
+                        try {
+                            forceSubmission(fileIndexer.solrWeb, fileDocs);
+                        } catch (SolrServerException s) {
+                            log.warn("SolrServerException: " + inputFile, s);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            files.shutdown();
+            // Wait for all the files, and report the first failure (if any):
+            IOException failure = null;
+            for (int i = 0; i < args.length; i++) {
+                try {
+                    results.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    files.shutdownNow();
+                    failure = new IOException("Interrupted while processing " + args[i], e);
+                    break;
+                } catch (ExecutionException e) {
+                    log.error("Failed to process " + args[i], e.getCause());
+                    if (failure == null) {
+                        failure = new IOException("Failed to process " + args[i], e.getCause());
+                    }
+                }
+            }
+            Instrument.timeRel("WARCIndexerCommand.main#total",
+                               "WARCIndexerCommand.parseWarcFiles#fullarcprocess", start);
+            if (failure != null) {
+                if (pipeline != null) {
+                    pipeline.shutdown();
+                }
+                throw failure;
+            }
+        } else {
+            // Loop through each Warc files
+            for (int arcsIndex = 0; arcsIndex < args.length; arcsIndex++) {
+                fileIndexer.index(args[arcsIndex], docs);
+                Instrument.timeRel("WARCIndexerCommand.main#total",
+                                   "WARCIndexerCommand.parseWarcFiles#fullarcprocess", start);
+                Instrument.log(arcsIndex < args.length-1); // Don't log the last on info to avoid near-duplicate logging
+            }
+        }
+
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+
+        try {
+            forceSubmission(solrWeb, docs); // Ensure that all documents are flushed
+        } catch (SolrServerException s) {
+            log.warn("SolrServerException", s);
+        }
+
+        if (!disableCommit) {
+            // Commit the updates:
+            commit(solrWeb);
+        }
+
+        // Fail if any docs were given up on, so the run can be repeated:
+        long dropped = solrWeb.getDroppedCount();
+        if (dropped > 0) {
+            throw new IOException(dropped + " docs could not be sent to Solr, see the log"
+                    + " (and the dead-letter file, if configured) for details.");
+        }
+
+		long endTime = System.currentTimeMillis();
+
+		System.out.println("WARC Indexer Finished in " + ((endTime - startTime) / 1000.0) + " seconds.");
+	}
+	
+	/**
+	 * Indexes whole archive files. Safe to use from several threads at once, as
+	 * each thread gets its own {@link WARCIndexer} and each file its own
+	 * {@link RecordDelivery}.
+	 */
+	private static class FileIndexer {
+		private final Config conf;
+		private final Annotations annotations;
+		private final RecordPipeline pipeline;
+		private final String outputDir;
+		private final String solrUrl;
+		private final boolean isTextRequired;
+		private final boolean slashPages;
+		private final int batchSize;
+		private final boolean disableCommit;
+		private final SolrWebServer solrWeb;
+		private final int totInputFile;
+		private final AtomicInteger curInputFile = new AtomicInteger();
+
+		/** Each thread gets its own indexer, as they are not thread-safe */
+		private final ThreadLocal<WARCIndexer> indexers = new ThreadLocal<WARCIndexer>();
+
+		FileIndexer( Config conf, Annotations annotations,
+				RecordPipeline pipeline, String outputDir, String solrUrl,
+				boolean isTextRequired, boolean slashPages, int batchSize,
+				boolean disableCommit, SolrWebServer solrWeb, int totInputFile ) {
+			this.conf = conf;
+			this.annotations = annotations;
+			this.pipeline = pipeline;
+			this.outputDir = outputDir;
+			this.solrUrl = solrUrl;
+			this.isTextRequired = isTextRequired;
+			this.slashPages = slashPages;
+			this.batchSize = batchSize;
+			this.disableCommit = disableCommit;
+			this.solrWeb = solrWeb;
+			this.totInputFile = totInputFile;
+		}
+
+		private WARCIndexer getIndexer() throws NoSuchAlgorithmException {
+			WARCIndexer windex = indexers.get();
+			if (windex == null) {
+				// Also pass config down:
+				windex = new WARCIndexer(conf);
+				if (annotations != null) {
+					windex.setAnnotations(annotations);
+				}
+				indexers.set(windex);
+			}
+			return windex;
+		}
+
+		/**
+		 * Indexes a single archive file.
+		 *
+		 * @param inputFile
+		 * @param docs
+		 *            the batch of documents awaiting submission to Solr.
+		 * @throws IOException
+		 * @throws NoSuchAlgorithmException
+		 */
+		void index( String inputFile, SolrBatch docs )
+				throws IOException, NoSuchAlgorithmException {
             if (!disableCommit) {
                 // Commit to make sure index is up to date:
                 commit(solrWeb);
             }
 
-            System.out.println("Parsing Archive File [" + curInputFile + "/" + totInputFile + "]:" + inputFile);
+            System.out.println("Parsing Archive File [" + curInputFile.incrementAndGet() + "/" + totInputFile + "]:" + inputFile);
             File inFile = new File(inputFile);
             String fileName = inFile.getName();
             String outputWarcDir = outputDir + fileName + "//";
@@ -282,9 +495,24 @@ public class WARCIndexerCommand {
                 FileUtils.forceMkdir(dir);
             }
 
+            RecordDelivery delivery = new RecordDelivery(inputFile,
+                    outputWarcDir, solrUrl, slashPages, solrWeb, docs,
+                    batchSize);
+
+            if (pipeline != null) {
+                try {
+                    pipeline.process(inputFile, delivery);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pipeline.shutdown();
+                    throw new IOException("Interrupted while processing " + inputFile, e);
+                }
+                return;
+            }
+
+            WARCIndexer windex = getIndexer();
             ArchiveReader reader = ArchiveReaderFactory.get(inputFile);
             Iterator<ArchiveRecord> ir = reader.iterator();
-            int recordCount = 1;
 
             // Iterate though each record in the WARC file
             while (ir.hasNext()) {
@@ -309,53 +537,73 @@ public class WARCIndexerCommand {
                 Instrument.timeRel("WARCIndexerCommand.main#total",
                                    "WARCIndexerCommand.parseWarcFiles#solrdocCreation", recordStart);
                 if (doc != null) {
-                    final long updateStart = System.nanoTime();
-                    File fileOutput = new File(outputWarcDir + "//" + "FILE_" + recordCount + ".xml");
-
-                    if (!slashPages || (doc.getFieldValue(SolrFields.SOLR_URL_TYPE) != null &&
-                                        doc.getFieldValue(SolrFields.SOLR_URL_TYPE).equals(SolrFields.SOLR_URL_TYPE_SLASHPAGE))) {
-                        // Write XML to file if not posting straight to the server.
-                        if (solrUrl == null) {
-                            writeXMLToFile(doc.toXml(), fileOutput);
-                        } else {
-                            // Post to Solr
-                            try {
-                                docs.add(doc.getSolrDocument());
-                                checkSubmission(solrWeb, docs, batchSize);
-                            } catch (SolrServerException s) {
-                                log.warn("SolrServerException: " + inputFile, s);
-                            } catch (IOException i) {
-                                log.warn("IOException: " + inputFile, i);
-                            }
-                        }
-                        recordCount++;
-                    }
-                    Instrument.timeRel("WARCIndexerCommand.main#total",
-                                       "WARCIndexerCommand.parseWarcFiles#docdelivery", updateStart);
+                    delivery.handle(doc);
                 }
             }
-            curInputFile++;
-            Instrument.timeRel("WARCIndexerCommand.main#total",
-                               "WARCIndexerCommand.parseWarcFiles#fullarcprocess", start);
-            Instrument.log(arcsIndex < args.length-1); // Don't log the last on info to avoid near-duplicate logging
-        }
-
-        try {
-            forceSubmission(solrWeb, docs); // Ensure that all documents are flushed
-        } catch (SolrServerException s) {
-            log.warn("SolrServerException", s);
-        }
-
-        if (!disableCommit) {
-            // Commit the updates:
-            commit(solrWeb);
-        }
+            reader.close();
+		}
+	}
 
-		long endTime = System.currentTimeMillis();
+	/**
+	 * Delivers the records extracted from a single archive file, either as
+	 * XML files in the output directory or as batched Solr submissions.
+	 * Only called from the thread indexing the file, so the batch needs no
+	 * locking.
+	 */
+	private static class RecordDelivery implements RecordPipeline.RecordHandler {
+		private final String inputFile;
+		private final String outputWarcDir;
+		private final String solrUrl;
+		private final boolean slashPages;
+		private final SolrWebServer solrWeb;
+		private final SolrBatch docs;
+		private final int batchSize;
+		private int recordCount = 1;
+
+		RecordDelivery( String inputFile, String outputWarcDir, String solrUrl,
+				boolean slashPages, SolrWebServer solrWeb,
+				SolrBatch docs, int batchSize ) {
+			this.inputFile = inputFile;
+			this.outputWarcDir = outputWarcDir;
+			this.solrUrl = solrUrl;
+			this.slashPages = slashPages;
+			this.solrWeb = solrWeb;
+			this.docs = docs;
+			this.batchSize = batchSize;
+		}
 
-		System.out.println("WARC Indexer Finished in " + ((endTime - startTime) / 1000.0) + " seconds.");
+		@Override
+		public void handle( SolrRecord doc ) throws IOException {
+			final long updateStart = System.nanoTime();
+			File fileOutput = new File(outputWarcDir + "//" + "FILE_" + recordCount + ".xml");
+
+			if (!slashPages || (doc.getFieldValue(SolrFields.SOLR_URL_TYPE) != null &&
+			                    doc.getFieldValue(SolrFields.SOLR_URL_TYPE).equals(SolrFields.SOLR_URL_TYPE_SLASHPAGE))) {
+				// Write XML to file if not posting straight to the server.
+				if (solrUrl == null) {
+					try {
+						writeXMLToFile(doc.toXml(), fileOutput);
+					} catch (TransformerException e) {
+						throw new IOException("Could not write " + fileOutput, e);
+					}
+				} else {
+					// Post to Solr
+					try {
+						docs.add(doc.getSolrDocument());
+						checkSubmission(solrWeb, docs, batchSize);
+					} catch (SolrServerException s) {
+						log.warn("SolrServerException: " + inputFile, s);
+					} catch (IOException i) {
+						log.warn("IOException: " + inputFile, i);
+					}
+				}
+				recordCount++;
+			}
+			Instrument.timeRel("WARCIndexerCommand.main#total",
+			                   "WARCIndexerCommand.parseWarcFiles#docdelivery", updateStart);
+		}
 	}
-	
+
 	private static void commit( SolrWebServer solrWeb) {
 		// Commit any Solr Updates
 		if( solrWeb != null ) {
@@ -372,8 +620,9 @@ public class WARCIndexerCommand {
 	}
 
 	/**
-	 * Checks whether a List of SolrInputDocuments has grown large enough to
-	 * be submitted to a SolrWebServer.
+	 * Checks whether a batch of SolrInputDocuments has grown large enough to
+	 * be submitted to a SolrWebServer, by number or by size. The submission itself may happen in
+	 * the background.
 	 * 
 	 * @param solr
 	 * @param docs
@@ -381,24 +630,26 @@ public class WARCIndexerCommand {
 	 * @throws SolrServerException
 	 * @throws IOException
 	 */
-    private static void checkSubmission( SolrWebServer solr, List<SolrInputDocument> docs, int limit ) throws SolrServerException, IOException {
-   		if( docs.size() > 0 && docs.size() >= limit ) {
+    private static void checkSubmission( SolrWebServer solr, SolrBatch docs, int limit ) throws SolrServerException, IOException {
+   		if( docs.size() > 0 && solr.isBatchFull( docs, limit ) ) {
                final long start = System.nanoTime();
-   			solr.add( docs );
+   			solr.submit( docs );
                Instrument.timeRel("WARCIndexerCommand.parseWarcFiles#docdelivery",
                                   "WARCIndexerCommanc.checkSubmission#solradd", start);
                docs.clear();
    		}
    	}
 
-    private static void forceSubmission( SolrWebServer solr, List<SolrInputDocument> docs) throws SolrServerException, IOException {
+    private static void forceSubmission( SolrWebServer solr, SolrBatch docs) throws SolrServerException, IOException {
    		if(!docs.isEmpty()) {
             final long start = System.nanoTime();
-            solr.add( docs );
+            solr.submit( docs );
             Instrument.timeRel("WARCIndexerCommand.parseWarcFiles#docdelivery",
                                "WARCIndexerCommanc.checkSubmission#solradd", start);
             docs.clear();
         }
+        // Wait for anything still being sent in the background:
+        solr.flush();
    	}
 
 	
@@ -26,6 +26,7 @@ package uk.bl.wa.parsers;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -47,8 +48,11 @@ import org.archive.wayback.util.url.AggressiveUrlCanonicalizer;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
 import org.jsoup.parser.ParseError;
 import org.jsoup.parser.Parser;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 
@@ -67,12 +71,17 @@ public class HtmlFeatureParser extends AbstractParser {
                   MediaType.application("xhtml")
             )));
 
-	// The parser to use, preferring the XML variation as it does not 'fix' the
-	// mark-up.
-	private Parser parser = Parser.xmlParser();
 	// Max errors to returm:
 	private int max_errors;
+	// The errors found by the most recent parse:
+	private volatile List<ParseError> errors = Collections.emptyList();
     private final boolean normaliseLinks;
+    // Which features to extract:
+    private final boolean extractLinks;
+    private final boolean extractPubDate;
+    private final boolean extractFirstParagraph;
+    private final boolean extractElements;
+    private final boolean extractLicences;
 
 	public static final String ORIGINAL_PUB_DATE = "OriginalPublicationDate";
     // Explicit property to get faster link handling as it allows for set with multiple values (same as LINKS?)
@@ -88,6 +97,22 @@ public class HtmlFeatureParser extends AbstractParser {
     public static final String CONF_LINKS_NORMALISE = "warc.index.extract.linked.normalise";
     public static final boolean DEFAULT_LINKS_NORMALISE = false;
 
+    // The features to extract, all of them by default:
+    public static final String CONF_FEATURES = "warc.index.extract.content.html_features";
+    public static final String FEATURE_LINKS = "links";
+    public static final String FEATURE_PUBLICATION_DATE = "publication_date";
+    public static final String FEATURE_FIRST_PARAGRAPH = "first_paragraph";
+    public static final String FEATURE_ELEMENTS_USED = "elements_used";
+    public static final String FEATURE_LICENCE_URLS = "licence_urls";
+    public static final List<String> DEFAULT_FEATURES = Arrays.asList(FEATURE_LINKS, FEATURE_PUBLICATION_DATE,
+            FEATURE_FIRST_PARAGRAPH, FEATURE_ELEMENTS_USED, FEATURE_LICENCE_URLS);
+
+    // Which implementation to use, the JSoup DOM or the streaming one:
+    public static final String CONF_PARSER = "warc.index.extract.content.html_parser";
+    public static final String PARSER_JSOUP = "jsoup";
+    public static final String PARSER_STREAMING = "streaming";
+    public static final String DEFAULT_PARSER = PARSER_JSOUP;
+
 	/**
 	 * 
 	 */
@@ -98,6 +123,14 @@ public class HtmlFeatureParser extends AbstractParser {
            normaliseLinks = conf.hasPath(CONF_LINKS_NORMALISE) ?
                    conf.getBoolean(CONF_LINKS_NORMALISE) :
                    DEFAULT_LINKS_NORMALISE;
+           List<String> features = conf.hasPath(CONF_FEATURES) ?
+                   conf.getStringList(CONF_FEATURES) :
+                   DEFAULT_FEATURES;
+           extractLinks = features.contains(FEATURE_LINKS);
+           extractPubDate = features.contains(FEATURE_PUBLICATION_DATE);
+           extractFirstParagraph = features.contains(FEATURE_FIRST_PARAGRAPH);
+           extractElements = features.contains(FEATURE_ELEMENTS_USED);
+           extractLicences = features.contains(FEATURE_LICENCE_URLS);
    		this.setMaxParseErrors(DEFAULT_MAX_PARSE_ERRORS);
     }
 
@@ -107,7 +140,6 @@ public class HtmlFeatureParser extends AbstractParser {
 	 */
 	public void setMaxParseErrors(int max_errors) {
 		this.max_errors = max_errors;
-		parser.setTrackErrors(max_errors);
 	}
 
 	/**
@@ -120,10 +152,10 @@ public class HtmlFeatureParser extends AbstractParser {
 	
 	/**
 	 * 
-	 * @return
+	 * @return the errors found by the most recent parse.
 	 */
 	public List<ParseError> getParseErrors() {
-		return this.parser.getErrors();
+		return this.errors;
 	}
 
 	/**
@@ -145,7 +177,31 @@ public class HtmlFeatureParser extends AbstractParser {
 		// Pick up the URL:
 		String url = metadata.get( Metadata.RESOURCE_NAME_KEY );
 		
-		// Parse it using JSoup
+		Document doc = parseDocument(stream, url, metadata);
+		if( doc == null ) return;
+        Instrument.timeRel("HTMLAnalyzer.analyze#parser", "HtmlFeatureParser.parse#jsoupparse", start);
+
+        final long nonJsoupStart = System.nanoTime();
+		extractFeatures(doc, metadata);
+        Instrument.timeRel("HTMLAnalyzer.analyze#parser", "HtmlFeatureParser.parse#featureextract", nonJsoupStart);
+	}
+
+	/**
+	 * Parses the page using JSoup, recording the number of errors found. Each
+	 * call gets its own JSoup parser, so a parse that has been abandoned (but
+	 * is still running) cannot interfere with the next one.
+	 * 
+	 * @param stream
+	 * @param url
+	 * @param metadata
+	 * @return the document, or null if it could not be parsed.
+	 * @throws IOException
+	 */
+	public Document parseDocument(InputStream stream, String url, Metadata metadata) throws IOException {
+		// Parse it using JSoup, preferring the XML variation as it does not
+		// 'fix' the mark-up:
+		Parser parser = Parser.xmlParser();
+		parser.setTrackErrors(max_errors);
 		Document doc = null;
 		try {
 			doc = Jsoup.parse(stream, null, url, parser);
@@ -155,97 +211,109 @@ public class HtmlFeatureParser extends AbstractParser {
 		} catch( Exception e ) {
 			log.error("Jsoup parse failed: "+e);
 		} finally {
-			if( doc == null ) return;
+			if( doc == null ) return null;
 		}
-        Instrument.timeRel("HTMLAnalyzer.analyze#parser", "HtmlFeatureParser.parse#jsoupparse", start);
 
-        final long nonJsoupStart = System.nanoTime();
 		// Record the number of errors found:
-		if (parser.getErrors() != null)
-			metadata.set(NUM_PARSE_ERRORS, parser.getErrors().size());
+		if (parser.getErrors() != null) {
+			errors = parser.getErrors();
+			metadata.set(NUM_PARSE_ERRORS, errors.size());
+		}
+		return doc;
+	}
 
-		// Get the links (no image links):
-		Set<String> links = this.extractLinks(doc, false);
-		if( links != null && links.size() > 0 ) {
-			metadata.set(LINK_LIST, links.toArray(new String[links.size()]));
-        }
+	/**
+	 * Gathers the configured features of a parsed document, in a single
+	 * traversal of the DOM.
+	 * 
+	 * @param doc
+	 * @param metadata
+	 */
+	public void extractFeatures(Document doc, Metadata metadata) {
+		FeatureVisitor features = new FeatureVisitor();
+		new NodeTraversor(features).traverse(doc);
 
-		// Get the publication date, from BBC pages:
-		for( Element meta : doc.select("meta[name=OriginalPublicationDate]") ) {
-			metadata.set(ORIGINAL_PUB_DATE, meta.attr("content"));
-			//log.debug(ORIGINAL_PUB_DATE + ": " + meta.attr("content"));
+		// Get the links (no image links):
+		if( features.links.size() > 0 ) {
+			metadata.set(LINK_LIST, features.links.toArray(new String[features.links.size()]));
 		}
-		
-		// Grab the first paragraph with text, and extract the text:
-		for( Element p : doc.select("p") )  {
-			String pt = p.text();
-			if( pt != null ) {
-				pt = pt.trim();
-				if( pt.length() > 0 ) {
-					metadata.set(FIRST_PARAGRAPH, p.text() );
-					//log.debug(FIRST_PARAGRAPH + ": " +p.text() );
-					break;
-				}
-			}
+		// Get the publication date, from BBC pages:
+		if( features.pubDate != null ) {
+			metadata.set(ORIGINAL_PUB_DATE, features.pubDate);
 		}
-		
-		// Grab the list of distinct elements used in the page:
-		Set<String> de = new HashSet<String>();
-		for( Element e : doc.select("*") ) {
-			if( !"#root".equals(e.tag().getName()) )
-				de.add(StringUtils.left(e.tag().getName(), 100));
+		// The first paragraph with text:
+		if( features.firstParagraph != null ) {
+			metadata.set(FIRST_PARAGRAPH, features.firstParagraph);
 		}
-		// For some elements, dig deeper and record attributes too:
-		for (Element e : doc.select("link")) {
-			de.add("link/@rel=" + e.attr("rel"));
+		// The distinct elements used in the page:
+		if( extractElements ) {
+			metadata.set(DISTINCT_ELEMENTS, features.elements.toArray(new String[] {}));
 		}
-		// Store them:
-		metadata.set(DISTINCT_ELEMENTS, de.toArray(new String[] {}));
-		
 		// Licence field, following:
 		// http://www.whatwg.org/specs/web-apps/current-work/multipage/links.html#link-type-license
-		for( Element a : doc.select("a[rel=license]") )  {
-			metadata.add( Metadata.LICENSE_URL, a.attr("href") );
-		}
-		for( Element a : doc.select("link[rel=license]") )  {
-			metadata.add( Metadata.LICENSE_URL, a.attr("href") );
-		}
-		for( Element a : doc.select("area[rel=license]") )  {
-			metadata.add( Metadata.LICENSE_URL, a.attr("href") );
+		for( List<String> licences : features.licences ) {
+			for( String licence : licences ) {
+				metadata.add( Metadata.LICENSE_URL, licence );
+			}
 		}
-        Instrument.timeRel("HTMLAnalyzer.analyze#parser", "HtmlFeatureParser.parse#featureextract", nonJsoupStart);
 	}
-	
 
 	/**
-	 * Use a tolerant parser to extract all of the absolute a href links from a document.
-	 * 
-	 * Does not extract other links, e.g. stylesheets, etc. etc. Image links optional.
-	 * 
-	 * @param input The InputStream
-	 * @param charset The character set, e.g. "UTF-8". Value of "null" attempts to extract encoding from the document and falls-back on UTF-8.
-	 * @param baseUri base URI for the page, for resolving relative links. e.g. "http://www.example.com/"
-	 * @return
-	 * @throws java.io.IOException
+	 * Collects all the features as it walks the document.
 	 */
-	private Set<String> extractLinks( Document doc, boolean includeImgLinks ) throws IOException {
-		Set<String> linkset = new HashSet<String>();
-		
-		// All a with href
-		for( Element link : doc.select("a[href]") ) {
-			linkset.add( normaliseLink(link.attr("abs:href")));
-		}
-		// All images:
-		if( includeImgLinks ) {
-			for( Element link : doc.select("img[src]") ) {
-				linkset.add( normaliseLink(link.attr("abs:src")));
+	private class FeatureVisitor implements NodeVisitor {
+		private final Set<String> links = new HashSet<String>();
+		private String pubDate = null;
+		private String firstParagraph = null;
+		private final Set<String> elements = new HashSet<String>();
+		// Licences from a, link and area elements, in that order:
+		private final List<String> aLicences = new ArrayList<String>();
+		private final List<String> linkLicences = new ArrayList<String>();
+		private final List<String> areaLicences = new ArrayList<String>();
+		@SuppressWarnings("unchecked")
+		private final List<String>[] licences = new List[] { aLicences, linkLicences, areaLicences };
+
+		@Override
+		public void head(Node node, int depth) {
+			if( !(node instanceof Element) )
+				return;
+			Element e = (Element) node;
+			String tag = e.tagName();
+			if( extractElements && !"#root".equals(tag) )
+				elements.add(StringUtils.left(tag, 100));
+			if( "a".equals(tag) ) {
+				// All a with href:
+				if( extractLinks && e.hasAttr("href") )
+					links.add( normaliseLink(e.attr("abs:href")));
+				addLicence(e, aLicences);
+			} else if( "link".equals(tag) ) {
+				// For some elements, dig deeper and record attributes too:
+				if( extractElements )
+					elements.add("link/@rel=" + e.attr("rel"));
+				addLicence(e, linkLicences);
+			} else if( "area".equals(tag) ) {
+				addLicence(e, areaLicences);
+			} else if( "meta".equals(tag) ) {
+				if( extractPubDate && e.hasAttr("name") && ORIGINAL_PUB_DATE.equalsIgnoreCase(e.attr("name")) )
+					pubDate = e.attr("content");
+			} else if( "p".equals(tag) ) {
+				// Grab the first paragraph with text, and extract the text:
+				if( extractFirstParagraph && firstParagraph == null ) {
+					String pt = e.text();
+					if( pt.trim().length() > 0 )
+						firstParagraph = pt;
+				}
 			}
 		}
-		// Example of use: all PNG references...
-		//Elements pngs = doc.select("img[src$=.png]");
 
-		//Element masthead = doc.select("div.masthead").first();
-		return linkset;
+		private void addLicence(Element e, List<String> licences) {
+			if( extractLicences && e.hasAttr("rel") && "license".equalsIgnoreCase(e.attr("rel")) )
+				licences.add(e.attr("href"));
+		}
+
+		@Override
+		public void tail(Node node, int depth) {
+		}
 	}
 
     /**
@@ -258,6 +326,21 @@ public class HtmlFeatureParser extends AbstractParser {
     }
     private final AggressiveUrlCanonicalizer linkNormaliser = new AggressiveUrlCanonicalizer();
 
+    /**
+     * @param conf
+     * @return the feature parser selected by the configuration.
+     */
+    public static AbstractParser forConfig(Config conf) {
+        String impl = conf.hasPath(CONF_PARSER) ? conf.getString(CONF_PARSER) : DEFAULT_PARSER;
+        if (PARSER_STREAMING.equals(impl)) {
+            return new StreamingHtmlFeatureParser(conf);
+        }
+        if (!PARSER_JSOUP.equals(impl)) {
+            log.warn("Unknown HTML parser '" + impl + "', using " + PARSER_JSOUP);
+        }
+        return new HtmlFeatureParser(conf);
+    }
+
     public static Metadata extractMetadata( InputStream in, String url ) {
 		HtmlFeatureParser hfp = new HtmlFeatureParser();
 		Metadata metadata = new Metadata();
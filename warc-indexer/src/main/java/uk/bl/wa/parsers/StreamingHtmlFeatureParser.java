@@ -0,0 +1,512 @@
+package uk.bl.wa.parsers;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringEscapeUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AbstractParser;
+import org.apache.tika.parser.ParseContext;
+import org.archive.wayback.util.url.AggressiveUrlCanonicalizer;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import uk.bl.wa.util.Instrument;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * Extracts the same features as {@link HtmlFeatureParser} (links, distinct
+ * elements, licence URLs, first paragraph and publication date), but by
+ * scanning the tags as they stream past rather than building a DOM.
+ * 
+ * Only the current tag and the first paragraph are held in memory, and both
+ * are capped, so memory use does not grow with the size of the page. The
+ * results can differ slightly from the JSoup version for badly broken
+ * mark-up, and the content of script and style elements is skipped rather
+ * than parsed.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class StreamingHtmlFeatureParser extends AbstractParser {
+
+	/** */
+	private static final long serialVersionUID = -2391856380186203347L;
+
+	private static Log log = LogFactory.getLog(StreamingHtmlFeatureParser.class);
+
+	private static final Set<MediaType> SUPPORTED_TYPES =
+			Collections.unmodifiableSet(new HashSet<MediaType>(Arrays.asList(
+					MediaType.text("html"),
+					MediaType.application("xhtml")
+			)));
+
+	// Longest tag (name plus attributes) that is kept, the rest is skipped:
+	private static final int MAX_TAG_LENGTH = 16 * 1024;
+
+	// Longest first paragraph that is kept:
+	private static final int MAX_PARAGRAPH_LENGTH = 64 * 1024;
+
+	// How far to look for a meta charset declaration:
+	private static final int CHARSET_SNIFF_LENGTH = 4096;
+
+	private static final Pattern META_CHARSET = Pattern.compile(
+			"<meta[^>]+charset\\s*=\\s*[\"']?([-\\w.:]+)", Pattern.CASE_INSENSITIVE);
+
+	private final boolean normaliseLinks;
+	private final boolean extractLinks;
+	private final boolean extractPubDate;
+	private final boolean extractFirstParagraph;
+	private final boolean extractElements;
+	private final boolean extractLicences;
+
+	private final AggressiveUrlCanonicalizer linkNormaliser = new AggressiveUrlCanonicalizer();
+
+	public StreamingHtmlFeatureParser() {
+		this(ConfigFactory.empty());
+	}
+
+	public StreamingHtmlFeatureParser(Config conf) {
+		normaliseLinks = conf.hasPath(HtmlFeatureParser.CONF_LINKS_NORMALISE) ?
+				conf.getBoolean(HtmlFeatureParser.CONF_LINKS_NORMALISE) :
+				HtmlFeatureParser.DEFAULT_LINKS_NORMALISE;
+		List<String> features = conf.hasPath(HtmlFeatureParser.CONF_FEATURES) ?
+				conf.getStringList(HtmlFeatureParser.CONF_FEATURES) :
+				HtmlFeatureParser.DEFAULT_FEATURES;
+		extractLinks = features.contains(HtmlFeatureParser.FEATURE_LINKS);
+		extractPubDate = features.contains(HtmlFeatureParser.FEATURE_PUBLICATION_DATE);
+		extractFirstParagraph = features.contains(HtmlFeatureParser.FEATURE_FIRST_PARAGRAPH);
+		extractElements = features.contains(HtmlFeatureParser.FEATURE_ELEMENTS_USED);
+		extractLicences = features.contains(HtmlFeatureParser.FEATURE_LICENCE_URLS);
+	}
+
+	@Override
+	public Set<MediaType> getSupportedTypes(ParseContext context) {
+		return SUPPORTED_TYPES;
+	}
+
+	@Override
+	public void parse(InputStream stream, ContentHandler handler,
+			Metadata metadata, ParseContext context) throws IOException,
+			SAXException, TikaException {
+		final long start = System.nanoTime();
+		String url = metadata.get(Metadata.RESOURCE_NAME_KEY);
+
+		BufferedInputStream in = new BufferedInputStream(stream);
+		Charset charset = sniffCharset(in);
+		Scanner scanner = new Scanner(new InputStreamReader(in, charset), url);
+		scanner.scan();
+
+		if( scanner.links.size() > 0 ) {
+			metadata.set(HtmlFeatureParser.LINK_LIST, scanner.links.toArray(new String[scanner.links.size()]));
+		}
+		if( scanner.pubDate != null ) {
+			metadata.set(HtmlFeatureParser.ORIGINAL_PUB_DATE, scanner.pubDate);
+		}
+		if( scanner.firstParagraph != null ) {
+			metadata.set(HtmlFeatureParser.FIRST_PARAGRAPH, scanner.firstParagraph);
+		}
+		if( extractElements ) {
+			metadata.set(HtmlFeatureParser.DISTINCT_ELEMENTS, scanner.elements.toArray(new String[] {}));
+		}
+		for( List<String> licences : scanner.licences ) {
+			for( String licence : licences ) {
+				metadata.add(Metadata.LICENSE_URL, licence);
+			}
+		}
+		Instrument.timeRel("HTMLAnalyzer.analyze#parser", "StreamingHtmlFeatureParser.parse#total", start);
+	}
+
+	/**
+	 * Looks for a byte order mark or a meta charset declaration at the start
+	 * of the stream, falling back to UTF-8 like JSoup does.
+	 */
+	private static Charset sniffCharset(BufferedInputStream in) throws IOException {
+		in.mark(CHARSET_SNIFF_LENGTH);
+		byte[] head = new byte[CHARSET_SNIFF_LENGTH];
+		int len = 0;
+		int n;
+		while( len < head.length && (n = in.read(head, len, head.length - len)) != -1 ) {
+			len += n;
+		}
+		in.reset();
+		if( len >= 3 && (head[0] & 0xff) == 0xef && (head[1] & 0xff) == 0xbb && (head[2] & 0xff) == 0xbf ) {
+			in.skip(3);
+			return Charset.forName("UTF-8");
+		}
+		if( len >= 2 && (head[0] & 0xff) == 0xfe && (head[1] & 0xff) == 0xff ) {
+			return Charset.forName("UTF-16");
+		}
+		if( len >= 2 && (head[0] & 0xff) == 0xff && (head[1] & 0xff) == 0xfe ) {
+			return Charset.forName("UTF-16");
+		}
+		Matcher m = META_CHARSET.matcher(new String(head, 0, len, "ISO-8859-1"));
+		if( m.find() ) {
+			try {
+				if( Charset.isSupported(m.group(1)) ) {
+					return Charset.forName(m.group(1));
+				}
+			} catch( IllegalArgumentException e ) {
+				log.debug("Ignoring charset " + m.group(1) + ": " + e);
+			}
+		}
+		return Charset.forName("UTF-8");
+	}
+
+	/**
+	 * Normalises links if the parser has been configured to do so.
+	 */
+	private String normaliseLink(String link) {
+		return normaliseLinks ? linkNormaliser.canonicalize(link) : link;
+	}
+
+	/**
+	 * Resolves a link against the page URL, as JSoup's abs: attributes do.
+	 * 
+	 * @return the absolute URL, or an empty string if it cannot be resolved.
+	 */
+	static String resolve(String baseUri, String relUrl) {
+		URL base;
+		try {
+			try {
+				base = new URL(baseUri);
+			} catch( MalformedURLException e ) {
+				return new URL(relUrl).toExternalForm();
+			}
+			if( relUrl.startsWith("?") )
+				relUrl = base.getPath() + relUrl;
+			return new URL(base, relUrl).toExternalForm();
+		} catch( MalformedURLException e ) {
+			return "";
+		}
+	}
+
+	/**
+	 * Walks through one page, tag by tag, collecting the features.
+	 */
+	private class Scanner {
+		private final Reader reader;
+		private final String url;
+		private final char[] buffer = new char[8192];
+		private int pos = 0;
+		private int limit = 0;
+
+		// The current tag:
+		private final StringBuilder tag = new StringBuilder();
+		private final Map<String, String> attributes = new HashMap<String, String>();
+
+		// The first paragraph, while it is being captured:
+		private int paragraphDepth = 0;
+		private final StringBuilder paragraph = new StringBuilder();
+
+		private final Set<String> links = new HashSet<String>();
+		private String pubDate = null;
+		private String firstParagraph = null;
+		private final Set<String> elements = new HashSet<String>();
+		// Licences from a, link and area elements, in that order:
+		private final List<String> aLicences = new ArrayList<String>();
+		private final List<String> linkLicences = new ArrayList<String>();
+		private final List<String> areaLicences = new ArrayList<String>();
+		@SuppressWarnings("unchecked")
+		private final List<String>[] licences = new List[] { aLicences, linkLicences, areaLicences };
+
+		Scanner(Reader reader, String url) {
+			this.reader = reader;
+			this.url = url;
+		}
+
+		private int read() throws IOException {
+			if( pos == limit ) {
+				limit = reader.read(buffer, 0, buffer.length);
+				pos = 0;
+				if( limit <= 0 ) {
+					limit = 0;
+					return -1;
+				}
+			}
+			return buffer[pos++];
+		}
+
+		/**
+		 * Steps back over the last character read (if it was not the end of
+		 * the stream).
+		 */
+		private void unread() {
+			if( pos > 0 )
+				pos--;
+		}
+
+		void scan() throws IOException {
+			int c;
+			while( (c = read()) != -1 ) {
+				if( c != '<' ) {
+					text((char) c);
+					continue;
+				}
+				int next = read();
+				if( next == -1 ) {
+					text('<');
+				} else if( next == '!' ) {
+					// Comments, doctypes and CDATA sections are all skipped:
+					if( read() == '-' && read() == '-' ) {
+						skipPast("-->");
+					} else {
+						unread();
+						skipPast(">");
+					}
+				} else if( next == '?' ) {
+					skipPast(">");
+				} else if( next == '/' ) {
+					String name = readTag();
+					if( name != null )
+						endTag(name);
+				} else if( Character.isLetter(next) ) {
+					unread();
+					String name = readTag();
+					if( name != null ) {
+						startTag(name);
+						if( "script".equals(name) || "style".equals(name) )
+							skipRawText(name);
+					}
+				} else {
+					text('<');
+					unread();
+				}
+			}
+			finishParagraph();
+		}
+
+		/**
+		 * Reads the rest of a tag, up to the closing '>', and parses the name
+		 * and attributes.
+		 */
+		private String readTag() throws IOException {
+			tag.setLength(0);
+			char quote = 0;
+			int c;
+			while( (c = read()) != -1 ) {
+				if( quote != 0 ) {
+					if( c == quote )
+						quote = 0;
+				} else if( c == '"' || c == '\'' ) {
+					quote = (char) c;
+				} else if( c == '>' ) {
+					break;
+				}
+				if( tag.length() < MAX_TAG_LENGTH )
+					tag.append((char) c);
+			}
+			return parseTag();
+		}
+
+		private String parseTag() {
+			int len = tag.length();
+			int i = 0;
+			while( i < len && isNameChar(tag.charAt(i)) )
+				i++;
+			if( i == 0 )
+				return null;
+			String name = tag.substring(0, i).toLowerCase();
+			attributes.clear();
+			while( i < len ) {
+				// Skip to the next attribute name:
+				while( i < len && !isNameChar(tag.charAt(i)) )
+					i++;
+				int nameStart = i;
+				while( i < len && isNameChar(tag.charAt(i)) )
+					i++;
+				if( i == nameStart )
+					break;
+				String key = tag.substring(nameStart, i).toLowerCase();
+				while( i < len && Character.isWhitespace(tag.charAt(i)) )
+					i++;
+				String value = "";
+				if( i < len && tag.charAt(i) == '=' ) {
+					i++;
+					while( i < len && Character.isWhitespace(tag.charAt(i)) )
+						i++;
+					if( i < len && (tag.charAt(i) == '"' || tag.charAt(i) == '\'') ) {
+						char quote = tag.charAt(i++);
+						int valueStart = i;
+						while( i < len && tag.charAt(i) != quote )
+							i++;
+						value = tag.substring(valueStart, i);
+						i++;
+					} else {
+						int valueStart = i;
+						while( i < len && !Character.isWhitespace(tag.charAt(i)) && tag.charAt(i) != '>' )
+							i++;
+						value = tag.substring(valueStart, i);
+					}
+				}
+				attributes.put(key, StringEscapeUtils.unescapeHtml(value));
+			}
+			return name;
+		}
+
+		private boolean isNameChar(char c) {
+			return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == ':' || c == '.';
+		}
+
+		private void startTag(String name) {
+			if( extractElements )
+				elements.add(StringUtils.left(name, 100));
+			if( "a".equals(name) ) {
+				if( extractLinks && attributes.containsKey("href") )
+					links.add(normaliseLink(resolve(url, attributes.get("href"))));
+				addLicence(aLicences);
+			} else if( "link".equals(name) ) {
+				if( extractElements )
+					elements.add("link/@rel=" + StringUtils.defaultString(attributes.get("rel")));
+				addLicence(linkLicences);
+			} else if( "area".equals(name) ) {
+				addLicence(areaLicences);
+			} else if( "meta".equals(name) ) {
+				if( extractPubDate && HtmlFeatureParser.ORIGINAL_PUB_DATE.equalsIgnoreCase(attributes.get("name")) )
+					pubDate = StringUtils.defaultString(attributes.get("content"));
+			} else if( "p".equals(name) ) {
+				if( extractFirstParagraph && firstParagraph == null && !isSelfClosing() )
+					paragraphDepth++;
+			} else if( "br".equals(name) ) {
+				text(' ');
+			}
+		}
+
+		private boolean isSelfClosing() {
+			return tag.length() > 0 && tag.charAt(tag.length() - 1) == '/';
+		}
+
+		private void addLicence(List<String> licences) {
+			if( extractLicences && "license".equalsIgnoreCase(attributes.get("rel")) )
+				licences.add(StringUtils.defaultString(attributes.get("href")));
+		}
+
+		private void endTag(String name) {
+			if( "p".equals(name) && paragraphDepth > 0 ) {
+				paragraphDepth--;
+				if( paragraphDepth == 0 )
+					finishParagraph();
+			}
+		}
+
+		private void text(char c) {
+			if( paragraphDepth > 0 && paragraph.length() < MAX_PARAGRAPH_LENGTH )
+				paragraph.append(c);
+		}
+
+		/**
+		 * Keeps the paragraph if it has any text, normalising the white space
+		 * as JSoup does.
+		 */
+		private void finishParagraph() {
+			if( paragraph.length() == 0 )
+				return;
+			String text = StringEscapeUtils.unescapeHtml(paragraph.toString());
+			paragraph.setLength(0);
+			StringBuilder normalised = new StringBuilder(text.length());
+			boolean space = false;
+			for( int i = 0; i < text.length(); i++ ) {
+				char c = text.charAt(i);
+				if( Character.isWhitespace(c) || c == '\u00a0' ) {
+					space = true;
+				} else {
+					if( space && normalised.length() > 0 )
+						normalised.append(' ');
+					space = false;
+					normalised.append(c);
+				}
+			}
+			if( normalised.length() > 0 ) {
+				firstParagraph = normalised.toString();
+				paragraphDepth = 0;
+			}
+		}
+
+		/**
+		 * Skips past the given terminator.
+		 */
+		private void skipPast(String end) throws IOException {
+			int matched = 0;
+			int c;
+			while( matched < end.length() && (c = read()) != -1 ) {
+				if( c == end.charAt(matched) ) {
+					matched++;
+				} else {
+					matched = (c == end.charAt(0)) ? 1 : 0;
+				}
+			}
+		}
+
+		/**
+		 * Skips the content of an element that holds raw text, up to and
+		 * including its end tag.
+		 */
+		private void skipRawText(String name) throws IOException {
+			if( isSelfClosing() )
+				return;
+			int c;
+			while( (c = read()) != -1 ) {
+				if( c != '<' )
+					continue;
+				if( (c = read()) != '/' ) {
+					unread();
+					continue;
+				}
+				int i = 0;
+				while( i < name.length() && (c = read()) != -1 && Character.toLowerCase((char) c) == name.charAt(i) )
+					i++;
+				if( i == name.length() ) {
+					skipPast(">");
+					return;
+				}
+				unread();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,395 @@
+package uk.bl.wa.parsers;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.DublinCore;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AbstractParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.html.DefaultHtmlMapper;
+import org.apache.tika.parser.html.HtmlMapper;
+import org.apache.tika.sax.XHTMLContentHandler;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import uk.bl.wa.util.Instrument;
+
+import com.typesafe.config.Config;
+
+/**
+ * Parses a HTML page with JSoup only, and produces both the page features and
+ * what Tika's HtmlParser would: the XHTML events for the text handler, plus
+ * the title, meta tags, language and encoding as metadata.
+ * 
+ * The features come from the same JSoup parse as {@link HtmlFeatureParser},
+ * which uses the XML parser so that the mark-up is not 'fixed'. That parse
+ * cannot be used for the text, as it leaves void elements like &lt;br&gt; open
+ * around whatever follows them, so the text comes from a second pass over the
+ * same bytes with JSoup's HTML parser, decoded with the charset the first one
+ * found. This replaces Tika's own (TagSoup) parse of the page.
+ * 
+ * The events follow Tika's rules, i.e. script and style are dropped, only the
+ * elements the {@link HtmlMapper} considers safe are passed on, and the other
+ * block elements are replaced by newlines. As JSoup detects the charset and
+ * repairs broken mark-up differently from TagSoup, the text can still differ
+ * from Tika's for some pages, e.g. in where the newlines fall.
+ * 
+ * If a {@link Features} holder is set in the {@link ParseContext}, the page
+ * features go there, otherwise they are added to the same metadata. Links are
+ * resolved against the resource name of the features metadata if it has one.
+ * The features are gathered in metadata of their own and only copied over
+ * once the parse is done, and a holder can be closed so that a parse that
+ * was abandoned (e.g. after a timeout) never writes to it.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class UnifiedHtmlParser extends AbstractParser {
+
+	/** */
+	private static final long serialVersionUID = 4407214738916185360L;
+
+	/** Whether TikaExtractor and HTMLAnalyser should share the JSoup parsing */
+	public static final String CONF_ENABLED = "warc.index.extract.content.html_single_parse";
+
+	/** Set in the features metadata once they have been extracted */
+	public static final String FEATURES_EXTRACTED = "Html-Features-Extracted";
+
+	private static final Set<MediaType> SUPPORTED_TYPES = new HashSet<MediaType>(Arrays.asList(
+			MediaType.text("html"),
+			MediaType.application("xhtml+xml")
+	));
+
+	// Block elements that Tika replaces with a newline when they are not safe:
+	private static final Set<String> ENDLINE = new HashSet<String>(Arrays.asList(
+			"p", "h1", "h2", "h3", "h4", "h5", "h6", "div", "ul", "ol", "dl",
+			"pre", "hr", "blockquote", "address", "fieldset", "table", "form",
+			"noscript", "li", "dt", "dd", "noframes", "br", "tr", "select", "option"
+	));
+
+	private final HtmlFeatureParser features;
+
+	/**
+	 * Where to put the page features, if not with the rest of the metadata.
+	 */
+	public static class Features {
+		private final Metadata metadata;
+		private boolean closed = false;
+
+		public Features(Metadata metadata) {
+			this.metadata = metadata;
+		}
+
+		public Metadata getMetadata() {
+			return metadata;
+		}
+
+		/**
+		 * Copies the extracted features into the metadata, unless the holder
+		 * has been closed.
+		 * 
+		 * @param extracted
+		 * @return false if the holder has been closed.
+		 */
+		public synchronized boolean publish(Metadata extracted) {
+			if( closed )
+				return false;
+			copy(extracted, metadata);
+			return true;
+		}
+
+		/**
+		 * Ignores any later {@link #publish(Metadata)}, e.g. from a parse that
+		 * was abandoned but carries on running.
+		 */
+		public synchronized void close() {
+			closed = true;
+		}
+	}
+
+	/**
+	 * @param conf
+	 */
+	public UnifiedHtmlParser(Config conf) {
+		this.features = new HtmlFeatureParser(conf);
+	}
+
+	/**
+	 * @param conf
+	 * @return true if HTML pages should only be parsed by JSoup.
+	 */
+	public static boolean isEnabled(Config conf) {
+		return conf.hasPath(CONF_ENABLED) && conf.getBoolean(CONF_ENABLED);
+	}
+
+	@Override
+	public Set<MediaType> getSupportedTypes(ParseContext context) {
+		return SUPPORTED_TYPES;
+	}
+
+	@Override
+	public void parse(InputStream stream, ContentHandler handler,
+			Metadata metadata, ParseContext context) throws IOException,
+			SAXException, TikaException {
+		final long start = System.nanoTime();
+		Features holder = null;
+		HtmlMapper mapper = DefaultHtmlMapper.INSTANCE;
+		if( context != null ) {
+			holder = context.get(Features.class);
+			mapper = context.get(HtmlMapper.class, mapper);
+		}
+
+		// The features need the URL, even if Tika was not given it:
+		String url = holder == null ? null : holder.getMetadata().get(Metadata.RESOURCE_NAME_KEY);
+		if( url == null )
+			url = metadata.get(Metadata.RESOURCE_NAME_KEY);
+		if( url == null )
+			url = "";
+		// Both parses need the bytes:
+		byte[] bytes = IOUtils.toByteArray(stream);
+		Metadata featureMetadata = new Metadata();
+		Document doc = features.parseDocument(new ByteArrayInputStream(bytes), url, featureMetadata);
+		if( doc == null ) {
+			throw new TikaException("Could not parse HTML from " + url);
+		}
+		Instrument.timeRel("TikaExtractor.extract#parse", "UnifiedHtmlParser.parse#jsoupparse", start);
+
+		final long featureStart = System.nanoTime();
+		features.extractFeatures(doc, featureMetadata);
+		featureMetadata.set(FEATURES_EXTRACTED, "true");
+		Instrument.timeRel("TikaExtractor.extract#parse", "UnifiedHtmlParser.parse#featureextract", featureStart);
+
+		final long textStart = System.nanoTime();
+		// The text, from the HTML parser, but with the same charset:
+		String charset = doc.outputSettings().charset().name();
+		Document html = Jsoup.parse(new ByteArrayInputStream(bytes), charset, url);
+		Instrument.timeRel("TikaExtractor.extract#parse", "UnifiedHtmlParser.parse#htmlparse", textStart);
+
+		// The type and encoding, as Tika would report them:
+		String previous = metadata.get(Metadata.CONTENT_TYPE);
+		if( previous == null || previous.startsWith("text/html") ) {
+			metadata.set(Metadata.CONTENT_TYPE, "text/html; charset=" + charset);
+		}
+		metadata.set(Metadata.CONTENT_ENCODING, charset);
+
+		XHTMLContentHandler xhtml = new XHTMLContentHandler(handler, metadata);
+		xhtml.startDocument();
+		TextVisitor text = new TextVisitor(xhtml, metadata, mapper,
+				html.getElementsByTag("body").isEmpty() && html.getElementsByTag("frameset").isEmpty());
+		new NodeTraversor(text).traverse(html);
+		if( text.exception != null ) {
+			throw text.exception;
+		}
+		xhtml.endDocument();
+		Instrument.timeRel("TikaExtractor.extract#parse", "UnifiedHtmlParser.parse#textextract", textStart);
+
+		// Only now hand over the features:
+		if( holder != null ) {
+			holder.publish(featureMetadata);
+		} else {
+			copy(featureMetadata, metadata);
+		}
+	}
+
+	private static void copy(Metadata from, Metadata to) {
+		for( String name : from.names() ) {
+			to.remove(name);
+			for( String value : from.getValues(name) ) {
+				to.add(name, value);
+			}
+		}
+	}
+
+	/**
+	 * Walks the document, sending the body to the handler and picking up the
+	 * metadata from the head, as Tika's HtmlHandler does with the events from
+	 * its own parser.
+	 */
+	private static class TextVisitor implements NodeVisitor {
+		private final XHTMLContentHandler xhtml;
+		private final Metadata metadata;
+		private final HtmlMapper mapper;
+		// With no body element, everything outside the head is the body:
+		private final boolean implicitBody;
+
+		private int headLevel = 0;
+		private int bodyLevel = 0;
+		private int discardLevel = 0;
+		private int titleLevel = 0;
+		private final StringBuilder title = new StringBuilder();
+
+		// NodeVisitor cannot throw, so the first failure is kept:
+		private SAXException exception = null;
+
+		TextVisitor(XHTMLContentHandler xhtml, Metadata metadata, HtmlMapper mapper, boolean implicitBody) {
+			this.xhtml = xhtml;
+			this.metadata = metadata;
+			this.mapper = mapper;
+			this.implicitBody = implicitBody;
+		}
+
+		@Override
+		public void head(Node node, int depth) {
+			if( exception != null )
+				return;
+			try {
+				if( node instanceof TextNode ) {
+					text(((TextNode) node).getWholeText());
+				} else if( node instanceof Element && !(node instanceof Document) ) {
+					startElement((Element) node);
+				}
+			} catch( SAXException e ) {
+				exception = e;
+			}
+		}
+
+		@Override
+		public void tail(Node node, int depth) {
+			if( exception != null )
+				return;
+			try {
+				if( node instanceof Element && !(node instanceof Document) ) {
+					endElement((Element) node);
+				}
+			} catch( SAXException e ) {
+				exception = e;
+			}
+		}
+
+		private void startElement(Element e) throws SAXException {
+			String name = e.tagName().toUpperCase(Locale.ENGLISH);
+			if( "HTML".equals(name) && e.hasAttr("lang") ) {
+				metadata.set(Metadata.CONTENT_LANGUAGE, e.attr("lang"));
+			}
+			if( "HEAD".equals(name) || headLevel > 0 ) {
+				headLevel++;
+			}
+			if( "TITLE".equals(name) || titleLevel > 0 ) {
+				titleLevel++;
+			}
+			if( "BODY".equals(name) || "FRAMESET".equals(name) || bodyLevel > 0
+					|| (implicitBody && headLevel == 0 && !"HTML".equals(name)) ) {
+				bodyLevel++;
+			}
+			if( discardLevel != 0 || mapper.isDiscardElement(name) ) {
+				discardLevel++;
+			}
+
+			if( bodyLevel == 0 && discardLevel == 0 ) {
+				if( "META".equals(name) && e.hasAttr("content") ) {
+					if( e.hasAttr("http-equiv") ) {
+						addHtmlMetadata(e.attr("http-equiv"), e.attr("content"));
+					} else if( e.hasAttr("name") ) {
+						addHtmlMetadata(e.attr("name"), e.attr("content"));
+					} else if( e.hasAttr("property") ) {
+						metadata.add(e.attr("property"), e.attr("content"));
+					}
+				}
+			}
+
+			if( bodyLevel > 0 && discardLevel == 0 ) {
+				String safe = mapper.mapSafeElement(name);
+				if( safe != null ) {
+					AttributesImpl attributes = new AttributesImpl();
+					for( Attribute a : e.attributes() ) {
+						String attr = mapper.mapSafeAttribute(name, a.getKey());
+						if( attr != null ) {
+							attributes.addAttribute("", attr, attr, "CDATA", a.getValue());
+						}
+					}
+					xhtml.startElement(safe, attributes);
+				}
+			}
+		}
+
+		private void endElement(Element e) throws SAXException {
+			String name = e.tagName().toUpperCase(Locale.ENGLISH);
+			if( bodyLevel > 0 && discardLevel == 0 ) {
+				String safe = mapper.mapSafeElement(name);
+				if( safe != null ) {
+					xhtml.endElement(safe);
+				} else if( ENDLINE.contains(name.toLowerCase(Locale.ENGLISH)) ) {
+					// Replace the other block elements with a newline:
+					xhtml.newline();
+				}
+			}
+
+			if( titleLevel > 0 ) {
+				titleLevel--;
+				if( titleLevel == 0 ) {
+					metadata.set(DublinCore.TITLE, title.toString().trim());
+				}
+			}
+			if( headLevel > 0 ) {
+				headLevel--;
+			}
+			if( bodyLevel > 0 ) {
+				bodyLevel--;
+			}
+			if( discardLevel > 0 ) {
+				discardLevel--;
+			}
+		}
+
+		private void text(String text) throws SAXException {
+			if( titleLevel > 0 && bodyLevel == 0 ) {
+				title.append(text);
+			} else if( bodyLevel > 0 && discardLevel == 0 ) {
+				xhtml.characters(text);
+			} else if( implicitBody && headLevel == 0 && titleLevel == 0 && discardLevel == 0 ) {
+				// Text outside any element, that Tika would put in the body:
+				xhtml.characters(text);
+			}
+		}
+
+		private void addHtmlMetadata(String name, String value) {
+			if( Metadata.CONTENT_TYPE.equalsIgnoreCase(name) ) {
+				// Do not overwrite the actual type:
+				metadata.set("Content-Type-Hint", value);
+			} else {
+				metadata.add(name, value);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.bl.wa.util.Instrument;
+
+import com.typesafe.config.Config;
+
+/**
+ * Decides when a {@link SolrBatch} is big enough to submit, based on its
+ * estimated size in bytes rather than just the number of documents.
+ *
+ * The target size adapts to how Solr is coping (AIMD): it grows by a fixed
+ * step after each quick, successful update, and halves after a slow or
+ * failed one. The current target and the observed throughput are reported
+ * as Instrument gauges.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class AdaptiveBatchSizer {
+	private static Log log = LogFactory.getLog( AdaptiveBatchSizer.class );
+
+	/** Initial target batch size, in bytes */
+	public static final String CONF_BATCH_BYTES = "warc.solr.batch_bytes";
+
+	/** Lower limit for the target, also used as the growth step */
+	public static final String CONF_MIN_BATCH_BYTES = "warc.solr.min_batch_bytes";
+
+	/** Upper limit for the target, e.g. to stay within Solr's request limits */
+	public static final String CONF_MAX_BATCH_BYTES = "warc.solr.max_batch_bytes";
+
+	/** Update requests slower than this (in ms) shrink the target */
+	public static final String CONF_TARGET_LATENCY = "warc.solr.batch_target_latency";
+
+	private final long minBytes;
+	private final long maxBytes;
+	private final long targetLatencyNanos;
+
+	private volatile long targetBytes;
+
+	/**
+	 * @param conf
+	 */
+	public AdaptiveBatchSizer( Config conf ) {
+		this.minBytes = conf.hasPath( CONF_MIN_BATCH_BYTES ) ? conf.getBytes( CONF_MIN_BATCH_BYTES ) : 256 * 1024L;
+		this.maxBytes = conf.hasPath( CONF_MAX_BATCH_BYTES ) ? conf.getBytes( CONF_MAX_BATCH_BYTES ) : 16 * 1024 * 1024L;
+		long initial = conf.hasPath( CONF_BATCH_BYTES ) ? conf.getBytes( CONF_BATCH_BYTES ) : 2 * 1024 * 1024L;
+		long latency = conf.hasPath( CONF_TARGET_LATENCY ) ? conf.getLong( CONF_TARGET_LATENCY ) : 5000L;
+		this.targetLatencyNanos = latency * 1000000L;
+		this.targetBytes = Math.max( minBytes, Math.min( maxBytes, initial ) );
+		Instrument.setGauge( "AdaptiveBatchSizer.targetBytes", targetBytes );
+		log.info( "Batching up to " + targetBytes + " bytes, adapting between " + minBytes + " and " + maxBytes
+				+ " bytes to keep updates under " + latency + "ms" );
+	}
+
+	/**
+	 * @param batch
+	 * @param maxDocs
+	 *            the maximum number of documents in a batch.
+	 * @return true if the batch should be submitted.
+	 */
+	public boolean isFull( SolrBatch batch, int maxDocs ) {
+		return batch.size() >= maxDocs || batch.getBytes() >= targetBytes;
+	}
+
+	/**
+	 * Records a successful update request.
+	 *
+	 * @param docs
+	 * @param bytes
+	 *            the estimated size of the batch.
+	 * @param nanos
+	 *            how long the request took.
+	 */
+	public synchronized void success( int docs, long bytes, long nanos ) {
+		if( nanos > targetLatencyNanos ) {
+			decrease();
+		} else if( bytes >= targetBytes / 2 ) {
+			// Only grow if the batch actually got near the target:
+			targetBytes = Math.min( maxBytes, targetBytes + minBytes );
+		}
+		Instrument.setGauge( "AdaptiveBatchSizer.targetBytes", targetBytes );
+		if( nanos > 0 ) {
+			Instrument.setGauge( "AdaptiveBatchSizer.bytesPerSecond", bytes * 1000000000L / nanos );
+			Instrument.setGauge( "AdaptiveBatchSizer.docsPerSecond", docs * 1000000000L / nanos );
+		}
+	}
+
+	/**
+	 * Records a failed update request.
+	 */
+	public synchronized void failure() {
+		decrease();
+		Instrument.setGauge( "AdaptiveBatchSizer.targetBytes", targetBytes );
+	}
+
+	private void decrease() {
+		targetBytes = Math.max( minBytes, targetBytes / 2 );
+		log.debug( "Reduced target batch size to " + targetBytes + " bytes" );
+	}
+
+	/**
+	 * @return the current target batch size, in bytes.
+	 */
+	public long getTargetBytes() {
+		return targetBytes;
+	}
+
+}
@@ -0,0 +1,398 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrInputDocument;
+
+import uk.bl.wa.util.Instrument;
+
+import com.typesafe.config.Config;
+
+/**
+ * Sends batches of documents to Solr in the background, so the indexing
+ * threads can carry on while Solr is busy.
+ *
+ * The number of batches waiting or in flight is bounded, so submitting blocks
+ * when Solr cannot keep up. Failed batches are retried with exponential
+ * backoff (plus some random jitter), and batches that keep failing are written
+ * to a dead-letter file (if configured) and dropped.
+ *
+ * The batches are counted for each submitting thread, so that a thread can
+ * wait for its own batches to be sent while other threads carry on submitting.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class AsyncSolrSubmitter {
+	private static Log log = LogFactory.getLog( AsyncSolrSubmitter.class );
+
+	/** Whether to submit in the background at all */
+	public static final String CONF_ENABLED = "warc.solr.async.enabled";
+
+	/** Number of update requests in flight at the same time */
+	public static final String CONF_IN_FLIGHT = "warc.solr.num_threads";
+
+	/** Number of batches allowed to wait for an update request */
+	public static final String CONF_QUEUE_SIZE = "warc.solr.async.queue_size";
+
+	/** Number of times a failed batch is retried before it is dropped */
+	public static final String CONF_MAX_RETRIES = "warc.solr.async.max_retries";
+
+	/** Backoff after the first failure, in milliseconds */
+	public static final String CONF_INITIAL_BACKOFF = "warc.solr.async.initial_backoff";
+
+	/** Upper limit on the backoff, in milliseconds */
+	public static final String CONF_MAX_BACKOFF = "warc.solr.async.max_backoff";
+
+	/** File to append dropped batches to, as Solr XML */
+	public static final String CONF_DEAD_LETTER_FILE = "warc.solr.async.dead_letter_file";
+
+	private final SolrServer solrServer;
+	private final int maxRetries;
+	private final long initialBackoff;
+	private final long maxBackoff;
+	private final File deadLetterFile;
+	private final AdaptiveBatchSizer sizer;
+
+	private final ExecutorService senders;
+	private final Semaphore slots;
+	private final Random random = new Random();
+
+	/** Batches not yet sent (or dropped), over all the submitting threads */
+	private final Pending pending = new Pending();
+
+	/** Batches not yet sent (or dropped), for each submitting thread */
+	private final ThreadLocal<Pending> pendingByThread = new ThreadLocal<Pending>() {
+		@Override
+		protected Pending initialValue() {
+			return new Pending();
+		}
+	};
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	/**
+	 * @param solrServer
+	 * @param conf
+	 */
+	public AsyncSolrSubmitter( SolrServer solrServer, Config conf ) {
+		this( solrServer, conf, null );
+	}
+
+	/**
+	 * @param solrServer
+	 * @param conf
+	 * @param sizer
+	 *            informed of the outcome of each update request, may be NULL.
+	 */
+	public AsyncSolrSubmitter( SolrServer solrServer, Config conf, AdaptiveBatchSizer sizer ) {
+		this.solrServer = solrServer;
+		this.sizer = sizer;
+		int inFlight = conf.hasPath( CONF_IN_FLIGHT ) ? conf.getInt( CONF_IN_FLIGHT ) : 1;
+		int queueSize = conf.hasPath( CONF_QUEUE_SIZE ) ? conf.getInt( CONF_QUEUE_SIZE ) : 4;
+		this.maxRetries = conf.hasPath( CONF_MAX_RETRIES ) ? conf.getInt( CONF_MAX_RETRIES ) : 8;
+		this.initialBackoff = conf.hasPath( CONF_INITIAL_BACKOFF ) ? conf.getLong( CONF_INITIAL_BACKOFF ) : 1000L;
+		this.maxBackoff = conf.hasPath( CONF_MAX_BACKOFF ) ? conf.getLong( CONF_MAX_BACKOFF ) : 60000L;
+		this.deadLetterFile = conf.hasPath( CONF_DEAD_LETTER_FILE ) ? new File( conf.getString( CONF_DEAD_LETTER_FILE ) ) : null;
+
+		this.slots = new Semaphore( inFlight + queueSize );
+		final AtomicInteger count = new AtomicInteger();
+		this.senders = Executors.newFixedThreadPool( inFlight, new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread t = new Thread( r, "solr-submitter-" + count.incrementAndGet() );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+		log.info( "Submitting to Solr with " + inFlight + " requests in flight and " + queueSize + " batches queued, retrying "
+				+ maxRetries + " times, dead-letter file: " + deadLetterFile );
+	}
+
+	/**
+	 * @param conf
+	 * @return true if background submission is enabled.
+	 */
+	public static boolean isEnabled( Config conf ) {
+		return !conf.hasPath( CONF_ENABLED ) || conf.getBoolean( CONF_ENABLED );
+	}
+
+	/**
+	 * Queues a copy of the documents for submission, waiting for room in the
+	 * queue if necessary. The caller may clear the list afterwards.
+	 *
+	 * @param docs
+	 * @throws InterruptedException
+	 */
+	public void submit( List<SolrInputDocument> docs ) throws InterruptedException {
+		slots.acquire();
+		send( docs );
+	}
+
+	/**
+	 * Queues a copy of the documents for submission, if there is room in the
+	 * queue within the given time.
+	 *
+	 * @param docs
+	 * @param timeout
+	 * @param unit
+	 * @return false if the documents could not be queued in time.
+	 * @throws InterruptedException
+	 */
+	public boolean submit( List<SolrInputDocument> docs, long timeout, TimeUnit unit ) throws InterruptedException {
+		if( !slots.tryAcquire( timeout, unit ) ) {
+			return false;
+		}
+		send( docs );
+		return true;
+	}
+
+	private void send( List<SolrInputDocument> docs ) {
+		final List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>( docs );
+		final Pending caller = pendingByThread.get();
+		caller.increment();
+		pending.increment();
+		senders.execute( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					add( batch );
+				} finally {
+					slots.release();
+					caller.decrement();
+					pending.decrement();
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Sends a batch, retrying with backoff. Runs on a sender thread.
+	 */
+	private void add( List<SolrInputDocument> batch ) {
+		final long start = System.nanoTime();
+		for( int attempt = 0;; attempt++ ) {
+			final long attemptStart = System.nanoTime();
+			try {
+				solrServer.add( batch );
+				submitted.addAndGet( batch.size() );
+				if( sizer != null ) {
+					sizer.success( batch.size(), SolrBatch.estimateBytes( batch ), System.nanoTime() - attemptStart );
+				}
+				// Only batches that made it are known to Solr:
+				DuplicateLookup.notifySubmitted( batch );
+				Instrument.timeRel( "AsyncSolrSubmitter.add#total", "AsyncSolrSubmitter.add#success", start );
+				return;
+			} catch( Exception e ) {
+				errors.incrementAndGet();
+				if( sizer != null ) {
+					sizer.failure();
+				}
+				if( attempt >= maxRetries ) {
+					log.error( "Submission of " + batch.size() + " docs has repeatedly failed, dropping them: " + e.getMessage(), e );
+					deadLetter( batch );
+					Instrument.timeRel( "AsyncSolrSubmitter.add#total", "AsyncSolrSubmitter.add#dropped", start );
+					return;
+				}
+				long backoff = backoff( attempt );
+				log.warn( "Submission of " + batch.size() + " docs failed (attempt " + ( attempt + 1 ) + "), retrying in "
+						+ backoff + "ms: " + e.getMessage() );
+				try {
+					Thread.sleep( backoff );
+				} catch( InterruptedException i ) {
+					log.warn( "Interrupted while waiting to retry, dropping " + batch.size() + " docs." );
+					deadLetter( batch );
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Exponential backoff, randomised between half and all of the full delay
+	 * so that several clients do not all retry at the same moment.
+	 */
+	private long backoff( int attempt ) {
+		long delay = maxBackoff;
+		if( attempt < 30 ) {
+			delay = Math.min( maxBackoff, initialBackoff << attempt );
+		}
+		synchronized( random ) {
+			return delay / 2 + ( long ) ( random.nextDouble() * ( delay / 2 ) );
+		}
+	}
+
+	private synchronized void deadLetter( List<SolrInputDocument> batch ) {
+		dropped.addAndGet( batch.size() );
+		if( deadLetterFile == null ) {
+			return;
+		}
+		Writer out = null;
+		try {
+			out = new OutputStreamWriter( new FileOutputStream( deadLetterFile, true ), "UTF-8" );
+			out.write( "<add>" );
+			for( SolrInputDocument doc : batch ) {
+				out.write( ClientUtils.toXML( doc ) );
+			}
+			out.write( "</add>\n" );
+		} catch( IOException e ) {
+			log.error( "Could not write " + batch.size() + " docs to " + deadLetterFile, e );
+		} finally {
+			if( out != null ) {
+				try {
+					out.close();
+				} catch( IOException e ) {
+					log.error( "Could not close " + deadLetterFile, e );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until every batch submitted so far by the calling thread has been
+	 * sent (or dropped). Batches from other threads are not waited for.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void flush() throws InterruptedException {
+		pendingByThread.get().await( -1 );
+	}
+
+	/**
+	 * Waits until every batch submitted so far by the calling thread has been
+	 * sent (or dropped), for at most the given time.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return false if there are still batches pending.
+	 * @throws InterruptedException
+	 */
+	public boolean flush( long timeout, TimeUnit unit ) throws InterruptedException {
+		return pendingByThread.get().await( unit.toNanos( timeout ) );
+	}
+
+	/**
+	 * Waits until every batch submitted by any thread has been sent (or
+	 * dropped), e.g. before a commit. This only returns once no other thread
+	 * is submitting.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void flushAll() throws InterruptedException {
+		pending.await( -1 );
+	}
+
+	/**
+	 * Sends any pending batches, and stops the sender threads.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		flushAll();
+		senders.shutdown();
+	}
+
+	/**
+	 * @return the number of documents successfully sent.
+	 */
+	public long getSubmittedCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * @return the number of documents dropped after repeated failures.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of failed update requests (including retries).
+	 */
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	/**
+	 * Counts the batches that have been submitted, but not yet sent (or
+	 * dropped).
+	 */
+	private static class Pending {
+		private int count = 0;
+
+		synchronized void increment() {
+			count++;
+		}
+
+		synchronized void decrement() {
+			if( --count == 0 ) {
+				notifyAll();
+			}
+		}
+
+		/**
+		 * @param timeoutNanos
+		 *            negative to wait for as long as it takes.
+		 * @return false if batches are still pending after the timeout.
+		 */
+		synchronized boolean await( long timeoutNanos ) throws InterruptedException {
+			final long deadline = System.nanoTime() + timeoutNanos;
+			while( count > 0 ) {
+				if( timeoutNanos < 0 ) {
+					wait();
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if( remaining <= 0 ) {
+						return false;
+					}
+					TimeUnit.NANOSECONDS.timedWait( this, remaining );
+				}
+			}
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,274 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+import uk.bl.wa.util.Instrument;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.typesafe.config.Config;
+
+/**
+ * Looks up the crawl dates already known to Solr for records, for
+ * warc.solr.check_solr_for_duplicates.
+ *
+ * Rather than one query per record, the IDs of upcoming records are
+ * registered with {@link #request(String)} as they are read, and are then
+ * resolved in batches by a single query when the first of them is needed.
+ * The results are cached, and the cache is kept up to date with the crawl
+ * dates of the documents we submit ourselves, so records that are seen again
+ * do not need a query at all.
+ *
+ * Batching depends on records being read ahead of their analysis, as in the
+ * multi-threaded {@link uk.bl.wa.indexer.RecordPipeline}. When each record is
+ * analysed as soon as it is read (one indexing thread, or the Hadoop mapper),
+ * there is nothing else pending, so each record not already cached still
+ * needs a query of its own.
+ *
+ * The lookup is shared by all the indexers in the JVM.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class DuplicateLookup {
+	private static Log log = LogFactory.getLog( DuplicateLookup.class );
+
+	/** Maximum number of IDs resolved by a single query */
+	public static final String CONF_BATCH_SIZE = "warc.solr.duplicates.batch_size";
+
+	/** Maximum number of IDs to keep the crawl dates for */
+	public static final String CONF_CACHE_SIZE = "warc.solr.duplicates.cache_size";
+
+	private static DuplicateLookup instance;
+
+	private final SolrWebServer solr;
+
+	private final int batchSize;
+
+	/** Known crawl dates per ID, an empty set meaning none */
+	private final Cache<String, Set<Date>> known;
+
+	/** IDs that will be needed soon, in the order they were requested */
+	private final Set<String> pending = new LinkedHashSet<String>();
+
+	/**
+	 * @param solr
+	 * @param batchSize
+	 * @param cacheSize
+	 */
+	public DuplicateLookup( SolrWebServer solr, int batchSize, long cacheSize ) {
+		this.solr = solr;
+		this.batchSize = batchSize;
+		this.known = CacheBuilder.newBuilder().maximumSize( cacheSize ).build();
+	}
+
+	/**
+	 * @param conf
+	 *            used to set up the shared lookup, if this is the first call.
+	 * @return the shared lookup.
+	 */
+	public static synchronized DuplicateLookup getInstance( Config conf ) {
+		if( instance == null ) {
+			int batchSize = conf.hasPath( CONF_BATCH_SIZE ) ? conf.getInt( CONF_BATCH_SIZE ) : 50;
+			long cacheSize = conf.hasPath( CONF_CACHE_SIZE ) ? conf.getLong( CONF_CACHE_SIZE ) : 100000;
+			log.info( "Looking up duplicates in batches of up to " + batchSize + ", caching " + cacheSize + " IDs." );
+			instance = new DuplicateLookup( new SolrWebServer( conf ), batchSize, cacheSize );
+		}
+		return instance;
+	}
+
+	/**
+	 * Registers an ID that will be looked up soon, so it can be resolved
+	 * along with the others.
+	 *
+	 * @param id
+	 */
+	public void request( String id ) {
+		if( known.getIfPresent( id ) != null ) {
+			return;
+		}
+		synchronized( pending ) {
+			pending.add( id );
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return the crawl dates already known for the ID (perhaps none).
+	 */
+	public Set<Date> getCrawlDates( String id ) {
+		Set<Date> dates = known.getIfPresent( id );
+		if( dates != null ) {
+			Instrument.timeRel( "DuplicateLookup.getCrawlDates#total", "DuplicateLookup.getCrawlDates#cached", System.nanoTime() );
+			return dates;
+		}
+		// One lookup at a time, as the others are likely to want the same batch:
+		synchronized( this ) {
+			dates = known.getIfPresent( id );
+			if( dates == null ) {
+				lookup( nextBatch( id ) );
+				dates = known.getIfPresent( id );
+			}
+		}
+		return dates == null ? Collections.<Date> emptySet() : dates;
+	}
+
+	/**
+	 * @return the requested ID, plus as many of the other pending IDs as
+	 *         will fit in a batch.
+	 */
+	private List<String> nextBatch( String id ) {
+		List<String> batch = new ArrayList<String>( batchSize );
+		batch.add( id );
+		synchronized( pending ) {
+			pending.remove( id );
+			Iterator<String> ids = pending.iterator();
+			while( batch.size() < batchSize && ids.hasNext() ) {
+				batch.add( ids.next() );
+				ids.remove();
+			}
+		}
+		return batch;
+	}
+
+	private void lookup( List<String> ids ) {
+		final long start = System.nanoTime();
+		StringBuilder q = new StringBuilder( "id:(" );
+		for( int i = 0; i < ids.size(); i++ ) {
+			if( i > 0 ) {
+				q.append( " OR " );
+			}
+			q.append( '"' ).append( ids.get( i ).replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) ).append( '"' );
+		}
+		q.append( ")" );
+		SolrQuery query = new SolrQuery( q.toString() );
+		query.setFields( SolrFields.ID, SolrFields.CRAWL_DATES );
+		query.setRows( ids.size() );
+		try {
+			QueryResponse results = solr.getSolrServer().query( query, SolrRequest.METHOD.POST );
+			// Anything not found has no known crawl dates:
+			for( String id : ids ) {
+				known.put( id, Collections.<Date> emptySet() );
+			}
+			for( SolrDocument doc : results.getResults() ) {
+				Set<Date> dates = new HashSet<Date>();
+				Collection<Object> values = doc.getFieldValues( SolrFields.CRAWL_DATES );
+				if( values != null ) {
+					for( Object value : values ) {
+						dates.add( ( Date ) value );
+					}
+				}
+				known.put( ( String ) doc.getFieldValue( SolrFields.ID ), Collections.unmodifiableSet( dates ) );
+			}
+		} catch( Exception e ) {
+			// Carry on as if nothing is known, as the old per-record check did:
+			log.warn( "Duplicate lookup of " + ids.size() + " IDs failed: " + e.getMessage() );
+		}
+		Instrument.timeRel( "DuplicateLookup.getCrawlDates#total", "DuplicateLookup.getCrawlDates#query", start );
+	}
+
+	/**
+	 * Adds the crawl dates of documents that have been sent to Solr to the
+	 * cache, so later copies are recognised without asking Solr (which may
+	 * not have committed them yet). Documents that failed to be sent must not
+	 * be passed in, or their crawl dates would never be indexed.
+	 *
+	 * @param docs
+	 */
+	public void submitted( List<SolrInputDocument> docs ) {
+		SimpleDateFormat format = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss'Z'" );
+		format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+		for( SolrInputDocument doc : docs ) {
+			Object id = doc.getFieldValue( SolrFields.ID );
+			SolrInputField field = doc.getField( SolrFields.CRAWL_DATES );
+			if( id == null || field == null ) {
+				continue;
+			}
+			synchronized( this ) {
+				// Only extend what is known, as otherwise Solr may know of other dates:
+				Set<Date> dates = known.getIfPresent( id.toString() );
+				if( dates == null ) {
+					continue;
+				}
+				Set<Date> updated = new HashSet<Date>( dates );
+				for( Object value : field ) {
+					// Usually an atomic update, i.e. { "add" : date }:
+					if( value instanceof Map ) {
+						value = ( ( Map<?, ?> ) value ).get( "add" );
+					}
+					if( value instanceof Date ) {
+						updated.add( ( Date ) value );
+					} else if( value != null ) {
+						try {
+							updated.add( format.parse( value.toString() ) );
+						} catch( ParseException e ) {
+							log.debug( "Could not parse crawl date " + value );
+						}
+					}
+				}
+				known.put( id.toString(), Collections.unmodifiableSet( updated ) );
+			}
+		}
+	}
+
+	/**
+	 * Passes documents that have been sent to Solr on to the shared lookup,
+	 * if there is one.
+	 *
+	 * @param docs
+	 */
+	public static void notifySubmitted( List<SolrInputDocument> docs ) {
+		DuplicateLookup lookup;
+		synchronized( DuplicateLookup.class ) {
+			lookup = instance;
+		}
+		if( lookup != null ) {
+			lookup.submitted( docs );
+		}
+	}
+
+}
@@ -0,0 +1,325 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.bl.wa.util.Instrument;
+
+import com.typesafe.config.Config;
+
+/**
+ * Tracks how long parsing takes for each MIME type, so that each type can be
+ * given its own parse timeout rather than the single global one, and stops
+ * parsing types that keep timing out.
+ *
+ * Once enough parses of a type have been seen, its budget is a multiple of
+ * the observed 99th percentile, within the configured limits. If a type times
+ * out too often within a time window, its circuit breaker trips, and parses
+ * of that type are skipped until a cool-down has passed. A single trial parse
+ * is then let through, which closes the breaker again if it completes in time.
+ *
+ * Latencies are recorded as Instrument trackers, and the counts of timeouts,
+ * trips and skipped parses as Instrument gauges. The state is shared by all
+ * the extractors, see {@link #getInstance(Config)}.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class ParseBudgets {
+	private static Log log = LogFactory.getLog( ParseBudgets.class );
+
+	/** Whether to adapt the parse timeout and skip failing types at all */
+	public static final String CONF_ENABLED = "warc.index.tika.budgets.enabled";
+
+	/** Number of parses of a type needed before its budget is adapted */
+	public static final String CONF_MIN_SAMPLES = "warc.index.tika.budgets.min_samples";
+
+	/** The budget is this multiple of the 99th percentile parse time */
+	public static final String CONF_MULTIPLIER = "warc.index.tika.budgets.p99_multiplier";
+
+	/** Lower limit for an adapted budget, in milliseconds */
+	public static final String CONF_MIN_TIMEOUT = "warc.index.tika.budgets.min_timeout";
+
+	/** Number of timeouts within the window that trips the breaker for a type */
+	public static final String CONF_TRIP_TIMEOUTS = "warc.index.tika.budgets.breaker.timeouts";
+
+	/** The window for counting timeouts, in milliseconds */
+	public static final String CONF_WINDOW = "warc.index.tika.budgets.breaker.window";
+
+	/** How long a tripped type is skipped for, in milliseconds */
+	public static final String CONF_COOLDOWN = "warc.index.tika.budgets.breaker.cooldown";
+
+	/** Parent tracker for the per-type parse times */
+	private static final String PARENT = "TikaExtractor.extract#parse";
+
+	private static ParseBudgets instance;
+
+	private final long minSamples;
+	private final double multiplier;
+	private final long minTimeout;
+	private final int tripTimeouts;
+	private final long windowNanos;
+	private final long cooldownNanos;
+
+	private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong trips = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	/**
+	 * @param conf
+	 */
+	public ParseBudgets( Config conf ) {
+		this.minSamples = conf.hasPath( CONF_MIN_SAMPLES ) ? conf.getLong( CONF_MIN_SAMPLES ) : 100L;
+		this.multiplier = conf.hasPath( CONF_MULTIPLIER ) ? conf.getDouble( CONF_MULTIPLIER ) : 4.0;
+		this.minTimeout = conf.hasPath( CONF_MIN_TIMEOUT ) ? conf.getLong( CONF_MIN_TIMEOUT ) : 10000L;
+		this.tripTimeouts = conf.hasPath( CONF_TRIP_TIMEOUTS ) ? conf.getInt( CONF_TRIP_TIMEOUTS ) : 5;
+		long window = conf.hasPath( CONF_WINDOW ) ? conf.getLong( CONF_WINDOW ) : 3600000L;
+		long cooldown = conf.hasPath( CONF_COOLDOWN ) ? conf.getLong( CONF_COOLDOWN ) : 600000L;
+		this.windowNanos = window * 1000000L;
+		this.cooldownNanos = cooldown * 1000000L;
+		log.info( "Adapting parse timeouts to " + multiplier + " x p99 (at least " + minTimeout + "ms) after " + minSamples
+				+ " parses, skipping types with " + tripTimeouts + " timeouts within " + window + "ms for " + cooldown + "ms" );
+	}
+
+	/**
+	 * @param conf
+	 * @return true if per-type budgets have been enabled, as they are off
+	 *         unless asked for.
+	 */
+	public static boolean isEnabled( Config conf ) {
+		return conf.hasPath( CONF_ENABLED ) && conf.getBoolean( CONF_ENABLED );
+	}
+
+	/**
+	 * @param conf
+	 *            used to configure the shared instance, if this is the first
+	 *            call.
+	 * @return the shared instance, so that all the extractors learn from each
+	 *         other.
+	 */
+	public static synchronized ParseBudgets getInstance( Config conf ) {
+		if( instance == null ) {
+			instance = new ParseBudgets( conf );
+		}
+		return instance;
+	}
+
+	/**
+	 * @param mime
+	 *            e.g. 'text/html; charset=UTF-8'
+	 * @return the type without parameters, e.g. 'text/html'
+	 */
+	public static String baseType( String mime ) {
+		int semi = mime.indexOf( ';' );
+		if( semi != -1 ) {
+			mime = mime.substring( 0, semi );
+		}
+		return mime.trim().toLowerCase();
+	}
+
+	private static String trackerId( String type ) {
+		return "TikaExtractor.parse#" + type;
+	}
+
+	/**
+	 * @param type
+	 * @param maxTimeout
+	 *            the global parse timeout, in milliseconds, which is also the
+	 *            upper limit.
+	 * @return the parse timeout for the type, in milliseconds.
+	 */
+	public long getBudget( String type, long maxTimeout ) {
+		Instrument.Stats stats = Instrument.getTracker( trackerId( type ) );
+		if( stats == null || stats.getCount() < minSamples ) {
+			return maxTimeout;
+		}
+		long budget = ( long ) ( stats.getPercentile( 99.0 ) / 1000000L * multiplier );
+		return Math.max( Math.min( minTimeout, maxTimeout ), Math.min( maxTimeout, budget ) );
+	}
+
+	/**
+	 * @param type
+	 * @return false if parsing of the type should be skipped, as its breaker
+	 *         has tripped.
+	 */
+	public boolean allow( String type ) {
+		Breaker breaker = breakers.get( type );
+		if( breaker == null || breaker.allow() ) {
+			return true;
+		}
+		Instrument.setGauge( "ParseBudgets.skipped", skipped.incrementAndGet() );
+		return false;
+	}
+
+	/**
+	 * Records a parse that finished (successfully or not) within its budget.
+	 *
+	 * @param type
+	 * @param nanos
+	 */
+	public void completed( String type, long nanos ) {
+		Instrument.time( PARENT, trackerId( type ), nanos );
+		Breaker breaker = breakers.get( type );
+		if( breaker != null ) {
+			breaker.completed();
+		}
+	}
+
+	/**
+	 * Records a parse that was abandoned because it ran out of time.
+	 *
+	 * @param type
+	 * @param nanos
+	 */
+	public void timedOut( String type, long nanos ) {
+		// Counts towards the percentiles too, so the budget is not shrunk
+		// below what the slow parses need:
+		Instrument.time( PARENT, trackerId( type ), nanos );
+		Instrument.setGauge( "ParseBudgets.timeouts", timeouts.incrementAndGet() );
+		Breaker breaker = breakers.get( type );
+		if( breaker == null ) {
+			Breaker existing = breakers.putIfAbsent( type, breaker = new Breaker() );
+			if( existing != null ) {
+				breaker = existing;
+			}
+		}
+		if( breaker.timedOut() ) {
+			Instrument.setGauge( "ParseBudgets.trips", trips.incrementAndGet() );
+			log.warn( "Skipping parsing of " + type + " for " + cooldownNanos / 1000000L + "ms, after " + tripTimeouts
+					+ " timeouts." );
+		}
+	}
+
+	/**
+	 * Records a parse that ended without telling whether the type is still
+	 * slow, e.g. because it was skipped, refused a thread or interrupted. If
+	 * it was the trial parse of a tripped breaker, another one is let through
+	 * by the next call to {@link #allow(String)}.
+	 *
+	 * @param type
+	 */
+	public void aborted( String type ) {
+		Breaker breaker = breakers.get( type );
+		if( breaker != null ) {
+			breaker.aborted();
+		}
+	}
+
+	/**
+	 * @return the number of parses skipped because a breaker had tripped.
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return the number of times a breaker has tripped.
+	 */
+	public long getTripCount() {
+		return trips.get();
+	}
+
+	/**
+	 * The circuit breaker for a single type.
+	 */
+	private class Breaker {
+		/** When the recent timeouts happened */
+		private final LinkedList<Long> recent = new LinkedList<Long>();
+
+		/** Until when parses are skipped, if tripped */
+		private long openUntil;
+
+		private boolean open = false;
+
+		/** Whether a trial parse is running, after the cool-down */
+		private boolean trial = false;
+
+		/** The thread running the trial parse */
+		private Thread trialThread;
+
+		synchronized boolean allow() {
+			if( !open ) {
+				return true;
+			}
+			if( trial || System.nanoTime() - openUntil < 0 ) {
+				return false;
+			}
+			// Let a single parse through, to see if things have improved:
+			trial = true;
+			trialThread = Thread.currentThread();
+			return true;
+		}
+
+		synchronized void aborted() {
+			// Only the thread running the trial can give it up:
+			if( open && trial && trialThread == Thread.currentThread() ) {
+				trial = false;
+				trialThread = null;
+			}
+		}
+
+		synchronized void completed() {
+			if( open && trial ) {
+				open = false;
+				trial = false;
+				trialThread = null;
+				recent.clear();
+			}
+		}
+
+		/**
+		 * @return true if this timeout tripped the breaker.
+		 */
+		synchronized boolean timedOut() {
+			long now = System.nanoTime();
+			if( open ) {
+				// The trial failed, so back off again:
+				trial = false;
+				trialThread = null;
+				openUntil = now + cooldownNanos;
+				return false;
+			}
+			recent.add( now );
+			while( now - recent.getFirst() > windowNanos ) {
+				recent.removeFirst();
+			}
+			if( recent.size() < tripTimeouts ) {
+				return false;
+			}
+			open = true;
+			openUntil = now + cooldownNanos;
+			recent.clear();
+			return true;
+		}
+	}
+
+}
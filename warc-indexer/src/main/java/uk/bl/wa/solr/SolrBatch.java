@@ -0,0 +1,124 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+/**
+ * A batch of documents waiting to be submitted to Solr, which keeps track of
+ * (roughly) how big the batch will be once serialised.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SolrBatch {
+
+	/** Rough per-field/per-value overhead of the update request format */
+	private static final int FIELD_OVERHEAD = 32;
+	private static final int VALUE_OVERHEAD = 16;
+
+	private final List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+
+	private long bytes = 0;
+
+	/**
+	 * @param doc
+	 */
+	public void add( SolrInputDocument doc ) {
+		docs.add( doc );
+		bytes += estimateBytes( doc );
+	}
+
+	/**
+	 * @return the documents in the batch.
+	 */
+	public List<SolrInputDocument> getDocuments() {
+		return docs;
+	}
+
+	/**
+	 * @return the number of documents in the batch.
+	 */
+	public int size() {
+		return docs.size();
+	}
+
+	/**
+	 * @return true if there are no documents in the batch.
+	 */
+	public boolean isEmpty() {
+		return docs.isEmpty();
+	}
+
+	/**
+	 * @return the estimated serialised size of the batch.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Empties the batch.
+	 */
+	public void clear() {
+		docs.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Estimates the serialised size of a document, from the lengths of its
+	 * field names and values.
+	 *
+	 * @param doc
+	 * @return
+	 */
+	public static long estimateBytes( SolrInputDocument doc ) {
+		long bytes = 0;
+		for( SolrInputField field : doc ) {
+			bytes += FIELD_OVERHEAD + field.getName().length();
+			for( Object value : field ) {
+				if( value != null ) {
+					bytes += VALUE_OVERHEAD + value.toString().length();
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param docs
+	 * @return the estimated serialised size of all the documents.
+	 */
+	public static long estimateBytes( List<SolrInputDocument> docs ) {
+		long bytes = 0;
+		for( SolrInputDocument doc : docs ) {
+			bytes += estimateBytes( doc );
+		}
+		return bytes;
+	}
+
+}
@@ -28,16 +28,8 @@ package uk.bl.wa.solr;
  */
 
 import java.io.Serializable;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.CharacterCodingException;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CodingErrorAction;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
@@ -83,50 +75,102 @@ public class SolrRecord implements Serializable {
 	private String removeControlCharacters( String value ) {
         final long start = System.nanoTime();
 		try {
-            // Avoid re-compiling the regexps in each call (just a small speed-up, but a simple one)
-            return CNTRL_PATTERN.matcher(
-                    SPACE_PATTERN.matcher(sanitiseUTF8(value.trim())).replaceAll(" ")
-            ).replaceAll("");
-//            return sanitiseUTF8(value.trim().replaceAll("\\p{Space}", " ")
-//         					.replaceAll("\\p{Cntrl}", ""));
-		} catch (CharacterCodingException e) {
-			return "";
+            return sanitise(value);
 		} finally {
             Instrument.timeRel("SolrRecord.removeControlCharacters#total", start);
         }
 	}
-    private static final Pattern SPACE_PATTERN = Pattern.compile("\\p{Space}");
-    private static final Pattern CNTRL_PATTERN = Pattern.compile("\\p{Cntrl}");
+
+	/** Largest buffer to hold on to between calls (in chars) */
+	private static final int MAX_BUFFER_LEN = 1024 * 1024;
+
+	/** A re-usable output buffer per thread, as the extracted text can be big */
+	private static final ThreadLocal<char[]> buffers = new ThreadLocal<char[]>();
 
 	/**
-	 * Aim to prevent "Invalid UTF-8 character 0xfffe" slipping into the text
-	 * payload.
+	 * Trims the value, maps whitespace to plain spaces, drops any other control
+	 * characters, and replaces unpaired surrogates (which cannot be encoded as
+	 * UTF-8, e.g. "Invalid UTF-8 character 0xfffe" errors from Solr) with '?'.
 	 * 
-	 * The encodes and decodes a String that may not be UTF-8 compliant as
-	 * UTF-8. Any dodgy characters are replaced.
+	 * This is done in a single scan, and the original String is returned if
+	 * nothing needs to change. It gives the same results as the earlier
+	 * approach of encoding to UTF-8 and back, and then running a
+	 * replaceAll("\\p{Space}", " ") and replaceAll("\\p{Cntrl}", "").
 	 * 
 	 * @param value
 	 * @return
-	 * @throws CharacterCodingException
 	 */
-    // It would be nice to re-use the encoder & decoder, but they are not Thread-safe
-	private CharSequence sanitiseUTF8(String value) throws CharacterCodingException {
-        final long start = System.nanoTime();
-        try  {
-            // Take a string, map it to bytes as UTF-8:
-            CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
-            encoder.onMalformedInput(CodingErrorAction.REPLACE);
-            encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
-            ByteBuffer bytes = encoder.encode(CharBuffer.wrap(value));
-            // Now decode back again:
-            CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
-            decoder.onMalformedInput(CodingErrorAction.REPLACE);
-            decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
-            // No need to do toString as the CharBuffer can be used directly by the matcher in removeControlCharacters
-            return decoder.decode(bytes);
-        } finally {
-            Instrument.timeRel("SolrRecord.removeControlCharacters#total", "SolrRecord.sanitiseUTF8", start);
-        }
+	static String sanitise(String value) {
+		// Same as String.trim():
+		int begin = 0;
+		int end = value.length();
+		while (begin < end && value.charAt(begin) <= ' ') {
+			begin++;
+		}
+		while (end > begin && value.charAt(end - 1) <= ' ') {
+			end--;
+		}
+
+		// Look for the first character that needs to change:
+		int i = begin;
+		while (i < end) {
+			char c = value.charAt(i);
+			if (c < ' ' || c == 0x7f) {
+				break;
+			}
+			if (isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < end
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					i += 2;
+					continue;
+				}
+				break;
+			}
+			i++;
+		}
+		if (i == end) {
+			if (begin == 0 && end == value.length()) {
+				return value;
+			}
+			return value.substring(begin, end);
+		}
+
+		// Copy over the clean prefix, and fix up the rest:
+		char[] out = buffers.get();
+		if (out == null || out.length < end - begin) {
+			out = new char[end - begin];
+			if (out.length <= MAX_BUFFER_LEN) {
+				buffers.set(out);
+			}
+		}
+		value.getChars(begin, i, out, 0);
+		int len = i - begin;
+		while (i < end) {
+			char c = value.charAt(i);
+			if (c < ' ' || c == 0x7f) {
+				if (c == '\t' || c == '\n' || c == 0x0b || c == '\f'
+						|| c == '\r') {
+					out[len++] = ' ';
+				}
+			} else if (isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < end
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					out[len++] = c;
+					out[len++] = value.charAt(++i);
+				} else {
+					out[len++] = '?';
+				}
+			} else {
+				out[len++] = c;
+			}
+			i++;
+		}
+		return new String(out, 0, len);
+	}
+
+	// Character.isSurrogate() is not available in Java 6:
+	private static boolean isSurrogate(char c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
 	}
 
 
@@ -51,6 +51,12 @@ public class SolrWebServer {
 	private static Log log = LogFactory.getLog(SolrWebServer.class);
 
 	private SolrServer solrServer;
+
+	private Config conf;
+
+	private AsyncSolrSubmitter submitter;
+
+	private AdaptiveBatchSizer sizer;
 	
 	public static final String CONF_ZOOKEEPERS = "warc.solr.zookeepers";
 
@@ -68,6 +74,8 @@ public class SolrWebServer {
 	 * Initializes the Solr connection
 	 */
 	public SolrWebServer(Config conf) {
+		this.conf = conf;
+		this.sizer = new AdaptiveBatchSizer(conf);
 
 		try {
 			if( conf.hasPath(CONF_HTTP_SERVER)) {
@@ -117,7 +125,122 @@ public class SolrWebServer {
 		 * for (SolrInputDocument doc : docs) { log.info("DOC:" +
 		 * doc.toString()); solrServer.add(doc); } return null;
 		 */
-		return solrServer.add(docs);
+		final long start = System.nanoTime();
+		try {
+			UpdateResponse response = solrServer.add(docs);
+			sizer.success(docs.size(), SolrBatch.estimateBytes(docs),
+					System.nanoTime() - start);
+			// Only now are the crawl dates known to Solr:
+			DuplicateLookup.notifySubmitted(docs);
+			return response;
+		} catch (SolrServerException e) {
+			sizer.failure();
+			throw e;
+		} catch (IOException e) {
+			sizer.failure();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks whether a batch is large enough to be submitted, based on its
+	 * estimated size in bytes, which adapts to how Solr is coping.
+	 * 
+	 * @param batch
+	 * @param maxDocs
+	 *            the maximum number of docs in a batch.
+	 * @return
+	 */
+	public boolean isBatchFull(SolrBatch batch, int maxDocs) {
+		return sizer.isFull(batch, maxDocs);
+	}
+
+	/**
+	 * Submit a batch of docs, see {@link #submit(List)}.
+	 * 
+	 * @param batch
+	 * @throws SolrServerException
+	 * @throws IOException
+	 */
+	public void submit(SolrBatch batch) throws SolrServerException,
+			IOException {
+		submit(batch.getDocuments());
+	}
+
+	/**
+	 * Submit a List of docs in the background, if enabled, or else post them
+	 * straight away. The caller may re-use the List afterwards.
+	 * 
+	 * @param docs
+	 * @throws SolrServerException
+	 * @throws IOException
+	 */
+	public void submit(List<SolrInputDocument> docs)
+			throws SolrServerException, IOException {
+		if (!AsyncSolrSubmitter.isEnabled(conf)) {
+			add(docs);
+			return;
+		}
+		try {
+			getSubmitter().submit(docs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while submitting docs", e);
+		}
+	}
+
+	/**
+	 * Wait for any docs submitted in the background by the calling thread to
+	 * be sent, while other threads carry on submitting.
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		flush(false);
+	}
+
+	/**
+	 * @param all
+	 *            whether to wait for the docs submitted by every thread,
+	 *            rather than just the calling one.
+	 * @throws IOException
+	 */
+	private void flush(boolean all) throws IOException {
+		AsyncSolrSubmitter current;
+		synchronized (this) {
+			current = submitter;
+		}
+		if (current == null) {
+			return;
+		}
+		try {
+			if (all) {
+				current.flushAll();
+			} else {
+				current.flush();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while flushing docs", e);
+		}
+	}
+
+	/**
+	 * @return the number of docs submitted in the background that could not
+	 *         be sent, even after retrying.
+	 */
+	public synchronized long getDroppedCount() {
+		if (submitter == null) {
+			return 0;
+		}
+		return submitter.getDroppedCount();
+	}
+
+	private synchronized AsyncSolrSubmitter getSubmitter() {
+		if (submitter == null) {
+			submitter = new AsyncSolrSubmitter(solrServer, conf, sizer);
+		}
+		return submitter;
 	}
 
 	/**
@@ -141,6 +264,7 @@ public class SolrWebServer {
 	 */
 	public void commit() throws SolrServerException, IOException {
 
+		flush(true);
 		solrServer.commit();
 
 	}
@@ -162,6 +286,11 @@ public class SolrWebServer {
 	 * Overrides the generic destroy method. Closes all Solrj connections.
 	 */
 	public void destroy() {
+		try {
+			flush();
+		} catch (IOException e) {
+			log.warn("Could not flush pending docs: " + e.getMessage());
+		}
 		solrServer = null;
 	}
 }
@@ -28,10 +28,12 @@ import java.io.FilterWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
-import java.io.StringWriter;
 import java.io.Writer;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.commons.lang.StringUtils;
@@ -45,10 +47,13 @@ import org.apache.tika.io.CloseShieldInputStream;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.DublinCore;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaTypeRegistry;
+import org.apache.tika.parser.CompositeParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.parser.html.BoilerpipeContentHandler;
 import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.SecureContentHandler;
 import org.apache.tika.sax.WriteOutContentHandler;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -58,10 +63,14 @@ import org.restlet.data.MediaType;
 import org.xml.sax.ContentHandler;
 
 import uk.bl.wa.extract.Times;
+import uk.bl.wa.parsers.HtmlFeatureParser;
+import uk.bl.wa.parsers.UnifiedHtmlParser;
 
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import uk.bl.wa.util.Instrument;
+import uk.bl.wa.util.TextBuffer;
+import uk.bl.wa.util.TimeoutService;
 
 
 /**
@@ -95,12 +104,27 @@ mime_exclude = x-tar,x-gzip,bz,lz,compress,zip,javascript,css,octet-stream,image
 	/** Maximum number of characters of text to pull out of any given resource: */
 	private int max_text_length; 
 
+	/** Re-used for the text of each record, as extraction is single-threaded */
+	private TextBuffer text;
+
 	/** Whether or not to use the Boilerpipe boilerplate remover */
 	private boolean useBoilerpipe;
 
 	/** Extract all metadata? */
 	private boolean extractAllMetadata;
 
+	/** Runs the detectors and parsers with a timeout */
+	private TimeoutService timeouts;
+
+	/** Per-type parse timeouts and circuit breakers, if enabled */
+	private ParseBudgets budgets;
+
+	/** The parser to use for each detected type */
+	private Map<String, Parser> parsers = new HashMap<String, Parser>();
+
+	/** Parses HTML with JSoup alone for both the text and the page features, if enabled */
+	private UnifiedHtmlParser htmlParser;
+
 	/* --- --- --- --- */
 	
 	public TikaExtractor() {
@@ -112,7 +136,16 @@ mime_exclude = x-tar,x-gzip,bz,lz,compress,zip,javascript,css,octet-stream,image
 	 * @param conf
 	 */
 	public TikaExtractor( Config conf ) {
-		this.tika = new Tika();
+		this( conf, new Tika() );
+	}
+
+	/**
+	 * @param conf
+	 * @param tika
+	 *            provides the detector, and the parsers for each type.
+	 */
+	TikaExtractor( Config conf, Tika tika ) {
+		this.tika = tika;
 		
 		this.excludes = conf.getStringList( "warc.index.tika.exclude_mime" );
 		log.info("Config: MIME exclude list: " + this.excludes);
@@ -130,6 +163,17 @@ mime_exclude = x-tar,x-gzip,bz,lz,compress,zip,javascript,css,octet-stream,image
 		this.useBoilerpipe = conf.getBoolean("warc.index.tika.use_boilerpipe");
 		log.info("Config: useBoilerpipe " + this.useBoilerpipe);
 
+		this.timeouts = TimeoutService.getInstance( conf );
+
+		if( ParseBudgets.isEnabled( conf ) ) {
+			this.budgets = ParseBudgets.getInstance( conf );
+		}
+		log.info("Config: Per-type parse budgets " + (this.budgets != null));
+
+		if( UnifiedHtmlParser.isEnabled( conf ) ) {
+			this.htmlParser = new UnifiedHtmlParser( conf );
+		}
+		log.info("Config: HTML single parse " + (this.htmlParser != null));
 	}
 
 
@@ -185,8 +229,26 @@ mime_exclude = x-tar,x-gzip,bz,lz,compress,zip,javascript,css,octet-stream,image
 	 * @return
 	 * @throws IOException
 	 */
-	@SuppressWarnings( "deprecation" )
 	public SolrRecord extract( SolrRecord solr, InputStream is, String url ) throws IOException {
+		return extract( solr, is, url, null );
+	}
+
+	/**
+	 * As {@link #extract(SolrRecord, InputStream, String)}, but if the single
+	 * HTML parse is enabled, also gathers the {@link HtmlFeatureParser}
+	 * features of HTML pages.
+	 * 
+	 * @param solr
+	 * @param is
+	 * @param url
+	 * @param features
+	 *            receives the HTML features, marked with
+	 *            {@link UnifiedHtmlParser#FEATURES_EXTRACTED}. May be NULL.
+	 * @return
+	 * @throws IOException
+	 */
+	@SuppressWarnings( "deprecation" )
+	public SolrRecord extract( SolrRecord solr, InputStream is, String url, Metadata features ) throws IOException {
 
 		// Set up the TikaInputStream:
 		TikaInputStream tikainput = null;
@@ -206,10 +268,19 @@ mime_exclude = x-tar,x-gzip,bz,lz,compress,zip,javascript,css,octet-stream,image
 		try {
 			DetectRunner detect = new DetectRunner(tika, tikainput, detected,
 					metadata);
-			Thread detectThread = new Thread( detect, Long.toString( System.currentTimeMillis() ) );
-			detectThread.start();
-			detectThread.join( 10000L );
-			detectThread.interrupt();
+			TimeoutService.Outcome outcome = timeouts.run( detect, 10000L );
+			if( outcome == TimeoutService.Outcome.REJECTED ) {
+				// Rather than lose the type, detect on this thread:
+				detect.run();
+			} else if( outcome == TimeoutService.Outcome.TIMED_OUT ) {
+				// Leave the abandoned detector appending to its own builder:
+				detected = new StringBuilder();
+				addExceptionMetadata(metadata, new TimeoutException("Detection abandoned after 10000ms"));
+			}
+		} catch( InterruptedException e ) {
+			detected = new StringBuilder();
+			addExceptionMetadata(metadata, new Exception("Detection interrupted"));
+			Thread.currentThread().interrupt();
 		} catch( NoSuchFieldError e ) {
 			// TODO Is this an Apache POI version issue?
 			log.error( "Tika.detect(): " + e.getMessage() );
@@ -228,33 +299,106 @@ mime_exclude = x-tar,x-gzip,bz,lz,compress,zip,javascript,css,octet-stream,image
 			} else {
 				solr.addField( SolrFields.SOLR_CONTENT_TYPE, detected.toString() );
 			}
+			// If detection failed, report why:
+			solr.addField( SolrFields.PARSE_ERROR, metadata.get( TikaExtractor.TIKA_PARSE_EXCEPTION ) );
 			return solr;
 		}
 		
 		// Context
 		ParseContext context = new ParseContext();
-		StringWriter content = new StringWriter();
+		if( text == null ) {
+			text = new TextBuffer( max_text_length );
+		} else {
+			text.clear();
+		}
+		TextBuffer content = text;
 		
 		// Override the recursive parsing:
 		if( embedded == null )
 			embedded = new NonRecursiveEmbeddedDocumentExtractor(context);
 		context.set( EmbeddedDocumentExtractor.class, embedded );
+
+		// Go straight to the parser for the detected type, rather than
+		// detecting it all over again:
+		ContentHandler handler = this.getHandler( content );
+		Parser parser = getParser( detected.toString(), context );
+		if( parser != null ) {
+			metadata.set( Metadata.CONTENT_TYPE, detected.toString() );
+			// Zip bomb prevention, as in AutoDetectParser:
+			handler = new SecureContentHandler( handler, tikainput );
+		} else {
+			parser = tika.getParser();
+		}
+
+		// Parse HTML with JSoup alone, if the features are wanted too:
+		UnifiedHtmlParser.Features holder = null;
+		if( features != null && htmlParser != null && isHtml( detected.toString() ) ) {
+			parser = htmlParser;
+			holder = new UnifiedHtmlParser.Features( features );
+			context.set( UnifiedHtmlParser.Features.class, holder );
+		}
 		
 		try {
             final long parseStart = System.nanoTime();
-			ParseRunner runner = new ParseRunner( tika.getParser(), tikainput, this.getHandler( content ), metadata, context );
-			Thread parseThread = new Thread( runner, Long.toString( System.currentTimeMillis() ) );
+			ParseRunner runner = new ParseRunner( parser, tikainput, handler, metadata, context );
+			String type = ParseBudgets.baseType( detected.toString() );
+			long timeout = budgets == null ? this.parseTimeout : budgets.getBudget( type, this.parseTimeout );
+			boolean timedOut = false;
+			boolean abandoned = false;
+			boolean recorded = false;
 			try {
-				parseThread.start();
-				parseThread.join( this.parseTimeout );
-				parseThread.interrupt();
-				parseThread.join(this.parseTimeout);
+				if( budgets != null && !budgets.allow( type ) ) {
+					// Only the detected type (and any other metadata) is kept:
+					addExceptionMetadata(metadata, new Exception("Parse skipped after repeated timeouts for " + type));
+				} else {
+					TimeoutService.Outcome outcome = timeouts.run( runner, timeout );
+					if( outcome == TimeoutService.Outcome.TIMED_OUT ) {
+						// The abandoned parser may still be writing to the buffer:
+						text = null;
+						abandoned = true;
+						timedOut = true;
+						addExceptionMetadata(metadata, new TimeoutException("Parse abandoned after " + timeout + "ms"));
+					} else if( outcome == TimeoutService.Outcome.REJECTED ) {
+						addExceptionMetadata(metadata, new Exception("Parse not run, no parser thread available"));
+					} else if( budgets != null ) {
+						budgets.completed( type, System.nanoTime() - parseStart );
+						recorded = true;
+					}
+				}
+			} catch( InterruptedException i ) {
+				// The parser was abandoned too, and may still be writing to the buffer:
+				text = null;
+				abandoned = true;
+				addExceptionMetadata(metadata, new Exception("Parse interrupted"));
+				// Keep the interrupt for the caller, once the record is finished:
+				Thread.currentThread().interrupt();
 			} catch( OutOfMemoryError o ) {
 				log.error( "TikaExtractor.parse() - OutOfMemoryError: " + o.getMessage() );
 				addExceptionMetadata(metadata, new Exception("OutOfMemoryError"));
+				if( budgets != null ) {
+					budgets.completed( type, System.nanoTime() - parseStart );
+					recorded = true;
+				}
 			} catch( RuntimeException r ) {
 				log.error( "TikaExtractor.parse() - RuntimeException: " + r.getMessage() );
 				addExceptionMetadata(metadata, r);
+				if( budgets != null ) {
+					budgets.completed( type, System.nanoTime() - parseStart );
+					recorded = true;
+				}
+			} finally {
+				// An abandoned parse must not hand over its features later:
+				if( holder != null ) {
+					holder.close();
+				}
+				// Nor leave a half-open breaker waiting for a trial parse that
+				// never ran, or was interrupted:
+				if( budgets != null && !recorded && !timedOut ) {
+					budgets.aborted( type );
+				}
+			}
+			if( timedOut && budgets != null ) {
+				budgets.timedOut( type, System.nanoTime() - parseStart );
 			}
             Instrument.timeRel("WARCPayloadAnalyzers.analyze#tikasolrextract",
                                "TikaExtractor.extract#parse", parseStart);
@@ -263,12 +407,10 @@ mime_exclude = x-tar,x-gzip,bz,lz,compress,zip,javascript,css,octet-stream,image
 			solr.addField( SolrFields.PARSE_ERROR, metadata.get( TikaExtractor.TIKA_PARSE_EXCEPTION ) );
 
             final long extractStart = System.nanoTime();
-			// Copy the body text, forcing a UTF-8 encoding:
-			String output = new String( content.toString().getBytes( "UTF-8" ) );
-			if( runner.complete || !output.equals( "" ) ) {
-				if( output.length() > this.max_text_length ) {
-					output = output.substring(0, this.max_text_length);
-				}
+			// Copy the body text, which is already capped at max_text_length,
+			// unless an abandoned parser may still be writing to it:
+			String output = abandoned ? "" : content.toString();
+			if( !abandoned && ( runner.complete || !output.equals( "" ) ) ) {
 				log.debug("Extracted text from: " + url);
 				log.debug("Extracted text: " + StringUtils.left(output, 300));
 				solr.setField( SolrFields.SOLR_EXTRACTED_TEXT, output );
@@ -451,7 +593,8 @@ mime_exclude = x-tar,x-gzip,bz,lz,compress,zip,javascript,css,octet-stream,image
 		@Override
 		public void run() {
 			try {
-				mime.append( this.tika.detect( this.input ) );
+				// Using the same hints as AutoDetectParser would:
+				mime.append( this.tika.detect( this.input, this.metadata ) );
 			} catch( NoSuchFieldError e ) {
 				// Apache POI version issue?
 				log.error("Tika.detect(): " + e.getMessage());
@@ -490,23 +633,51 @@ mime_exclude = x-tar,x-gzip,bz,lz,compress,zip,javascript,css,octet-stream,image
 		return new WriteOutContentHandler(ch, max_text_length);
 	}
 	
+	/**
+	 * Collapses runs of whitespace into a single space (or newline, if the run
+	 * included one), and drops leading whitespace. Runs of other characters
+	 * are passed on in bulk.
+	 */
 	public class SpaceTrimWriter extends FilterWriter {
 		private boolean isStartSpace = true;
 		private boolean lastCharWasSpace;
 		private boolean includedNewline = false;
+		private final char[] scratch = new char[ 1024 ];
 
 		public SpaceTrimWriter(Writer out) {
 			super(out);
 		}
 
 		public void write(char[] cbuf, int off, int len) throws IOException {
-			for (int i = off; i < len; i++)
-				write(cbuf[i]);
+			int end = off + len;
+			int runStart = -1;
+			for (int i = off; i < end; i++) {
+				char c = cbuf[i];
+				if (c == ' ' || c == '\n' || c == '\t') {
+					if (runStart != -1) {
+						out.write(cbuf, runStart, i - runStart);
+						runStart = -1;
+					}
+					lastCharWasSpace = true;
+					if (c == '\n')
+						includedNewline = true;
+				} else if (runStart == -1) {
+					writeSpace();
+					runStart = i;
+				}
+			}
+			if (runStart != -1)
+				out.write(cbuf, runStart, end - runStart);
 		}
 
 		public void write(String str, int off, int len) throws IOException {
-			for (int i = off; i < len; i++)
-				write(str.charAt(i));
+			while (len > 0) {
+				int n = Math.min(len, scratch.length);
+				str.getChars(off, off + n, scratch, 0);
+				write(scratch, 0, n);
+				off += n;
+				len -= n;
+			}
 		}
 
 		public void write(int c) throws IOException {
@@ -515,23 +686,67 @@ mime_exclude = x-tar,x-gzip,bz,lz,compress,zip,javascript,css,octet-stream,image
 				if (c == '\n')
 					includedNewline = true;
 			} else {
-				if (lastCharWasSpace) {
-					if (!isStartSpace) {
-						if (includedNewline) {
-							out.write('\n');
-						} else {
-							out.write(' ');
-						}
+				writeSpace();
+				out.write(c);
+			}
+		}
+
+		/**
+		 * Writes out the whitespace preceding a non-space character, if any.
+		 */
+		private void writeSpace() throws IOException {
+			if (lastCharWasSpace) {
+				if (!isStartSpace) {
+					if (includedNewline) {
+						out.write('\n');
+					} else {
+						out.write(' ');
 					}
-					lastCharWasSpace = false;
-					includedNewline = false;
 				}
-				isStartSpace = false;
-				out.write(c);
+				lastCharWasSpace = false;
+				includedNewline = false;
 			}
+			isStartSpace = false;
 		}
 	}
 	
+	/**
+	 * Finds the parser that Tika would use for the given type, descending
+	 * through the composite parsers in the same way. The result is cached, as
+	 * it only depends on the type.
+	 * 
+	 * @param detected
+	 * @param context
+	 * @return the parser, or NULL if there is no specific parser for the type.
+	 */
+	private Parser getParser( String detected, ParseContext context ) {
+		if( parsers.containsKey( detected ) ) {
+			return parsers.get( detected );
+		}
+		org.apache.tika.mime.MediaType type = org.apache.tika.mime.MediaType.parse( detected );
+		Parser parser = tika.getParser();
+		while( type != null && parser instanceof CompositeParser ) {
+			CompositeParser composite = ( CompositeParser ) parser;
+			MediaTypeRegistry registry = composite.getMediaTypeRegistry();
+			Map<org.apache.tika.mime.MediaType, Parser> map = composite.getParsers( context );
+			parser = null;
+			// Try the type itself, then its supertypes:
+			for( org.apache.tika.mime.MediaType t = registry.normalize( type ); t != null && parser == null; t = registry.getSupertype( t ) ) {
+				parser = map.get( t );
+			}
+		}
+		if( type == null ) {
+			parser = null;
+		}
+		log.debug( "Using parser " + parser + " for " + detected );
+		parsers.put( detected, parser );
+		return parser;
+	}
+
+	private static boolean isHtml( String mime ) {
+		return mime.startsWith( "text/html" ) || mime.startsWith( "application/xhtml+xml" );
+	}
+
 	private boolean checkMime( String mime ) {
 		if( mime == null )
 			return false;
@@ -0,0 +1,89 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed-size byte arrays, shared between threads, so that caching
+ * payloads does not allocate (and then garbage collect) a fresh buffer for
+ * every record.
+ *
+ * Chunks that are not returned to the pool are simply garbage collected.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class ChunkPool {
+
+	/** Size of each chunk, in bytes */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	/** Maximum number of idle chunks to hold on to (16MB) */
+	private static final int MAX_POOLED = 256;
+
+	private static final Queue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private ChunkPool() {
+	}
+
+	/**
+	 * @return a chunk of {@link #CHUNK_SIZE} bytes, with undefined content.
+	 */
+	public static byte[] acquire() {
+		byte[] chunk = pool.poll();
+		if( chunk == null ) {
+			return new byte[ CHUNK_SIZE ];
+		}
+		pooled.decrementAndGet();
+		return chunk;
+	}
+
+	/**
+	 * @return the number of idle chunks in the pool.
+	 */
+	public static int getPooledCount() {
+		return pooled.get();
+	}
+
+	/**
+	 * Returns a chunk to the pool. The caller must not use it afterwards.
+	 *
+	 * @param chunk
+	 */
+	public static void release( byte[] chunk ) {
+		if( chunk == null || chunk.length != CHUNK_SIZE ) {
+			return;
+		}
+		if( pooled.incrementAndGet() > MAX_POOLED ) {
+			pooled.decrementAndGet();
+			return;
+		}
+		pool.offer( chunk );
+	}
+
+}
@@ -28,17 +28,13 @@ package uk.bl.wa.util;
 import static org.archive.format.warc.WARCConstants.HEADER_KEY_PAYLOAD_DIGEST;
 import static org.archive.format.warc.WARCConstants.HEADER_KEY_TYPE;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.codec.digest.MessageDigestAlgorithms;
 import org.apache.commons.logging.Log;
@@ -47,13 +43,16 @@ import org.apache.commons.io.IOUtils;
 import org.archive.format.warc.WARCConstants;
 import org.archive.io.ArchiveRecordHeader;
 import org.archive.util.Base32;
-import org.jwat.common.RandomAccessFileInputStream;
 
 /**
  * Utility method that takes a given input stream and caches the
  * content in RAM, on disk, based on some size limits.
  * 
- * Also calculates the hash of the whole stream.
+ * Also calculates the hash of the whole stream, in the same pass.
+ * 
+ * In RAM, the content is held in chunks borrowed from the {@link ChunkPool},
+ * and only goes to a (pooled) {@link SpillFile} if it really is larger than the
+ * in-memory threshold.
  * 
  * @author anj
  *
@@ -69,9 +68,13 @@ public class HashedCachedInputStream {
 
 	private boolean inMemory;
 	
-	private File cacheFile;
+	/** The cached content, when on disk */
+	private SpillFile spillFile;
+	
+	/** The cached content, when in memory */
+	private List<byte[]> chunks = new ArrayList<byte[]>();
 	
-	private byte[] cacheBytes;
+	private long cachedLength = 0;
 	
 	private boolean truncated = false;
 	
@@ -121,32 +124,8 @@ public class HashedCachedInputStream {
 				headerHash = ( String ) header.getHeaderValue( HEADER_KEY_PAYLOAD_DIGEST );
 			}
 			
-			// Create a suitable outputstream for caching the content:
-			OutputStream cache = null;
-			if( length < inMemoryThreshold ) {
-				inMemory = true;
-				cache = new ByteArrayOutputStream();
-			} else {
-				inMemory = false;
-				cacheFile = File.createTempFile("warc-indexer", ".cache");
-				cacheFile.deleteOnExit();
-				cache = new FileOutputStream( cacheFile );
-			}
-				
-			DigestInputStream dinput = new DigestInputStream( in, digest );
-			
-			long toCopy = length;
-			if( length > this.onDiskThreshold ) {
-				toCopy = this.onDiskThreshold;
-			}
-			IOUtils.copyLarge( dinput, cache, 0, toCopy);
-			cache.close();
-
-			// Read the remainder of the stream, to get the hash.
-			if( length > this.onDiskThreshold ) {
-				truncated = true;
-				IOUtils.skip( dinput, length - this.onDiskThreshold);
-			}
+			// Copy the content into the cache, hashing it as we go:
+			copy( in, length );
 			
 			hash = "sha1:" + Base32.encode( digest.digest() );
 			
@@ -167,18 +146,99 @@ public class HashedCachedInputStream {
 					this.hash = this.headerHash;
 				}
 			}
-			
-			// Now set up the inputStream
-			if( inMemory ) {
-				this.cacheBytes = ((ByteArrayOutputStream)cache).toByteArray();
-				// Encourage GC
-				cache = null;
-			}
 		} catch( Exception i ) {
 			log.error( "Hashing: " + header.getUrl() + "@" + header.getOffset(), i );
 		}		
 	}
 	
+	/**
+	 * Copies up to onDiskThreshold bytes into the cache, and reads the rest
+	 * of the stream to complete the hash.
+	 * 
+	 * @param in
+	 * @param length
+	 * @throws IOException
+	 */
+	private void copy( InputStream in, long length ) throws IOException {
+		OutputStream cache = null;
+		byte[] buffer = null;
+		try {
+			// Go by the bytes actually read rather than the declared length:
+			inMemory = true;
+			long toCopy = Math.min( length, this.onDiskThreshold );
+			int n;
+			while( cachedLength < toCopy ) {
+				if( cache == null ) {
+					// Read straight into the current chunk:
+					int used = ( int ) ( cachedLength % ChunkPool.CHUNK_SIZE );
+					if( used == 0 ) {
+						chunks.add( ChunkPool.acquire() );
+					}
+					byte[] chunk = chunks.get( chunks.size() - 1 );
+					n = in.read( chunk, used, ( int ) Math.min( ChunkPool.CHUNK_SIZE - used, toCopy - cachedLength ) );
+					if( n == -1 )
+						break;
+					digest.update( chunk, used, n );
+					cachedLength += n;
+					if( cachedLength > inMemoryThreshold ) {
+						cache = spill();
+					}
+				} else {
+					if( buffer == null ) {
+						buffer = ChunkPool.acquire();
+					}
+					n = in.read( buffer, 0, ( int ) Math.min( buffer.length, toCopy - cachedLength ) );
+					if( n == -1 )
+						break;
+					digest.update( buffer, 0, n );
+					cache.write( buffer, 0, n );
+					cachedLength += n;
+				}
+			}
+			if( cache != null ) {
+				cache.close();
+				cache = null;
+			}
+			
+			// Read the remainder of the stream, to get the hash.
+			if( length > this.onDiskThreshold ) {
+				truncated = true;
+				if( buffer == null ) {
+					buffer = ChunkPool.acquire();
+				}
+				long remaining = length - cachedLength;
+				while( remaining > 0 && ( n = in.read( buffer, 0, ( int ) Math.min( buffer.length, remaining ) ) ) != -1 ) {
+					digest.update( buffer, 0, n );
+					remaining -= n;
+				}
+			}
+		} finally {
+			IOUtils.closeQuietly( cache );
+			ChunkPool.release( buffer );
+		}
+	}
+	
+	/**
+	 * Moves whatever is cached in memory out to a cache file.
+	 * 
+	 * @return the stream to write the rest of the content to.
+	 * @throws IOException
+	 */
+	private OutputStream spill() throws IOException {
+		inMemory = false;
+		spillFile = SpillFile.acquire();
+		OutputStream cache = spillFile.getOutputStream();
+		long remaining = cachedLength;
+		for( byte[] chunk : chunks ) {
+			int n = ( int ) Math.min( chunk.length, remaining );
+			cache.write( chunk, 0, n );
+			remaining -= n;
+			ChunkPool.release( chunk );
+		}
+		chunks.clear();
+		return cache;
+	}
+	
 	/**
 	 * 
 	 * @return
@@ -193,21 +253,14 @@ public class HashedCachedInputStream {
 	 */
 	public InputStream getInputStream() {
 		if( inMemory ) {
-			if( this.cacheBytes != null ) {
-				return new ByteArrayInputStream( this.cacheBytes );
-			} else {
-				log.error("Found a NULL byte array!");
-				return new ByteArrayInputStream( new byte[] {} );
-			}
+			return new ChunkInputStream( this.chunks, this.cachedLength );
 		} else {
-			RandomAccessFile RAFcache;
 			try {
-				RAFcache = new RandomAccessFile(cacheFile, "r");
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
+				return spillFile.getInputStream();
+			} catch (IOException e) {
+				log.error("Could not read the cached content", e);
 				return null;
 			}
-			return new RandomAccessFileInputStream(RAFcache);
 		}
 	}
 	
@@ -220,11 +273,104 @@ public class HashedCachedInputStream {
 	}
 	
 	/**
-	 * 
+	 * Releases the cached content, for re-use by later records. No stream
+	 * returned by {@link #getInputStream()} may be used afterwards.
 	 */
 	public void cleanup() {
-		if( this.cacheFile != null )
-			this.cacheFile.delete();
+		for( byte[] chunk : this.chunks ) {
+			ChunkPool.release( chunk );
+		}
+		this.chunks.clear();
+		this.cachedLength = 0;
+		if( this.spillFile != null ) {
+			this.spillFile.release();
+			this.spillFile = null;
+		}
+	}
+	
+	/**
+	 * Drops the cached content without re-using it, for when a parser that was
+	 * abandoned may still be reading it. The chunks are left to the garbage
+	 * collector, and any scratch file is deleted rather than pooled, so the
+	 * stuck parser can never see another record's data.
+	 */
+	public void discard() {
+		// Leave the old list alone, as streams over it may still be in use:
+		this.chunks = new ArrayList<byte[]>();
+		this.cachedLength = 0;
+		if( this.spillFile != null ) {
+			this.spillFile.discard();
+			this.spillFile = null;
+		}
+	}
+	
+	/**
+	 * Replays the chunks cached in memory, without copying them. Any position
+	 * can be marked, as all the content is available.
+	 */
+	private static class ChunkInputStream extends InputStream {
+		private final List<byte[]> chunks;
+		private final long length;
+		private long pos = 0;
+		private long mark = 0;
+		
+		ChunkInputStream( List<byte[]> chunks, long length ) {
+			this.chunks = chunks;
+			this.length = length;
+		}
+		
+		@Override
+		public int read() {
+			if( pos >= length )
+				return -1;
+			byte b = chunks.get( ( int ) ( pos / ChunkPool.CHUNK_SIZE ) )[ ( int ) ( pos % ChunkPool.CHUNK_SIZE ) ];
+			pos++;
+			return b & 0xff;
+		}
+		
+		@Override
+		public int read( byte[] b, int off, int len ) {
+			if( len == 0 )
+				return 0;
+			if( pos >= length )
+				return -1;
+			int total = 0;
+			while( total < len && pos < length ) {
+				int offset = ( int ) ( pos % ChunkPool.CHUNK_SIZE );
+				int n = ( int ) Math.min( Math.min( len - total, ChunkPool.CHUNK_SIZE - offset ), length - pos );
+				System.arraycopy( chunks.get( ( int ) ( pos / ChunkPool.CHUNK_SIZE ) ), offset, b, off + total, n );
+				total += n;
+				pos += n;
+			}
+			return total;
+		}
+		
+		@Override
+		public long skip( long n ) {
+			long skipped = Math.max( 0, Math.min( n, length - pos ) );
+			pos += skipped;
+			return skipped;
+		}
+		
+		@Override
+		public int available() {
+			return ( int ) Math.min( Integer.MAX_VALUE, length - pos );
+		}
+		
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+		
+		@Override
+		public synchronized void mark( int readlimit ) {
+			mark = pos;
+		}
+		
+		@Override
+		public synchronized void reset() {
+			pos = mark;
+		}
 	}
 
 }
@@ -0,0 +1,171 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Presents just the start and the end of a stream, skipping over the middle,
+ * for format identification tools that only look for signatures near the
+ * beginning or the end of a file.
+ *
+ * The underlying stream should be able to skip cheaply, as the cached
+ * payloads can.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class HeadTailInputStream extends FilterInputStream {
+
+	/** Number of bytes read from the head so far */
+	private long pos = 0;
+
+	/** Where the gap starts, i.e. the size of the head window */
+	private final long head;
+
+	/** Number of bytes to skip between the head and the tail windows */
+	private final long gap;
+
+	private boolean skipped = false;
+
+	/**
+	 * @param in
+	 *            positioned at the start of the content.
+	 * @param length
+	 *            the length of the content.
+	 * @param window
+	 *            the number of bytes to keep at each end.
+	 */
+	public HeadTailInputStream( InputStream in, long length, long window ) {
+		super( in );
+		this.head = window;
+		this.gap = Math.max( 0, length - 2 * window );
+		this.skipped = gap == 0;
+	}
+
+	/**
+	 * @param length
+	 * @param window
+	 * @return true if a stream of the given length is worth windowing.
+	 */
+	public static boolean isWindowed( long length, long window ) {
+		return window > 0 && length > 2 * window;
+	}
+
+	/**
+	 * Skips the middle, once the head has been read.
+	 */
+	private void skipGap() throws IOException {
+		long remaining = gap;
+		while( remaining > 0 ) {
+			long n = in.skip( remaining );
+			if( n <= 0 ) {
+				// Fall back on reading, in case skipping is not supported:
+				if( in.read() == -1 ) {
+					break;
+				}
+				n = 1;
+			}
+			remaining -= n;
+		}
+		skipped = true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if( !skipped && pos == head ) {
+			skipGap();
+		}
+		int b = in.read();
+		if( b != -1 && !skipped ) {
+			pos++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read( byte[] b, int off, int len ) throws IOException {
+		if( len == 0 ) {
+			return 0;
+		}
+		if( !skipped ) {
+			if( pos == head ) {
+				skipGap();
+			} else {
+				// Do not read past the end of the head:
+				len = ( int ) Math.min( len, head - pos );
+			}
+		}
+		int n = in.read( b, off, len );
+		if( n > 0 && !skipped ) {
+			pos += n;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip( long n ) throws IOException {
+		byte[] buffer = new byte[ ( int ) Math.min( 8192, Math.max( n, 1 ) ) ];
+		long total = 0;
+		while( total < n ) {
+			int read = read( buffer, 0, ( int ) Math.min( buffer.length, n - total ) );
+			if( read == -1 ) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if( skipped ) {
+			return in.available();
+		}
+		return ( int ) Math.min( Integer.MAX_VALUE, Math.max( 0, ( long ) in.available() - gap ) );
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark( int readlimit ) {
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException( "mark/reset not supported" );
+	}
+
+	/**
+	 * Leaves the underlying stream open, as it is the shared payload cache.
+	 */
+	@Override
+	public void close() {
+	}
+
+}
@@ -26,11 +26,17 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 import org.apache.zookeeper.data.Stat;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Helper class for lightweight performance-measuring instrumentation of the code base.
@@ -40,13 +46,46 @@ import java.util.concurrent.atomic.AtomicLong;
  * </p><p>
  * Note: The overhead of calling methods on this class is kept to a minimum.
  * The only methods with non-trivial overheads are {@link #log(boolean)} and {@link #getStats()}.
+ * There is no global lock, so many threads can record timings at the same time without
+ * contending with each other.
+ * </p><p>
+ * Besides totals, each tracker keeps a histogram of the individual timings, so that the
+ * tail latencies (p50/p95/p99/max) can be reported.
  * @author Toke Eskildsen <te@statsbiblioteket.dk>
  */
 public class Instrument {
     private static Log log = LogFactory.getLog(Instrument.class);
 
-    private static final Map<String, Stats> trackers = new HashMap<String, Stats>();
+    private static final ConcurrentMap<String, Stats> trackers = new ConcurrentHashMap<String, Stats>();
+    private static final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<String, AtomicLong>();
     private static final long classStart = System.nanoTime();
+    // Timings for the record currently being processed by each thread, if requested
+    private static final ThreadLocal<Map<String, Long>> recordTimings = new ThreadLocal<Map<String, Long>>();
+
+    /**
+     * Set the current value of a gauge, e.g. a size or a rate, which is reported along with the timings.
+     * @param id    id for a gauge. If it does not exist, it will be created.
+     * @param value the current value.
+     */
+    public static void setGauge(String id, long value) {
+        AtomicLong gauge = gauges.get(id);
+        if (gauge == null) {
+            AtomicLong existing = gauges.putIfAbsent(id, gauge = new AtomicLong());
+            if (existing != null) {
+                gauge = existing;
+            }
+        }
+        gauge.set(value);
+    }
+
+    /**
+     * @param id id for a gauge.
+     * @return the current value of the gauge, or 0 if it has never been set.
+     */
+    public static long getGauge(String id) {
+        AtomicLong gauge = gauges.get(id);
+        return gauge == null ? 0 : gauge.get();
+    }
 
     /**
      * Increment the total time for the tracker with the given ID.
@@ -71,47 +110,105 @@ public class Instrument {
 
     /**
      * Increment the total time for the tracker with the given ID.
-     * Synchronized to handle creation of new Stats.
      * @param id           id for a tracker. If it does not exist, it will be created.
      * @param nanoAbsolute the amount of nanoseconds to add.
      */
-    public static synchronized void time(String id, long nanoAbsolute) {
+    public static void time(String id, long nanoAbsolute) {
         time(null, id, nanoAbsolute);
     }
 
     /**
      * Increment the total time for the tracker with the given ID.
-     * Synchronized to handle creation of new Stats.
      * @param parent       provides hierarchical output. If the parent does not exist, it will be created.
      * @param id           id for a tracker. If it does not exist, it will be created.
      * @param nanoAbsolute the amount of nanoseconds to add.
      */
-    public static synchronized void time(String parent, String id, long nanoAbsolute) {
-        Stats stats = trackers.get(id);
-        if (stats == null) {
-            stats = new Stats(id);
-            trackers.put(id, stats);
-        }
+    public static void time(String parent, String id, long nanoAbsolute) {
+        Stats stats = getOrCreate(id);
         stats.time(nanoAbsolute);
 
+        Map<String, Long> timings = recordTimings.get();
+        if (timings != null) {
+            Long previous = timings.get(id);
+            timings.put(id, previous == null ? nanoAbsolute : previous + nanoAbsolute);
+        }
+
         // Check parent connection
         if (parent == null) {
             return;
         }
+        getOrCreate(parent).addChild(stats);
+    }
+
+    private static Stats getOrCreate(String id) {
+        Stats stats = trackers.get(id);
+        if (stats == null) {
+            Stats existing = trackers.putIfAbsent(id, stats = new Stats(id));
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
 
-        Stats pStats = trackers.get(parent);
-        if (pStats == null) {
-            pStats = new Stats(parent);
-            trackers.put(parent, pStats);
+    /**
+     * Start collecting the timings made by the current thread, e.g. for a single record.
+     * Any collection already in progress on this thread is discarded.
+     */
+    public static void startRecordTimings() {
+        recordTimings.set(new LinkedHashMap<String, Long>());
+    }
+
+    /**
+     * Stop collecting the timings made by the current thread.
+     * @return the total time (in nanoseconds) per tracker id since {@link #startRecordTimings()},
+     *         in the order they were first timed. Empty if collection was not started.
+     */
+    public static Map<String, Long> stopRecordTimings() {
+        Map<String, Long> timings = recordTimings.get();
+        recordTimings.remove();
+        return timings == null ? new LinkedHashMap<String, Long>() : timings;
+    }
+
+    /**
+     * @return a snapshot of all the trackers, sorted by id.
+     */
+    public static SortedMap<String, Stats> getTrackers() {
+        return new TreeMap<String, Stats>(trackers);
+    }
+
+    /**
+     * @return a snapshot of the current values of all the gauges, sorted by id.
+     */
+    public static SortedMap<String, Long> getGauges() {
+        SortedMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> gauge: gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().get());
         }
-        pStats.addChild(stats);
+        return values;
+    }
+
+    /**
+     * @return the time since this class was loaded, in nanoseconds.
+     */
+    public static long getUptime() {
+        return System.nanoTime() - classStart;
+    }
+
+    /**
+     * @param id id for a tracker.
+     * @return the tracker, or null if nothing has been timed with that id.
+     */
+    public static Stats getTracker(String id) {
+        return trackers.get(id);
     }
 
     public static class Stats {
         public final String id;
-        public final AtomicLong time = new AtomicLong(0);
-        public final AtomicLong count = new AtomicLong(0);
-        public final Set<Stats> children = new HashSet<Stats>();
+        private final StripedLong time = new StripedLong();
+        private final StripedLong count = new StripedLong();
+        private final Histogram histogram = new Histogram();
+        public final Set<Stats> children = Collections.newSetFromMap(new ConcurrentHashMap<Stats, Boolean>());
         private static final double MD = 1000000d;
 
         public Stats(String id) {
@@ -119,21 +216,58 @@ public class Instrument {
         }
 
         public void time(long nanoAbsolute) {
-            time.addAndGet(nanoAbsolute);
-            count.incrementAndGet();
+            time.add(nanoAbsolute);
+            count.add(1);
+            histogram.record(nanoAbsolute);
+        }
+
+        /**
+         * @return the total time, in nanoseconds.
+         */
+        public long getTime() {
+            return time.get();
+        }
+
+        /**
+         * @return the number of timings.
+         */
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * @param percentile e.g. 99.0 for the 99th percentile.
+         * @return an upper bound (within about 12%) on the given percentile of the timings, in nanoseconds.
+         */
+        public long getPercentile(double percentile) {
+            return histogram.getPercentile(percentile);
+        }
+
+        /**
+         * @return the longest timing, in nanoseconds.
+         */
+        public long getMax() {
+            return histogram.getMax();
         }
 
         public String toString() {
             // % is only correct for single-threaded processing
-            return String.format("%s(#=%d, time=%.2fms, avg=%.2f#/ms %.2fms/#, %.2f%%)",
-                                 id, count.get(), time.get()/MD,
-                                 time.get() == 0 ? 0 : count.get() / (time.get() / MD),
-                                 count.get() == 0 ? 0 : time.get() / MD / count.get(),
-                                 time.get() * 100.0 / (System.nanoTime()-classStart));
+            long time = getTime();
+            long count = getCount();
+            return String.format("%s(#=%d, time=%.2fms, avg=%.2f#/ms %.2fms/#, %.2f%%, p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms)",
+                                 id, count, time/MD,
+                                 time == 0 ? 0 : count / (time / MD),
+                                 count == 0 ? 0 : time / MD / count,
+                                 time * 100.0 / (System.nanoTime()-classStart),
+                                 getPercentile(50) / MD, getPercentile(95) / MD, getPercentile(99) / MD,
+                                 getMax() / MD);
         }
 
         public void addChild(Stats child) {
-            children.add(child);
+            // Checking first is cheaper than adding, as the child is nearly always known
+            if (!children.contains(child)) {
+                children.add(child);
+            }
         }
 
         @Override
@@ -146,6 +280,114 @@ public class Instrument {
         }
     }
 
+    /**
+     * A counter that is spread over several cells, picked by thread, so that concurrent updates
+     * rarely hit the same cache line. Reads add up all the cells. (LongAdder is not available in Java 6.)
+     */
+    static class StripedLong {
+        // Spacing between the cells, so each one has a cache line of its own
+        private static final int PAD = 8;
+        private static final int STRIPES;
+        static {
+            int stripes = 1;
+            while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+                stripes <<= 1;
+            }
+            STRIPES = stripes;
+        }
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        public void add(long delta) {
+            cells.addAndGet(stripe() * PAD, delta);
+        }
+
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PAD);
+            }
+            return sum;
+        }
+
+        private static int stripe() {
+            long id = Thread.currentThread().getId();
+            return (int) ((id ^ (id >>> 16)) * 0x9E3779B9L >>> 16) & (STRIPES - 1);
+        }
+    }
+
+    /**
+     * A lock-free histogram of positive values, with log-linear buckets: every power of two is split into
+     * {@link #SUB_BUCKETS} buckets, so a percentile is accurate to within 1/SUB_BUCKETS of its value while
+     * covering the whole range of longs in a few hundred buckets.
+     */
+    static class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(bucket(value));
+            long current;
+            while (value > (current = max.get())) {
+                if (max.compareAndSet(current, value)) {
+                    break;
+                }
+            }
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getPercentile(double percentile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            long lower = (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+    }
+
     /**
      * Logs collected statistics.
      * @param major if true, the report is logged at INFO level. If false, DEBUG.
@@ -170,6 +412,12 @@ public class Instrument {
         for (Stats stats: topLevel) {
             getStatsRecursive(stats, sb, "");
         }
+        for (Map.Entry<String, AtomicLong> gauge: new TreeMap<String, AtomicLong>(gauges).entrySet()) {
+            if (sb.length() != 0) {
+                sb.append("\n");
+            }
+            sb.append(gauge.getKey()).append("=").append(gauge.getValue().get());
+        }
         return sb.toString();
     }
 
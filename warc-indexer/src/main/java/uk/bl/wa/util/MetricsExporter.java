@@ -0,0 +1,368 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import uk.bl.wa.util.Instrument.Stats;
+import uk.bl.wa.util.SlowRecordLog.SlowRecord;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+
+/**
+ * Exports the {@link Instrument} timings and gauges (and the slowest records,
+ * if {@link SlowRecordLog} is enabled) in machine-readable form, for long
+ * running indexing jobs:
+ * <ul>
+ * <li>as JSON, one snapshot per line, appended to a file at a fixed interval;
+ * </li>
+ * <li>in the Prometheus text format, re-written to a file at the same interval
+ * (e.g. for the node_exporter textfile collector);</li>
+ * <li>in both formats over HTTP, at /metrics and /metrics.json.</li>
+ * </ul>
+ * The percentiles cover the whole run so far.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class MetricsExporter {
+	private static Log log = LogFactory.getLog( MetricsExporter.class );
+
+	/** Seconds between snapshots written to the files */
+	public static final String CONF_INTERVAL = "warc.index.metrics.interval";
+
+	/** File to append JSON snapshots to */
+	public static final String CONF_JSON_FILE = "warc.index.metrics.json_file";
+
+	/** File to write the Prometheus text format to */
+	public static final String CONF_PROMETHEUS_FILE = "warc.index.metrics.prometheus_file";
+
+	/** Port to serve the metrics on (0 for none) */
+	public static final String CONF_HTTP_PORT = "warc.index.metrics.http_port";
+
+	private static final double MS = 1000000d;
+	private static final double SECONDS = 1000000000d;
+
+	private static MetricsExporter instance;
+
+	private final File jsonFile;
+	private final File prometheusFile;
+	private final SlowRecordLog slowRecords;
+	private final ScheduledExecutorService scheduler;
+	private HttpServer server;
+
+	private MetricsExporter( Config conf ) throws IOException {
+		long interval = conf.hasPath( CONF_INTERVAL ) ? conf.getLong( CONF_INTERVAL ) : 60;
+		jsonFile = conf.hasPath( CONF_JSON_FILE ) ? new File( conf.getString( CONF_JSON_FILE ) ) : null;
+		prometheusFile = conf.hasPath( CONF_PROMETHEUS_FILE ) ? new File( conf.getString( CONF_PROMETHEUS_FILE ) ) : null;
+		final int port = conf.hasPath( CONF_HTTP_PORT ) ? conf.getInt( CONF_HTTP_PORT ) : 0;
+		slowRecords = SlowRecordLog.getInstance( conf );
+
+		scheduler = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+			@Override
+			public Thread newThread( Runnable r ) {
+				Thread t = new Thread( r, "metrics-exporter" );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+		if( port > 0 ) {
+			server = HttpServer.create( new InetSocketAddress( port ), 0 );
+			server.createContext( "/metrics", new MetricsHandler( false ) );
+			server.createContext( "/metrics.json", new MetricsHandler( true ) );
+			// Start from the daemon thread, so the server's own thread is a
+			// daemon too and does not keep the JVM alive:
+			scheduler.submit( new Runnable() {
+				@Override
+				public void run() {
+					server.start();
+					log.info( "Serving metrics on port " + port );
+				}
+			} );
+		}
+		if( interval > 0 && ( jsonFile != null || prometheusFile != null ) ) {
+			scheduler.scheduleWithFixedDelay( new Runnable() {
+				@Override
+				public void run() {
+					export();
+				}
+			}, interval, interval, TimeUnit.SECONDS );
+			log.info( "Exporting metrics every " + interval + "s to " + jsonFile + " and " + prometheusFile );
+		}
+		Runtime.getRuntime().addShutdownHook( new Thread( "Shutdown metrics export" ) {
+			@Override
+			public void run() {
+				MetricsExporter.this.stop();
+			}
+		} );
+	}
+
+	/**
+	 * Starts the shared exporter, if any output is configured and it has not
+	 * been started already.
+	 *
+	 * @param conf
+	 * @return the exporter, or NULL if there is nothing to export to.
+	 */
+	public static synchronized MetricsExporter start( Config conf ) {
+		if( instance == null && ( conf.hasPath( CONF_JSON_FILE ) || conf.hasPath( CONF_PROMETHEUS_FILE )
+				|| ( conf.hasPath( CONF_HTTP_PORT ) && conf.getInt( CONF_HTTP_PORT ) > 0 ) ) ) {
+			try {
+				instance = new MetricsExporter( conf );
+			} catch( IOException e ) {
+				log.error( "Could not start exporting metrics: " + e.getMessage(), e );
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Writes a snapshot to the configured files.
+	 */
+	public void export() {
+		try {
+			if( jsonFile != null ) {
+				Writer out = new OutputStreamWriter( new FileOutputStream( jsonFile, true ), "UTF-8" );
+				try {
+					out.write( toJson( slowRecords ) );
+					out.write( "\n" );
+				} finally {
+					out.close();
+				}
+			}
+			if( prometheusFile != null ) {
+				// Write and rename, so the file is never seen half-written:
+				File tmp = new File( prometheusFile.getPath() + ".tmp" );
+				Writer out = new OutputStreamWriter( new FileOutputStream( tmp ), "UTF-8" );
+				try {
+					out.write( toPrometheus() );
+				} finally {
+					out.close();
+				}
+				if( !tmp.renameTo( prometheusFile ) ) {
+					prometheusFile.delete();
+					tmp.renameTo( prometheusFile );
+				}
+			}
+		} catch( IOException e ) {
+			log.warn( "Could not export metrics: " + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Writes a final snapshot and stops exporting.
+	 */
+	public void stop() {
+		scheduler.shutdownNow();
+		export();
+		if( server != null ) {
+			server.stop( 0 );
+		}
+	}
+
+	/**
+	 * @param slowRecords
+	 *            the slowest records to include, may be NULL.
+	 * @return the current metrics, as a single line of JSON.
+	 */
+	public static String toJson( SlowRecordLog slowRecords ) {
+		SimpleDateFormat iso = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss'Z'" );
+		iso.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+		StringBuilder sb = new StringBuilder();
+		sb.append( "{\"timestamp\":" ).append( quote( iso.format( new Date() ) ) );
+		sb.append( ",\"uptime_ms\":" ).append( ms( Instrument.getUptime() ) );
+		sb.append( ",\"timers\":{" );
+		boolean first = true;
+		for( Map.Entry<String, Stats> tracker : Instrument.getTrackers().entrySet() ) {
+			Stats stats = tracker.getValue();
+			long count = stats.getCount();
+			sb.append( first ? "" : "," ).append( quote( tracker.getKey() ) );
+			sb.append( ":{\"count\":" ).append( count );
+			sb.append( ",\"total_ms\":" ).append( ms( stats.getTime() ) );
+			sb.append( ",\"mean_ms\":" ).append( ms( count == 0 ? 0 : stats.getTime() / count ) );
+			sb.append( ",\"p50_ms\":" ).append( ms( stats.getPercentile( 50 ) ) );
+			sb.append( ",\"p95_ms\":" ).append( ms( stats.getPercentile( 95 ) ) );
+			sb.append( ",\"p99_ms\":" ).append( ms( stats.getPercentile( 99 ) ) );
+			sb.append( ",\"max_ms\":" ).append( ms( stats.getMax() ) );
+			sb.append( "}" );
+			first = false;
+		}
+		sb.append( "},\"gauges\":{" );
+		first = true;
+		for( Map.Entry<String, Long> gauge : Instrument.getGauges().entrySet() ) {
+			sb.append( first ? "" : "," ).append( quote( gauge.getKey() ) ).append( ":" ).append( gauge.getValue() );
+			first = false;
+		}
+		sb.append( "}" );
+		if( slowRecords != null && slowRecords.isEnabled() ) {
+			sb.append( ",\"slowest\":[" );
+			first = true;
+			for( SlowRecord record : slowRecords.getSlowest() ) {
+				sb.append( first ? "" : "," );
+				sb.append( "{\"archive\":" ).append( quote( record.archiveName ) );
+				sb.append( ",\"offset\":" ).append( record.offset );
+				sb.append( ",\"url\":" ).append( quote( record.url ) );
+				sb.append( ",\"mime\":" ).append( quote( record.mimeType ) );
+				sb.append( ",\"total_ms\":" ).append( ms( record.nanos ) );
+				sb.append( ",\"stages_ms\":{" );
+				boolean firstStage = true;
+				for( Map.Entry<String, Long> stage : record.stages.entrySet() ) {
+					sb.append( firstStage ? "" : "," ).append( quote( stage.getKey() ) ).append( ":" )
+							.append( ms( stage.getValue() ) );
+					firstStage = false;
+				}
+				sb.append( "}}" );
+				first = false;
+			}
+			sb.append( "]" );
+		}
+		sb.append( "}" );
+		return sb.toString();
+	}
+
+	/**
+	 * @return the current metrics, in the Prometheus text exposition format.
+	 */
+	public static String toPrometheus() {
+		Map<String, Stats> trackers = Instrument.getTrackers();
+		StringBuilder sb = new StringBuilder();
+		sb.append( "# HELP warc_indexer_time_seconds Time spent, per instrumented stage.\n" );
+		sb.append( "# TYPE warc_indexer_time_seconds summary\n" );
+		for( Map.Entry<String, Stats> tracker : trackers.entrySet() ) {
+			Stats stats = tracker.getValue();
+			String label = "tracker=\"" + escapeLabel( tracker.getKey() ) + "\"";
+			for( double quantile : new double[] { 0.5, 0.95, 0.99 } ) {
+				sb.append( "warc_indexer_time_seconds{" ).append( label ).append( ",quantile=\"" ).append( quantile )
+						.append( "\"} " ).append( stats.getPercentile( quantile * 100 ) / SECONDS ).append( "\n" );
+			}
+			sb.append( "warc_indexer_time_seconds_sum{" ).append( label ).append( "} " )
+					.append( stats.getTime() / SECONDS ).append( "\n" );
+			sb.append( "warc_indexer_time_seconds_count{" ).append( label ).append( "} " ).append( stats.getCount() )
+					.append( "\n" );
+		}
+		sb.append( "# HELP warc_indexer_time_max_seconds Longest single timing, per instrumented stage.\n" );
+		sb.append( "# TYPE warc_indexer_time_max_seconds gauge\n" );
+		for( Map.Entry<String, Stats> tracker : trackers.entrySet() ) {
+			sb.append( "warc_indexer_time_max_seconds{tracker=\"" ).append( escapeLabel( tracker.getKey() ) )
+					.append( "\"} " ).append( tracker.getValue().getMax() / SECONDS ).append( "\n" );
+		}
+		sb.append( "# HELP warc_indexer_gauge Current value of the indexer gauges.\n" );
+		sb.append( "# TYPE warc_indexer_gauge gauge\n" );
+		for( Map.Entry<String, Long> gauge : Instrument.getGauges().entrySet() ) {
+			sb.append( "warc_indexer_gauge{gauge=\"" ).append( escapeLabel( gauge.getKey() ) ).append( "\"} " )
+					.append( gauge.getValue() ).append( "\n" );
+		}
+		return sb.toString();
+	}
+
+	private static String ms( long nanos ) {
+		return String.format( Locale.ROOT, "%.3f", nanos / MS );
+	}
+
+	private static String escapeLabel( String value ) {
+		return value.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ).replace( "\n", "\\n" );
+	}
+
+	private static String quote( String value ) {
+		if( value == null ) {
+			return "null";
+		}
+		StringBuilder sb = new StringBuilder( value.length() + 2 );
+		sb.append( '"' );
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt( i );
+			switch( c ) {
+			case '"':
+				sb.append( "\\\"" );
+				break;
+			case '\\':
+				sb.append( "\\\\" );
+				break;
+			case '\n':
+				sb.append( "\\n" );
+				break;
+			case '\r':
+				sb.append( "\\r" );
+				break;
+			case '\t':
+				sb.append( "\\t" );
+				break;
+			default:
+				if( c < ' ' ) {
+					sb.append( String.format( "\\u%04x", ( int ) c ) );
+				} else {
+					sb.append( c );
+				}
+			}
+		}
+		return sb.append( '"' ).toString();
+	}
+
+	/**
+	 * Serves the current metrics.
+	 */
+	private class MetricsHandler implements HttpHandler {
+		private final boolean json;
+
+		MetricsHandler( boolean json ) {
+			this.json = json;
+		}
+
+		@Override
+		public void handle( HttpExchange exchange ) throws IOException {
+			byte[] body = ( json ? toJson( slowRecords ) : toPrometheus() ).getBytes( "UTF-8" );
+			exchange.getResponseHeaders().set( "Content-Type",
+					json ? "application/json; charset=utf-8" : "text/plain; version=0.0.4; charset=utf-8" );
+			exchange.sendResponseHeaders( 200, body.length );
+			OutputStream out = exchange.getResponseBody();
+			try {
+				out.write( body );
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+}
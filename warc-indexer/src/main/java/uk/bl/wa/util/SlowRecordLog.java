@@ -0,0 +1,206 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.typesafe.config.Config;
+
+/**
+ * Keeps the N slowest records seen so far, along with the time spent in each
+ * stage of their processing, so that pathological records (e.g. PDFs that
+ * keep a parser busy for minutes) can be tracked down.
+ *
+ * Checking a record that is quicker than all N is a single volatile read, so
+ * this is cheap enough to use for every record.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SlowRecordLog {
+	private static Log log = LogFactory.getLog( SlowRecordLog.class );
+
+	/** Number of slow records to keep (0 to disable) */
+	public static final String CONF_SIZE = "warc.index.metrics.slow_records";
+
+	private static SlowRecordLog instance;
+
+	private final int size;
+
+	/** The fastest of the slow records, once there are N of them */
+	private final PriorityQueue<SlowRecord> slowest;
+
+	/** Records quicker than this are not of interest */
+	private volatile long threshold = 0;
+
+	/**
+	 * @param size
+	 *            the number of records to keep.
+	 */
+	public SlowRecordLog( int size ) {
+		this.size = size;
+		this.slowest = new PriorityQueue<SlowRecord>( Math.max( 1, size ), BY_TIME );
+	}
+
+	/**
+	 * @param conf
+	 *            used to configure the shared log, if this is the first call.
+	 * @return the shared log.
+	 */
+	public static synchronized SlowRecordLog getInstance( Config conf ) {
+		if( instance == null ) {
+			int size = conf.hasPath( CONF_SIZE ) ? conf.getInt( CONF_SIZE ) : 0;
+			instance = new SlowRecordLog( size );
+			if( size > 0 ) {
+				log.info( "Keeping track of the " + size + " slowest records." );
+				final SlowRecordLog slowRecords = instance;
+				Runtime.getRuntime().addShutdownHook( new Thread( "Shutdown slow record logging" ) {
+					@Override
+					public void run() {
+						slowRecords.log();
+					}
+				} );
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @return true if any records are being kept.
+	 */
+	public boolean isEnabled() {
+		return size > 0;
+	}
+
+	/**
+	 * @param nanos
+	 * @return true if a record that took this long would be kept.
+	 */
+	public boolean isSlow( long nanos ) {
+		return size > 0 && nanos > threshold;
+	}
+
+	/**
+	 * Considers a record for the log.
+	 *
+	 * @param archiveName
+	 * @param offset
+	 * @param url
+	 * @param mimeType
+	 *            may be NULL.
+	 * @param nanos
+	 *            the total processing time.
+	 * @param stages
+	 *            the time spent in each stage, in nanoseconds.
+	 */
+	public void offer( String archiveName, long offset, String url, String mimeType, long nanos, Map<String, Long> stages ) {
+		if( !isSlow( nanos ) ) {
+			return;
+		}
+		SlowRecord record = new SlowRecord( archiveName, offset, url, mimeType, nanos, stages );
+		synchronized( slowest ) {
+			slowest.add( record );
+			if( slowest.size() > size ) {
+				slowest.poll();
+			}
+			if( slowest.size() == size ) {
+				threshold = slowest.peek().nanos;
+			}
+		}
+	}
+
+	/**
+	 * @return the records kept so far, slowest first.
+	 */
+	public List<SlowRecord> getSlowest() {
+		List<SlowRecord> records;
+		synchronized( slowest ) {
+			records = new ArrayList<SlowRecord>( slowest );
+		}
+		Collections.sort( records, Collections.reverseOrder( BY_TIME ) );
+		return records;
+	}
+
+	/**
+	 * Logs the records kept so far.
+	 */
+	public void log() {
+		if( !isEnabled() ) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder( "Slowest records:" );
+		for( SlowRecord record : getSlowest() ) {
+			sb.append( "\n" ).append( record );
+		}
+		log.info( sb.toString() );
+	}
+
+	private static final Comparator<SlowRecord> BY_TIME = new Comparator<SlowRecord>() {
+		@Override
+		public int compare( SlowRecord a, SlowRecord b ) {
+			return a.nanos < b.nanos ? -1 : ( a.nanos == b.nanos ? 0 : 1 );
+		}
+	};
+
+	/**
+	 * A record that took a long time to process.
+	 */
+	public static class SlowRecord {
+		public final String archiveName;
+		public final long offset;
+		public final String url;
+		public final String mimeType;
+		public final long nanos;
+		public final Map<String, Long> stages;
+
+		SlowRecord( String archiveName, long offset, String url, String mimeType, long nanos, Map<String, Long> stages ) {
+			this.archiveName = archiveName;
+			this.offset = offset;
+			this.url = url;
+			this.mimeType = mimeType;
+			this.nanos = nanos;
+			this.stages = new LinkedHashMap<String, Long>( stages );
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append( String.format( "%.2fms %s@%d %s (%s)", nanos / 1000000d, archiveName, offset, url, mimeType ) );
+			for( Map.Entry<String, Long> stage : stages.entrySet() ) {
+				sb.append( String.format( "\n  %s=%.2fms", stage.getKey(), stage.getValue() / 1000000d ) );
+			}
+			return sb.toString();
+		}
+	}
+
+}
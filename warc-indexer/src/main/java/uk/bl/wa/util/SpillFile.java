@@ -0,0 +1,266 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jwat.common.RandomAccessFileInputStream;
+
+/**
+ * A scratch file for caching payloads that are too big to hold in RAM.
+ *
+ * Scratch files are pooled and re-used, so a long run does not create (and
+ * register for deletion on exit) a new temporary file for every large record.
+ * The cached content is read back through a memory-mapped view of the file.
+ * Files are truncated when they go back to the pool, so idle files hold no
+ * data, and a file whose content may still be read by an abandoned parser is
+ * discarded rather than re-used, so that parser can never see a later record.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SpillFile {
+	private static Log log = LogFactory.getLog( SpillFile.class );
+
+	/** Maximum number of idle scratch files to keep */
+	private static final int MAX_POOLED = 8;
+
+	private static final Queue<SpillFile> pool = new ConcurrentLinkedQueue<SpillFile>();
+
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private final File file;
+
+	private final RandomAccessFile raf;
+
+	private long length = 0;
+
+	/** Content larger than this is read through a file handle, not mapped */
+	long mapLimit = Integer.MAX_VALUE;
+
+	/** File handles opened for reading unmapped content */
+	private final List<RandomAccessFile> readers = new ArrayList<RandomAccessFile>();
+
+	private SpillFile() throws IOException {
+		file = File.createTempFile( "warc-indexer", ".cache" );
+		file.deleteOnExit();
+		raf = new RandomAccessFile( file, "rw" );
+		log.debug( "Created scratch file " + file );
+	}
+
+	/**
+	 * @return an empty scratch file, from the pool if possible.
+	 * @throws IOException
+	 */
+	public static SpillFile acquire() throws IOException {
+		SpillFile spill = pool.poll();
+		if( spill == null ) {
+			return new SpillFile();
+		}
+		pooled.decrementAndGet();
+		spill.length = 0;
+		return spill;
+	}
+
+	/**
+	 * Returns the (truncated) scratch file to the pool. Streams opened on it
+	 * must no longer be used.
+	 */
+	public void release() {
+		closeReaders();
+		try {
+			raf.setLength( 0 );
+		} catch( IOException e ) {
+			log.warn( "Could not truncate " + file + ": " + e.getMessage() );
+			discard();
+			return;
+		}
+		length = 0;
+		if( pooled.incrementAndGet() > MAX_POOLED ) {
+			pooled.decrementAndGet();
+			discard();
+			return;
+		}
+		pool.offer( this );
+	}
+
+	/**
+	 * Closes and deletes the scratch file instead of re-using it, for when a
+	 * stream opened on it may still be in use. A mapped view stays valid, and
+	 * keeps the old content, until it is garbage collected.
+	 */
+	public void discard() {
+		closeReaders();
+		try {
+			raf.close();
+		} catch( IOException e ) {
+			log.warn( "Could not close " + file + ": " + e.getMessage() );
+		}
+		file.delete();
+	}
+
+	private void closeReaders() {
+		synchronized( readers ) {
+			for( RandomAccessFile reader : readers ) {
+				try {
+					reader.close();
+				} catch( IOException e ) {
+					log.warn( "Could not close " + file + ": " + e.getMessage() );
+				}
+			}
+			readers.clear();
+		}
+	}
+
+	/**
+	 * @return the number of file handles currently open for reading.
+	 */
+	int getOpenReaderCount() {
+		synchronized( readers ) {
+			return readers.size();
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of bytes written to the file since it was acquired.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return a stream that writes the file from the start. The file is only
+	 *         read up to {@link #getLength()}.
+	 * @throws IOException
+	 */
+	public OutputStream getOutputStream() throws IOException {
+		raf.seek( 0 );
+		length = 0;
+		return new OutputStream() {
+			@Override
+			public void write( int b ) throws IOException {
+				raf.write( b );
+				length++;
+			}
+
+			@Override
+			public void write( byte[] b, int off, int len ) throws IOException {
+				raf.write( b, off, len );
+				length += len;
+			}
+		};
+	}
+
+	/**
+	 * @return a stream over the content of the file, with mark/reset support.
+	 * @throws IOException
+	 */
+	public InputStream getInputStream() throws IOException {
+		if( length > mapLimit ) {
+			// Too big for a single mapped buffer (closed on release/discard):
+			RandomAccessFile in = new RandomAccessFile( file, "r" );
+			synchronized( readers ) {
+				readers.add( in );
+			}
+			return new RandomAccessFileInputStream( in );
+		}
+		ByteBuffer mapped = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, length );
+		return new ByteBufferInputStream( mapped );
+	}
+
+	/**
+	 * Reads a (memory-mapped) buffer. Any position can be marked, as all the
+	 * content is available.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream( ByteBuffer buffer ) {
+			this.buffer = buffer;
+			this.buffer.mark();
+		}
+
+		@Override
+		public int read() {
+			if( !buffer.hasRemaining() )
+				return -1;
+			return buffer.get() & 0xff;
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) {
+			if( len == 0 )
+				return 0;
+			if( !buffer.hasRemaining() )
+				return -1;
+			int n = Math.min( len, buffer.remaining() );
+			buffer.get( b, off, n );
+			return n;
+		}
+
+		@Override
+		public long skip( long n ) {
+			int skipped = ( int ) Math.max( 0, Math.min( n, buffer.remaining() ) );
+			buffer.position( buffer.position() + skipped );
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark( int readlimit ) {
+			buffer.mark();
+		}
+
+		@Override
+		public synchronized void reset() {
+			buffer.reset();
+		}
+	}
+
+}
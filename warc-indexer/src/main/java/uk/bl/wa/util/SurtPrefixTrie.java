@@ -0,0 +1,372 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.wayback.surt.SURTTokenizer;
+
+/**
+ * An immutable set of SURT prefixes, e.g. as loaded from a Wayback-style
+ * exclusion file, for checking large numbers of URLs against.
+ *
+ * The prefixes are held in a path-compressed trie, flattened into a few
+ * arrays. Apart from canonicalising the URL into its SURT form, checking a URL
+ * does not allocate anything: the candidate prefixes are the same as those
+ * generated by Wayback's {@link SURTTokenizer} (the exact URL, then with the
+ * query and path segments removed, and then the host name broken down), but
+ * they are walked as lengths within the SURT rather than as new Strings.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SurtPrefixTrie {
+
+	/** Marks an exact (rather than prefix) key, as in SURTTokenizer */
+	private static final char EXACT_SUFFIX = '\t';
+
+	/** All the edge labels */
+	private final char[] labels;
+
+	/** Per node: the label of the edge leading to it */
+	private final int[] labelStart;
+	private final int[] labelLength;
+
+	/** Per node: its children, which are contiguous and sorted by first char */
+	private final int[] firstChild;
+	private final int[] childCount;
+
+	/** Per node: whether a key ends here */
+	private final boolean[] terminal;
+
+	private final int size;
+
+	/**
+	 * @param keys
+	 *            the SURT keys (prefixes, or exact keys ending with a tab).
+	 */
+	public SurtPrefixTrie( Collection<String> keys ) {
+		String[] sorted = new TreeSet<String>( keys ).toArray( new String[ 0 ] );
+		this.size = sorted.length;
+		Builder builder = new Builder( sorted );
+		this.labels = builder.labels.toString().toCharArray();
+		this.labelStart = toArray( builder.labelStart );
+		this.labelLength = toArray( builder.labelLength );
+		this.firstChild = toArray( builder.firstChild );
+		this.childCount = toArray( builder.childCount );
+		this.terminal = new boolean[ builder.terminal.size() ];
+		for( int i = 0; i < terminal.length; i++ ) {
+			terminal[ i ] = builder.terminal.get( i );
+		}
+	}
+
+	/**
+	 * Loads an exclusion file in the format used by Wayback's
+	 * StaticMapExclusionFilterFactory, i.e. one URL (prefix) or SURT prefix
+	 * per line.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static SurtPrefixTrie load( File file ) throws IOException {
+		List<String> keys = new ArrayList<String>();
+		BufferedReader in = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "UTF-8" ) );
+		try {
+			String line;
+			while( ( line = in.readLine() ) != null ) {
+				line = line.trim();
+				if( line.length() == 0 ) {
+					continue;
+				}
+				keys.add( line.startsWith( "(" ) ? line : SURTTokenizer.prefixKey( line ) );
+			}
+		} finally {
+			in.close();
+		}
+		return new SurtPrefixTrie( keys );
+	}
+
+	/**
+	 * @return the number of keys.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param url
+	 *            a URL, or a SURT if it starts with '('.
+	 * @return true if the URL falls under any of the prefixes, or cannot be
+	 *         canonicalised.
+	 */
+	public boolean isExcluded( String url ) {
+		String key;
+		try {
+			key = url.startsWith( "(" ) ? url : SURTTokenizer.exactKey( url );
+		} catch( URIException e ) {
+			return true;
+		}
+		return matches( key );
+	}
+
+	/**
+	 * Checks the same prefixes of the SURT as SURTTokenizer#nextSearch
+	 * generates, in the same order.
+	 *
+	 * @param key
+	 *            a SURT.
+	 * @return true if any of them is in the set.
+	 */
+	public boolean matches( String key ) {
+		int r = key.length();
+		if( contains( key, r, true ) || contains( key, r, false ) ) {
+			return true;
+		}
+		boolean choppedPath = endsWithHostEnd( key, r );
+		// Without the query:
+		int q = key.indexOf( '?' );
+		if( q != -1 ) {
+			r = q;
+			if( contains( key, r, false ) ) {
+				return true;
+			}
+		}
+		// Removing path segments, up to and including the start of the path:
+		while( !choppedPath ) {
+			int idx = key.lastIndexOf( '/', r - 1 );
+			if( idx == -1 ) {
+				break;
+			}
+			if( idx == r - 1 ) {
+				if( endsWithHostEnd( key, r ) ) {
+					if( contains( key, r, false ) ) {
+						return true;
+					}
+					r = idx - 1;
+					choppedPath = true;
+				} else {
+					r = idx;
+					if( contains( key, r, false ) ) {
+						return true;
+					}
+				}
+			} else if( idx > 0 && key.charAt( idx - 1 ) == ')' ) {
+				if( contains( key, idx + 1, false ) ) {
+					return true;
+				}
+				r = idx - 1;
+			} else {
+				r = idx;
+				if( contains( key, r, false ) ) {
+					return true;
+				}
+			}
+		}
+		// Without the login:
+		int at = key.lastIndexOf( '@', r - 1 );
+		if( at != -1 ) {
+			if( contains( key, r, false ) ) {
+				return true;
+			}
+			r = at;
+		}
+		// With the port:
+		if( key.lastIndexOf( ':', r - 1 ) != -1 && contains( key, r, false ) ) {
+			return true;
+		}
+		// Then the ever shorter host names:
+		int c;
+		while( ( c = key.lastIndexOf( ',', r - 1 ) ) != -1 ) {
+			r = c;
+			if( contains( key, r, false ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean endsWithHostEnd( String key, int length ) {
+		return length >= 2 && key.charAt( length - 2 ) == ')' && key.charAt( length - 1 ) == '/';
+	}
+
+	/**
+	 * @param key
+	 * @param length
+	 *            the length of the prefix of the key to look up.
+	 * @param exact
+	 *            whether to look up the exact form, i.e. followed by a tab.
+	 * @return true if the (exact) prefix is in the set.
+	 */
+	private boolean contains( String key, int length, boolean exact ) {
+		int end = exact ? length + 1 : length;
+		int node = 0;
+		int pos = 0;
+		while( pos < end ) {
+			int child = findChild( node, charAt( key, length, pos ) );
+			if( child == -1 ) {
+				return false;
+			}
+			int start = labelStart[ child ];
+			int len = labelLength[ child ];
+			if( pos + len > end ) {
+				return false;
+			}
+			for( int i = 1; i < len; i++ ) {
+				if( labels[ start + i ] != charAt( key, length, pos + i ) ) {
+					return false;
+				}
+			}
+			pos += len;
+			node = child;
+		}
+		return terminal[ node ];
+	}
+
+	private static char charAt( String key, int length, int pos ) {
+		return pos < length ? key.charAt( pos ) : EXACT_SUFFIX;
+	}
+
+	/**
+	 * Binary search over the first chars of the children's labels.
+	 */
+	private int findChild( int node, char c ) {
+		int lo = firstChild[ node ];
+		int hi = lo + childCount[ node ] - 1;
+		while( lo <= hi ) {
+			int mid = ( lo + hi ) >>> 1;
+			char m = labels[ labelStart[ mid ] ];
+			if( m < c ) {
+				lo = mid + 1;
+			} else if( m > c ) {
+				hi = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private static int[] toArray( List<Integer> list ) {
+		int[] array = new int[ list.size() ];
+		for( int i = 0; i < array.length; i++ ) {
+			array[ i ] = list.get( i );
+		}
+		return array;
+	}
+
+	/**
+	 * Builds the flattened trie from the sorted keys, giving the children of
+	 * each node consecutive numbers.
+	 */
+	private static class Builder {
+		private final String[] keys;
+		private final StringBuilder labels = new StringBuilder();
+		private final List<Integer> labelStart = new ArrayList<Integer>();
+		private final List<Integer> labelLength = new ArrayList<Integer>();
+		private final List<Integer> firstChild = new ArrayList<Integer>();
+		private final List<Integer> childCount = new ArrayList<Integer>();
+		private final List<Boolean> terminal = new ArrayList<Boolean>();
+
+		Builder( String[] keys ) {
+			this.keys = keys;
+			int root = newNode( 0, 0 );
+			build( root, 0, keys.length, 0 );
+		}
+
+		private int newNode( int start, int length ) {
+			labelStart.add( start );
+			labelLength.add( length );
+			firstChild.add( 0 );
+			childCount.add( 0 );
+			terminal.add( false );
+			return terminal.size() - 1;
+		}
+
+		/**
+		 * Fills in a node for the keys in [lo, hi), which share their first
+		 * depth chars.
+		 */
+		private void build( int node, int lo, int hi, int depth ) {
+			if( lo < hi && keys[ lo ].length() == depth ) {
+				terminal.set( node, true );
+				lo++;
+			}
+			// Group the rest by their next char:
+			List<int[]> groups = new ArrayList<int[]>();
+			for( int i = lo; i < hi; ) {
+				char c = keys[ i ].charAt( depth );
+				int j = i + 1;
+				while( j < hi && keys[ j ].charAt( depth ) == c ) {
+					j++;
+				}
+				groups.add( new int[] { i, j } );
+				i = j;
+			}
+			if( groups.isEmpty() ) {
+				return;
+			}
+			// Number the children together, then fill them in:
+			int[] children = new int[ groups.size() ];
+			int[] depths = new int[ groups.size() ];
+			for( int g = 0; g < groups.size(); g++ ) {
+				int[] group = groups.get( g );
+				String first = keys[ group[ 0 ] ];
+				int end = commonPrefix( first, keys[ group[ 1 ] - 1 ] );
+				children[ g ] = newNode( labels.length(), end - depth );
+				labels.append( first, depth, end );
+				depths[ g ] = end;
+			}
+			firstChild.set( node, children[ 0 ] );
+			childCount.set( node, children.length );
+			for( int g = 0; g < groups.size(); g++ ) {
+				build( children[ g ], groups.get( g )[ 0 ], groups.get( g )[ 1 ], depths[ g ] );
+			}
+		}
+
+		private static int commonPrefix( String a, String b ) {
+			int n = Math.min( a.length(), b.length() );
+			int i = 0;
+			while( i < n && a.charAt( i ) == b.charAt( i ) ) {
+				i++;
+			}
+			return i;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SurtPrefixTrie[" + size + " keys, " + terminal.length + " nodes]";
+	}
+
+}
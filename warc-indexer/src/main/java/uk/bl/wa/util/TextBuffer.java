@@ -0,0 +1,146 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.Writer;
+
+/**
+ * An unsynchronized, re-usable character buffer for capturing extracted text,
+ * which silently drops anything beyond a maximum length.
+ *
+ * Unlike a StringWriter, the content is only copied once, when it is turned
+ * into a String, and the buffer can be cleared and re-used for the next record.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class TextBuffer extends Writer {
+
+	/** Initial size of the buffer, which grows as required up to the cap */
+	private static final int INITIAL_CAPACITY = 64 * 1024;
+
+	private final int maxLength;
+
+	private char[] buf;
+
+	private int count = 0;
+
+	/**
+	 * @param maxLength
+	 *            the maximum number of characters to hold.
+	 */
+	public TextBuffer( int maxLength ) {
+		this.maxLength = maxLength;
+		this.buf = new char[ Math.max( 0, Math.min( maxLength, INITIAL_CAPACITY ) ) ];
+	}
+
+	/**
+	 * Empties the buffer, keeping the memory already allocated.
+	 */
+	public void clear() {
+		count = 0;
+	}
+
+	/**
+	 * @return the number of characters held.
+	 */
+	public int length() {
+		return count;
+	}
+
+	/**
+	 * @return true if any characters were dropped because of the cap.
+	 */
+	public boolean isFull() {
+		return count >= maxLength;
+	}
+
+	/**
+	 * Makes room for n more characters, up to the cap.
+	 *
+	 * @return the number of characters that can be appended.
+	 */
+	private int ensureCapacity( int n ) {
+		int room = Math.min( n, maxLength - count );
+		if( count + room > buf.length ) {
+			int size = ( int ) Math.min( maxLength, Math.max( count + ( long ) room, 2L * buf.length ) );
+			char[] bigger = new char[ size ];
+			System.arraycopy( buf, 0, bigger, 0, count );
+			buf = bigger;
+		}
+		return room;
+	}
+
+	@Override
+	public void write( int c ) {
+		if( ensureCapacity( 1 ) > 0 ) {
+			buf[ count++ ] = ( char ) c;
+		}
+	}
+
+	@Override
+	public void write( char[] cbuf, int off, int len ) {
+		int n = ensureCapacity( len );
+		System.arraycopy( cbuf, off, buf, count, n );
+		count += n;
+	}
+
+	@Override
+	public void write( String str, int off, int len ) {
+		int n = ensureCapacity( len );
+		str.getChars( off, off + n, buf, count );
+		count += n;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Returns the content, with any unpaired surrogates (e.g. from a pair
+	 * split by the cap) replaced by '?', as encoding to UTF-8 would.
+	 */
+	@Override
+	public String toString() {
+		int n = count;
+		char[] chars = buf;
+		for( int i = 0; i < n; i++ ) {
+			char c = chars[ i ];
+			if( Character.isHighSurrogate( c ) ) {
+				if( i + 1 < n && Character.isLowSurrogate( chars[ i + 1 ] ) ) {
+					i++;
+				} else {
+					chars[ i ] = '?';
+				}
+			} else if( Character.isLowSurrogate( c ) ) {
+				chars[ i ] = '?';
+			}
+		}
+		return new String( chars, 0, n );
+	}
+
+}
@@ -0,0 +1,269 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.typesafe.config.Config;
+
+/**
+ * Runs tasks (typically parsers) with a deadline, on a shared and bounded pool
+ * of threads, rather than starting a new thread for every record.
+ *
+ * Tasks that overrun their deadline are interrupted and abandoned. Some
+ * parsers ignore interrupts, so an abandoned task may keep its thread busy;
+ * such 'stuck' tasks are counted, and once every thread in the pool is busy
+ * new tasks are refused rather than letting runaway threads pile up.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class TimeoutService {
+	private static Log log = LogFactory.getLog( TimeoutService.class );
+
+	/** Maximum number of threads available for running parsers */
+	public static final String CONF_MAX_THREADS = "warc.index.max_parser_threads";
+
+	public static final int DEFAULT_MAX_THREADS = 64;
+
+	/**
+	 * How a task run with a deadline ended.
+	 */
+	public enum Outcome {
+		/** The task ran to completion (or failed) within its deadline */
+		COMPLETED,
+		/** The task overran its deadline, and was abandoned */
+		TIMED_OUT,
+		/** The task was never started, as no thread was available */
+		REJECTED
+	}
+
+	private static TimeoutService instance;
+
+	private final ThreadPoolExecutor executor;
+
+	/** Tasks currently running past their deadline */
+	private final AtomicInteger stuck = new AtomicInteger();
+
+	/** Total number of tasks abandoned because of their deadline */
+	private final AtomicLong abandoned = new AtomicLong();
+
+	/** Total number of tasks refused because no thread was available */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/** Number of tasks abandoned by each calling thread */
+	private final ThreadLocal<long[]> abandonedByThread = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[ 1 ];
+		}
+	};
+
+	/**
+	 * @param maxThreads
+	 *            the maximum number of tasks that can run at the same time,
+	 *            including stuck ones.
+	 */
+	public TimeoutService( int maxThreads ) {
+		final AtomicInteger count = new AtomicInteger();
+		// Threads are only created when needed, and die off when idle:
+		executor = new ThreadPoolExecutor( 0, maxThreads, 60L, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread( Runnable r ) {
+						Thread t = new Thread( r, "timeout-runner-" + count.incrementAndGet() );
+						t.setDaemon( true );
+						return t;
+					}
+				} );
+	}
+
+	/**
+	 * @return the shared service, with the default configuration.
+	 */
+	public static TimeoutService getInstance() {
+		return getInstance( null );
+	}
+
+	/**
+	 * @param conf
+	 *            used to configure the shared service, if this is the first
+	 *            call. May be NULL.
+	 * @return the shared service.
+	 */
+	public static synchronized TimeoutService getInstance( Config conf ) {
+		if( instance == null ) {
+			int maxThreads = DEFAULT_MAX_THREADS;
+			if( conf != null && conf.hasPath( CONF_MAX_THREADS ) ) {
+				maxThreads = conf.getInt( CONF_MAX_THREADS );
+			}
+			log.info( "Setting up shared parser pool with up to " + maxThreads + " threads." );
+			instance = new TimeoutService( maxThreads );
+		}
+		return instance;
+	}
+
+	/**
+	 * Runs the task, waiting at most for the given timeout.
+	 *
+	 * Unchecked exceptions and errors (e.g. OutOfMemoryError) thrown by the
+	 * task are re-thrown on the calling thread.
+	 *
+	 * @param task
+	 * @param timeout
+	 *            in milliseconds.
+	 * @return whether the task ran to completion, was abandoned or could not
+	 *         be started.
+	 * @throws InterruptedException
+	 *             if the calling thread was interrupted while waiting, in
+	 *             which case the task is abandoned.
+	 */
+	public Outcome run( Runnable task, long timeout ) throws InterruptedException {
+		final long start = System.nanoTime();
+		TrackedTask tracked = new TrackedTask( task );
+		Future<?> future;
+		try {
+			future = executor.submit( tracked );
+		} catch( RejectedExecutionException e ) {
+			rejected.incrementAndGet();
+			log.warn( "No parser thread available for " + task.getClass().getName() + ", " + stuck.get() + " tasks are stuck." );
+			Instrument.timeRel( "TimeoutService.run#total", "TimeoutService.run#rejected", start );
+			return Outcome.REJECTED;
+		}
+		try {
+			future.get( timeout, TimeUnit.MILLISECONDS );
+			Instrument.timeRel( "TimeoutService.run#total", "TimeoutService.run#completed", start );
+			return Outcome.COMPLETED;
+		} catch( TimeoutException e ) {
+			future.cancel( true );
+			tracked.abandon();
+			abandonedByThread.get()[ 0 ]++;
+			log.warn( "Abandoned " + task.getClass().getName() + " after " + timeout + "ms, " + stuck.get() + " tasks are stuck." );
+			Instrument.timeRel( "TimeoutService.run#total", "TimeoutService.run#abandoned", start );
+			return Outcome.TIMED_OUT;
+		} catch( InterruptedException e ) {
+			future.cancel( true );
+			tracked.abandon();
+			abandonedByThread.get()[ 0 ]++;
+			throw e;
+		} catch( ExecutionException e ) {
+			Instrument.timeRel( "TimeoutService.run#total", "TimeoutService.run#completed", start );
+			if( e.getCause() instanceof RuntimeException ) {
+				throw (RuntimeException) e.getCause();
+			}
+			if( e.getCause() instanceof Error ) {
+				throw (Error) e.getCause();
+			}
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * @return the number of tasks still running past their deadline.
+	 */
+	public int getStuckCount() {
+		return stuck.get();
+	}
+
+	/**
+	 * @return the total number of tasks abandoned because of their deadline.
+	 */
+	public long getAbandonedCount() {
+		return abandoned.get();
+	}
+
+	/**
+	 * @return the number of tasks abandoned by the calling thread, so callers
+	 *         can tell whether an abandoned task may still be using their data.
+	 */
+	public long getAbandonedCountForThread() {
+		return abandonedByThread.get()[ 0 ];
+	}
+
+	/**
+	 * @return the total number of tasks refused because no thread was
+	 *         available.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Keeps track of whether an abandoned task is still holding on to its
+	 * thread.
+	 */
+	private class TrackedTask implements Runnable {
+		private static final int NEW = 0;
+		private static final int RUNNING = 1;
+		private static final int DONE = 2;
+		private static final int ABANDONED = 3;
+
+		private final Runnable task;
+		private final AtomicInteger state = new AtomicInteger( NEW );
+
+		TrackedTask( Runnable task ) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			if( !state.compareAndSet( NEW, RUNNING ) ) {
+				// Abandoned before it even started:
+				return;
+			}
+			try {
+				task.run();
+			} finally {
+				if( !state.compareAndSet( RUNNING, DONE ) ) {
+					// Was abandoned, but has finished now:
+					stuck.decrementAndGet();
+					log.info( "Abandoned " + task.getClass().getName() + " has finished, " + stuck.get() + " tasks are stuck." );
+				}
+			}
+		}
+
+		void abandon() {
+			abandoned.incrementAndGet();
+			stuck.incrementAndGet();
+			if( state.compareAndSet( RUNNING, ABANDONED ) ) {
+				return;
+			}
+			// Either never started or already done, so not stuck:
+			stuck.decrementAndGet();
+			state.compareAndSet( NEW, ABANDONED );
+		}
+	}
+
+}
@@ -26,16 +26,26 @@ package uk.bl.wa.analyser.payload;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.tika.metadata.Metadata;
 import org.junit.Before;
 import org.junit.Test;
 
 import uk.bl.wa.nanite.droid.DroidDetector;
+import uk.bl.wa.util.HeadTailInputStream;
 import uk.gov.nationalarchives.droid.command.action.CommandExecutionException;
 
 /**
@@ -84,4 +94,63 @@ public class DroidDetectorTest {
 						.getBaseType().toString());
 
 	}
+
+	/**
+	 * Large containers are identified the same whether or not DROID is only
+	 * given the start and the end of the payloads.
+	 * 
+	 * @throws IOException
+	 */
+	@Test
+	public void testLargeContainer() throws IOException {
+		int window = WARCPayloadAnalysers.DEFAULT_DROID_WINDOW;
+		byte[] docx = docx( 4 * window );
+		assertTrue( HeadTailInputStream.isWindowed( docx.length, window ) );
+
+		InputStream in = new ByteArrayInputStream( docx );
+		InputStream droidinput = WARCPayloadAnalysers.getDroidInput( in, docx.length, window, false );
+		assertSame( in, droidinput );
+		assertEquals( dd.detect( new ByteArrayInputStream( docx ), new Metadata() ),
+				dd.detect( droidinput, new Metadata() ) );
+
+		// Other large payloads, and containers when only binary signatures are used, are windowed:
+		assertFalse( WARCPayloadAnalysers.getDroidInput( new ByteArrayInputStream( docx ), docx.length, window,
+				true ) instanceof ByteArrayInputStream );
+		byte[] other = new byte[ docx.length ];
+		assertFalse( WARCPayloadAnalysers.getDroidInput( new ByteArrayInputStream( other ), other.length, window,
+				false ) instanceof ByteArrayInputStream );
+	}
+
+	/**
+	 * Builds a minimal Word document, padded out with an incompressible image.
+	 */
+	private static byte[] docx( int padding ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZipOutputStream zip = new ZipOutputStream( out );
+		addEntry( zip, "[Content_Types].xml", ( "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+				+ "<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">"
+				+ "<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>"
+				+ "<Default Extension=\"xml\" ContentType=\"application/xml\"/>"
+				+ "<Default Extension=\"png\" ContentType=\"image/png\"/>"
+				+ "<Override PartName=\"/word/document.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml\"/>"
+				+ "</Types>" ).getBytes( "UTF-8" ) );
+		addEntry( zip, "_rels/.rels", ( "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+				+ "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+				+ "<Relationship Id=\"rId1\" Type=\"http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument\" Target=\"word/document.xml\"/>"
+				+ "</Relationships>" ).getBytes( "UTF-8" ) );
+		addEntry( zip, "word/document.xml", ( "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+				+ "<w:document xmlns:w=\"http://schemas.openxmlformats.org/wordprocessingml/2006/main\">"
+				+ "<w:body><w:p><w:r><w:t>Hello</w:t></w:r></w:p></w:body></w:document>" ).getBytes( "UTF-8" ) );
+		byte[] image = new byte[ padding ];
+		new Random( padding ).nextBytes( image );
+		addEntry( zip, "word/media/image1.png", image );
+		zip.close();
+		return out.toByteArray();
+	}
+
+	private static void addEntry( ZipOutputStream zip, String name, byte[] content ) throws IOException {
+		zip.putNextEntry( new ZipEntry( name ) );
+		zip.write( content );
+		zip.closeEntry();
+	}
 }
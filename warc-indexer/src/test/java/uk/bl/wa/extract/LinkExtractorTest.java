@@ -0,0 +1,73 @@
+package uk.bl.wa.extract;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import uk.bl.wa.extract.LinkExtractor.HostInfo;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class LinkExtractorTest {
+
+	@Test
+	public void testParseLink() {
+		HostInfo info = LinkExtractor.parseLink( "http://www.google.com/test.html" );
+		assertEquals( "www.google.com", info.getHost() );
+		assertEquals( "google.com", info.getDomain() );
+		assertEquals( "com", info.getPublicSuffix() );
+
+		info = LinkExtractor.parseLink( "http://www.google.co.uk/test.html" );
+		assertEquals( "www.google.co.uk", info.getHost() );
+		assertEquals( "google.co.uk", info.getDomain() );
+		assertEquals( "co.uk", info.getPublicSuffix() );
+
+		info = LinkExtractor.parseLink( "http://www.bl.uk/test.html" );
+		assertEquals( "www.bl.uk", info.getDomain() );
+		assertEquals( "bl.uk", info.getPublicSuffix() );
+	}
+
+	@Test
+	public void testMalformedLink() {
+		HostInfo info = LinkExtractor.parseLink( "not a link" );
+		assertEquals( LinkExtractor.MALFORMED_HOST, info.getHost() );
+		assertNull( info.getDomain() );
+		assertNull( info.getPublicSuffix() );
+		assertNull( LinkExtractor.extractPublicSuffix( "not a link" ) );
+	}
+
+	@Test
+	public void testHostsAreCached() {
+		assertSame( LinkExtractor.parseLink( "http://www.example.com/a" ),
+				LinkExtractor.parseLink( "http://www.example.com/b" ) );
+		assertEquals( "example.com", LinkExtractor.extractPrivateSuffixFromHost( "www.example.com" ) );
+	}
+
+}
@@ -0,0 +1,117 @@
+package uk.bl.wa.indexer;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class ExclusionListTest {
+
+	private static final String IMAGES = "(org,archive,www,)/images/logo.gif";
+	private static final String EXAMPLE = "(com,example,)/index.html";
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile( "exclusions", ".txt" );
+		FileUtils.writeStringToFile( file, "(org,archive,www,)/images\n", "UTF-8" );
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly( file );
+	}
+
+	@Test
+	public void testReload() throws IOException {
+		ExclusionList exclusions = new ExclusionList( file );
+		assertTrue( exclusions.isExcluded( IMAGES ) );
+		assertFalse( exclusions.isExcluded( EXAMPLE ) );
+		assertFalse( exclusions.reloadIfChanged() );
+
+		replace( "(com,example\n" );
+		assertTrue( exclusions.reloadIfChanged() );
+		assertFalse( exclusions.isExcluded( IMAGES ) );
+		assertTrue( exclusions.isExcluded( EXAMPLE ) );
+		assertFalse( exclusions.reloadIfChanged() );
+	}
+
+	@Test
+	public void testKeepPreviousOnFailure() throws IOException {
+		ExclusionList exclusions = new ExclusionList( file );
+		long modified = file.lastModified();
+
+		// A missing file:
+		assertTrue( file.delete() );
+		assertFalse( exclusions.reloadIfChanged() );
+		assertTrue( exclusions.isExcluded( IMAGES ) );
+
+		// One that cannot be read:
+		assertTrue( file.mkdir() );
+		assertTrue( file.setLastModified( modified + 2000 ) );
+		assertFalse( exclusions.reloadIfChanged() );
+		assertTrue( exclusions.isExcluded( IMAGES ) );
+		assertFalse( exclusions.isExcluded( EXAMPLE ) );
+
+		// And once it is fixed, it is picked up:
+		assertTrue( file.delete() );
+		replace( "(com,example\n" );
+		assertTrue( exclusions.reloadIfChanged() );
+		assertTrue( exclusions.isExcluded( EXAMPLE ) );
+	}
+
+	@Test
+	public void testShared() throws IOException {
+		Config conf = ConfigFactory.empty().withValue( ExclusionList.CONF_FILE, ConfigValueFactory.fromAnyRef( file.getPath() ) );
+		assertSame( ExclusionList.getInstance( conf ), ExclusionList.getInstance( conf ) );
+	}
+
+	/**
+	 * Rewrites the file, making sure its modification time changes.
+	 */
+	private void replace( String content ) throws IOException {
+		long modified = file.lastModified();
+		FileUtils.writeStringToFile( file, content, "UTF-8" );
+		file.setLastModified( Math.max( modified, file.lastModified() ) + 4000 );
+	}
+
+}
@@ -0,0 +1,161 @@
+package uk.bl.wa.indexer;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import uk.bl.wa.solr.SolrFields;
+import uk.bl.wa.solr.SolrRecord;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class PayloadCacheTest {
+
+	private SolrRecord capture( String url ) {
+		SolrRecord solr = new SolrRecord();
+		solr.setField( SolrFields.SOLR_URL, url );
+		solr.setField( SolrFields.HASH, "sha1:ABC" );
+		solr.addField( SolrFields.SOLR_LINKS, "http://example.org/existing" );
+		return solr;
+	}
+
+	private void analyse( SolrRecord solr, String contentType ) {
+		solr.setField( SolrFields.SOLR_CONTENT_TYPE, contentType );
+		solr.setField( SolrFields.SOLR_EXTRACTED_TEXT, "Some text" );
+		solr.addField( SolrFields.SOLR_LINKS, "http://example.org/found" );
+	}
+
+	@Test
+	public void testReusesPayloadFields() {
+		PayloadCache cache = new PayloadCache( 1024 * 1024 );
+		SolrRecord first = capture( "http://example.org/logo.png" );
+		assertFalse( cache.apply( "sha1:ABC", "http://example.org/logo.png", first ) );
+		Map<String, List<Object>> before = PayloadCache.snapshot( first );
+		analyse( first, "image/png" );
+		cache.put( "sha1:ABC", "http://example.org/logo.png", before, first );
+
+		// The same payload, at another URL:
+		SolrRecord second = capture( "http://example.org/copy-of-logo.png" );
+		assertTrue( cache.apply( "sha1:ABC", "http://example.org/copy-of-logo.png", second ) );
+		assertEquals( "image/png", second.getFieldValue( SolrFields.SOLR_CONTENT_TYPE ) );
+		assertEquals( "Some text", second.getFieldValue( SolrFields.SOLR_EXTRACTED_TEXT ) );
+		assertEquals( "http://example.org/copy-of-logo.png", second.getFieldValue( SolrFields.SOLR_URL ) );
+		// Only the values added by the analysis are copied over:
+		assertEquals( Arrays.asList( "http://example.org/existing", "http://example.org/found" ),
+				second.getField( SolrFields.SOLR_LINKS ).getValues() );
+		assertEquals( 1, cache.getHitCount() );
+		assertEquals( 1, cache.getMissCount() );
+	}
+
+	@Test
+	public void testHtmlOnlyReusedForSameUrl() {
+		PayloadCache cache = new PayloadCache( 1024 * 1024 );
+		SolrRecord first = capture( "http://example.org/a/" );
+		Map<String, List<Object>> before = PayloadCache.snapshot( first );
+		analyse( first, "text/html" );
+		cache.put( "sha1:ABC", "http://example.org/a/", before, first );
+
+		assertFalse( cache.apply( "sha1:ABC", "http://example.org/b/", capture( "http://example.org/b/" ) ) );
+		assertTrue( cache.apply( "sha1:ABC", "http://example.org/a/", capture( "http://example.org/a/" ) ) );
+	}
+
+	@Test
+	public void testParseErrorsNotCached() {
+		PayloadCache cache = new PayloadCache( 1024 * 1024 );
+		SolrRecord first = capture( "http://example.org/doc.pdf" );
+		Map<String, List<Object>> before = PayloadCache.snapshot( first );
+		analyse( first, "application/pdf" );
+		first.addField( SolrFields.PARSE_ERROR, "java.util.concurrent.TimeoutException: Parse abandoned after 30000ms" );
+		cache.put( "sha1:ABC", "http://example.org/doc.pdf", before, first );
+
+		SolrRecord second = capture( "http://example.org/doc.pdf" );
+		assertFalse( cache.apply( "sha1:ABC", "http://example.org/doc.pdf", second ) );
+		assertNull( second.getField( SolrFields.PARSE_ERROR ) );
+	}
+
+	@Test
+	public void testReplacedFields() {
+		PayloadCache cache = new PayloadCache( 1024 * 1024 );
+		SolrRecord first = capture( "http://example.org/logo.png" );
+		first.setField( SolrFields.SOLR_CONTENT_TYPE, "application/octet-stream" );
+		first.setField( SolrFields.CONTENT_LENGTH, "100" );
+		Map<String, List<Object>> before = PayloadCache.snapshot( first );
+		// Overwritten with the same number of values:
+		analyse( first, "image/png" );
+		// Removed:
+		first.removeField( SolrFields.CONTENT_LENGTH );
+		cache.put( "sha1:ABC", "http://example.org/logo.png", before, first );
+
+		SolrRecord second = capture( "http://example.org/logo.png" );
+		second.setField( SolrFields.SOLR_CONTENT_TYPE, "application/octet-stream" );
+		second.setField( SolrFields.CONTENT_LENGTH, "100" );
+		assertTrue( cache.apply( "sha1:ABC", "http://example.org/logo.png", second ) );
+		assertEquals( Arrays.asList( "image/png" ), second.getField( SolrFields.SOLR_CONTENT_TYPE ).getValues() );
+		assertNull( second.getField( SolrFields.CONTENT_LENGTH ) );
+	}
+
+	@Test
+	public void testKeyedByExtension() {
+		PayloadCache cache = new PayloadCache( 1024 * 1024 );
+		SolrRecord first = capture( "http://example.org/x.css" );
+		Map<String, List<Object>> before = PayloadCache.snapshot( first );
+		analyse( first, "text/css" );
+		cache.put( "sha1:ABC", "http://example.org/x.css", before, first );
+
+		// The same bytes under another extension may be identified differently:
+		assertFalse( cache.apply( "sha1:ABC", "http://example.org/x.txt", capture( "http://example.org/x.txt" ) ) );
+		SolrRecord second = capture( "http://example.org/y.CSS?v=2" );
+		assertTrue( cache.apply( "sha1:ABC", "http://example.org/y.CSS?v=2", second ) );
+		assertEquals( "text/css", second.getFieldValue( SolrFields.SOLR_CONTENT_TYPE ) );
+
+		// Unless the format tools are not given the URL:
+		cache = new PayloadCache( 1024 * 1024, false );
+		before = PayloadCache.snapshot( first = capture( "http://example.org/x.css" ) );
+		analyse( first, "text/css" );
+		cache.put( "sha1:ABC", "http://example.org/x.css", before, first );
+		assertTrue( cache.apply( "sha1:ABC", "http://example.org/x.txt", capture( "http://example.org/x.txt" ) ) );
+	}
+
+	@Test
+	public void testGetExtension() {
+		assertEquals( "png", PayloadCache.getExtension( "http://example.org/a/logo.PNG" ) );
+		assertEquals( "rss", PayloadCache.getExtension( "http://example.org/feed.rss?page=1#top" ) );
+		assertEquals( "", PayloadCache.getExtension( "http://example.org/a.b/about" ) );
+		assertEquals( "", PayloadCache.getExtension( "http://example.org" ) );
+		assertEquals( "", PayloadCache.getExtension( "http://example.org/" ) );
+		assertEquals( "", PayloadCache.getExtension( null ) );
+	}
+
+}
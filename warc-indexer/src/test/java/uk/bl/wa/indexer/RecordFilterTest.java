@@ -0,0 +1,103 @@
+package uk.bl.wa.indexer;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class RecordFilterTest {
+
+	@Test
+	public void testRecordTypes() {
+		RecordFilter filter = new RecordFilter( Arrays.asList( "response", "revisit" ), Arrays.asList( "" ),
+				Collections.<String> emptyList(), Arrays.asList( "" ) );
+		assertTrue( filter.acceptRecordType( "response" ) );
+		assertTrue( filter.acceptRecordType( "revisit" ) );
+		assertFalse( filter.acceptRecordType( "request" ) );
+	}
+
+	@Test
+	public void testProtocols() {
+		RecordFilter filter = new RecordFilter( Arrays.asList( "response" ), Arrays.asList( "http://", "https://" ),
+				Collections.<String> emptyList(), Arrays.asList( "" ) );
+		assertTrue( filter.acceptProtocol( "http://example.com/" ) );
+		assertTrue( filter.acceptProtocol( "https://example.com/" ) );
+		assertFalse( filter.acceptProtocol( "dns:example.com" ) );
+	}
+
+	@Test
+	public void testUrlExcludes() {
+		RecordFilter filter = new RecordFilter( Arrays.asList( "response" ), Arrays.asList( "" ),
+				Arrays.asList( "", "robots.txt", "/cgi-bin/\\w+\\.pl", "a|b" ), Arrays.asList( "" ) );
+		for( String url : new String[] { "http://example.com/", "http://example.com/robots.txt",
+				"http://example.com/cgi-bin/test.pl?x=1", "http://example.com/robotsXtxt", "a", "b", "x/a", "b/x" } ) {
+			assertEquals( url, checkUrl( url, "", "robots.txt", "/cgi-bin/\\w+\\.pl", "a|b" ), filter.acceptUrl( url ) );
+		}
+		long rejected = RecordFilter.getRejections().get( "url_exclude[robots.txt]" );
+		assertFalse( filter.acceptUrl( "http://example.com/robots.txt" ) );
+		assertEquals( rejected + 1, ( long ) RecordFilter.getRejections().get( "url_exclude[robots.txt]" ) );
+	}
+
+	@Test
+	public void testResponseCodes() {
+		RecordFilter filter = new RecordFilter( Arrays.asList( "response" ), Arrays.asList( "" ),
+				Collections.<String> emptyList(), Arrays.asList( "2", "301" ) );
+		assertTrue( filter.acceptResponseCode( "200" ) );
+		assertTrue( filter.acceptResponseCode( "204" ) );
+		assertTrue( filter.acceptResponseCode( "301" ) );
+		assertFalse( filter.acceptResponseCode( "302" ) );
+		assertFalse( filter.acceptResponseCode( "404" ) );
+		assertTrue( filter.acceptResponseCode( "2" ) );
+		assertFalse( filter.acceptResponseCode( "" ) );
+		assertFalse( filter.acceptResponseCode( null ) );
+
+		filter = new RecordFilter( Arrays.asList( "response" ), Arrays.asList( "" ), Collections.<String> emptyList(),
+				Arrays.asList( "" ) );
+		assertTrue( filter.acceptResponseCode( "404" ) );
+		assertFalse( filter.acceptResponseCode( null ) );
+	}
+
+	/**
+	 * The original, uncompiled, URL check.
+	 */
+	private static boolean checkUrl( String url, String... excludes ) {
+		for( String exclude : excludes ) {
+			if( !"".equals( exclude ) && url.matches( ".*" + exclude + ".*" ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
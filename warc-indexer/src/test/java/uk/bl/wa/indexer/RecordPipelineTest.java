@@ -0,0 +1,204 @@
+package uk.bl.wa.indexer;
+
+/*
+ * #%L
+ * warc-indexer
+ * $Id:$
+ * $HeadURL:$
+ * %%
+ * Copyright (C) 2013 - 2014 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.archive.io.ArchiveReader;
+import org.archive.io.ArchiveReaderFactory;
+import org.archive.io.ArchiveRecord;
+import org.junit.Test;
+
+import uk.bl.wa.solr.SolrFields;
+import uk.bl.wa.solr.SolrRecord;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigValueFactory;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class RecordPipelineTest {
+
+	private static final String INPUT = "src/test/resources/IAH-urls-wget.warc.gz";
+
+	private Config conf = ConfigFactory.load().withValue( "warc.solr.check_solr_for_duplicates",
+			ConfigValueFactory.fromAnyRef( false ) );
+
+	@Test
+	public void testPreserveOrder() throws Exception {
+		List<String> expected = extractSequentially();
+		RecordPipeline pipeline = new RecordPipeline( conf, null, 4, true, true );
+		try {
+			assertEquals( expected, process( pipeline, INPUT ) );
+		} finally {
+			pipeline.shutdown();
+		}
+	}
+
+	@Test
+	public void testUnordered() throws Exception {
+		List<String> expected = extractSequentially();
+		RecordPipeline pipeline = new RecordPipeline( conf, null, 4, false, true );
+		try {
+			List<String> ids = process( pipeline, INPUT );
+			Collections.sort( expected );
+			Collections.sort( ids );
+			assertEquals( expected, ids );
+		} finally {
+			pipeline.shutdown();
+		}
+	}
+
+	/**
+	 * The bound on the records in flight holds over all the files being
+	 * processed, not for each of them.
+	 */
+	@Test
+	public void testBoundedOverFiles() throws Exception {
+		final RecordPipeline pipeline = new RecordPipeline( conf, null, 2, 3, false, true );
+		final AtomicInteger max = new AtomicInteger();
+		final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+		List<Thread> files = new ArrayList<Thread>();
+		for( int i = 0; i < 3; i++ ) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						pipeline.process( INPUT, new RecordPipeline.RecordHandler() {
+							@Override
+							public void handle( SolrRecord doc ) {
+								int inFlight = pipeline.getRecordsInFlight();
+								synchronized( max ) {
+									max.set( Math.max( max.get(), inFlight ) );
+								}
+								try {
+									Thread.sleep( 5 );
+								} catch( InterruptedException e ) {
+									Thread.currentThread().interrupt();
+								}
+							}
+						} );
+					} catch( Throwable e ) {
+						failures.add( e );
+					}
+				}
+			};
+			files.add( t );
+			t.start();
+		}
+		for( Thread t : files ) {
+			t.join();
+		}
+		pipeline.shutdown();
+		assertEquals( Collections.<Throwable> emptyList(), failures );
+		assertEquals( 2 * RecordPipeline.RECORDS_PER_THREAD, pipeline.getMaxRecordsInFlight() );
+		assertTrue( "In flight: " + max.get(), max.get() > 0 && max.get() <= pipeline.getMaxRecordsInFlight() );
+		assertEquals( 0, pipeline.getRecordsInFlight() );
+	}
+
+	/**
+	 * A failing handler stops the file, and gives back its slots so the
+	 * pipeline can still be used.
+	 */
+	@Test
+	public void testHandlerFailure() throws Exception {
+		RecordPipeline pipeline = new RecordPipeline( conf, null, 2, true, true );
+		try {
+			final AtomicInteger count = new AtomicInteger();
+			try {
+				pipeline.process( INPUT, new RecordPipeline.RecordHandler() {
+					@Override
+					public void handle( SolrRecord doc ) throws IOException {
+						if( count.incrementAndGet() == 3 ) {
+							throw new IOException( "Handler failed" );
+						}
+					}
+				} );
+				fail( "The handler failure should be passed on." );
+			} catch( IOException e ) {
+				assertEquals( "Handler failed", e.getMessage() );
+			}
+			assertEquals( 0, pipeline.getRecordsInFlight() );
+			assertEquals( extractSequentially(), process( pipeline, INPUT ) );
+		} finally {
+			pipeline.shutdown();
+		}
+	}
+
+	@Test
+	public void testReaderFailure() throws Exception {
+		RecordPipeline pipeline = new RecordPipeline( conf, null, 2, true, true );
+		try {
+			process( pipeline, "src/test/resources/no-such-file.warc.gz" );
+			fail( "The reader failure should be passed on." );
+		} catch( IOException e ) {
+			// Expected
+		} finally {
+			pipeline.shutdown();
+		}
+	}
+
+	private static List<String> process( RecordPipeline pipeline, String inputFile ) throws IOException, InterruptedException {
+		final List<String> ids = new ArrayList<String>();
+		pipeline.process( inputFile, new RecordPipeline.RecordHandler() {
+			@Override
+			public void handle( SolrRecord doc ) {
+				ids.add( String.valueOf( doc.getFieldValue( SolrFields.ID ) ) );
+			}
+		} );
+		return ids;
+	}
+
+	private List<String> extractSequentially() throws IOException, NoSuchAlgorithmException {
+		WARCIndexer windex = new WARCIndexer( conf );
+		String archiveName = new File( INPUT ).getName();
+		ArchiveReader reader = ArchiveReaderFactory.get( INPUT );
+		List<String> ids = new ArrayList<String>();
+		Iterator<ArchiveRecord> ir = reader.iterator();
+		while( ir.hasNext() ) {
+			SolrRecord doc = windex.extract( archiveName, ir.next(), true );
+			if( doc != null ) {
+				ids.add( String.valueOf( doc.getFieldValue( SolrFields.ID ) ) );
+			}
+		}
+		reader.close();
+		assertTrue( ids.size() > 0 );
+		return ids;
+	}
+
+}
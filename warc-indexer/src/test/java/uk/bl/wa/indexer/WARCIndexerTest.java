@@ -25,22 +25,31 @@ package uk.bl.wa.indexer;
  */
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.archive.format.warc.WARCConstants;
 import org.archive.io.ArchiveReader;
 import org.archive.io.ArchiveReaderFactory;
 import org.archive.io.ArchiveRecord;
 import org.archive.util.ArchiveUtils;
 import org.junit.Test;
 
+import uk.bl.wa.solr.SolrFields;
 import uk.bl.wa.solr.SolrRecord;
 
 import com.typesafe.config.Config;
@@ -163,6 +172,101 @@ public class WARCIndexerTest {
 		this.testFilterBehaviourWithConfig(config, 32);		
 	}
 
+	/**
+	 * Revisit records should just update the crawl dates of the revisited
+	 * payload, identified by the WARC-Payload-Digest.
+	 * 
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	@Test
+	public void testRevisitRecords() throws NoSuchAlgorithmException, IOException {
+		WARCIndexer windex = new WARCIndexer(ConfigFactory.load());
+		windex.setCheckSolrForDuplicates(false);
+
+		String inputFile = "src/test/resources/gov.uk-revisit-warcs/BL-20140325122341434-00000-32090~opera~8443.warc.gz";
+		ArchiveReader reader = ArchiveReaderFactory.get(inputFile);
+		Iterator<ArchiveRecord> ir = reader.iterator();
+		int revisitCount = 0;
+		while( ir.hasNext() ) {
+			ArchiveRecord rec = ir.next();
+			if( !"revisit".equals(rec.getHeader().getHeaderValue(WARCConstants.HEADER_KEY_TYPE)) ) {
+				continue;
+			}
+			String digest = (String) rec.getHeader().getHeaderValue(WARCConstants.HEADER_KEY_PAYLOAD_DIGEST);
+			SolrRecord doc = windex.extract("", rec);
+			if( doc == null ) {
+				continue;
+			}
+			revisitCount++;
+			assertTrue(((String) doc.getFieldValue(SolrFields.ID)).startsWith(digest + "/"));
+			assertEquals(3, doc.getSolrDocument().getFieldNames().size());
+			assertNotNull(doc.getField(SolrFields.CRAWL_DATES));
+			assertNotNull(doc.getField(SolrFields.CRAWL_YEARS));
+		}
+		reader.close();
+		assertTrue(revisitCount > 0);
+	}
+
+	/**
+	 * Crawl dates must come out right when several files and records are
+	 * indexed at the same time.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testCrawlDatesWithThreads() throws Exception {
+		Config config = this.modifyValueAt(ConfigFactory.load(), "warc.solr.check_solr_for_duplicates", false);
+		final RecordPipeline pipeline = new RecordPipeline(config, null, 4, false, true);
+		final SimpleDateFormat expectedFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		expectedFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+		final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+		final AtomicInteger checked = new AtomicInteger();
+		final RecordPipeline.RecordHandler handler = new RecordPipeline.RecordHandler() {
+			@Override
+			public void handle(SolrRecord doc) {
+				Object waybackDate = doc.getFieldValue(SolrFields.WAYBACK_DATE);
+				if (waybackDate == null) {
+					return;
+				}
+				String expected;
+				synchronized (expectedFormat) {
+					expected = expectedFormat.format(WARCIndexer.getWaybackDate(waybackDate.toString()));
+				}
+				for (Object value : doc.getSolrDocument().getFieldValues(SolrFields.CRAWL_DATES)) {
+					Object date = ((Map<?, ?>) value).get("add");
+					if (!expected.equals(date)) {
+						errors.add(waybackDate + " gave " + date + " rather than " + expected);
+					}
+				}
+				checked.incrementAndGet();
+			}
+		};
+		List<Thread> files = new ArrayList<Thread>();
+		for (final String inputFile : new String[] { "src/test/resources/IAH-urls-wget.warc.gz",
+				"src/test/resources/IAH-20080430204825-00000-blackbook-truncated.warc.gz",
+				"src/test/resources/IAH-20080430204825-00000-blackbook-truncated.arc.gz" }) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						pipeline.process(inputFile, handler);
+					} catch (Exception e) {
+						errors.add(inputFile + ": " + e);
+					}
+				}
+			};
+			files.add(t);
+			t.start();
+		}
+		for (Thread t : files) {
+			t.join();
+		}
+		pipeline.shutdown();
+		assertEquals(Collections.<String> emptyList(), errors);
+		assertTrue(checked.get() > 0);
+	}
+
 	/* ------------------------------------------------------------ */
 	
 	/*
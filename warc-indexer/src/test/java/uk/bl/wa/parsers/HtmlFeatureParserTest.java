@@ -30,6 +30,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -113,6 +114,39 @@ public class HtmlFeatureParserTest {
         }
     }
 
+    @Test
+    public void testFeatures() throws Exception {
+        String testHtml = "<html><head><meta name=\"OriginalPublicationDate\" content=\"2014/05/01\"/>"
+                + "<link rel=\"license\" href=\"http://example.org/licence\"/></head>"
+                + "<body><p> </p><p>First <b>para</b></p><p>Second</p>"
+                + "<a href=\"/foo\">foo</a><a rel=\"License\" href=\"http://example.org/cc\">cc</a></body></html>";
+        String baseUri = "http://example.com/dummy.html";
+
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.RESOURCE_NAME_KEY, baseUri);
+        new HtmlFeatureParser().parse(new ByteArrayInputStream(testHtml.getBytes()), null, metadata, null);
+        Assert.assertEquals("2014/05/01", metadata.get(HtmlFeatureParser.ORIGINAL_PUB_DATE));
+        Assert.assertEquals("First para", metadata.get(HtmlFeatureParser.FIRST_PARAGRAPH));
+        Assert.assertEquals(2, metadata.getValues(HtmlFeatureParser.LINK_LIST).length);
+        Assert.assertEquals(9, metadata.getValues(HtmlFeatureParser.DISTINCT_ELEMENTS).length);
+        // a before link, as before:
+        Assert.assertEquals("http://example.org/cc", metadata.getValues(Metadata.LICENSE_URL)[0]);
+        Assert.assertEquals("http://example.org/licence", metadata.getValues(Metadata.LICENSE_URL)[1]);
+
+        // Only extract the links:
+        Map<String, Object> conf = new HashMap<String, Object>();
+        conf.put(HtmlFeatureParser.CONF_FEATURES, Arrays.asList(HtmlFeatureParser.FEATURE_LINKS));
+        metadata = new Metadata();
+        metadata.set(Metadata.RESOURCE_NAME_KEY, baseUri);
+        new HtmlFeatureParser(ConfigFactory.parseMap(conf)).parse(
+                new ByteArrayInputStream(testHtml.getBytes()), null, metadata, null);
+        Assert.assertEquals(2, metadata.getValues(HtmlFeatureParser.LINK_LIST).length);
+        Assert.assertNull(metadata.get(HtmlFeatureParser.ORIGINAL_PUB_DATE));
+        Assert.assertNull(metadata.get(HtmlFeatureParser.FIRST_PARAGRAPH));
+        Assert.assertEquals(0, metadata.getValues(HtmlFeatureParser.DISTINCT_ELEMENTS).length);
+        Assert.assertEquals(0, metadata.getValues(Metadata.LICENSE_URL).length);
+    }
+
 	private static void printMetadata(Metadata metadata) {
 		for (String name : metadata.names()) {
 			for (String value : metadata.getValues(name)) {
@@ -0,0 +1,97 @@
+package uk.bl.wa.parsers;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.tika.metadata.Metadata;
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class StreamingHtmlFeatureParserTest {
+
+	private static final String TEST_HTML = "<!DOCTYPE html><html><head>"
+			+ "<meta name=\"OriginalPublicationDate\" content=\"2014/05/01\"/>"
+			+ "<link rel=\"license\" href=\"http://example.org/licence\"/>"
+			+ "<script>if (a<b) document.write('<a href=\"x\">')</script></head>"
+			+ "<body><!-- <a href='c'> --><p> </p><p>First &amp; <b>para</b>\n second</p><p>Second</p>"
+			+ "<a href=\"/foo?x=1&amp;y=2\">foo</a><a rel=\"License\" href=\"http://example.org/cc\">cc</a>"
+			+ "<a href=?q>q</a></body></html>";
+
+	private Metadata parse(InputStream in, String url) throws Exception {
+		Metadata metadata = new Metadata();
+		metadata.set(Metadata.RESOURCE_NAME_KEY, url);
+		new StreamingHtmlFeatureParser().parse(in, null, metadata, null);
+		return metadata;
+	}
+
+	@Test
+	public void testFeatures() throws Exception {
+		Metadata metadata = parse(new ByteArrayInputStream(TEST_HTML.getBytes("UTF-8")),
+				"http://example.com/dir/dummy.html");
+		assertEquals(new HashSet<String>(Arrays.asList("http://example.com/foo?x=1&y=2",
+				"http://example.com/dir/dummy.html?q", "http://example.org/cc")),
+				new HashSet<String>(Arrays.asList(metadata.getValues(HtmlFeatureParser.LINK_LIST))));
+		assertEquals("2014/05/01", metadata.get(HtmlFeatureParser.ORIGINAL_PUB_DATE));
+		assertEquals("First & para second", metadata.get(HtmlFeatureParser.FIRST_PARAGRAPH));
+		assertEquals(new HashSet<String>(Arrays.asList("html", "head", "meta", "link", "link/@rel=license", "script",
+				"body", "p", "b", "a")),
+				new HashSet<String>(Arrays.asList(metadata.getValues(HtmlFeatureParser.DISTINCT_ELEMENTS))));
+		assertEquals(Arrays.asList("http://example.org/cc", "http://example.org/licence"),
+				Arrays.asList(metadata.getValues(Metadata.LICENSE_URL)));
+	}
+
+	/**
+	 * The same page as in {@link HtmlFeatureParserTest} should give the same
+	 * features.
+	 */
+	@Test
+	public void testSameAsJSoup() throws Exception {
+		String url = "http://en.wikipedia.org/wiki/Mona_Lisa";
+		File ml = new File("src/test/resources/wikipedia-mona-lisa/Mona_Lisa.html");
+		Metadata streamed = parse(new FileInputStream(ml), url);
+		Metadata jsouped = new Metadata();
+		jsouped.set(Metadata.RESOURCE_NAME_KEY, url);
+		new HtmlFeatureParser().parse(new FileInputStream(ml), null, jsouped, null);
+
+		assertEquals(43, streamed.getValues(HtmlFeatureParser.DISTINCT_ELEMENTS).length);
+		assertEquals(new HashSet<String>(Arrays.asList(jsouped.getValues(HtmlFeatureParser.DISTINCT_ELEMENTS))),
+				new HashSet<String>(Arrays.asList(streamed.getValues(HtmlFeatureParser.DISTINCT_ELEMENTS))));
+		assertEquals(jsouped.get(HtmlFeatureParser.FIRST_PARAGRAPH), streamed.get(HtmlFeatureParser.FIRST_PARAGRAPH));
+		assertEquals(Arrays.asList(jsouped.getValues(Metadata.LICENSE_URL)),
+				Arrays.asList(streamed.getValues(Metadata.LICENSE_URL)));
+		assertEquals(new HashSet<String>(Arrays.asList(jsouped.getValues(HtmlFeatureParser.LINK_LIST))),
+				new HashSet<String>(Arrays.asList(streamed.getValues(HtmlFeatureParser.LINK_LIST))));
+	}
+
+}
@@ -0,0 +1,195 @@
+package uk.bl.wa.parsers;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tika.metadata.DublinCore;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.html.HtmlParser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.junit.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class UnifiedHtmlParserTest {
+
+	private static final String TEST_HTML = "<html><head><title> Test page </title>"
+			+ "<meta name=\"keywords\" content=\"a, b\"/></head>"
+			+ "<body><h1>Heading</h1><p>Some <b>bold</b> text.</p><div>A div</div>"
+			+ "<script>var x = 1;</script><ul><li>One</li><li>Two</li></ul>"
+			+ "<a href=\"/foo\">foo</a></body></html>";
+
+	// Void elements, which must not wrap the text that follows them:
+	private static final String VOID_HTML = "<html><head><title>Void</title>"
+			+ "<meta name=\"description\" content=\"void elements\"><link rel=\"stylesheet\" href=\"s.css\">"
+			+ "</head><body><p>a<br>b</p><p>c<img src=\"x.png\" alt=\"x\">d</p><hr>e"
+			+ "<form><input type=\"text\" name=\"q\">f</form><ul><li>g<br>h</li><li>i</li></ul>j</body></html>";
+
+	private static final String URL = "http://example.com/dummy.html";
+
+	private UnifiedHtmlParser newParser() {
+		Map<String, Object> conf = new HashMap<String, Object>();
+		conf.put(UnifiedHtmlParser.CONF_ENABLED, true);
+		return new UnifiedHtmlParser(ConfigFactory.parseMap(conf));
+	}
+
+	private static String normalise(String text) {
+		return text.replaceAll("\\s+", " ").trim();
+	}
+
+	/**
+	 * Tidies the spaces, but keeps the lines.
+	 */
+	private static String normaliseLines(String text) {
+		return text.replaceAll("[ \\t\\x0B\\f\\r\\u00A0]+", " ").replaceAll(" ?\n ?", "\n")
+				.replaceAll("\n+", "\n").trim();
+	}
+
+	private static String tikaText(InputStream in, String url) throws Exception {
+		Metadata metadata = new Metadata();
+		metadata.set(Metadata.RESOURCE_NAME_KEY, url);
+		BodyContentHandler text = new BodyContentHandler(-1);
+		new HtmlParser().parse(in, text, metadata, new ParseContext());
+		return text.toString();
+	}
+
+	private String unifiedText(InputStream in, String url) throws Exception {
+		Metadata metadata = new Metadata();
+		metadata.set(Metadata.RESOURCE_NAME_KEY, url);
+		BodyContentHandler text = new BodyContentHandler(-1);
+		newParser().parse(in, text, metadata, new ParseContext());
+		return text.toString();
+	}
+
+	@Test
+	public void testSameTextAsTika() throws Exception {
+		Metadata tikaMetadata = new Metadata();
+		tikaMetadata.set(Metadata.RESOURCE_NAME_KEY, URL);
+		BodyContentHandler tikaText = new BodyContentHandler();
+		new HtmlParser().parse(new ByteArrayInputStream(TEST_HTML.getBytes("UTF-8")), tikaText, tikaMetadata,
+				new ParseContext());
+
+		Metadata metadata = new Metadata();
+		metadata.set(Metadata.RESOURCE_NAME_KEY, URL);
+		BodyContentHandler text = new BodyContentHandler();
+		newParser().parse(new ByteArrayInputStream(TEST_HTML.getBytes("UTF-8")), text, metadata, new ParseContext());
+
+		assertEquals(normalise(tikaText.toString()), normalise(text.toString()));
+		assertEquals(tikaMetadata.get(DublinCore.TITLE), metadata.get(DublinCore.TITLE));
+		assertEquals(tikaMetadata.get("keywords"), metadata.get("keywords"));
+		// With no holder, the features are in the same metadata:
+		assertEquals("true", metadata.get(UnifiedHtmlParser.FEATURES_EXTRACTED));
+		assertEquals(Arrays.asList("http://example.com/foo"),
+				Arrays.asList(metadata.getValues(HtmlFeatureParser.LINK_LIST)));
+	}
+
+	@Test
+	public void testVoidElements() throws Exception {
+		String expected = tikaText(new ByteArrayInputStream(VOID_HTML.getBytes("UTF-8")), URL);
+		String text = unifiedText(new ByteArrayInputStream(VOID_HTML.getBytes("UTF-8")), URL);
+
+		assertEquals(normaliseLines(expected), normaliseLines(text));
+		// The line break comes between the words, not after them:
+		assertTrue(normaliseLines(text).startsWith("a\nb\n"));
+		assertTrue(normaliseLines(text).contains("g\nh\ni"));
+	}
+
+	@Test
+	public void testSameLinesAsTika() throws Exception {
+		String url = "http://en.wikipedia.org/wiki/Mona_Lisa";
+		File ml = new File("src/test/resources/wikipedia-mona-lisa/Mona_Lisa.html");
+
+		String expected = tikaText(new FileInputStream(ml), url);
+		String text = unifiedText(new FileInputStream(ml), url);
+
+		assertEquals(normaliseLines(expected), normaliseLines(text));
+	}
+
+	@Test
+	public void testSameFeatures() throws Exception {
+		String url = "http://en.wikipedia.org/wiki/Mona_Lisa";
+		File ml = new File("src/test/resources/wikipedia-mona-lisa/Mona_Lisa.html");
+
+		Metadata expected = new Metadata();
+		expected.set(Metadata.RESOURCE_NAME_KEY, url);
+		new HtmlFeatureParser().parse(new FileInputStream(ml), null, expected, null);
+
+		// The features go to the holder, even with no URL for Tika:
+		Metadata features = new Metadata();
+		features.set(Metadata.RESOURCE_NAME_KEY, url);
+		ParseContext context = new ParseContext();
+		context.set(UnifiedHtmlParser.Features.class, new UnifiedHtmlParser.Features(features));
+		Metadata metadata = new Metadata();
+		BodyContentHandler text = new BodyContentHandler(-1);
+		newParser().parse(new FileInputStream(ml), text, metadata, context);
+
+		assertEquals("Mona Lisa - Wikipedia, the free encyclopedia", metadata.get(DublinCore.TITLE));
+		assertNull(metadata.get(UnifiedHtmlParser.FEATURES_EXTRACTED));
+		assertNotNull(features.get(UnifiedHtmlParser.FEATURES_EXTRACTED));
+		assertEquals(Arrays.asList(expected.getValues(HtmlFeatureParser.LINK_LIST)),
+				Arrays.asList(features.getValues(HtmlFeatureParser.LINK_LIST)));
+		assertEquals(Arrays.asList(expected.getValues(HtmlFeatureParser.DISTINCT_ELEMENTS)),
+				Arrays.asList(features.getValues(HtmlFeatureParser.DISTINCT_ELEMENTS)));
+		assertEquals(expected.get(HtmlFeatureParser.FIRST_PARAGRAPH), features.get(HtmlFeatureParser.FIRST_PARAGRAPH));
+		assertEquals(Arrays.asList(expected.getValues(Metadata.LICENSE_URL)),
+				Arrays.asList(features.getValues(Metadata.LICENSE_URL)));
+	}
+
+	@Test
+	public void testClosedHolder() throws Exception {
+		// As when TikaExtractor has given up on the parse:
+		Metadata features = new Metadata();
+		features.set(Metadata.RESOURCE_NAME_KEY, URL);
+		UnifiedHtmlParser.Features holder = new UnifiedHtmlParser.Features(features);
+		holder.close();
+		ParseContext context = new ParseContext();
+		context.set(UnifiedHtmlParser.Features.class, holder);
+		Metadata metadata = new Metadata();
+		newParser().parse(new ByteArrayInputStream(TEST_HTML.getBytes("UTF-8")), new BodyContentHandler(), metadata,
+				context);
+
+		assertEquals("Test page", metadata.get(DublinCore.TITLE));
+		assertNull(features.get(UnifiedHtmlParser.FEATURES_EXTRACTED));
+		assertNull(features.get(HtmlFeatureParser.LINK_LIST));
+		assertNull(metadata.get(HtmlFeatureParser.LINK_LIST));
+		assertEquals(1, features.names().length);
+	}
+
+}
@@ -0,0 +1,78 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class AdaptiveBatchSizerTest {
+
+	private Config conf = ConfigFactory.parseString( "warc.solr { batch_bytes: 1000, min_batch_bytes: 100, max_batch_bytes: 2000, batch_target_latency: 1000 }" );
+
+	@Test
+	public void testFullBySize() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer( conf );
+		SolrBatch batch = new SolrBatch();
+		SolrInputDocument doc = new SolrInputDocument();
+		doc.addField( "id", "a" );
+		doc.addField( "content", "0123456789012345678901234567890123456789" );
+		while( !sizer.isFull( batch, 1000 ) ) {
+			batch.add( doc );
+		}
+		assertTrue( batch.getBytes() >= 1000 );
+		assertTrue( batch.size() < 1000 );
+		batch.clear();
+		assertEquals( 0, batch.getBytes() );
+	}
+
+	@Test
+	public void testAIMD() {
+		AdaptiveBatchSizer sizer = new AdaptiveBatchSizer( conf );
+		// Quick updates of full batches grow the target additively:
+		sizer.success( 10, 1000, 1000000L );
+		assertEquals( 1100, sizer.getTargetBytes() );
+		// Slow updates halve it:
+		sizer.success( 10, 1100, 2000000000L );
+		assertEquals( 550, sizer.getTargetBytes() );
+		// As do failures, down to the minimum:
+		for( int i = 0; i < 10; i++ ) {
+			sizer.failure();
+		}
+		assertEquals( 100, sizer.getTargetBytes() );
+		// And it never grows past the maximum:
+		for( int i = 0; i < 100; i++ ) {
+			sizer.success( 10, 2000, 1000000L );
+		}
+		assertEquals( 2000, sizer.getTargetBytes() );
+	}
+
+}
@@ -0,0 +1,208 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class AsyncSolrSubmitterTest {
+
+	@Test
+	public void testRetry() throws Exception {
+		FakeSolrServer solr = new FakeSolrServer( 2 );
+		AsyncSolrSubmitter submitter = new AsyncSolrSubmitter( solr, conf( 3, null ) );
+		submitter.submit( docs( "a", "b" ) );
+		submitter.close();
+		assertEquals( 3, solr.requests.get() );
+		assertEquals( 2, submitter.getErrorCount() );
+		assertEquals( 2, submitter.getSubmittedCount() );
+		assertEquals( 0, submitter.getDroppedCount() );
+	}
+
+	@Test
+	public void testDeadLetter() throws Exception {
+		File deadLetters = File.createTempFile( "dead-letters", ".xml" );
+		deadLetters.delete();
+		try {
+			FakeSolrServer solr = new FakeSolrServer( Integer.MAX_VALUE );
+			AsyncSolrSubmitter submitter = new AsyncSolrSubmitter( solr, conf( 2, deadLetters ) );
+			submitter.submit( docs( "a", "b" ) );
+			submitter.submit( docs( "c" ) );
+			submitter.close();
+			assertEquals( 6, solr.requests.get() );
+			assertEquals( 6, submitter.getErrorCount() );
+			assertEquals( 0, submitter.getSubmittedCount() );
+			assertEquals( 3, submitter.getDroppedCount() );
+			String xml = FileUtils.readFileToString( deadLetters, "UTF-8" );
+			assertEquals( 2, xml.split( "<add>" ).length - 1 );
+			for( String id : new String[] { "a", "b", "c" } ) {
+				assertTrue( xml.contains( "<field name=\"id\">" + id + "</field>" ) );
+			}
+		} finally {
+			deadLetters.delete();
+		}
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		FakeSolrServer solr = new FakeSolrServer( 0 );
+		solr.blocked = new CountDownLatch( 1 );
+		// One request in flight, and one more batch queued:
+		AsyncSolrSubmitter submitter = new AsyncSolrSubmitter( solr,
+				conf( 0, null ).withFallback( ConfigFactory.parseString( "warc.solr { num_threads: 1, async.queue_size: 1 }" ) ) );
+		List<SolrInputDocument> docs = docs( "a" );
+		assertTrue( submitter.submit( docs, 1, TimeUnit.SECONDS ) );
+		assertTrue( submitter.submit( docs, 1, TimeUnit.SECONDS ) );
+		// The caller may re-use the list straight away:
+		docs.clear();
+		assertFalse( submitter.submit( docs( "b" ), 100, TimeUnit.MILLISECONDS ) );
+		assertFalse( submitter.flush( 100, TimeUnit.MILLISECONDS ) );
+
+		solr.blocked.countDown();
+		assertTrue( submitter.submit( docs( "c" ), 1, TimeUnit.SECONDS ) );
+		submitter.close();
+		assertEquals( 3, solr.requests.get() );
+		assertEquals( 3, submitter.getSubmittedCount() );
+	}
+
+	@Test
+	public void testFlushOwnBatches() throws Exception {
+		FakeSolrServer solr = new FakeSolrServer( 0 );
+		solr.blocked = new CountDownLatch( 1 );
+		solr.blockedId = "other";
+		final AsyncSolrSubmitter submitter = new AsyncSolrSubmitter( solr,
+				conf( 0, null ).withFallback( ConfigFactory.parseString( "warc.solr { num_threads: 2, async.queue_size: 2 }" ) ) );
+		// Another thread's batch is held back:
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				try {
+					submitter.submit( docs( "other" ) );
+				} catch( InterruptedException e ) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		other.start();
+		other.join();
+
+		// But this thread only waits for its own:
+		submitter.submit( docs( "mine" ) );
+		assertTrue( submitter.flush( 1, TimeUnit.SECONDS ) );
+		assertEquals( 1, submitter.getSubmittedCount() );
+
+		solr.blocked.countDown();
+		submitter.close();
+		assertEquals( 2, submitter.getSubmittedCount() );
+	}
+
+	private static Config conf( int maxRetries, File deadLetters ) {
+		String conf = "warc.solr.async { max_retries: " + maxRetries + ", initial_backoff: 1, max_backoff: 10 }";
+		if( deadLetters != null ) {
+			conf += "\nwarc.solr.async.dead_letter_file: \"" + deadLetters.getAbsolutePath() + "\"";
+		}
+		return ConfigFactory.parseString( conf );
+	}
+
+	private static List<SolrInputDocument> docs( String... ids ) {
+		List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+		for( String id : ids ) {
+			SolrInputDocument doc = new SolrInputDocument();
+			doc.addField( "id", id );
+			docs.add( doc );
+		}
+		return docs;
+	}
+
+	/**
+	 * Fails a given number of update requests before accepting them, and can
+	 * hold requests back until released.
+	 */
+	private static class FakeSolrServer extends SolrServer {
+		private static final long serialVersionUID = 1L;
+
+		final AtomicInteger requests = new AtomicInteger();
+		private final int failures;
+		volatile CountDownLatch blocked;
+		/** Only hold back the requests for this doc, if set */
+		volatile String blockedId;
+
+		FakeSolrServer( int failures ) {
+			this.failures = failures;
+		}
+
+		@Override
+		public NamedList<Object> request( SolrRequest request ) throws SolrServerException, IOException {
+			if( blocked != null && ( blockedId == null || isFor( request, blockedId ) ) ) {
+				try {
+					blocked.await();
+				} catch( InterruptedException e ) {
+					throw new IOException( e );
+				}
+			}
+			if( requests.incrementAndGet() <= failures ) {
+				throw new SolrServerException( "Failure " + requests.get() );
+			}
+			return new NamedList<Object>();
+		}
+
+		private static boolean isFor( SolrRequest request, String id ) {
+			for( SolrInputDocument doc : ( ( UpdateRequest ) request ).getDocuments() ) {
+				if( id.equals( doc.getFieldValue( "id" ) ) ) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void shutdown() {
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class DuplicateLookupTest {
+
+	private static final Date JAN = new Date( 1420070400000L );
+	private static final Date FEB = new Date( 1422748800000L );
+
+	@Test
+	public void testBatching() {
+		FakeSolrServer solr = new FakeSolrServer();
+		solr.dates.put( "a", Arrays.asList( JAN ) );
+		solr.dates.put( "c", Arrays.asList( JAN, FEB ) );
+		DuplicateLookup lookup = new DuplicateLookup( new FakeSolrWebServer( solr ), 3, 100 );
+		for( String id : new String[] { "a", "b", "c", "d" } ) {
+			lookup.request( id );
+		}
+		// The first lookup resolves the others, up to the batch size:
+		assertEquals( Collections.emptySet(), lookup.getCrawlDates( "b" ) );
+		assertEquals( 1, solr.queries.size() );
+		assertEquals( "id:(\"b\" OR \"a\" OR \"c\")", solr.queries.get( 0 ) );
+		assertEquals( new HashSet<Date>( Arrays.asList( JAN ) ), lookup.getCrawlDates( "a" ) );
+		assertEquals( new HashSet<Date>( Arrays.asList( JAN, FEB ) ), lookup.getCrawlDates( "c" ) );
+		assertEquals( 1, solr.queries.size() );
+		// The rest go in the next batch:
+		assertEquals( Collections.emptySet(), lookup.getCrawlDates( "d" ) );
+		assertEquals( 2, solr.queries.size() );
+		assertEquals( "id:(\"d\")", solr.queries.get( 1 ) );
+		// Cached IDs are not requested again:
+		lookup.request( "a" );
+		lookup.request( "e" );
+		lookup.getCrawlDates( "e" );
+		assertEquals( "id:(\"e\")", solr.queries.get( 2 ) );
+	}
+
+	@Test
+	public void testSubmittedCrawlDates() {
+		FakeSolrServer solr = new FakeSolrServer();
+		solr.dates.put( "a", Arrays.asList( JAN ) );
+		DuplicateLookup lookup = new DuplicateLookup( new FakeSolrWebServer( solr ), 10, 100 );
+		lookup.getCrawlDates( "a" );
+		assertEquals( 1, solr.queries.size() );
+
+		// Our own submissions extend what is known, without asking Solr:
+		Map<String, String> add = new HashMap<String, String>();
+		add.put( "add", "2015-02-01T00:00:00Z" );
+		List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+		docs.add( doc( "a", add ) );
+		docs.add( doc( "unknown", add ) );
+		lookup.submitted( docs );
+		assertEquals( new HashSet<Date>( Arrays.asList( JAN, FEB ) ), lookup.getCrawlDates( "a" ) );
+		assertEquals( 1, solr.queries.size() );
+
+		// But are not taken as all there is for IDs that have not been looked up:
+		assertEquals( Collections.emptySet(), lookup.getCrawlDates( "unknown" ) );
+		assertEquals( 2, solr.queries.size() );
+	}
+
+	@Test
+	public void testFailedLookup() {
+		FakeSolrServer solr = new FakeSolrServer();
+		solr.fail = true;
+		DuplicateLookup lookup = new DuplicateLookup( new FakeSolrWebServer( solr ), 10, 100 );
+		assertTrue( lookup.getCrawlDates( "a" ).isEmpty() );
+		// Not cached, so tried again:
+		solr.fail = false;
+		solr.dates.put( "a", Arrays.asList( JAN ) );
+		assertEquals( new HashSet<Date>( Arrays.asList( JAN ) ), lookup.getCrawlDates( "a" ) );
+		assertEquals( 2, solr.queries.size() );
+	}
+
+	private static SolrInputDocument doc( String id, Object crawlDate ) {
+		SolrInputDocument doc = new SolrInputDocument();
+		doc.setField( SolrFields.ID, id );
+		doc.addField( SolrFields.CRAWL_DATES, crawlDate );
+		return doc;
+	}
+
+	private static class FakeSolrWebServer extends SolrWebServer {
+		private final SolrServer solrServer;
+
+		FakeSolrWebServer( SolrServer solrServer ) {
+			super( ConfigFactory.empty() );
+			this.solrServer = solrServer;
+		}
+
+		@Override
+		public SolrServer getSolrServer() {
+			return solrServer;
+		}
+	}
+
+	/**
+	 * Answers queries for the given crawl dates, and records them.
+	 */
+	private static class FakeSolrServer extends SolrServer {
+		private static final long serialVersionUID = 1L;
+
+		final Map<String, List<Date>> dates = new HashMap<String, List<Date>>();
+		final List<String> queries = new ArrayList<String>();
+		volatile boolean fail = false;
+
+		@Override
+		public NamedList<Object> request( SolrRequest request ) throws SolrServerException, IOException {
+			String q = request.getParams().get( "q" );
+			queries.add( q );
+			if( fail ) {
+				throw new SolrServerException( "Solr is down" );
+			}
+			SolrDocumentList results = new SolrDocumentList();
+			Set<String> ids = new HashSet<String>();
+			for( String term : q.substring( "id:(".length(), q.length() - 1 ).split( " OR " ) ) {
+				ids.add( term.substring( 1, term.length() - 1 ) );
+			}
+			for( String id : ids ) {
+				if( dates.containsKey( id ) ) {
+					SolrDocument doc = new SolrDocument();
+					doc.setField( SolrFields.ID, id );
+					for( Date date : dates.get( id ) ) {
+						doc.addField( SolrFields.CRAWL_DATES, date );
+					}
+					results.add( doc );
+				}
+			}
+			NamedList<Object> response = new NamedList<Object>();
+			response.add( "response", results );
+			return response;
+		}
+
+		@Override
+		public void shutdown() {
+		}
+	}
+
+}
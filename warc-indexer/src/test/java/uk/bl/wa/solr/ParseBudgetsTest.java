@@ -0,0 +1,118 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class ParseBudgetsTest {
+
+	private Config conf = ConfigFactory.parseString( "warc.index.tika.budgets { min_samples: 10, p99_multiplier: 2.0, min_timeout: 100, breaker { timeouts: 3, window: 60000, cooldown: 0 } }" );
+
+	@Test
+	public void testOptIn() {
+		assertFalse( ParseBudgets.isEnabled( ConfigFactory.parseString( "warc.index.tika.parse_timeout: 300000" ) ) );
+		assertFalse( ParseBudgets.isEnabled( ConfigFactory.parseString( "warc.index.tika.budgets.enabled: false" ) ) );
+		assertTrue( ParseBudgets.isEnabled( ConfigFactory.parseString( "warc.index.tika.budgets.enabled: true" ) ) );
+	}
+
+	@Test
+	public void testBudget() {
+		ParseBudgets budgets = new ParseBudgets( conf );
+		String type = ParseBudgets.baseType( "application/x-test-budget; charset=UTF-8" );
+		assertEquals( "application/x-test-budget", type );
+		// Not enough samples yet:
+		assertEquals( 300000, budgets.getBudget( type, 300000 ) );
+		for( int i = 0; i < 100; i++ ) {
+			budgets.completed( type, 1000 * 1000000L );
+		}
+		// About twice the p99 of one second:
+		long budget = budgets.getBudget( type, 300000 );
+		assertTrue( "Unexpected budget " + budget, budget >= 2000 && budget < 3000 );
+		// But never more than the global timeout:
+		assertEquals( 1500, budgets.getBudget( type, 1500 ) );
+	}
+
+	@Test
+	public void testBreaker() {
+		ParseBudgets budgets = new ParseBudgets( conf );
+		String type = "application/x-test-breaker";
+		assertTrue( budgets.allow( type ) );
+		budgets.timedOut( type, 1000000L );
+		budgets.timedOut( type, 1000000L );
+		assertTrue( budgets.allow( type ) );
+		budgets.timedOut( type, 1000000L );
+		assertEquals( 1, budgets.getTripCount() );
+		// With no cool-down, a single trial parse is let through:
+		assertTrue( budgets.allow( type ) );
+		assertFalse( budgets.allow( type ) );
+		assertEquals( 1, budgets.getSkippedCount() );
+		// A failed trial trips it again, but a completed one closes it:
+		budgets.timedOut( type, 1000000L );
+		assertTrue( budgets.allow( type ) );
+		budgets.completed( type, 1000000L );
+		assertTrue( budgets.allow( type ) );
+		assertTrue( budgets.allow( type ) );
+		assertEquals( 1, budgets.getTripCount() );
+	}
+
+	@Test
+	public void testAbortedTrial() throws InterruptedException {
+		final ParseBudgets budgets = new ParseBudgets( conf );
+		final String type = "application/x-test-aborted";
+		for( int i = 0; i < 3; i++ ) {
+			budgets.timedOut( type, 1000000L );
+		}
+		assertTrue( budgets.allow( type ) );
+		assertFalse( budgets.allow( type ) );
+		// Skipped parses on other threads leave the trial running:
+		Thread other = new Thread() {
+			@Override
+			public void run() {
+				budgets.aborted( type );
+			}
+		};
+		other.start();
+		other.join();
+		assertFalse( budgets.allow( type ) );
+		// But a trial that was refused a thread, or interrupted, lets the next one through:
+		budgets.aborted( type );
+		assertTrue( budgets.allow( type ) );
+		assertFalse( budgets.allow( type ) );
+		budgets.completed( type, 1000000L );
+		assertTrue( budgets.allow( type ) );
+		assertTrue( budgets.allow( type ) );
+		// Which does nothing once the breaker is closed:
+		budgets.aborted( type );
+		assertTrue( budgets.allow( type ) );
+	}
+
+}
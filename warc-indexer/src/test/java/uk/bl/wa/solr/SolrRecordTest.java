@@ -0,0 +1,62 @@
+package uk.bl.wa.solr;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SolrRecordTest {
+
+	@Test
+	public void testCleanValueIsNotCopied() {
+		String value = "A perfectly ordinary title, with a \uD83D\uDE00 in it.";
+		assertSame( value, SolrRecord.sanitise( value ) );
+	}
+
+	@Test
+	public void testSanitise() {
+		assertEquals( "trimmed", SolrRecord.sanitise( " \t\u0001trimmed\r\n" ) );
+		assertEquals( "a b c d", SolrRecord.sanitise( "a\tb\nc\rd" ) );
+		assertEquals( "nonulls", SolrRecord.sanitise( "no\u0000nu\u007fll\u001bs" ) );
+		assertEquals( "bad ? and ?", SolrRecord.sanitise( "bad \uD800 and \uDC00" ) );
+		assertEquals( "", SolrRecord.sanitise( "\u0000\u0001 \t" ) );
+	}
+
+	@Test
+	public void testAddField() {
+		SolrRecord doc = new SolrRecord();
+		doc.addField( SolrFields.SOLR_TITLE, "\u0000\n " );
+		assertNull( doc.getFieldValue( SolrFields.SOLR_TITLE ) );
+		doc.addField( SolrFields.SOLR_TITLE, " A\ttitle " );
+		assertEquals( "A title", doc.getFieldValue( SolrFields.SOLR_TITLE ) );
+	}
+
+}
@@ -25,15 +25,30 @@ package uk.bl.wa.solr;
  * #L%
  */
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.tika.Tika;
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.detect.Detector;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AutoDetectParser;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.typesafe.config.ConfigFactory;
+
 /**
  * @author Andrew Jackson <Andrew.Jackson@bl.uk>
  *
@@ -67,4 +82,62 @@ public class TikaExtractorTest {
 				text.contains("encyclopediaMona"));
 	}
 
+	/**
+	 * The parse should go straight to the parser for the detected type, and
+	 * give the same results as letting Tika detect it again, without the
+	 * type being detected more than once.
+	 */
+	@Test
+	public void testDetectedTypeParsers() throws Exception {
+		CountingDetector detector = new CountingDetector();
+		TikaExtractor tika = new TikaExtractor(ConfigFactory.load(),
+				new Tika(detector, new AutoDetectParser(detector)));
+		String html = "<html><head><title>A title</title></head><body><p>Some text.</p></body></html>";
+		for( int i = 0; i < 2; i++ ) {
+			SolrRecord solr = new SolrRecord();
+			detector.count.set(0);
+			tika.extract(solr, new ByteArrayInputStream(html.getBytes("UTF-8")), "http://example.com/page.html");
+			assertTrue(((String) solr.getField(SolrFields.SOLR_CONTENT_TYPE).getValue()).startsWith("text/html"));
+			assertEquals("A title", solr.getField(SolrFields.SOLR_TITLE).getValue());
+			assertEquals("Some text.", solr.getField(SolrFields.SOLR_EXTRACTED_TEXT).getValue());
+			assertEquals(1, detector.count.get());
+		}
+
+		SolrRecord solr = new SolrRecord();
+		detector.count.set(0);
+		tika.extract(solr, new ByteArrayInputStream("Just some plain text.".getBytes("UTF-8")), null);
+		assertTrue(((String) solr.getField(SolrFields.SOLR_CONTENT_TYPE).getValue()).startsWith("text/plain"));
+		assertEquals("Just some plain text.", solr.getField(SolrFields.SOLR_EXTRACTED_TEXT).getValue());
+		assertEquals(1, detector.count.get());
+	}
+
+	@Test
+	public void testSpaceTrimWriter() throws Exception {
+		StringWriter out = new StringWriter();
+		Writer w = tika.new SpaceTrimWriter( out );
+		char[] chars = "xx \t Hello  \n world\t".toCharArray();
+		// Offsets into the middle of the array should be honoured:
+		w.write( chars, 2, 10 );
+		w.write( chars, 12, chars.length - 12 );
+		w.write( "  again", 0, 7 );
+		assertEquals( "Hello\nworld again", out.toString() );
+	}
+
+	/**
+	 * The default detector, counting how often it is used.
+	 */
+	private static class CountingDetector implements Detector {
+		private static final long serialVersionUID = 1L;
+
+		private final Detector detector = TikaConfig.getDefaultConfig().getDetector();
+
+		final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public MediaType detect(InputStream input, Metadata metadata) throws IOException {
+			count.incrementAndGet();
+			return detector.detect(input, metadata);
+		}
+	}
+
 }
@@ -0,0 +1,176 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.archive.io.ArchiveReader;
+import org.archive.io.ArchiveReaderFactory;
+import org.archive.io.ArchiveRecordHeader;
+import org.archive.util.Base32;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class HashedCachedInputStreamTest {
+
+	private static final int CHUNK = ChunkPool.CHUNK_SIZE;
+
+	/** An ARC header, as that carries no payload digest to check against */
+	private static ArchiveRecordHeader header;
+
+	@BeforeClass
+	public static void setUpHeader() throws IOException {
+		ArchiveReader reader = ArchiveReaderFactory.get( "src/test/resources/IAH-20080430204825-00000-blackbook-truncated.arc.gz" );
+		header = reader.iterator().next().getHeader();
+		reader.close();
+	}
+
+	@Test
+	public void testChunkBoundaries() throws Exception {
+		for( int size : new int[] { 0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK + 5 } ) {
+			byte[] content = content( size );
+			HashedCachedInputStream hcis = cache( content, 10L * CHUNK, 100L * CHUNK );
+			assertEquals( "Size " + size, sha1( content ), hcis.getHash() );
+			assertFalse( hcis.isTruncated() );
+			assertArrayEquals( "Size " + size, content, readAll( hcis.getInputStream(), 1000 ) );
+			assertArrayEquals( "Size " + size, content, readAll( hcis.getInputStream(), 3 * CHUNK ) );
+			assertArrayEquals( "Size " + size, content, readBytes( hcis.getInputStream() ) );
+			hcis.cleanup();
+		}
+	}
+
+	@Test
+	public void testMarkReset() throws Exception {
+		byte[] content = content( 2 * CHUNK + 17 );
+		HashedCachedInputStream hcis = cache( content, 10L * CHUNK, 100L * CHUNK );
+		checkMarkReset( content, hcis.getInputStream() );
+		hcis.cleanup();
+	}
+
+	@Test
+	public void testSpill() throws Exception {
+		byte[] content = content( 3 * CHUNK + 100 );
+		HashedCachedInputStream hcis = cache( content, CHUNK + 1, 100L * CHUNK );
+		assertEquals( sha1( content ), hcis.getHash() );
+		assertFalse( hcis.isTruncated() );
+		assertArrayEquals( content, readAll( hcis.getInputStream(), 1000 ) );
+		checkMarkReset( content, hcis.getInputStream() );
+		hcis.cleanup();
+	}
+
+	@Test
+	public void testTruncated() throws Exception {
+		byte[] content = content( 5000 );
+		HashedCachedInputStream hcis = cache( content, 100, 1000 );
+		// The hash is of all the content, but only the start is cached:
+		assertEquals( sha1( content ), hcis.getHash() );
+		assertTrue( hcis.isTruncated() );
+		assertArrayEquals( Arrays.copyOf( content, 1000 ), readAll( hcis.getInputStream(), 300 ) );
+		hcis.cleanup();
+	}
+
+	@Test
+	public void testCleanupAndDiscard() throws Exception {
+		byte[] content = content( 2 * CHUNK );
+		HashedCachedInputStream hcis = cache( content, 10L * CHUNK, 100L * CHUNK );
+		int pooled = ChunkPool.getPooledCount();
+		hcis.cleanup();
+		assertEquals( Math.min( pooled + 2, 256 ), ChunkPool.getPooledCount() );
+
+		// Discarded content is not re-used, as a stuck parser may still be reading it:
+		hcis = cache( content, 10L * CHUNK, 100L * CHUNK );
+		InputStream in = hcis.getInputStream();
+		byte[] start = new byte[ 10 ];
+		assertEquals( 10, in.read( start ) );
+		pooled = ChunkPool.getPooledCount();
+		hcis.discard();
+		assertEquals( pooled, ChunkPool.getPooledCount() );
+		assertArrayEquals( Arrays.copyOfRange( content, 10, content.length ), readAll( in, 1000 ) );
+	}
+
+	private static void checkMarkReset( byte[] content, InputStream in ) throws IOException {
+		assertTrue( in.markSupported() );
+		assertEquals( content.length, in.available() );
+		in.mark( content.length );
+		// Read across a chunk boundary:
+		assertEquals( CHUNK - 3, in.skip( CHUNK - 3 ) );
+		byte[] buffer = new byte[ 10 ];
+		assertEquals( 10, in.read( buffer ) );
+		assertArrayEquals( Arrays.copyOfRange( content, CHUNK - 3, CHUNK + 7 ), buffer );
+		in.reset();
+		assertArrayEquals( content, readAll( in, 777 ) );
+		in.reset();
+		assertArrayEquals( content, readAll( in, 777 ) );
+	}
+
+	private static HashedCachedInputStream cache( byte[] content, long inMemoryThreshold, long onDiskThreshold ) {
+		return new HashedCachedInputStream( header, new ByteArrayInputStream( content ), content.length,
+				inMemoryThreshold, onDiskThreshold );
+	}
+
+	private static byte[] content( int size ) {
+		byte[] content = new byte[ size ];
+		new Random( size ).nextBytes( content );
+		return content;
+	}
+
+	private static String sha1( byte[] content ) throws Exception {
+		return "sha1:" + Base32.encode( MessageDigest.getInstance( "SHA-1" ).digest( content ) );
+	}
+
+	private static byte[] readAll( InputStream in, int bufferSize ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[ bufferSize ];
+		int n;
+		while( ( n = in.read( buffer ) ) != -1 ) {
+			out.write( buffer, 0, n );
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] readBytes( InputStream in ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while( ( b = in.read() ) != -1 ) {
+			out.write( b );
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,88 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class HeadTailInputStreamTest {
+
+	@Test
+	public void testWindows() throws IOException {
+		byte[] content = new byte[ 100 ];
+		for( int i = 0; i < content.length; i++ ) {
+			content[ i ] = ( byte ) i;
+		}
+		byte[] expected = new byte[ 20 ];
+		System.arraycopy( content, 0, expected, 0, 10 );
+		System.arraycopy( content, 90, expected, 10, 10 );
+
+		// Bulk reads:
+		InputStream in = new HeadTailInputStream( new ByteArrayInputStream( content ), content.length, 10 );
+		assertArrayEquals( expected, readAll( in, 7 ) );
+
+		// Single bytes:
+		in = new HeadTailInputStream( new ByteArrayInputStream( content ), content.length, 10 );
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while( ( b = in.read() ) != -1 ) {
+			out.write( b );
+		}
+		assertArrayEquals( expected, out.toByteArray() );
+	}
+
+	@Test
+	public void testSmallContent() throws IOException {
+		byte[] content = "short".getBytes( "UTF-8" );
+		assertFalse( HeadTailInputStream.isWindowed( content.length, 10 ) );
+		assertTrue( HeadTailInputStream.isWindowed( 21, 10 ) );
+		InputStream in = new HeadTailInputStream( new ByteArrayInputStream( content ), content.length, 10 );
+		assertArrayEquals( content, readAll( in, 3 ) );
+		assertEquals( -1, in.read() );
+	}
+
+	private static byte[] readAll( InputStream in, int bufferSize ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[ bufferSize ];
+		int n;
+		while( ( n = in.read( buffer ) ) != -1 ) {
+			out.write( buffer, 0, n );
+		}
+		return out.toByteArray();
+	}
+
+}
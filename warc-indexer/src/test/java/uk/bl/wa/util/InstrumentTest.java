@@ -39,4 +39,46 @@ public class InstrumentTest extends TestCase {
                    Instrument.getStats().contains("    "));
     }
 
+    public void testPercentiles() {
+        for (int i = 1; i <= 1000; i++) {
+            Instrument.time("percentiles", i * 1000000L);
+        }
+        Instrument.Stats stats = Instrument.getTracker("percentiles");
+        assertEquals(1000, stats.getCount());
+        assertEquals(1000000000L, stats.getMax());
+        assertWithin("p50", 500000000L, stats.getPercentile(50));
+        assertWithin("p95", 950000000L, stats.getPercentile(95));
+        assertWithin("p99", 990000000L, stats.getPercentile(99));
+        assertTrue("The report should include percentiles", stats.toString().contains("p99="));
+    }
+
+    private void assertWithin(String message, long expected, long actual) {
+        assertTrue(message + " should be " + expected + " (+/- 1/8), but was " + actual,
+                   actual >= expected && actual <= expected + expected / 8);
+    }
+
+    public void testConcurrentTiming() throws InterruptedException {
+        final int threads = 8;
+        final int timings = 10000;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < timings; i++) {
+                        Instrument.time("concurrent", "concurrent.child", 3);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Instrument.Stats stats = Instrument.getTracker("concurrent.child");
+        assertEquals(threads * timings, stats.getCount());
+        assertEquals(threads * timings * 3L, stats.getTime());
+        assertTrue(Instrument.getTracker("concurrent").children.contains(stats));
+    }
+
 }
@@ -0,0 +1,82 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import uk.bl.wa.util.SlowRecordLog.SlowRecord;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SlowRecordLogTest {
+
+	private static final Map<String, Long> NO_STAGES = Collections.emptyMap();
+
+	@Test
+	public void testKeepsSlowest() {
+		SlowRecordLog slowRecords = new SlowRecordLog( 3 );
+		long[] times = { 5, 1, 9, 3, 7, 2, 8 };
+		for( int i = 0; i < times.length; i++ ) {
+			slowRecords.offer( "test.warc.gz", i, "http://example.org/" + i, "text/html", times[ i ], NO_STAGES );
+		}
+		List<SlowRecord> slowest = slowRecords.getSlowest();
+		assertEquals( 3, slowest.size() );
+		assertEquals( 9, slowest.get( 0 ).nanos );
+		assertEquals( 8, slowest.get( 1 ).nanos );
+		assertEquals( 7, slowest.get( 2 ).nanos );
+		assertFalse( slowRecords.isSlow( 6 ) );
+		assertTrue( slowRecords.isSlow( 10 ) );
+	}
+
+	@Test
+	public void testDisabled() {
+		SlowRecordLog slowRecords = new SlowRecordLog( 0 );
+		assertFalse( slowRecords.isEnabled() );
+		slowRecords.offer( "test.warc.gz", 0, "http://example.org/", null, 1000, NO_STAGES );
+		assertTrue( slowRecords.getSlowest().isEmpty() );
+	}
+
+	@Test
+	public void testRecordTimings() {
+		Instrument.startRecordTimings();
+		Instrument.time( "SlowRecordLogTest#total", "SlowRecordLogTest#stage", 10 );
+		Instrument.time( "SlowRecordLogTest#total", "SlowRecordLogTest#stage", 5 );
+		Map<String, Long> timings = Instrument.stopRecordTimings();
+		assertEquals( Long.valueOf( 15 ), timings.get( "SlowRecordLogTest#stage" ) );
+		// Nothing is collected once stopped:
+		Instrument.time( "SlowRecordLogTest#stage", 5 );
+		assertTrue( Instrument.stopRecordTimings().isEmpty() );
+	}
+
+}
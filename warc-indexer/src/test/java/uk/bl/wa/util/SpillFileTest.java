@@ -0,0 +1,157 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SpillFileTest {
+
+	@Test
+	public void testSpill() throws Exception {
+		byte[] content = content( 100000 );
+		SpillFile spill = write( SpillFile.acquire(), content );
+		assertEquals( content.length, spill.getLength() );
+		assertArrayEquals( content, readAll( spill.getInputStream() ) );
+		// Each stream reads from the start:
+		assertArrayEquals( content, readAll( spill.getInputStream() ) );
+		spill.discard();
+	}
+
+	@Test
+	public void testMarkReset() throws Exception {
+		byte[] content = content( 5000 );
+		SpillFile spill = write( SpillFile.acquire(), content );
+		InputStream in = spill.getInputStream();
+		assertTrue( in.markSupported() );
+		byte[] head = new byte[100];
+		assertEquals( 100, in.read( head ) );
+		in.mark( 0 );
+		byte[] first = new byte[1000];
+		assertEquals( 1000, in.read( first ) );
+		in.reset();
+		byte[] again = new byte[1000];
+		assertEquals( 1000, in.read( again ) );
+		assertArrayEquals( first, again );
+		assertArrayEquals( Arrays.copyOfRange( content, 100, 1100 ), again );
+		assertEquals( 3900, in.skip( 10000 ) );
+		assertEquals( -1, in.read() );
+		spill.discard();
+	}
+
+	@Test
+	public void testReuse() throws Exception {
+		byte[] big = content( 20000 );
+		SpillFile spill = write( SpillFile.acquire(), big );
+		spill.release();
+		// Idle files hold no data:
+		assertEquals( 0, spill.getFile().length() );
+		assertEquals( 0, spill.getLength() );
+
+		// A re-used file only holds and returns the new, shorter, content:
+		SpillFile reused = SpillFile.acquire();
+		assertEquals( 0, reused.getLength() );
+		byte[] small = content( 300 );
+		write( reused, small );
+		assertEquals( small.length, reused.getFile().length() );
+		assertArrayEquals( small, readAll( reused.getInputStream() ) );
+		reused.release();
+	}
+
+	@Test
+	public void testDiscard() throws Exception {
+		byte[] content = content( 4000 );
+		SpillFile spill = write( SpillFile.acquire(), content );
+		InputStream in = spill.getInputStream();
+		spill.discard();
+		assertFalse( spill.getFile().exists() );
+		// A stream that is still in use keeps reading the old content:
+		assertArrayEquals( content, readAll( in ) );
+		// ...and the discarded file is never handed out again:
+		for( int i = 0; i < 20; i++ ) {
+			SpillFile other = SpillFile.acquire();
+			assertTrue( other != spill );
+			other.discard();
+		}
+	}
+
+	@Test
+	public void testUnmappedReadersClosed() throws Exception {
+		byte[] content = content( 3000 );
+		SpillFile spill = write( SpillFile.acquire(), content );
+		spill.mapLimit = 1000;
+		assertArrayEquals( content, readAll( spill.getInputStream() ) );
+		assertArrayEquals( content, readAll( spill.getInputStream() ) );
+		assertEquals( 2, spill.getOpenReaderCount() );
+		spill.release();
+		assertEquals( 0, spill.getOpenReaderCount() );
+
+		spill = write( SpillFile.acquire(), content );
+		spill.mapLimit = 1000;
+		spill.getInputStream();
+		assertEquals( 1, spill.getOpenReaderCount() );
+		spill.discard();
+		assertEquals( 0, spill.getOpenReaderCount() );
+	}
+
+	private static SpillFile write( SpillFile spill, byte[] content ) throws IOException {
+		OutputStream out = spill.getOutputStream();
+		out.write( content, 0, 10 );
+		out.write( content[10] );
+		out.write( content, 11, content.length - 11 );
+		return spill;
+	}
+
+	private static byte[] content( int size ) {
+		byte[] content = new byte[size];
+		new Random( size ).nextBytes( content );
+		return content;
+	}
+
+	private static byte[] readAll( InputStream in ) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[777];
+		int n;
+		while( ( n = in.read( buf ) ) != -1 ) {
+			out.write( buf, 0, n );
+		}
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,174 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.wayback.surt.SURTTokenizer;
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SurtPrefixTrieTest {
+
+	@Test
+	public void testHostPrefixes() {
+		SurtPrefixTrie trie = new SurtPrefixTrie( Arrays.asList( "(uk,co,example", "(org,archive,www,)/images" ) );
+		assertEquals( 2, trie.size() );
+		assertTrue( trie.matches( "(uk,co,example,)/" ) );
+		assertTrue( trie.matches( "(uk,co,example,www,)/some/page?q=1" ) );
+		assertFalse( trie.matches( "(uk,co,examples,)/" ) );
+		assertFalse( trie.matches( "(uk,co,)/" ) );
+	}
+
+	@Test
+	public void testPathPrefixes() {
+		SurtPrefixTrie trie = new SurtPrefixTrie( Arrays.asList( "(org,archive,www,)/images" ) );
+		assertTrue( trie.matches( "(org,archive,www,)/images" ) );
+		assertTrue( trie.matches( "(org,archive,www,)/images/" ) );
+		assertTrue( trie.matches( "(org,archive,www,)/images/logo.gif" ) );
+		assertTrue( trie.matches( "(org,archive,www,)/images?size=10" ) );
+		// Only whole path segments match:
+		assertFalse( trie.matches( "(org,archive,www,)/imagesets/logo.gif" ) );
+		assertFalse( trie.matches( "(org,archive,www,)/" ) );
+		assertFalse( trie.matches( "(org,archive,)/images/logo.gif" ) );
+	}
+
+	@Test
+	public void testExactKeys() {
+		SurtPrefixTrie trie = new SurtPrefixTrie( Arrays.asList( "(org,archive,www,)/about\t" ) );
+		assertTrue( trie.matches( "(org,archive,www,)/about" ) );
+		assertFalse( trie.matches( "(org,archive,www,)/about/staff" ) );
+	}
+
+	/**
+	 * Checks the trie against the candidate prefixes generated by
+	 * SURTTokenizer, over random keys drawn from a small vocabulary (so that
+	 * they share hosts and paths), with ports, logins and queries.
+	 */
+	@Test
+	public void testAgainstSURTTokenizer() throws URIException {
+		Random random = new Random( 20150601L );
+		// Prefixes of some keys, plus some exact keys and some unrelated ones:
+		Set<String> keys = new HashSet<String>();
+		for( int i = 0; i < 100; i++ ) {
+			// Leaving out the whole top-level domains, which would match too much:
+			List<String> candidates = candidates( randomKey( random ) );
+			candidates = candidates.subList( 0, candidates.size() - 2 );
+			keys.add( candidates.get( random.nextInt( candidates.size() ) ) );
+		}
+		for( int i = 0; i < 50; i++ ) {
+			keys.add( randomKey( random ) );
+		}
+		SurtPrefixTrie trie = new SurtPrefixTrie( keys );
+		assertEquals( keys.size(), trie.size() );
+
+		int matched = 0;
+		for( int i = 0; i < 20000; i++ ) {
+			String key = randomKey( random );
+			boolean expected = false;
+			for( String candidate : candidates( key ) ) {
+				if( keys.contains( candidate ) ) {
+					expected = true;
+					break;
+				}
+			}
+			assertEquals( key, expected, trie.matches( key ) );
+			if( expected ) {
+				matched++;
+			}
+		}
+		// Make sure both outcomes were actually exercised:
+		assertTrue( "Only " + matched + " matched", matched > 1000 );
+		assertTrue( "All but " + ( 20000 - matched ) + " matched", matched < 19000 );
+	}
+
+	private static List<String> candidates( String key ) throws URIException {
+		List<String> candidates = new ArrayList<String>();
+		SURTTokenizer tokenizer = new SURTTokenizer( key );
+		String candidate;
+		while( ( candidate = tokenizer.nextSearch() ) != null ) {
+			candidates.add( candidate );
+		}
+		return candidates;
+	}
+
+	private static final String[] TLDS = { "uk", "org", "com" };
+	private static final String[] LABELS = { "example", "archive", "www", "co", "a" };
+	private static final String[] SEGMENTS = { "images", "index.html", "a", "about", "", "img" };
+
+	/**
+	 * @return a random SURT, e.g. (uk,co,example,www,:8080@user)/images/a?q=1
+	 */
+	private static String randomKey( Random random ) {
+		StringBuilder key = new StringBuilder( "(" );
+		key.append( TLDS[random.nextInt( TLDS.length )] ).append( ',' );
+		int labels = random.nextInt( 4 );
+		for( int i = 0; i < labels; i++ ) {
+			key.append( LABELS[random.nextInt( LABELS.length )] ).append( ',' );
+		}
+		if( random.nextInt( 10 ) == 0 ) {
+			key.append( ":8080" );
+		}
+		if( random.nextInt( 10 ) == 0 ) {
+			key.append( "@user" );
+		}
+		key.append( ")/" );
+		int segments = random.nextInt( 4 );
+		for( int i = 0; i < segments; i++ ) {
+			if( i > 0 ) {
+				key.append( '/' );
+			}
+			key.append( SEGMENTS[random.nextInt( SEGMENTS.length )] );
+		}
+		if( random.nextInt( 4 ) == 0 ) {
+			key.append( random.nextBoolean() ? "/" : "" ).append( "?q=" ).append( random.nextInt( 3 ) );
+		}
+		return key.toString();
+	}
+
+	@Test
+	public void testLoad() throws IOException {
+		SurtPrefixTrie trie = SurtPrefixTrie.load( new File( "src/test/resources/exclusion_test.txt" ) );
+		assertEquals( 1, trie.size() );
+		assertTrue( trie.isExcluded( "http://www.archive.org/images/logo.gif" ) );
+		assertFalse( trie.isExcluded( "http://www.archive.org/index.html" ) );
+		assertFalse( trie.isExcluded( "http://www.example.com/images/logo.gif" ) );
+	}
+
+}
@@ -0,0 +1,111 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class TextBufferTest {
+
+	@Test
+	public void testCap() throws IOException {
+		TextBuffer text = new TextBuffer( 10 );
+		text.write( "abcdef" );
+		assertFalse( text.isFull() );
+		text.write( "ghijkl".toCharArray() );
+		text.write( 'm' );
+		assertTrue( text.isFull() );
+		assertEquals( 10, text.length() );
+		assertEquals( "abcdefghij", text.toString() );
+	}
+
+	@Test
+	public void testRegrowth() throws IOException {
+		// Starts smaller than the cap, and grows by more than doubling if need be:
+		int max = 1000000;
+		TextBuffer text = new TextBuffer( max );
+		StringBuilder expected = new StringBuilder();
+		for( int i = 0; i < 20000; i++ ) {
+			String line = "Line " + i + "\n";
+			text.write( line );
+			expected.append( line );
+		}
+		char[] block = new char[ 300000 ];
+		for( int i = 0; i < block.length; i++ ) {
+			block[ i ] = ( char ) ( 'a' + i % 26 );
+		}
+		text.write( block, 0, block.length );
+		expected.append( block );
+		assertEquals( expected.length(), text.length() );
+		assertEquals( expected.toString(), text.toString() );
+
+		// And stops at the cap:
+		text.write( block, 0, block.length );
+		text.write( block, 0, block.length );
+		expected.append( block ).append( block );
+		assertEquals( max, text.length() );
+		assertEquals( expected.substring( 0, max ), text.toString() );
+	}
+
+	@Test
+	public void testReuse() throws IOException {
+		TextBuffer text = new TextBuffer( 100 );
+		text.write( "A long first record that fills the buffer." );
+		text.clear();
+		assertEquals( 0, text.length() );
+		assertEquals( "", text.toString() );
+		text.write( "Short." );
+		assertEquals( "Short.", text.toString() );
+	}
+
+	@Test
+	public void testSurrogates() throws IOException {
+		String pair = new String( Character.toChars( 0x1F600 ) );
+		// Pairs are kept:
+		TextBuffer text = new TextBuffer( 10 );
+		text.write( "ab" + pair + "c" );
+		assertEquals( "ab" + pair + "c", text.toString() );
+
+		// A pair split by the cap loses its high surrogate:
+		text = new TextBuffer( 3 );
+		text.write( "ab" + pair );
+		assertEquals( 3, text.length() );
+		assertEquals( "ab?", text.toString() );
+
+		// Unpaired surrogates in the input are replaced too:
+		text = new TextBuffer( 10 );
+		text.write( "a\uDC00b\uD800c" );
+		assertEquals( "a?b?c", text.toString() );
+	}
+
+}
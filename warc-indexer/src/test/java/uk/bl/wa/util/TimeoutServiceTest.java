@@ -0,0 +1,102 @@
+package uk.bl.wa.util;
+
+/*
+ * #%L
+ * warc-indexer
+ * %%
+ * Copyright (C) 2013 - 2015 The UK Web Archive
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class TimeoutServiceTest {
+
+	@Test
+	public void testCompletes() throws InterruptedException {
+		TimeoutService ts = new TimeoutService( 2 );
+		final StringBuilder sb = new StringBuilder();
+		assertEquals( TimeoutService.Outcome.COMPLETED, ts.run( new Runnable() {
+			@Override
+			public void run() {
+				sb.append( "done" );
+			}
+		}, 1000L ) );
+		assertEquals( "done", sb.toString() );
+		assertEquals( 0, ts.getAbandonedCount() );
+	}
+
+	@Test
+	public void testAbandonsAndRefuses() throws InterruptedException {
+		TimeoutService ts = new TimeoutService( 1 );
+		final CountDownLatch release = new CountDownLatch( 1 );
+		final CountDownLatch finished = new CountDownLatch( 1 );
+		// A task that ignores interrupts, like a stuck parser:
+		Runnable stuck = new Runnable() {
+			@Override
+			public void run() {
+				while( true ) {
+					try {
+						release.await();
+						finished.countDown();
+						return;
+					} catch( InterruptedException e ) {
+						// Ignore
+					}
+				}
+			}
+		};
+		assertEquals( TimeoutService.Outcome.TIMED_OUT, ts.run( stuck, 100L ) );
+		assertEquals( 1, ts.getAbandonedCount() );
+		assertEquals( 1, ts.getStuckCount() );
+		assertEquals( 1, ts.getAbandonedCountForThread() );
+
+		// The only thread is stuck, so this one is refused:
+		assertEquals( TimeoutService.Outcome.REJECTED, ts.run( stuck, 100L ) );
+		assertEquals( 1, ts.getRejectedCount() );
+		// Refused tasks never started, so are not counted as abandoned:
+		assertEquals( 1, ts.getAbandonedCountForThread() );
+
+		// Once the stuck task finishes, it is no longer counted:
+		release.countDown();
+		assertTrue( finished.await( 10, TimeUnit.SECONDS ) );
+		for( int i = 0; i < 100 && ts.getStuckCount() > 0; i++ ) {
+			Thread.sleep( 10 );
+		}
+		assertEquals( 0, ts.getStuckCount() );
+	}
+
+	@Test( expected = IllegalStateException.class )
+	public void testRethrows() throws InterruptedException {
+		new TimeoutService( 1 ).run( new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException();
+			}
+		}, 1000L );
+	}
+
+}